@@ -1043,6 +1043,16 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             super.setPreviewTexture(surfaceTexture);
         }
 
+        // FIXME: Unlock the sizes in stopPreview(), as per the corresponding
+        // explanation on the STOP_PREVIEW case in the handler.
+        @Override
+        public CameraFuture<Void> setPreviewTextureAsync(SurfaceTexture surfaceTexture) {
+            // Once the Surface has been selected, we configure the session and
+            // are no longer able to change the sizes.
+            getSettings().setSizesLocked(true);
+            return super.setPreviewTextureAsync(surfaceTexture);
+        }
+
         // TODO: Implement
         @Override
         public void setPreviewDataCallback(Handler handler, CameraPreviewDataCallback cb) {}
@@ -1062,7 +1072,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         @Override
         public void autoFocus(final Handler handler, final CameraAFCallback cb) {
             try {
-                mDispatchThread.runJob(new Runnable() {
+                mDispatchThread.runJob(CameraActions.AUTO_FOCUS, new Runnable() {
                     @Override
                     public void run() {
                         CameraAFCallback cbForward = null;
@@ -1096,7 +1106,8 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         @Override
         public void setAutoFocusMoveCallback(final Handler handler, final CameraAFMoveCallback cb) {
             try {
-                mDispatchThread.runJob(new Runnable() {
+                mDispatchThread.runJobPipelined(CameraActions.SET_AUTO_FOCUS_MOVE_CALLBACK,
+                        new Runnable() {
                     @Override
                     public void run() {
                         CameraAFMoveCallback cbForward = null;
@@ -1164,7 +1175,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                     }
                 }};
             try {
-                mDispatchThread.runJob(new Runnable() {
+                mDispatchThread.runJob(CameraActions.CAPTURE_PHOTO, new Runnable() {
                     @Override
                     public void run() {
                         // Wait until PREVIEW_ACTIVE or better
@@ -1204,6 +1215,12 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         @Override
         public android.hardware.Camera.Parameters getParameters() { return null; }
 
+        // TODO: Implement
+        @Override
+        public CameraFuture<android.hardware.Camera.Parameters> getParametersAsync() {
+            return CameraFuture.completed(null);
+        }
+
         @Override
         public CameraSettings getSettings() {
             if (mLastSettings == null) {
@@ -807,7 +807,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
         @Override
         public void setPreviewDataCallback(
                 final Handler handler, final CameraPreviewDataCallback cb) {
-            mDispatchThread.runJob(new Runnable() {
+            mDispatchThread.runJobPipelined(CameraActions.SET_PREVIEW_CALLBACK, new Runnable() {
                 @Override
                 public void run() {
                     mCameraHandler.obtainMessage(CameraActions.SET_PREVIEW_CALLBACK,
@@ -821,7 +821,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
         @Override
         public void setOneShotPreviewCallback(final Handler handler,
                 final CameraPreviewDataCallback cb) {
-            mDispatchThread.runJob(new Runnable() {
+            mDispatchThread.runJobPipelined(CameraActions.SET_ONE_SHOT_PREVIEW_CALLBACK,
+                    new Runnable() {
                 @Override
                 public void run() {
                     mCameraHandler.obtainMessage(CameraActions.SET_ONE_SHOT_PREVIEW_CALLBACK,
@@ -835,7 +836,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
         @Override
         public void setPreviewDataCallbackWithBuffer(
                 final Handler handler, final CameraPreviewDataCallback cb) {
-            mDispatchThread.runJob(new Runnable() {
+            mDispatchThread.runJobPipelined(CameraActions.SET_PREVIEW_CALLBACK_WITH_BUFFER,
+                    new Runnable() {
                 @Override
                 public void run() {
                     mCameraHandler.obtainMessage(CameraActions.SET_PREVIEW_CALLBACK_WITH_BUFFER,
@@ -864,7 +866,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     });
                 }
             };
-            mDispatchThread.runJob(new Runnable() {
+            mDispatchThread.runJob(CameraActions.AUTO_FOCUS, new Runnable() {
                 @Override
                 public void run() {
                     // Don't bother to wait since camera is in bad state.
@@ -883,7 +885,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
         public void setAutoFocusMoveCallback(
                 final Handler handler, final CameraAFMoveCallback cb) {
             try {
-                mDispatchThread.runJob(new Runnable() {
+                mDispatchThread.runJobPipelined(CameraActions.SET_AUTO_FOCUS_MOVE_CALLBACK,
+                        new Runnable() {
                     @Override
                     public void run() {
                         mCameraHandler.obtainMessage(CameraActions.SET_AUTO_FOCUS_MOVE_CALLBACK,
@@ -920,7 +923,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
             };
 
             try {
-                mDispatchThread.runJob(new Runnable() {
+                mDispatchThread.runJob(CameraActions.CAPTURE_PHOTO, new Runnable() {
                     @Override
                     public void run() {
                         // Don't bother to wait since camera is in bad state.
@@ -947,7 +950,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
         @Override
         public void setZoomChangeListener(final OnZoomChangeListener listener) {
             try {
-                mDispatchThread.runJob(new Runnable() {
+                mDispatchThread.runJobPipelined(CameraActions.SET_ZOOM_CHANGE_LISTENER,
+                        new Runnable() {
                     @Override
                     public void run() {
                         mCameraHandler.obtainMessage(CameraActions.SET_ZOOM_CHANGE_LISTENER, listener)
@@ -963,7 +967,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
         public void setFaceDetectionCallback(final Handler handler,
                 final CameraFaceDetectionCallback cb) {
             try {
-                mDispatchThread.runJob(new Runnable() {
+                mDispatchThread.runJobPipelined(CameraActions.SET_FACE_DETECTION_LISTENER,
+                        new Runnable() {
                     @Override
                     public void run() {
                         mCameraHandler.obtainMessage(CameraActions.SET_FACE_DETECTION_LISTENER,
@@ -986,7 +991,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
             }
             final String flattenedParameters = params.flatten();
             try {
-                mDispatchThread.runJob(new Runnable() {
+                mDispatchThread.runJob(CameraActions.SET_PARAMETERS, new Runnable() {
                     @Override
                     public void run() {
                         mCameraState.waitForStates(AndroidCameraStateHolder.CAMERA_IDLE |
@@ -1003,21 +1008,38 @@ class AndroidCameraAgentImpl extends CameraAgent {
         @Deprecated
         @Override
         public Parameters getParameters() {
-            final WaitDoneBundle bundle = new WaitDoneBundle();
+            CameraFuture<Parameters> parameters = getParametersAsync();
+            try {
+                DispatchThread.awaitJob(parameters, CAMERA_OPERATION_TIMEOUT_MS, "get parameters");
+            } catch (final RuntimeException ex) {
+                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+            return parameters.getNow(null);
+        }
+
+        @Deprecated
+        @Override
+        public CameraFuture<Parameters> getParametersAsync() {
+            final CameraFuture<Parameters> parameters = new CameraFuture<Parameters>();
             final Parameters[] parametersHolder = new Parameters[1];
             try {
-                mDispatchThread.runJobSync(new Runnable() {
+                mDispatchThread.runJobAsync(CameraActions.GET_PARAMETERS, new Runnable() {
                     @Override
                     public void run() {
                         mCameraHandler.obtainMessage(
                                 CameraActions.GET_PARAMETERS, parametersHolder).sendToTarget();
-                        mCameraHandler.post(bundle.mUnlockRunnable);
+                        mCameraHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                parameters.complete(parametersHolder[0]);
+                            }
+                        });
                     }
-                }, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "get parameters");
+                }, parameters);
             } catch (final RuntimeException ex) {
-                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+                parameters.completeExceptionally(ex);
             }
-            return parametersHolder[0];
+            return parameters;
         }
 
         @Override
@@ -110,6 +110,8 @@ class CameraActions {
                 return "ENABLE_SHUTTER_SOUND";
             case SET_DISPLAY_ORIENTATION:
                 return "SET_DISPLAY_ORIENTATION";
+            case SET_JPEG_ORIENTATION:
+                return "SET_JPEG_ORIENTATION";
             case CAPTURE_PHOTO:
                 return "CAPTURE_PHOTO";
             default:
@@ -286,7 +286,7 @@ public abstract class CameraAgent {
     public void openCamera(final Handler handler, final int cameraId,
                            final CameraOpenCallback callback) {
         try {
-            getDispatchThread().runJob(new Runnable() {
+            getDispatchThread().runJob(CameraActions.OPEN_CAMERA, new Runnable() {
                 @Override
                 public void run() {
                     getCameraHandler().obtainMessage(CameraActions.OPEN_CAMERA, cameraId, 0,
@@ -307,20 +307,10 @@ public abstract class CameraAgent {
     public void closeCamera(CameraProxy camera, boolean synced) {
         try {
             if (synced) {
-                // Don't bother to wait since camera is in bad state.
-                if (getCameraState().isInvalid()) {
-                    return;
-                }
-                final WaitDoneBundle bundle = new WaitDoneBundle();
-
-                getDispatchThread().runJobSync(new Runnable() {
-                    @Override
-                    public void run() {
-                        getCameraHandler().obtainMessage(CameraActions.RELEASE).sendToTarget();
-                        getCameraHandler().post(bundle.mUnlockRunnable);
-                    }}, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "camera release");
+                DispatchThread.awaitJob(closeCameraAsync(camera), CAMERA_OPERATION_TIMEOUT_MS,
+                        "camera release");
             } else {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJob(CameraActions.RELEASE, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().removeCallbacksAndMessages(null);
@@ -332,6 +322,33 @@ public abstract class CameraAgent {
         }
     }
 
+    /**
+     * Closes the camera device without blocking, like a synchronous
+     * {@link #closeCamera}.
+     *
+     * @param camera The camera to close. {@code null} means all.
+     * @return The future completed once the camera is closed, or failed if
+     *         the operation can't be queued.
+     */
+    public CameraFuture<Void> closeCameraAsync(CameraProxy camera) {
+        // Don't bother to wait since camera is in bad state.
+        if (getCameraState().isInvalid()) {
+            return CameraFuture.completed(null);
+        }
+        final WaitDoneBundle bundle = new WaitDoneBundle();
+        try {
+            getDispatchThread().runJobAsync(CameraActions.RELEASE, new Runnable() {
+                @Override
+                public void run() {
+                    getCameraHandler().obtainMessage(CameraActions.RELEASE).sendToTarget();
+                    getCameraHandler().post(bundle.mUnlockRunnable);
+                }}, bundle.mDone);
+        } catch (final RuntimeException ex) {
+            bundle.mDone.completeExceptionally(ex);
+        }
+        return bundle.mDone;
+    }
+
     /**
      * Sets a callback for handling camera api runtime exceptions on
      * a handler.
@@ -419,7 +436,7 @@ public abstract class CameraAgent {
          */
         public void reconnect(final Handler handler, final CameraOpenCallback cb) {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJob(CameraActions.RECONNECT, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().obtainMessage(CameraActions.RECONNECT, getCameraId(), 0,
@@ -436,22 +453,38 @@ public abstract class CameraAgent {
          * @see android.hardware.Camera#unlock()
          */
         public void unlock() {
+            try {
+                DispatchThread.awaitJob(unlockAsync(), CAMERA_OPERATION_TIMEOUT_MS,
+                        "camera unlock");
+            } catch (final RuntimeException ex) {
+                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        /**
+         * Unlocks the camera device without blocking, like {@link #unlock}.
+         *
+         * @return The future completed once the camera is unlocked, or failed if
+         *         the operation can't be queued.
+         */
+        public CameraFuture<Void> unlockAsync() {
             // Don't bother to wait since camera is in bad state.
             if (getCameraState().isInvalid()) {
-                return;
+                return CameraFuture.completed(null);
             }
             final WaitDoneBundle bundle = new WaitDoneBundle();
             try {
-                getDispatchThread().runJobSync(new Runnable() {
+                getDispatchThread().runJobAsync(CameraActions.UNLOCK, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().sendEmptyMessage(CameraActions.UNLOCK);
                         getCameraHandler().post(bundle.mUnlockRunnable);
                     }
-                }, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "camera unlock");
+                }, bundle.mDone);
             } catch (final RuntimeException ex) {
-                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+                bundle.mDone.completeExceptionally(ex);
             }
+            return bundle.mDone;
         }
 
         /**
@@ -460,7 +493,7 @@ public abstract class CameraAgent {
          */
         public void lock() {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJob(CameraActions.LOCK, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().sendEmptyMessage(CameraActions.LOCK);
@@ -493,7 +526,7 @@ public abstract class CameraAgent {
         // sizes would require closing and reopening the camera.
         public void setPreviewTexture(final SurfaceTexture surfaceTexture) {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJob(CameraActions.SET_PREVIEW_TEXTURE_ASYNC, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler()
@@ -520,23 +553,42 @@ public abstract class CameraAgent {
          * @see CameraSettings#setPreviewSize
          */
         public void setPreviewTextureSync(final SurfaceTexture surfaceTexture) {
+            try {
+                DispatchThread.awaitJob(setPreviewTextureAsync(surfaceTexture),
+                        CAMERA_OPERATION_TIMEOUT_MS, "set preview texture");
+            } catch (final RuntimeException ex) {
+                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        /**
+         * Sets the {@link android.graphics.SurfaceTexture} for preview without
+         * blocking, like {@link #setPreviewTextureSync}.
+         *
+         * @param surfaceTexture The {@link SurfaceTexture} for preview.
+         * @return The future completed once the texture has been set, or failed if
+         *         the operation can't be queued.
+         */
+        public CameraFuture<Void> setPreviewTextureAsync(final SurfaceTexture surfaceTexture) {
             // Don't bother to wait since camera is in bad state.
             if (getCameraState().isInvalid()) {
-                return;
+                return CameraFuture.completed(null);
             }
             final WaitDoneBundle bundle = new WaitDoneBundle();
             try {
-                getDispatchThread().runJobSync(new Runnable() {
+                getDispatchThread().runJobAsync(CameraActions.SET_PREVIEW_TEXTURE_ASYNC,
+                        new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler()
                                 .obtainMessage(CameraActions.SET_PREVIEW_TEXTURE_ASYNC, surfaceTexture)
                                 .sendToTarget();
                         getCameraHandler().post(bundle.mUnlockRunnable);
-                    }}, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "set preview texture");
+                    }}, bundle.mDone);
             } catch (final RuntimeException ex) {
-                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+                bundle.mDone.completeExceptionally(ex);
             }
+            return bundle.mDone;
         }
 
         /**
@@ -546,7 +598,7 @@ public abstract class CameraAgent {
          */
         public void setPreviewDisplay(final SurfaceHolder surfaceHolder) {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJob(CameraActions.SET_PREVIEW_DISPLAY_ASYNC, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler()
@@ -563,7 +615,7 @@ public abstract class CameraAgent {
          */
         public void startPreview() {
             try {
-            getDispatchThread().runJob(new Runnable() {
+            getDispatchThread().runJob(CameraActions.START_PREVIEW_ASYNC, new Runnable() {
                 @Override
                 public void run() {
                     getCameraHandler()
@@ -580,7 +632,7 @@ public abstract class CameraAgent {
          */
         public void startPreviewWithCallback(final Handler h, final CameraStartPreviewCallback cb) {
             try {
-            getDispatchThread().runJob(new Runnable() {
+            getDispatchThread().runJob(CameraActions.START_PREVIEW_ASYNC, new Runnable() {
                 @Override
                 public void run() {
                     getCameraHandler().obtainMessage(CameraActions.START_PREVIEW_ASYNC,
@@ -598,21 +650,38 @@ public abstract class CameraAgent {
          * continues to release resources related to camera preview.
          */
         public void stopPreview() {
+            try {
+                DispatchThread.awaitJob(stopPreviewAsync(), CAMERA_OPERATION_TIMEOUT_MS,
+                        "stop preview");
+            } catch (final RuntimeException ex) {
+                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        /**
+         * Stops the camera preview without blocking. Resources related to the
+         * camera preview may be released once the returned future is done.
+         *
+         * @return The future completed once the preview is stopped, or failed if
+         *         the operation can't be queued.
+         */
+        public CameraFuture<Void> stopPreviewAsync() {
             // Don't bother to wait since camera is in bad state.
             if (getCameraState().isInvalid()) {
-                return;
+                return CameraFuture.completed(null);
             }
             final WaitDoneBundle bundle = new WaitDoneBundle();
             try {
-                getDispatchThread().runJobSync(new Runnable() {
+                getDispatchThread().runJobAsync(CameraActions.STOP_PREVIEW, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().obtainMessage(CameraActions.STOP_PREVIEW, bundle)
                                 .sendToTarget();
-                    }}, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "stop preview");
+                    }}, bundle.mDone);
             } catch (final RuntimeException ex) {
-                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+                bundle.mDone.completeExceptionally(ex);
             }
+            return bundle.mDone;
         }
 
         /**
@@ -652,7 +721,8 @@ public abstract class CameraAgent {
          */
         public void addCallbackBuffer(final byte[] callbackBuffer) {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJobPipelined(CameraActions.ADD_CALLBACK_BUFFER,
+                        new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler()
@@ -740,7 +810,8 @@ public abstract class CameraAgent {
          */
         public void setDisplayOrientation(final int degrees, final boolean capture) {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runCoalescedJob(CameraActions.SET_DISPLAY_ORIENTATION,
+                        new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler()
@@ -755,7 +826,8 @@ public abstract class CameraAgent {
 
         public void setJpegOrientation(final int degrees) {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runCoalescedJob(CameraActions.SET_JPEG_ORIENTATION,
+                        new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler()
@@ -788,7 +860,7 @@ public abstract class CameraAgent {
          */
         public void startFaceDetection() {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJob(CameraActions.START_FACE_DETECTION, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().sendEmptyMessage(CameraActions.START_FACE_DETECTION);
@@ -803,7 +875,7 @@ public abstract class CameraAgent {
          */
         public void stopFaceDetection() {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJob(CameraActions.STOP_FACE_DETECTION, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().sendEmptyMessage(CameraActions.STOP_FACE_DETECTION);
@@ -830,6 +902,16 @@ public abstract class CameraAgent {
         @Deprecated
         public abstract Camera.Parameters getParameters();
 
+        /**
+         * Gets the current camera parameters without blocking, like
+         * {@link #getParameters}.
+         *
+         * @return The future completed with the parameters, or failed if
+         *         the operation can't be queued.
+         */
+        @Deprecated
+        public abstract CameraFuture<Camera.Parameters> getParametersAsync();
+
         /**
          * Gets the current camera settings synchronously.
          * <p>This method is synchronous since the caller has to wait for the
@@ -860,7 +942,9 @@ public abstract class CameraAgent {
 
             final CameraSettings copyOfSettings = settings.copy();
             try {
-                getDispatchThread().runJob(new Runnable() {
+                // Only the latest settings matter, e.g. while zooming with a gesture
+                getDispatchThread().runCoalescedJob(CameraActions.APPLY_SETTINGS,
+                        new Runnable() {
                     @Override
                     public void run() {
                         CameraStateHolder cameraState = getCameraState();
@@ -895,7 +979,7 @@ public abstract class CameraAgent {
          */
         public void refreshSettings() {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJob(CameraActions.REFRESH_PARAMETERS, new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().sendEmptyMessage(CameraActions.REFRESH_PARAMETERS);
@@ -913,7 +997,8 @@ public abstract class CameraAgent {
          */
         public void enableShutterSound(final boolean enable) {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                getDispatchThread().runJobPipelined(CameraActions.ENABLE_SHUTTER_SOUND,
+                        new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler()
@@ -953,13 +1038,21 @@ public abstract class CameraAgent {
 
     public static class WaitDoneBundle {
         public final Runnable mUnlockRunnable;
+        public final CameraFuture<Void> mDone;
+        /**
+         * @deprecated Wait for {@link #mDone} instead, which the unlock runnable completes as
+         *             well as notifying this.
+         */
+        @Deprecated
         public final Object mWaitLock;
 
         WaitDoneBundle() {
+            mDone = new CameraFuture<Void>();
             mWaitLock = new Object();
             mUnlockRunnable = new Runnable() {
                 @Override
                 public void run() {
+                    mDone.complete(null);
                     synchronized (mWaitLock) {
                         mWaitLock.notifyAll();
                     }
@@ -967,7 +1060,8 @@ public abstract class CameraAgent {
         }
 
         /**
-         * Notify all synchronous waiters waiting on message completion with {@link #mWaitLock}.
+         * Notify all waiters waiting on message completion with {@link #mDone} or
+         * {@link #mWaitLock}.
          *
          * <p>This assumes that the message was sent with {@code this} as the {@code Message#obj}.
          * Otherwise the message is ignored.</p>
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous camera operation, completed once the camera handler has
+ * performed it. Callers may wait for it with a timeout, have a callback invoked on a handler once
+ * it is done, or cancel it.
+ *
+ * <p>Cancelling an operation whose job hasn't been dispatched to the camera handler yet keeps it
+ * from being performed. Once dispatched, the operation can no longer be stopped, and cancelling
+ * only stops waiting for it.</p>
+ */
+public class CameraFuture<V> implements Future<V> {
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    /**
+     * A callback invoked once a {@link CameraFuture} is done.
+     */
+    public interface Callback<V> {
+        /**
+         * Invoked on the handler the callback was added with.
+         *
+         * @param future The future that is done, whose result is available without blocking.
+         */
+        public void onDone(CameraFuture<V> future);
+    }
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    // Guarded by this, immutable once mState isn't PENDING
+    private int mState = PENDING;
+    private V mResult;
+    private Throwable mFailure;
+    // Callbacks to post once done, null afterwards
+    private List<Runnable> mCallbacks = new ArrayList<Runnable>();
+
+    /**
+     * Returns a future that is already completed with the result, e.g. for an operation that
+     * needn't be performed.
+     */
+    public static <V> CameraFuture<V> completed(V result) {
+        CameraFuture<V> future = new CameraFuture<V>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * Completes the operation with a result, unless it is already done.
+     *
+     * @return Whether this call completed the future.
+     */
+    public boolean complete(V result) {
+        return finish(COMPLETED, result, null);
+    }
+
+    /**
+     * Fails the operation, unless it is already done. {@link #get} then throws an
+     * {@link ExecutionException} caused by the failure.
+     *
+     * @return Whether this call completed the future.
+     */
+    public boolean completeExceptionally(Throwable failure) {
+        if (failure == null) {
+            throw new NullPointerException("failure must not be null");
+        }
+        return finish(FAILED, null, failure);
+    }
+
+    /**
+     * Cancels the operation, unless it is already done. The camera operation isn't interrupted,
+     * so mayInterruptIfRunning is ignored.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null, null);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    /**
+     * Returns the result without blocking, or valueIfAbsent if the operation is still pending,
+     * failed or was cancelled.
+     */
+    public synchronized V getNow(V valueIfAbsent) {
+        return mState == COMPLETED ? mResult : valueIfAbsent;
+    }
+
+    /**
+     * Invokes the callback on the handler once the operation is done, right away if it already
+     * is.
+     *
+     * @param handler The handler to invoke the callback on.
+     * @param callback The callback to invoke.
+     */
+    public void addCallback(Handler handler, final Callback<V> callback) {
+        if (handler == null || callback == null) {
+            throw new NullPointerException("handler and callback must not be null");
+        }
+        final Runnable onDone = new Runnable() {
+            @Override
+            public void run() {
+                callback.onDone(CameraFuture.this);
+            }
+        };
+        synchronized (this) {
+            if (mCallbacks != null) {
+                mCallbacks.add(new HandlerRunnable(handler, onDone));
+                return;
+            }
+        }
+        handler.post(onDone);
+    }
+
+    private boolean finish(int state, V result, Throwable failure) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mState = state;
+            mResult = result;
+            mFailure = failure;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+        mDone.countDown();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        return true;
+    }
+
+    private synchronized V getResult() throws ExecutionException {
+        switch (mState) {
+            case COMPLETED:
+                return mResult;
+            case FAILED:
+                throw new ExecutionException(mFailure);
+            default:
+                throw new CancellationException();
+        }
+    }
+
+    /**
+     * Posts a runnable to a handler when run.
+     */
+    private static class HandlerRunnable implements Runnable {
+        private final Handler mHandler;
+        private final Runnable mRunnable;
+
+        HandlerRunnable(Handler handler, Runnable runnable) {
+            mHandler = handler;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            mHandler.post(mRunnable);
+        }
+    }
+}
@@ -16,15 +16,41 @@
 
 package com.android.ex.camera2.portability;
 
-import android.os.SystemClock;
-
 import com.android.ex.camera2.portability.debug.Log;
 
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 public abstract class CameraStateHolder {
     private static final Log.Tag TAG = new Log.Tag("CamStateHolder");
 
-    private int mState;
-    private boolean mInvalid;
+    /**
+     * A listener for state transitions.
+     */
+    public interface StateListener {
+        /**
+         * Invoked on the thread that changed the state, once it has changed.
+         *
+         * @param previousState The state before the transition.
+         * @param state The new state.
+         */
+        public void onStateChanged(int previousState, int state);
+    }
+
+    // Guards state changes and the waiters
+    private final ReentrantLock mLock = new ReentrantLock();
+    // Threads waiting for a condition, each on its own Condition so that a state change only
+    // wakes up the waiters whose condition it satisfies
+    private final ArrayList<Waiter> mWaiters = new ArrayList<Waiter>();
+    private final CopyOnWriteArrayList<StateListener> mListeners =
+            new CopyOnWriteArrayList<StateListener>();
+
+    // Only written while holding mLock
+    private volatile int mState;
+    private volatile boolean mInvalid;
 
     /**
      * Construct a new instance of @{link CameraStateHolder} with an initial state.
@@ -41,12 +67,23 @@ public abstract class CameraStateHolder {
      *
      * @param state The new state.
      */
-    public synchronized void setState(int state) {
-        if (mState != state) {
+    public void setState(int state) {
+        final int previousState;
+        mLock.lock();
+        try {
+            previousState = mState;
+            if (previousState == state) {
+                return;
+            }
             Log.v(TAG, "setState - state = " + Integer.toBinaryString(state));
+            mState = state;
+            signalWaitersLocked();
+        } finally {
+            mLock.unlock();
+        }
+        for (StateListener listener : mListeners) {
+            listener.onStateChanged(previousState, state);
         }
-        mState = state;
-        this.notifyAll();
     }
 
     /**
@@ -54,15 +91,22 @@ public abstract class CameraStateHolder {
      *
      * @return The current state.
      */
-    public synchronized int getState() {
+    public int getState() {
         return mState;
     }
 
     /**
-     * Change the state to be invalid. Once invalidated, the state will be invalid forever.
+     * Change the state to be invalid. Once invalidated, the state will be invalid forever, and
+     * pending waits return {@code false}.
      */
-    public synchronized void invalidate() {
-        mInvalid = true;
+    public void invalidate() {
+        mLock.lock();
+        try {
+            mInvalid = true;
+            signalWaitersLocked();
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /**
@@ -70,44 +114,111 @@ public abstract class CameraStateHolder {
      *
      * @return True if the state is invalid.
      */
-    public synchronized boolean isInvalid() {
+    public boolean isInvalid() {
         return mInvalid;
     }
 
+    /**
+     * Registers a listener to be invoked on every state transition.
+     *
+     * @param listener The listener to add.
+     */
+    public void addStateListener(StateListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters a listener added with {@link #addStateListener}.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeStateListener(StateListener listener) {
+        mListeners.remove(listener);
+    }
+
     private static interface ConditionChecker {
         /**
+         * @param state The state to check.
          * @return Whether the condition holds.
          */
-        boolean success();
+        boolean success(int state);
+    }
+
+    private static class Waiter {
+        final ConditionChecker mStateChecker;
+        final Condition mCondition;
+
+        Waiter(ConditionChecker stateChecker, Condition condition) {
+            mStateChecker = stateChecker;
+            mCondition = condition;
+        }
+    }
+
+    private void signalWaitersLocked() {
+        for (Waiter waiter : mWaiters) {
+            if (mInvalid || waiter.mStateChecker.success(mState)) {
+                waiter.mCondition.signal();
+            }
+        }
     }
 
     /**
-     * A helper method used by {@link #waitToAvoidStates(int)} and
-     * {@link #waitForStates(int)}. This method will wait until the
-     * condition is successful.
+     * A helper method used by {@link #waitToAvoidStates(int, long)} and
+     * {@link #waitForStates(int, long)}. This method will wait until the
+     * condition is successful, returning right away if it already is.
      *
      * @param stateChecker The state checker to be used.
-     * @param timeoutMs The timeout limit in milliseconds.
-     * @return {@code false} if the wait is interrupted or timeout limit is
-     *         reached.
+     * @param timeoutMs The timeout limit in milliseconds, counted from the
+     *                  start of the wait.
+     * @return {@code false} if the wait is interrupted, the state is
+     *         invalidated or timeout limit is reached.
      */
     private boolean waitForCondition(ConditionChecker stateChecker,
             long timeoutMs) {
-        long timeBound = SystemClock.uptimeMillis() + timeoutMs;
-        synchronized (this) {
-            while (!stateChecker.success()) {
-                try {
-                    this.wait(timeoutMs);
-                } catch (InterruptedException ex) {
-                    if (SystemClock.uptimeMillis() > timeBound) {
-                        // Timeout.
-                        Log.w(TAG, "Timeout waiting.");
-                    }
+        if (stateChecker.success(mState)) {
+            return true;
+        }
+        final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Waiter waiter = null;
+        mLock.lock();
+        try {
+            while (!stateChecker.success(mState)) {
+                if (mInvalid) {
                     return false;
                 }
+                final long remainingNs = deadlineNs - System.nanoTime();
+                if (remainingNs <= 0) {
+                    Log.w(TAG, "Timeout waiting.");
+                    return false;
+                }
+                if (waiter == null) {
+                    waiter = new Waiter(stateChecker, mLock.newCondition());
+                    mWaiters.add(waiter);
+                }
+                waiter.mCondition.awaitNanos(remainingNs);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (waiter != null) {
+                mWaiters.remove(waiter);
             }
+            mLock.unlock();
         }
-        return true;
+    }
+
+    /**
+     * Block the current thread until the state becomes one of the
+     * specified, for up to {@link CameraAgent#CAMERA_OPERATION_TIMEOUT_MS}.
+     *
+     * @param states Expected states.
+     * @return {@code false} if the wait is interrupted, the state is
+     *         invalidated or timeout limit is reached.
+     */
+    public boolean waitForStates(int states) {
+        return waitForStates(states, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
     }
 
     /**
@@ -115,17 +226,30 @@ public abstract class CameraStateHolder {
      * specified.
      *
      * @param states Expected states.
-     * @return {@code false} if the wait is interrupted or timeout limit is
-     *         reached.
+     * @param timeoutMs The timeout limit in milliseconds.
+     * @return {@code false} if the wait is interrupted, the state is
+     *         invalidated or timeout limit is reached.
      */
-    public boolean waitForStates(final int states) {
+    public boolean waitForStates(final int states, long timeoutMs) {
         Log.v(TAG, "waitForStates - states = " + Integer.toBinaryString(states));
         return waitForCondition(new ConditionChecker() {
             @Override
-            public boolean success() {
-                return (states | getState()) == states;
+            public boolean success(int state) {
+                return (states | state) == states;
             }
-        }, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
+        }, timeoutMs);
+    }
+
+    /**
+     * Block the current thread until the state becomes NOT one of the
+     * specified, for up to {@link CameraAgent#CAMERA_OPERATION_TIMEOUT_MS}.
+     *
+     * @param states States to avoid.
+     * @return {@code false} if the wait is interrupted, the state is
+     *         invalidated or timeout limit is reached.
+     */
+    public boolean waitToAvoidStates(int states) {
+        return waitToAvoidStates(states, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
     }
 
     /**
@@ -133,16 +257,17 @@ public abstract class CameraStateHolder {
      * specified.
      *
      * @param states States to avoid.
-     * @return {@code false} if the wait is interrupted or timeout limit is
-     *         reached.
+     * @param timeoutMs The timeout limit in milliseconds.
+     * @return {@code false} if the wait is interrupted, the state is
+     *         invalidated or timeout limit is reached.
      */
-    public boolean waitToAvoidStates(final int states) {
+    public boolean waitToAvoidStates(final int states, long timeoutMs) {
         Log.v(TAG, "waitToAvoidStates - states = " + Integer.toBinaryString(states));
         return waitForCondition(new ConditionChecker() {
             @Override
-            public boolean success() {
-                return (states & getState()) == 0;
+            public boolean success(int state) {
+                return (states & state) == 0;
             }
-        }, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
+        }, timeoutMs);
     }
 }
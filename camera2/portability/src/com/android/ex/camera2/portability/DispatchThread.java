@@ -18,58 +18,349 @@ package com.android.ex.camera2.portability;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
 
 import com.android.ex.camera2.portability.debug.Log;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class DispatchThread extends Thread {
     private static final Log.Tag TAG = new Log.Tag("DispatchThread");
-    private static final long MAX_MESSAGE_QUEUE_LENGTH = 256;
+    private static final int MAX_MESSAGE_QUEUE_LENGTH = 256;
+    // How long a full queue holds up a caller off the main thread before the job is refused
+    private static final long MAX_QUEUE_FULL_WAIT_MS = 1000;
+    // action of jobs that are never coalesced, CameraActions are all positive
+    private static final int NO_ACTION = 0;
 
-    private final Queue<Runnable> mJobQueue;
-    private Boolean mIsEnded;
-    private Handler mCameraHandler;
-    private HandlerThread mCameraHandlerThread;
+    // Lanes of the queue, highest priority first. Within a lane, jobs run in the order they were
+    // queued.
+    private static final int LANE_CAPTURE = 0;
+    private static final int LANE_SETTINGS = 1;
+    private static final int LANE_DIAGNOSTICS = 2;
+    private static final int LANE_COUNT = 3;
+    // How often jobs of higher lanes that were queued later may run ahead of a waiting job
+    // before it runs regardless
+    private static final int MAX_OVERTAKES = 4;
+
+    /**
+     * Lane of the jobs of a {@link CameraActions} action. Capture and focus jobs run ahead of
+     * settings, which run ahead of callback and diagnostic jobs.
+     */
+    private static int getLane(int action) {
+        switch (action) {
+            case CameraActions.CAPTURE_PHOTO:
+            case CameraActions.AUTO_FOCUS:
+            case CameraActions.CANCEL_AUTO_FOCUS:
+                return LANE_CAPTURE;
+            case CameraActions.SET_PREVIEW_CALLBACK_WITH_BUFFER:
+            case CameraActions.ADD_CALLBACK_BUFFER:
+            case CameraActions.SET_PREVIEW_CALLBACK:
+            case CameraActions.SET_ONE_SHOT_PREVIEW_CALLBACK:
+            case CameraActions.REFRESH_PARAMETERS:
+            case CameraActions.SET_AUTO_FOCUS_MOVE_CALLBACK:
+            case CameraActions.SET_ZOOM_CHANGE_LISTENER:
+            case CameraActions.SET_FACE_DETECTION_LISTENER:
+                return LANE_DIAGNOSTICS;
+            default:
+                return LANE_SETTINGS;
+        }
+    }
+
+    /**
+     * Whether the jobs of an action must not run ahead of any job queued before them, as they
+     * open, release or lock the camera, or their action isn't known.
+     */
+    private static boolean isBarrier(int action) {
+        switch (action) {
+            case NO_ACTION:
+            case CameraActions.OPEN_CAMERA:
+            case CameraActions.RELEASE:
+            case CameraActions.RECONNECT:
+            case CameraActions.UNLOCK:
+            case CameraActions.LOCK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * A queued job. Once dequeued, the node remains as the stub at the head of the queue until
+     * the next job is dequeued.
+     */
+    private static class JobNode {
+        // taken by the dispatch thread when it runs the job, until then a coalesced job may
+        // replace it
+        final AtomicReference<Runnable> mJob;
+        final boolean mPipelined;
+        final int mAction;
+        // order in which jobs were queued across lanes
+        final long mSequence;
+        final long mQueuedNanos;
+        volatile JobNode mNext;
+
+        JobNode(Runnable job, boolean pipelined, int action, long sequence) {
+            mJob = new AtomicReference<Runnable>(job);
+            mPipelined = pipelined;
+            mAction = action;
+            mSequence = sequence;
+            mQueuedNanos = System.nanoTime();
+        }
+
+        boolean isQueuedBefore(JobNode other) {
+            return mSequence < other.mSequence;
+        }
+    }
+
+    /**
+     * Multi-producer, single-consumer linked queue: callers append by swapping the tail and then
+     * linking the previous tail to their node, and only the dispatch thread advances the head.
+     */
+    private static class JobQueue {
+        final AtomicReference<JobNode> mTail;
+        // a stub, the job run last or an initial node without a job
+        JobNode mHead;
+
+        JobQueue() {
+            mHead = new JobNode(null, false, NO_ACTION, 0);
+            mTail = new AtomicReference<JobNode>(mHead);
+        }
+
+        void add(JobNode node) {
+            mTail.getAndSet(node).mNext = node;
+        }
+
+        JobNode peek() {
+            return mHead.mNext;
+        }
+
+        void remove() {
+            mHead = mHead.mNext;
+        }
+    }
+
+    private final JobQueue[] mLanes = new JobQueue[LANE_COUNT];
+    // Sequence number of the job queued last
+    private final AtomicLong mLastSequence = new AtomicLong();
+    // The heads of the lanes, and how often each lane's head has been overtaken, only used by
+    // this thread
+    private final JobNode[] mLaneHeads = new JobNode[LANE_COUNT];
+    private final int[] mOvertakes = new int[LANE_COUNT];
+    // jobs that callers have reserved room for, whether or not they are linked in yet
+    private final AtomicInteger mQueueLength = new AtomicInteger();
+    // set while this thread is parked waiting for a job
+    private volatile boolean mWaitingForJob;
+    // Callers wait on this lock while the queue is full
+    private final Object mQueueSpaceLock = new Object();
+    // number of callers waiting for room in the queue, only changed while holding mQueueSpaceLock
+    private volatile int mQueueSpaceWaiters;
+
+    private final AtomicLong mCoalescedJobCount = new AtomicLong();
+    // Time jobs spent queued per action, from being queued to starting to run
+    private final Map<Integer, QueueWaitStats> mQueueWaitStats =
+            new TreeMap<Integer, QueueWaitStats>();
+
+    private volatile boolean mIsEnded;
+    private final Handler mCameraHandler;
+    private final HandlerThread mCameraHandlerThread;
+
+    // handshakes posted to and run by the camera handler, see waitForCameraHandler()
+    private int mHandshakesPosted;
+    private final AtomicInteger mHandshakesDone = new AtomicInteger();
+    private final Runnable mHandshake = new Runnable() {
+        @Override
+        public void run() {
+            mHandshakesDone.incrementAndGet();
+            LockSupport.unpark(DispatchThread.this);
+        }
+    };
 
     public DispatchThread(Handler cameraHandler, HandlerThread cameraHandlerThread) {
         super("Camera Job Dispatch Thread");
-        mJobQueue = new LinkedList<Runnable>();
-        mIsEnded = new Boolean(false);
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            mLanes[lane] = new JobQueue();
+        }
         mCameraHandler = cameraHandler;
         mCameraHandlerThread = cameraHandlerThread;
     }
 
     /**
-     * Queues up the job.
+     * Queues up the job. Before the next job runs, the camera handler processes all messages the
+     * job posted to it. Jobs queued without an action run in the order they were queued, after
+     * all jobs queued before them.
+     *
+     * <p>If the queue is full, this waits for room for up to a second, except on the dispatch
+     * or camera handler thread, which drain the queue, and on the main thread, which must not be
+     * held up. A {@link RuntimeException} is thrown if the queue stays full.</p>
      *
      * @param job The job to run.
      */
     public void runJob(Runnable job) {
+        enqueueJob(job, false, NO_ACTION);
+    }
+
+    /**
+     * Queues up the job of a {@link CameraActions} action, which decides its priority. Capture,
+     * focus and settings jobs run ahead of callback and diagnostic jobs, e.g. setting a preview
+     * callback, with capture and focus jobs first. But capture and focus jobs never run ahead of
+     * settings queued before them, which they may depend on, and jobs that open, release or lock
+     * the camera never run ahead of any job queued before them. A job that later, higher
+     * priority jobs have run ahead of a few times runs next, so that no job waits indefinitely.
+     *
+     * <p>Queue wait times are recorded per action, see {@link #dumpQueueWaitTimes}.</p>
+     *
+     * @param action The {@link CameraActions} action the job performs.
+     * @param job The job to run.
+     */
+    public void runJob(int action, Runnable job) {
+        enqueueJob(job, false, action);
+    }
+
+    /**
+     * Queues up a job that sets the whole state of a {@link CameraActions} action, e.g.
+     * {@link CameraActions#APPLY_SETTINGS}, so that only the latest of consecutive such jobs
+     * needs to run. If the job queued last is for the same action and hasn't started yet, it is
+     * replaced by this one, which runs in its place. Otherwise the job is queued up as with
+     * {@link #runJob(int, Runnable)}.
+     *
+     * <p>Jobs are only coalesced while no other job is queued in between, so they never move
+     * past jobs that may depend on them, such as a capture.</p>
+     *
+     * @param action The {@link CameraActions} action the job performs.
+     * @param job The job to run.
+     */
+    public void runCoalescedJob(int action, Runnable job) {
+        if (action == NO_ACTION) {
+            throw new IllegalArgumentException("Cannot coalesce jobs without an action");
+        }
         if (isEnded()) {
             throw new IllegalStateException(
                     "Trying to run job on interrupted dispatcher thread");
         }
-        synchronized (mJobQueue) {
-            if (mJobQueue.size() == MAX_MESSAGE_QUEUE_LENGTH) {
-                throw new RuntimeException("Camera master thread job queue full");
+        // nothing may be queued after the job it replaces
+        JobNode last = mLanes[getLane(action)].mTail.get();
+        if (last.mAction == action && last.mSequence == mLastSequence.get()) {
+            Runnable pending = last.mJob.get();
+            // fails if the dispatch thread took the job meanwhile
+            if (pending != null && last.mJob.compareAndSet(pending, job)) {
+                mCoalescedJobCount.incrementAndGet();
+                return;
+            }
+        }
+        enqueueJob(job, false, action);
+    }
+
+    /**
+     * Number of jobs queued by {@link #runCoalescedJob} that replaced one queued before them,
+     * which is therefore never run.
+     */
+    public long getCoalescedJobCount() {
+        return mCoalescedJobCount.get();
+    }
+
+    /**
+     * Queues up a job that later jobs don't have to wait on the camera handler for, e.g. one
+     * that posts nothing to the handler, or whose messages the handler may process at any point
+     * after those posted by the jobs before it. The next job runs as soon as this one returns,
+     * without a round-trip through the camera handler.
+     *
+     * <p>Such are the jobs that only hand a callback, listener or buffer to the camera, which
+     * doesn't change the camera state that later jobs may wait for. Jobs are otherwise ordered
+     * and queued as with {@link #runJob(int, Runnable)}.</p>
+     *
+     * @param action The {@link CameraActions} action the job performs.
+     * @param job The job to run.
+     */
+    public void runJobPipelined(int action, Runnable job) {
+        enqueueJob(job, true, action);
+    }
+
+    /**
+     * Lists how long the jobs of each action waited in the queue, since this thread started or
+     * {@link #resetQueueWaitTimes} was last called.
+     */
+    public String dumpQueueWaitTimes() {
+        StringBuilder dump = new StringBuilder();
+        synchronized (mQueueWaitStats) {
+            for (Map.Entry<Integer, QueueWaitStats> entry : mQueueWaitStats.entrySet()) {
+                QueueWaitStats stats = entry.getValue();
+                dump.append(CameraActions.stringify(entry.getKey()))
+                        .append(": ").append(stats.mCount).append(" jobs, average ")
+                        .append(stats.mTotalNanos / stats.mCount / 1000).append("us, max ")
+                        .append(stats.mMaxNanos / 1000).append("us\n");
             }
+        }
+        return dump.toString();
+    }
 
-            mJobQueue.add(job);
-            mJobQueue.notifyAll();
+    public void resetQueueWaitTimes() {
+        synchronized (mQueueWaitStats) {
+            mQueueWaitStats.clear();
         }
     }
 
     /**
-     * Queues up the job and wait for it to be done.
+     * Queues up a job that dispatches an operation to the camera handler, which completes the
+     * future once it has performed it. The job is skipped if the future is already done when it
+     * is about to run, e.g. because the operation was cancelled.
+     *
+     * @param action The {@link CameraActions} action the job performs, see
+     *               {@link #runJob(int, Runnable)}.
+     * @param job The job to run.
+     * @param future The future completed by the operation.
+     * @return The future.
+     */
+    public <V> CameraFuture<V> runJobAsync(int action, final Runnable job,
+            final CameraFuture<V> future) {
+        runJob(action, new Runnable() {
+            @Override
+            public void run() {
+                if (!future.isDone()) {
+                    job.run();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Queues up the job and waits for it to be done, see {@link #runJobAsync} and
+     * {@link #awaitJob}.
+     *
+     * @param action The {@link CameraActions} action the job performs.
+     * @param job The job to run.
+     * @param future The future completed by the operation.
+     * @param timeoutMs Timeout limit in milliseconds.
+     * @param jobMsg The message to log when the job runs timeout.
+     */
+    public void runJobSync(int action, Runnable job, CameraFuture<?> future, long timeoutMs,
+            String jobMsg) {
+        awaitJob(runJobAsync(action, job, future), timeoutMs, jobMsg);
+    }
+
+    /**
+     * Queues up the job and wait for it to be done, which the job has to signal by notifying
+     * waitLock.
      *
      * @param job The job to run.
+     * @param waitLock The object the job notifies once done.
      * @param timeoutMs Timeout limit in milliseconds.
      * @param jobMsg The message to log when the job runs timeout.
-     * @return Whether the job finishes before timeout.
+     * @deprecated A spurious wakeup or an interrupt ends the wait as if the job was done. Use
+     *             {@link #runJobSync(int, Runnable, CameraFuture, long, String)} instead.
      */
+    @Deprecated
     public void runJobSync(final Runnable job, Object waitLock, long timeoutMs, String jobMsg) {
         String timeoutMsg = "Timeout waiting " + timeoutMs + "ms for " + jobMsg;
         synchronized (waitLock) {
@@ -88,68 +379,231 @@ public class DispatchThread extends Thread {
         }
     }
 
+    /**
+     * Waits for the future of a job to be done. Returns once it is completed or cancelled.
+     *
+     * @param future The future of the job.
+     * @param timeoutMs Timeout limit in milliseconds.
+     * @param jobMsg The message to log when the job runs timeout.
+     * @throws IllegalStateException If the future isn't done within the timeout, failed, in which
+     *                               case the failure is the cause, or the waiting thread is
+     *                               interrupted, which is left interrupted.
+     */
+    public static void awaitJob(Future<?> future, long timeoutMs, String jobMsg) {
+        try {
+            future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            throw new IllegalStateException("Timeout waiting " + timeoutMs + "ms for " + jobMsg);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for " + jobMsg);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(jobMsg + " failed", ex.getCause());
+        } catch (CancellationException ex) {
+            // the caller stopped waiting
+        }
+    }
+
     /**
      * Gracefully ends this thread. Will stop after all jobs are processed.
      */
     public void end() {
-        synchronized (mIsEnded) {
-            mIsEnded = true;
-        }
-        synchronized(mJobQueue) {
-            mJobQueue.notifyAll();
+        mIsEnded = true;
+        LockSupport.unpark(this);
+        synchronized (mQueueSpaceLock) {
+            mQueueSpaceLock.notifyAll();
         }
     }
 
     private boolean isEnded() {
-        synchronized (mIsEnded) {
-            return mIsEnded;
+        return mIsEnded;
+    }
+
+    private void enqueueJob(Runnable job, boolean pipelined, int action) {
+        if (isEnded()) {
+            throw new IllegalStateException(
+                    "Trying to run job on interrupted dispatcher thread");
+        }
+        if (mQueueLength.incrementAndGet() > MAX_MESSAGE_QUEUE_LENGTH) {
+            mQueueLength.decrementAndGet();
+            waitForQueueSpace();
+        }
+
+        JobNode node = new JobNode(job, pipelined, action, mLastSequence.incrementAndGet());
+        mLanes[getLane(action)].add(node);
+        if (mWaitingForJob) {
+            LockSupport.unpark(this);
         }
     }
 
-    @Override
-    public void run() {
-        while(true) {
-            Runnable job = null;
-            synchronized (mJobQueue) {
-                while (mJobQueue.size() == 0 && !isEnded()) {
+    /**
+     * Reserves room in the queue, waiting for the dispatch thread to make some if it's full.
+     */
+    private void waitForQueueSpace() {
+        // The threads draining the queue would wait on themselves, and the UI thread would
+        // stall, so those fail right away and leave it to the caller to report
+        final Thread caller = Thread.currentThread();
+        final boolean mayWait = caller != this && caller != mCameraHandlerThread
+                && Looper.myLooper() != Looper.getMainLooper();
+        final long deadline = SystemClock.uptimeMillis() + MAX_QUEUE_FULL_WAIT_MS;
+        synchronized (mQueueSpaceLock) {
+            mQueueSpaceWaiters++;
+            try {
+                while (mQueueLength.incrementAndGet() > MAX_MESSAGE_QUEUE_LENGTH) {
+                    mQueueLength.decrementAndGet();
+                    if (isEnded()) {
+                        throw new IllegalStateException(
+                                "Trying to run job on interrupted dispatcher thread");
+                    }
+                    final long remainingMs = deadline - SystemClock.uptimeMillis();
+                    if (!mayWait || remainingMs <= 0) {
+                        throw new RuntimeException("Camera master thread job queue full");
+                    }
                     try {
-                        mJobQueue.wait();
+                        mQueueSpaceLock.wait(remainingMs);
                     } catch (InterruptedException ex) {
-                        Log.w(TAG, "Dispatcher thread wait() interrupted, exiting");
-                        break;
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted waiting for camera job queue");
                     }
                 }
+            } finally {
+                mQueueSpaceWaiters--;
+            }
+        }
+    }
 
-                job = mJobQueue.poll();
+    /**
+     * Takes the next job off the queue, or returns null if none is linked in yet.
+     */
+    private JobNode pollJob() {
+        final JobNode[] heads = mLaneHeads;
+        int lane = -1;
+        for (int i = LANE_COUNT - 1; i >= 0; i--) {
+            heads[i] = mLanes[i].peek();
+            if (heads[i] != null) {
+                lane = i;
+            }
+        }
+        if (lane < 0) {
+            return null;
+        }
+
+        // Capture and focus depend on the settings queued before them
+        if (lane == LANE_CAPTURE && heads[LANE_SETTINGS] != null
+                && heads[LANE_SETTINGS].isQueuedBefore(heads[lane])) {
+            lane = LANE_SETTINGS;
+        }
+        // Nor do barriers run ahead of earlier diagnostics. As capture jobs never run ahead of
+        // earlier settings, nothing else can be queued before a barrier at the head of its lane.
+        if (isBarrier(heads[lane].mAction) && heads[LANE_DIAGNOSTICS] != null
+                && heads[LANE_DIAGNOSTICS].isQueuedBefore(heads[lane])) {
+            lane = LANE_DIAGNOSTICS;
+        }
+        // Let a waiting job that has been overtaken too often run first
+        for (int lower = LANE_COUNT - 1; lower > lane; lower--) {
+            if (heads[lower] != null && heads[lower].isQueuedBefore(heads[lane])
+                    && ++mOvertakes[lower] > MAX_OVERTAKES) {
+                lane = lower;
+                break;
+            }
+        }
+        mOvertakes[lane] = 0;
+
+        final JobNode next = heads[lane];
+        mLanes[lane].remove();
+        // Wake up callers waiting for room once the queue is down to half, rather than for every
+        // job, so that a full queue doesn't make each job contend for the lock
+        if (mQueueLength.decrementAndGet() <= MAX_MESSAGE_QUEUE_LENGTH / 2
+                && mQueueSpaceWaiters > 0) {
+            synchronized (mQueueSpaceLock) {
+                mQueueSpaceLock.notifyAll();
+            }
+        }
+        return next;
+    }
+
+    private void waitForJob() {
+        mWaitingForJob = true;
+        // Check again once the flag is visible, as a caller that linked its job before seeing
+        // it doesn't unpark this thread. Jobs that are reserved but not linked in yet are waited
+        // for even after end().
+        if (!hasLinkedJob() && (!isEnded() || mQueueLength.get() > 0)) {
+            LockSupport.park(this);
+        }
+        mWaitingForJob = false;
+        if (Thread.interrupted()) {
+            Log.w(TAG, "Dispatcher thread wait interrupted");
+        }
+    }
+
+    private boolean hasLinkedJob() {
+        for (JobQueue lane : mLanes) {
+            if (lane.peek() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordQueueWait(int action, long waitNanos) {
+        synchronized (mQueueWaitStats) {
+            QueueWaitStats stats = mQueueWaitStats.get(action);
+            if (stats == null) {
+                stats = new QueueWaitStats();
+                mQueueWaitStats.put(action, stats);
             }
+            stats.mCount++;
+            stats.mTotalNanos += waitNanos;
+            stats.mMaxNanos = Math.max(stats.mMaxNanos, waitNanos);
+        }
+    }
 
-            if (job == null) {
-                // mJobQueue.poll() returning null means wait() is
-                // interrupted and the queue is empty.
-                if (isEnded()) {
+    /**
+     * Waits until the camera handler has processed everything posted to it so far.
+     */
+    private void waitForCameraHandler() {
+        final int handshake = ++mHandshakesPosted;
+        if (!mCameraHandler.post(mHandshake)) {
+            // the handler thread has quit, so there is nothing to wait for
+            return;
+        }
+        while (mHandshakesDone.get() - handshake < 0) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                Log.w(TAG, "Dispatcher thread interrupted waiting for camera handler");
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            JobNode node = pollJob();
+            if (node == null) {
+                if (isEnded() && mQueueLength.get() == 0) {
                     break;
                 }
+                waitForJob();
                 continue;
             }
 
+            // Taking the job out also keeps it from being coalesced into, and from being kept
+            // alive by the node, which stays on as the head stub
+            Runnable job = node.mJob.getAndSet(null);
+            recordQueueWait(node.mAction, System.nanoTime() - node.mQueuedNanos);
             job.run();
 
-            synchronized (DispatchThread.this) {
-                mCameraHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (DispatchThread.this) {
-                            DispatchThread.this.notifyAll();
-                        }
-                    }
-                });
-                try {
-                    DispatchThread.this.wait();
-                } catch (InterruptedException ex) {
-                    // TODO: do something here.
-                }
+            if (!node.mPipelined) {
+                waitForCameraHandler();
             }
         }
         mCameraHandlerThread.quitSafely();
     }
+
+    private static class QueueWaitStats {
+        int mCount;
+        long mTotalNanos;
+        long mMaxNanos;
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CameraStateHolderTest {
+    private static final int STATE_IDLE = 1;
+    private static final int STATE_CAPTURING = 1 << 1;
+    private static final int STATE_FOCUSING = 1 << 2;
+    private static final int STATE_UNLOCKED = 1 << 3;
+
+    private CameraStateHolder mStateHolder;
+
+    @Before
+    public void setUp() {
+        mStateHolder = new CameraStateHolder(STATE_IDLE) {};
+    }
+
+    /**
+     * Ensure that transitions to states the waiter doesn't wait for don't extend the wait past
+     * its timeout.
+     */
+    @Test
+    public void waitEndsAtDeadline() throws Exception {
+        mStateHolder.setState(STATE_CAPTURING);
+        Thread toggler = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 50; i++) {
+                    mStateHolder.setState(i % 2 == 0 ? STATE_FOCUSING : STATE_CAPTURING);
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        };
+        toggler.start();
+
+        long startNs = System.nanoTime();
+        assertFalse(mStateHolder.waitForStates(STATE_IDLE | STATE_UNLOCKED, 100));
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        toggler.join();
+
+        assertTrue(waitedMs >= 100);
+        assertTrue("waited " + waitedMs + "ms", waitedMs < 1000);
+    }
+
+    /**
+     * Ensure that a waiter returns once the state becomes one it waits for, or right away if it
+     * already is.
+     */
+    @Test
+    public void waitEndsOnMatchingState() throws Exception {
+        assertTrue(mStateHolder.waitForStates(STATE_IDLE | STATE_UNLOCKED, 0));
+
+        mStateHolder.setState(STATE_CAPTURING);
+        final CountDownLatch waitDone = new CountDownLatch(1);
+        final boolean[] result = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                result[0] = mStateHolder.waitToAvoidStates(STATE_CAPTURING | STATE_FOCUSING,
+                        5000);
+                waitDone.countDown();
+            }
+        };
+        waiter.start();
+        mStateHolder.setState(STATE_FOCUSING);
+        assertFalse(waitDone.await(50, TimeUnit.MILLISECONDS));
+        mStateHolder.setState(STATE_IDLE);
+
+        assertTrue(waitDone.await(1, TimeUnit.SECONDS));
+        assertTrue(result[0]);
+    }
+
+    /**
+     * Ensure that waiters give up once the state is invalidated.
+     */
+    @Test
+    public void invalidateEndsWait() throws Exception {
+        mStateHolder.setState(STATE_CAPTURING);
+        final CountDownLatch waitDone = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                if (!mStateHolder.waitForStates(STATE_IDLE, 5000)) {
+                    waitDone.countDown();
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        mStateHolder.invalidate();
+
+        assertTrue(waitDone.await(1, TimeUnit.SECONDS));
+        assertTrue(mStateHolder.isInvalid());
+    }
+
+    /**
+     * Ensure that listeners see every transition, and only actual transitions.
+     */
+    @Test
+    public void listenersSeeTransitions() {
+        final List<String> transitions = new ArrayList<String>();
+        CameraStateHolder.StateListener listener = new CameraStateHolder.StateListener() {
+            @Override
+            public void onStateChanged(int previousState, int state) {
+                transitions.add(previousState + "->" + state);
+            }
+        };
+        mStateHolder.addStateListener(listener);
+        mStateHolder.setState(STATE_CAPTURING);
+        mStateHolder.setState(STATE_CAPTURING);
+        mStateHolder.setState(STATE_IDLE);
+        mStateHolder.removeStateListener(listener);
+        mStateHolder.setState(STATE_FOCUSING);
+
+        assertEquals(Arrays.asList(STATE_IDLE + "->" + STATE_CAPTURING,
+                STATE_CAPTURING + "->" + STATE_IDLE), transitions);
+    }
+}
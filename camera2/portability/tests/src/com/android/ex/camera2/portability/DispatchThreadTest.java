@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DispatchThreadTest {
+    private static final int PRODUCERS = 4;
+    // more jobs per producer than the queue holds, so that producers have to wait for room
+    private static final int JOBS_PER_PRODUCER = 1000;
+    // jobs the dispatch thread queues up at most
+    private static final int QUEUE_CAPACITY = 256;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private DispatchThread mDispatchThread;
+
+    @Before
+    public void setUp() {
+        mHandlerThread = new HandlerThread("DispatchThreadTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mDispatchThread = new DispatchThread(mHandler, mHandlerThread);
+        mDispatchThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDispatchThread.end();
+        mDispatchThread.join();
+        mHandlerThread.join();
+    }
+
+    /**
+     * Ensure that jobs queued concurrently all run, each caller's in the order they were
+     * queued, rather than being refused once the queue fills up.
+     */
+    @Test
+    public void concurrentJobsRunInOrder() throws Exception {
+        final List<List<Integer>> ran = new ArrayList<List<Integer>>();
+        final CountDownLatch done = new CountDownLatch(PRODUCERS * JOBS_PER_PRODUCER);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final List<Integer> producerRan = new ArrayList<Integer>();
+            ran.add(producerRan);
+            final boolean pipelined = p % 2 == 1;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < JOBS_PER_PRODUCER; i++) {
+                        final int job = i;
+                        Runnable runnable = new Runnable() {
+                            @Override
+                            public void run() {
+                                // only ever touched by the dispatch thread
+                                producerRan.add(job);
+                                done.countDown();
+                            }
+                        };
+                        if (pipelined) {
+                            mDispatchThread.runJobPipelined(
+                                    CameraActions.ADD_CALLBACK_BUFFER, runnable);
+                        } else {
+                            mDispatchThread.runJob(runnable);
+                        }
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        mDispatchThread.end();
+        mDispatchThread.join();
+        for (List<Integer> producerRan : ran) {
+            assertEquals(JOBS_PER_PRODUCER, producerRan.size());
+            for (int i = 0; i < JOBS_PER_PRODUCER; i++) {
+                assertEquals(i, (int) producerRan.get(i));
+            }
+        }
+    }
+
+    /**
+     * Ensure that a job waits for the camera handler to catch up with the previous job, unless
+     * the previous job was pipelined.
+     */
+    @Test
+    public void onlyOrderedJobsWaitForHandler() throws Exception {
+        final CountDownLatch handlerBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseHandler = new CountDownLatch(1);
+        final CountDownLatch afterPipelinedRan = new CountDownLatch(1);
+        final CountDownLatch orderedRan = new CountDownLatch(1);
+        final Runnable blockHandler = new Runnable() {
+            @Override
+            public void run() {
+                handlerBlocked.countDown();
+                try {
+                    releaseHandler.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        mDispatchThread.runJobPipelined(CameraActions.SET_PREVIEW_CALLBACK, new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(blockHandler);
+            }
+        });
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                afterPipelinedRan.countDown();
+            }
+        });
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                orderedRan.countDown();
+            }
+        });
+
+        try {
+            assertTrue(handlerBlocked.await(1, TimeUnit.SECONDS));
+            assertTrue(afterPipelinedRan.await(1, TimeUnit.SECONDS));
+            assertEquals(1, orderedRan.getCount());
+        } finally {
+            releaseHandler.countDown();
+        }
+        assertTrue(orderedRan.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Ensure that consecutive jobs of an action collapse into the latest one while they wait
+     * in the queue, but not across a job queued in between.
+     */
+    @Test
+    public void consecutiveCoalescedJobsRunOnce() throws Exception {
+        final CountDownLatch releaseDispatcher = new CountDownLatch(1);
+        final List<String> ran = new ArrayList<String>();
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseDispatcher.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            runNamedCoalescedJob("settings" + i, ran);
+        }
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("capture");
+            }
+        });
+        for (int i = 10; i < 20; i++) {
+            runNamedCoalescedJob("settings" + i, ran);
+        }
+        releaseDispatcher.countDown();
+        mDispatchThread.end();
+        mDispatchThread.join();
+
+        assertEquals(Arrays.asList("settings9", "capture", "settings19"), ran);
+        assertEquals(18, mDispatchThread.getCoalescedJobCount());
+    }
+
+    /**
+     * Ensure that capture and settings jobs run ahead of earlier diagnostics jobs, but never
+     * ahead of the earlier jobs they depend on.
+     */
+    @Test
+    public void lanesRunByPriority() throws Exception {
+        final CountDownLatch releaseDispatcher = blockDispatcher();
+        final List<String> ran = new ArrayList<String>();
+        runNamedJob(CameraActions.REFRESH_PARAMETERS, "diagnostics", ran);
+        runNamedJob(CameraActions.SET_PARAMETERS, "settings", ran);
+        runNamedJob(CameraActions.CAPTURE_PHOTO, "capture", ran);
+        runNamedJob(CameraActions.RELEASE, "release", ran);
+        releaseDispatcher.countDown();
+        mDispatchThread.end();
+        mDispatchThread.join();
+
+        assertEquals(Arrays.asList("settings", "capture", "diagnostics", "release"), ran);
+    }
+
+    /**
+     * Ensure that a diagnostics job isn't kept waiting by a steady stream of settings jobs.
+     */
+    @Test
+    public void overtakenJobsDontStarve() throws Exception {
+        final CountDownLatch releaseDispatcher = blockDispatcher();
+        final List<String> ran = new ArrayList<String>();
+        runNamedJob(CameraActions.REFRESH_PARAMETERS, "diagnostics", ran);
+        for (int i = 0; i < 10; i++) {
+            runNamedJob(CameraActions.SET_PARAMETERS, "settings" + i, ran);
+        }
+        releaseDispatcher.countDown();
+        mDispatchThread.end();
+        mDispatchThread.join();
+
+        assertEquals(11, ran.size());
+        assertEquals(4, ran.indexOf("diagnostics"));
+    }
+
+    /**
+     * Ensure that the future of a job is completed by the camera handler, and that callbacks
+     * added to it run once it is.
+     */
+    @Test
+    public void asyncJobCompletesFuture() throws Exception {
+        final CameraFuture<String> future = new CameraFuture<String>();
+        final CountDownLatch callbackRan = new CountDownLatch(1);
+        future.addCallback(mHandler, new CameraFuture.Callback<String>() {
+            @Override
+            public void onDone(CameraFuture<String> done) {
+                callbackRan.countDown();
+            }
+        });
+        mDispatchThread.runJobAsync(CameraActions.GET_PARAMETERS, new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        future.complete("parameters");
+                    }
+                });
+            }
+        }, future);
+
+        DispatchThread.awaitJob(future, 1000, "async job");
+        assertEquals("parameters", future.get());
+        assertTrue(callbackRan.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Ensure that a job whose future is cancelled before it starts doesn't run.
+     */
+    @Test
+    public void cancelledAsyncJobIsSkipped() throws Exception {
+        final CountDownLatch releaseDispatcher = blockDispatcher();
+        final List<String> ran = new ArrayList<String>();
+        CameraFuture<Void> future = new CameraFuture<Void>();
+        mDispatchThread.runJobAsync(CameraActions.SET_PARAMETERS, new Runnable() {
+            @Override
+            public void run() {
+                ran.add("cancelled");
+            }
+        }, future);
+        assertTrue(future.cancel(false));
+        releaseDispatcher.countDown();
+        mDispatchThread.end();
+        mDispatchThread.join();
+
+        assertTrue(ran.isEmpty());
+        assertTrue(future.isCancelled());
+    }
+
+    /**
+     * Ensure that waiting for a job that doesn't complete in time fails after the timeout.
+     */
+    @Test
+    public void awaitJobTimesOut() throws Exception {
+        final CountDownLatch releaseDispatcher = blockDispatcher();
+        CameraFuture<Void> future = new CameraFuture<Void>();
+        try {
+            mDispatchThread.runJobSync(CameraActions.SET_PARAMETERS, new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, future, 100, "blocked job");
+            fail("runJobSync returned before its job completed");
+        } catch (IllegalStateException ex) {
+            assertTrue(!future.isDone());
+        } finally {
+            releaseDispatcher.countDown();
+        }
+    }
+
+    /**
+     * Ensure that waiting for a job whose future failed reports the failure.
+     */
+    @Test
+    public void awaitJobReportsFailure() throws Exception {
+        CameraFuture<Void> future = new CameraFuture<Void>();
+        RuntimeException failure = new RuntimeException("camera error");
+        future.completeExceptionally(failure);
+        try {
+            DispatchThread.awaitJob(future, 100, "failed job");
+            fail("awaitJob returned for a failed job");
+        } catch (IllegalStateException ex) {
+            assertEquals(failure, ex.getCause());
+        }
+    }
+
+    /**
+     * Ensure that a full queue refuses jobs from the main thread right away, rather than holding
+     * up the UI until the dispatch thread makes room.
+     */
+    @Test
+    public void fullQueueDoesntBlockMainThread() throws Exception {
+        final CountDownLatch dispatcherBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseDispatcher = new CountDownLatch(1);
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                dispatcherBlocked.countDown();
+                try {
+                    releaseDispatcher.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            assertTrue(dispatcherBlocked.await(1, TimeUnit.SECONDS));
+            for (int i = 0; i < QUEUE_CAPACITY; i++) {
+                mDispatchThread.runJob(CameraActions.SET_PARAMETERS, new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+            }
+
+            final CountDownLatch refused = new CountDownLatch(1);
+            final long[] elapsedMs = new long[1];
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = SystemClock.uptimeMillis();
+                    try {
+                        mDispatchThread.runJob(CameraActions.APPLY_SETTINGS, new Runnable() {
+                            @Override
+                            public void run() {
+                            }
+                        });
+                    } catch (RuntimeException ex) {
+                        elapsedMs[0] = SystemClock.uptimeMillis() - start;
+                        refused.countDown();
+                    }
+                }
+            });
+            assertTrue("job queued on the main thread despite a full queue",
+                    refused.await(2, TimeUnit.SECONDS));
+            assertTrue("main thread waited " + elapsedMs[0] + "ms", elapsedMs[0] < 100);
+        } finally {
+            releaseDispatcher.countDown();
+        }
+    }
+
+    /**
+     * Ensure that the deprecated lock based runJobSync still waits for the job to notify the lock.
+     */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void lockBasedRunJobSyncWaitsForJob() throws Exception {
+        final Object waitLock = new Object();
+        final CountDownLatch ran = new CountDownLatch(1);
+        mDispatchThread.runJobSync(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.countDown();
+                        synchronized (waitLock) {
+                            waitLock.notifyAll();
+                        }
+                    }
+                });
+            }
+        }, waitLock, 1000, "lock based job");
+        assertEquals(0, ran.getCount());
+    }
+
+    private CountDownLatch blockDispatcher() {
+        final CountDownLatch releaseDispatcher = new CountDownLatch(1);
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseDispatcher.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return releaseDispatcher;
+    }
+
+    private void runNamedJob(int action, final String name, final List<String> ran) {
+        mDispatchThread.runJob(action, new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        });
+    }
+
+    private void runNamedCoalescedJob(final String name, final List<String> ran) {
+        mDispatchThread.runCoalescedJob(CameraActions.APPLY_SETTINGS, new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        });
+    }
+}
@@ -18,7 +18,8 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE := android-common-framesequence
-LOCAL_SDK_VERSION := 8
+# Compiled against API 11 for Drawable.getDirtyBounds, minSdkVersion stays 8
+LOCAL_SDK_VERSION := 11
 LOCAL_SRC_FILES := $(call all-java-files-under, src)
 
 LOCAL_PROGUARD_FLAG_FILES := proguard.flags
@@ -0,0 +1,1134 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host test of the png decoder. Every fixture is built here, chunk by chunk, from image data
+// whose pixels the test knows, so that each output pixel can be checked:
+//
+//   formats      every color type and bit depth, with and without a tRNS chunk, as a still png
+//                and as the single frame of an animation split across fdAT chunks
+//   blend        both blend operations, over an opaque canvas
+//   dispose      every dispose operation, drawn in order, from scratch and skipping frames
+//   corrupt      damaged, short and truncated image data is drawn without reading or writing
+//                out of bounds, and damaged chunk structure is rejected
+//   bounds       frames outside of the canvas are rejected
+//
+// Frames are drawn into a buffer one pixel wider than the sampled canvas, and the extra column
+// is checked to be left untouched.
+
+#include <stdarg.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <zlib.h>
+
+#include "FrameSequence.h"
+#include "FrameSequence_apng.h"
+
+#define PNG_COLOR_TYPE_GRAY 0
+#define PNG_COLOR_TYPE_RGB 2
+#define PNG_COLOR_TYPE_PALETTE 3
+#define PNG_COLOR_TYPE_GRAY_ALPHA 4
+#define PNG_COLOR_TYPE_RGB_ALPHA 6
+
+// Filter types 0 to 4 are defined, anything else is invalid
+#define PNG_FILTER_COUNT 5
+#define PNG_FILTER_INVALID 5
+
+#define NO_BAD_ROW -1
+
+////////////////////////////////////////////////////////////////////////////////
+// Checks
+////////////////////////////////////////////////////////////////////////////////
+
+static int gCheckCount;
+static int gFailureCount;
+static char gCase[256];
+
+// Describes the fixture being checked, for the failure messages
+static void setCase(const char* format, ...) {
+    va_list ap;
+    va_start(ap, format);
+    vsnprintf(gCase, sizeof(gCase), format, ap);
+    va_end(ap);
+}
+
+static bool check(bool condition, const char* expression, int line) {
+    gCheckCount++;
+    if (!condition) {
+        gFailureCount++;
+        fprintf(stderr, "FAILED line %d [%s]: %s\n", line, gCase, expression);
+    }
+    return condition;
+}
+
+static bool checkColor(Color8888 expected, Color8888 actual, int x, int y, int line) {
+    gCheckCount++;
+    if (expected != actual) {
+        gFailureCount++;
+        fprintf(stderr, "FAILED line %d [%s]: pixel %d,%d is %08x, expected %08x\n",
+                line, gCase, x, y, actual, expected);
+    }
+    return expected == actual;
+}
+
+#define CHECK(condition) check((condition), #condition, __LINE__)
+
+////////////////////////////////////////////////////////////////////////////////
+// Images
+////////////////////////////////////////////////////////////////////////////////
+
+static int channelCount(int colorType) {
+    switch (colorType) {
+    case PNG_COLOR_TYPE_RGB: return 3;
+    case PNG_COLOR_TYPE_GRAY_ALPHA: return 2;
+    case PNG_COLOR_TYPE_RGB_ALPHA: return 4;
+    default: return 1;
+    }
+}
+
+// Unfiltered image data of a frame, rows packed at the bit depth without filter type bytes
+struct Image {
+    int width;
+    int height;
+    int bitDepth;
+    int colorType;
+    size_t rowBytes;
+    uint8_t* rows;
+};
+
+static void initImage(Image* image, int width, int height, int bitDepth, int colorType) {
+    image->width = width;
+    image->height = height;
+    image->bitDepth = bitDepth;
+    image->colorType = colorType;
+    image->rowBytes = (width * bitDepth * channelCount(colorType) + 7) / 8;
+    image->rows = (uint8_t*) calloc(height, image->rowBytes);
+}
+
+static void freeImage(Image* image) {
+    free(image->rows);
+}
+
+// Sets the index-th sample of a row, i.e. channel c of pixel x is sample x * channels + c
+static void setSample(Image* image, int index, int y, int value) {
+    uint8_t* row = image->rows + y * image->rowBytes;
+    switch (image->bitDepth) {
+    case 16:
+        row[2 * index] = value >> 8;
+        row[2 * index + 1] = value;
+        break;
+    case 8:
+        row[index] = value;
+        break;
+    default: {
+        const int bit = index * image->bitDepth;
+        const int shift = 8 - image->bitDepth - bit % 8;
+        row[bit / 8] &= ~(((1 << image->bitDepth) - 1) << shift);
+        row[bit / 8] |= value << shift;
+    }
+    }
+}
+
+static void setRgba(Image* image, int x, int y, int r, int g, int b, int a) {
+    setSample(image, 4 * x, y, r);
+    setSample(image, 4 * x + 1, y, g);
+    setSample(image, 4 * x + 2, y, b);
+    setSample(image, 4 * x + 3, y, a);
+}
+
+static void initSolidImage(Image* image, int width, int height, int r, int g, int b, int a) {
+    initImage(image, width, height, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+    for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+            setRgba(image, x, y, r, g, b, a);
+        }
+    }
+}
+
+static int paethPredictor(int a, int b, int c) {
+    const int p = a + b - c;
+    const int pa = abs(p - a);
+    const int pb = abs(p - b);
+    const int pc = abs(p - c);
+    if (pa <= pb && pa <= pc) return a;
+    return pb <= pc ? b : c;
+}
+
+// Filters every row, cycling through the filter types so that all of them are decoded, and
+// deflates the result. The row badFilterRow is given an invalid filter type.
+static uint8_t* compressImage(const Image& image, int badFilterRow, size_t* outSize) {
+    const int bitsPerPixel = image.bitDepth * channelCount(image.colorType);
+    const size_t stride = bitsPerPixel >= 8 ? bitsPerPixel / 8 : 1;
+    const size_t filteredSize = image.height * (image.rowBytes + 1);
+    uint8_t* filtered = (uint8_t*) malloc(filteredSize);
+    uint8_t* zeroRow = (uint8_t*) calloc(image.rowBytes, 1);
+    for (int y = 0; y < image.height; y++) {
+        const uint8_t* row = image.rows + y * image.rowBytes;
+        const uint8_t* prevRow = y ? row - image.rowBytes : zeroRow;
+        uint8_t* out = filtered + y * (image.rowBytes + 1);
+        const int filter = y == badFilterRow ? PNG_FILTER_INVALID : y % PNG_FILTER_COUNT;
+        out[0] = filter;
+        for (size_t i = 0; i < image.rowBytes; i++) {
+            const int left = i >= stride ? row[i - stride] : 0;
+            const int upLeft = i >= stride ? prevRow[i - stride] : 0;
+            int predicted;
+            switch (filter) {
+            case 1: predicted = left; break;
+            case 2: predicted = prevRow[i]; break;
+            case 3: predicted = (left + prevRow[i]) >> 1; break;
+            case 4: predicted = paethPredictor(left, prevRow[i], upLeft); break;
+            default: predicted = 0; break;
+            }
+            out[i + 1] = row[i] - predicted;
+        }
+    }
+    uLongf size = compressBound(filteredSize);
+    uint8_t* compressed = (uint8_t*) malloc(size);
+    compress2(compressed, &size, filtered, filteredSize, Z_BEST_COMPRESSION);
+    free(filtered);
+    free(zeroRow);
+    *outSize = size;
+    return compressed;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Fixtures
+////////////////////////////////////////////////////////////////////////////////
+
+// A png built chunk by chunk. Frames are shown for 100ms.
+class Png {
+public:
+    Png(int width, int height, int bitDepth, int colorType) :
+            mData(NULL), mSize(0), mCapacity(0), mSequenceNumber(0) {
+        append("\x89PNG\r\n\x1a\n", 8);
+        uint8_t header[13];
+        putBE32(header, width);
+        putBE32(header + 4, height);
+        header[8] = bitDepth;
+        header[9] = colorType;
+        header[10] = 0;
+        header[11] = 0;
+        header[12] = 0;
+        chunk("IHDR", header, sizeof(header));
+    }
+
+    ~Png() {
+        free(mData);
+    }
+
+    const uint8_t* data() const { return mData; }
+    size_t size() const { return mSize; }
+
+    void chunk(const char* type, const uint8_t* data, size_t size) {
+        uint8_t word[4];
+        putBE32(word, size);
+        append(word, 4);
+        append(type, 4);
+        append(data, size);
+        uLong crc = crc32(0, (const Bytef*) type, 4);
+        crc = crc32(crc, data, size);
+        putBE32(word, crc);
+        append(word, 4);
+    }
+
+    void animationControl(int frameCount, int loopCount) {
+        uint8_t control[8];
+        putBE32(control, frameCount);
+        putBE32(control + 4, loopCount);
+        chunk("acTL", control, sizeof(control));
+    }
+
+    void frameControl(uint32_t left, uint32_t top, uint32_t width, uint32_t height,
+            int disposeOp, int blendOp) {
+        uint8_t control[26];
+        putBE32(control, mSequenceNumber++);
+        putBE32(control + 4, width);
+        putBE32(control + 8, height);
+        putBE32(control + 12, left);
+        putBE32(control + 16, top);
+        control[20] = 0;
+        control[21] = 1;
+        control[22] = 0;
+        control[23] = 10;
+        control[24] = disposeOp;
+        control[25] = blendOp;
+        chunk("fcTL", control, sizeof(control));
+    }
+
+    // fdAT chunk, the sequence number followed by the data
+    void frameData(const uint8_t* data, size_t size) {
+        uint8_t* payload = (uint8_t*) malloc(size + 4);
+        putBE32(payload, mSequenceNumber++);
+        if (size) {
+            memcpy(payload + 4, data, size);
+        }
+        chunk("fdAT", payload, size + 4);
+        free(payload);
+    }
+
+    void imageData(const uint8_t* data, size_t size) {
+        chunk("IDAT", data, size);
+    }
+
+    void end() {
+        chunk("IEND", NULL, 0);
+    }
+
+    // Adds a frame whose image data is a single IDAT or fdAT chunk
+    void frame(const Image& image, int left, int top, int disposeOp, int blendOp,
+            bool asImageData) {
+        frameControl(left, top, image.width, image.height, disposeOp, blendOp);
+        size_t size;
+        uint8_t* compressed = compressImage(image, NO_BAD_ROW, &size);
+        if (asImageData) {
+            imageData(compressed, size);
+        } else {
+            frameData(compressed, size);
+        }
+        free(compressed);
+    }
+
+private:
+    static void putBE32(uint8_t* out, uint32_t value) {
+        out[0] = value >> 24;
+        out[1] = value >> 16;
+        out[2] = value >> 8;
+        out[3] = value;
+    }
+
+    void append(const void* data, size_t size) {
+        if (mSize + size > mCapacity) {
+            mCapacity = 2 * (mSize + size);
+            mData = (uint8_t*) realloc(mData, mCapacity);
+        }
+        if (size) {
+            memcpy(mData + mSize, data, size);
+        }
+        mSize += size;
+    }
+
+    uint8_t* mData;
+    size_t mSize;
+    size_t mCapacity;
+    int mSequenceNumber;
+};
+
+// Stands in for the global reference JNI passes along with a direct ByteBuffer's address, see
+// the benchmark
+static int gRawBufferToken;
+
+static FrameSequence* decode(const uint8_t* data, size_t size, bool rawBuffer) {
+    MemoryStream stream((void*) data, size,
+            rawBuffer ? reinterpret_cast<jobject>(&gRawBufferToken) : NULL);
+    return FrameSequence::create(&stream);
+}
+
+static FrameSequence* decode(const Png& png) {
+    return decode(png.data(), png.size(), false);
+}
+
+static bool probe(const uint8_t* data, size_t size, FrameSequenceInfo* outInfo) {
+    MemoryStream stream((void*) data, size, NULL);
+    return FrameSequence::probe(&stream, outInfo);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Canvas
+////////////////////////////////////////////////////////////////////////////////
+
+static const Color8888 GUARD = 0xdeadbeef;
+
+// Output buffer for a sampled canvas, with a guard column past its right edge
+struct Canvas {
+    int width;
+    int height;
+    int stride;
+    Color8888* pixels;
+};
+
+static void initCanvas(Canvas* canvas, int width, int height) {
+    canvas->width = width;
+    canvas->height = height;
+    canvas->stride = width + 1;
+    canvas->pixels = new Color8888[canvas->stride * height];
+    for (int i = 0; i < canvas->stride * height; i++) {
+        canvas->pixels[i] = GUARD;
+    }
+}
+
+static void freeCanvas(Canvas* canvas) {
+    delete[] canvas->pixels;
+}
+
+static Color8888 pixelAt(const Canvas& canvas, int x, int y) {
+    return canvas.pixels[y * canvas.stride + x];
+}
+
+static bool guardIntact(const Canvas& canvas) {
+    for (int y = 0; y < canvas.height; y++) {
+        if (pixelAt(canvas, canvas.width, y) != GUARD) return false;
+    }
+    return true;
+}
+
+static long draw(FrameSequenceState* state, int frameNr, Canvas* canvas, int previousFrameNr) {
+    return state->drawFrame(frameNr, canvas->pixels, canvas->stride, previousFrameNr);
+}
+
+// Checks every pixel, stopping at the first one that differs
+#define CHECK_CANVAS(canvas, expectedAt) \
+    do { \
+        CHECK(guardIntact(canvas)); \
+        bool matches = true; \
+        for (int y_ = 0; y_ < (canvas).height && matches; y_++) { \
+            for (int x_ = 0; x_ < (canvas).width && matches; x_++) { \
+                matches = checkColor(expectedAt(x_, y_), pixelAt((canvas), x_, y_), \
+                        x_, y_, __LINE__); \
+            } \
+        } \
+    } while (0)
+
+////////////////////////////////////////////////////////////////////////////////
+// Reference colors
+////////////////////////////////////////////////////////////////////////////////
+
+static Color8888 premultiplied(int a, int r, int g, int b) {
+    if (a == 0) return TRANSPARENT;
+    return ARGB_TO_COLOR8888(a, (r * a + 127) / 255, (g * a + 127) / 255, (b * a + 127) / 255);
+}
+
+static int scaleTo8Bits(int sample, int bitDepth) {
+    if (bitDepth == 16) return sample >> 8;
+    return sample * 0xff / ((1 << bitDepth) - 1);
+}
+
+// Each channel of the result is src + dst * (1 - src alpha), rounded, and a fully transparent
+// source leaves the canvas as it is
+static Color8888 over(Color8888 src, Color8888 dst) {
+    const int alpha = src >> 24;
+    if (alpha == 0) return dst;
+    Color8888 result = 0;
+    for (int shift = 0; shift < 32; shift += 8) {
+        const int s = src >> shift & 0xff;
+        const int d = dst >> shift & 0xff;
+        result |= (Color8888) (s + ((d * (0xff - alpha) + 0x80) >> 8)) << shift;
+    }
+    return result;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Formats
+////////////////////////////////////////////////////////////////////////////////
+
+#define FORMAT_WIDTH 5
+#define FORMAT_HEIGHT 5
+#define FORMAT_PALETTE_SIZE 12
+
+static const struct {
+    int colorType;
+    int bitDepth;
+} FORMATS[] = {
+    { PNG_COLOR_TYPE_GRAY, 1 },
+    { PNG_COLOR_TYPE_GRAY, 2 },
+    { PNG_COLOR_TYPE_GRAY, 4 },
+    { PNG_COLOR_TYPE_GRAY, 8 },
+    { PNG_COLOR_TYPE_GRAY, 16 },
+    { PNG_COLOR_TYPE_RGB, 8 },
+    { PNG_COLOR_TYPE_RGB, 16 },
+    { PNG_COLOR_TYPE_PALETTE, 1 },
+    { PNG_COLOR_TYPE_PALETTE, 2 },
+    { PNG_COLOR_TYPE_PALETTE, 4 },
+    { PNG_COLOR_TYPE_PALETTE, 8 },
+    { PNG_COLOR_TYPE_GRAY_ALPHA, 8 },
+    { PNG_COLOR_TYPE_GRAY_ALPHA, 16 },
+    { PNG_COLOR_TYPE_RGB_ALPHA, 8 },
+    { PNG_COLOR_TYPE_RGB_ALPHA, 16 },
+};
+
+// alpha of the first palette entries, given by the tRNS chunk
+static const uint8_t PALETTE_ALPHA[] = { 0x00, 0x80, 0xff, 0x40 };
+
+// The fixture of a format: its pixels, palette and transparency
+struct FormatFixture {
+    Image image;
+    int paletteSize;
+    uint8_t palette[3 * FORMAT_PALETTE_SIZE];
+    bool hasTransparency;
+    int transparencySize;
+    uint8_t transparency[6];
+};
+
+// Sample values spread over the whole range of the bit depth. Alpha samples include fully
+// transparent and fully opaque pixels.
+static int formatSample(int x, int y, int channel, int channels, int bitDepth) {
+    const int maxValue = (1 << bitDepth) - 1;
+    const bool isAlpha = channels % 2 == 0 && channel == channels - 1;
+    if (isAlpha && y == 0 && x < 2) {
+        return x ? maxValue : 0;
+    }
+    return (x * 37 + y * 101 + channel * 53 + x * y * 11) * (bitDepth == 16 ? 251 : 1)
+            & maxValue;
+}
+
+static void initFormatFixture(FormatFixture* fixture, int colorType, int bitDepth,
+        bool hasTransparency) {
+    Image* image = &fixture->image;
+    initImage(image, FORMAT_WIDTH, FORMAT_HEIGHT, bitDepth, colorType);
+    const int channels = channelCount(colorType);
+    for (int y = 0; y < FORMAT_HEIGHT; y++) {
+        for (int x = 0; x < FORMAT_WIDTH; x++) {
+            for (int c = 0; c < channels; c++) {
+                setSample(image, x * channels + c, y, formatSample(x, y, c, channels, bitDepth));
+            }
+        }
+    }
+
+    // indices past the end of the palette are drawn black
+    fixture->paletteSize = 0;
+    if (colorType == PNG_COLOR_TYPE_PALETTE) {
+        fixture->paletteSize = 1 << bitDepth;
+        if (fixture->paletteSize > FORMAT_PALETTE_SIZE) {
+            fixture->paletteSize = FORMAT_PALETTE_SIZE;
+        }
+        for (int i = 0; i < fixture->paletteSize; i++) {
+            fixture->palette[3 * i] = i * 20;
+            fixture->palette[3 * i + 1] = 0xff - i * 20;
+            fixture->palette[3 * i + 2] = i * 7;
+        }
+    }
+
+    // the transparent color is the one of pixel 1,0
+    fixture->hasTransparency = hasTransparency;
+    fixture->transparencySize = 0;
+    if (hasTransparency) {
+        if (colorType == PNG_COLOR_TYPE_PALETTE) {
+            fixture->transparencySize = fixture->paletteSize < 4 ? fixture->paletteSize : 4;
+            memcpy(fixture->transparency, PALETTE_ALPHA, fixture->transparencySize);
+        } else {
+            fixture->transparencySize = 2 * channels;
+            for (int c = 0; c < channels; c++) {
+                const int sample = formatSample(1, 0, c, channels, bitDepth);
+                fixture->transparency[2 * c] = sample >> 8;
+                fixture->transparency[2 * c + 1] = sample;
+            }
+        }
+    }
+}
+
+static void writeFormatChunks(Png* png, const FormatFixture& fixture) {
+    if (fixture.paletteSize) {
+        png->chunk("PLTE", fixture.palette, 3 * fixture.paletteSize);
+    }
+    if (fixture.hasTransparency) {
+        png->chunk("tRNS", fixture.transparency, fixture.transparencySize);
+    }
+}
+
+static Color8888 expectedFormatColor(const FormatFixture& fixture, int x, int y) {
+    const Image& image = fixture.image;
+    const int channels = channelCount(image.colorType);
+    int samples[4];
+    for (int c = 0; c < channels; c++) {
+        samples[c] = formatSample(x, y, c, channels, image.bitDepth);
+    }
+    bool isTransparentColor = fixture.hasTransparency;
+    for (int c = 0; c < channels && isTransparentColor; c++) {
+        isTransparentColor = samples[c] == formatSample(1, 0, c, channels, image.bitDepth);
+    }
+
+    switch (image.colorType) {
+    case PNG_COLOR_TYPE_GRAY: {
+        if (isTransparentColor) return TRANSPARENT;
+        const int gray = scaleTo8Bits(samples[0], image.bitDepth);
+        return premultiplied(0xff, gray, gray, gray);
+    }
+    case PNG_COLOR_TYPE_RGB:
+        if (isTransparentColor) return TRANSPARENT;
+        return premultiplied(0xff, scaleTo8Bits(samples[0], image.bitDepth),
+                scaleTo8Bits(samples[1], image.bitDepth), scaleTo8Bits(samples[2], image.bitDepth));
+    case PNG_COLOR_TYPE_PALETTE: {
+        const int index = samples[0];
+        if (index >= fixture.paletteSize) return premultiplied(0xff, 0, 0, 0);
+        const int alpha = index < fixture.transparencySize ? PALETTE_ALPHA[index] : 0xff;
+        return premultiplied(alpha, fixture.palette[3 * index], fixture.palette[3 * index + 1],
+                fixture.palette[3 * index + 2]);
+    }
+    case PNG_COLOR_TYPE_GRAY_ALPHA: {
+        const int gray = scaleTo8Bits(samples[0], image.bitDepth);
+        return premultiplied(scaleTo8Bits(samples[1], image.bitDepth), gray, gray, gray);
+    }
+    default:
+        return premultiplied(scaleTo8Bits(samples[3], image.bitDepth),
+                scaleTo8Bits(samples[0], image.bitDepth), scaleTo8Bits(samples[1], image.bitDepth),
+                scaleTo8Bits(samples[2], image.bitDepth));
+    }
+}
+
+static const FormatFixture* gFormatFixture;
+
+static Color8888 expectedFormatPixel(int x, int y) {
+    return expectedFormatColor(*gFormatFixture, x, y);
+}
+
+static Color8888 expectedSampledFormatPixel(int x, int y) {
+    return expectedFormatColor(*gFormatFixture, 2 * x, 2 * y);
+}
+
+static void checkFormatSequence(const Png& png, const FormatFixture& fixture) {
+    const bool opaque = !fixture.hasTransparency
+            && (fixture.image.colorType == PNG_COLOR_TYPE_GRAY
+                    || fixture.image.colorType == PNG_COLOR_TYPE_RGB
+                    || fixture.image.colorType == PNG_COLOR_TYPE_PALETTE);
+    FrameSequenceInfo info;
+    CHECK(probe(png.data(), png.size(), &info));
+    CHECK(info.width == FORMAT_WIDTH && info.height == FORMAT_HEIGHT);
+    CHECK(info.frameCount == 1);
+    CHECK(info.opaque == opaque);
+
+    FrameSequence* frameSequence = decode(png);
+    if (!CHECK(frameSequence != NULL)) return;
+    CHECK(frameSequence->getFrameCount() == 1);
+    CHECK(frameSequence->isOpaque() == opaque);
+
+    gFormatFixture = &fixture;
+    for (int sampleSize = 1; sampleSize <= 2; sampleSize++) {
+        FrameSequenceState* state = frameSequence->createState(sampleSize);
+        Canvas canvas;
+        initCanvas(&canvas, sampledCoordinate(FORMAT_WIDTH, sampleSize),
+                sampledCoordinate(FORMAT_HEIGHT, sampleSize));
+        draw(state, 0, &canvas, -1);
+        if (sampleSize == 1) {
+            CHECK_CANVAS(canvas, expectedFormatPixel);
+        } else {
+            CHECK_CANVAS(canvas, expectedSampledFormatPixel);
+        }
+        freeCanvas(&canvas);
+        delete state;
+    }
+    delete frameSequence;
+}
+
+static void testFormats() {
+    for (size_t i = 0; i < sizeof(FORMATS) / sizeof(FORMATS[0]); i++) {
+        const int colorType = FORMATS[i].colorType;
+        const int bitDepth = FORMATS[i].bitDepth;
+        const bool mayHaveTransparency = colorType == PNG_COLOR_TYPE_GRAY
+                || colorType == PNG_COLOR_TYPE_RGB || colorType == PNG_COLOR_TYPE_PALETTE;
+        for (int transparency = 0; transparency <= (mayHaveTransparency ? 1 : 0); transparency++) {
+            FormatFixture fixture;
+            initFormatFixture(&fixture, colorType, bitDepth, transparency);
+            size_t size;
+            uint8_t* compressed = compressImage(fixture.image, NO_BAD_ROW, &size);
+
+            // a still png
+            setCase("color type %d, depth %d, tRNS %d, still", colorType, bitDepth, transparency);
+            Png still(FORMAT_WIDTH, FORMAT_HEIGHT, bitDepth, colorType);
+            writeFormatChunks(&still, fixture);
+            still.imageData(compressed, size);
+            still.end();
+            checkFormatSequence(still, fixture);
+
+            // an animation with a default image that isn't part of it, and a frame whose data
+            // is split across two fdAT chunks
+            setCase("color type %d, depth %d, tRNS %d, fdAT", colorType, bitDepth, transparency);
+            Image defaultImage;
+            initImage(&defaultImage, FORMAT_WIDTH, FORMAT_HEIGHT, bitDepth, colorType);
+            size_t defaultSize;
+            uint8_t* defaultCompressed = compressImage(defaultImage, NO_BAD_ROW, &defaultSize);
+            Png animated(FORMAT_WIDTH, FORMAT_HEIGHT, bitDepth, colorType);
+            animated.animationControl(1, 0);
+            writeFormatChunks(&animated, fixture);
+            animated.imageData(defaultCompressed, defaultSize);
+            animated.frameControl(0, 0, FORMAT_WIDTH, FORMAT_HEIGHT,
+                    APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE);
+            animated.frameData(compressed, size / 2);
+            animated.frameData(compressed + size / 2, size - size / 2);
+            animated.end();
+            checkFormatSequence(animated, fixture);
+
+            free(defaultCompressed);
+            freeImage(&defaultImage);
+            free(compressed);
+            freeImage(&fixture.image);
+        }
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Blend operations
+////////////////////////////////////////////////////////////////////////////////
+
+#define CANVAS_SIZE 4
+
+static const Color8888 BLUE = ARGB_TO_COLOR8888(0xff, 0x20, 0x40, 0xc0);
+static const Color8888 RED = ARGB_TO_COLOR8888(0xff, 0xe0, 0x10, 0x10);
+static const Color8888 GREEN = ARGB_TO_COLOR8888(0xff, 0x10, 0xd0, 0x30);
+
+static void initColorImage(Image* image, int width, int height, Color8888 color) {
+    initSolidImage(image, width, height, color & 0xff, color >> 8 & 0xff, color >> 16 & 0xff,
+            color >> 24);
+}
+
+// Alpha of the pixels of the blended frame, a 3x1 frame at 1,2
+static const int BLEND_ALPHA[] = { 0x00, 0x80, 0xff };
+static const int BLEND_COLOR[] = { 0x0a, 0xdc, 0x3c };
+static int gBlendOp;
+
+static Color8888 expectedBlendPixel(int x, int y) {
+    if (y != 2 || x < 1) return BLUE;
+    const Color8888 src = premultiplied(BLEND_ALPHA[x - 1],
+            BLEND_COLOR[0], BLEND_COLOR[1], BLEND_COLOR[2]);
+    return gBlendOp == APNG_BLEND_OP_OVER ? over(src, BLUE) : src;
+}
+
+static void testBlendOps() {
+    for (gBlendOp = APNG_BLEND_OP_SOURCE; gBlendOp <= APNG_BLEND_OP_OVER; gBlendOp++) {
+        setCase("blend op %d", gBlendOp);
+        Image background;
+        initColorImage(&background, CANVAS_SIZE, CANVAS_SIZE, BLUE);
+        Image blended;
+        initImage(&blended, 3, 1, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+        for (int x = 0; x < 3; x++) {
+            setRgba(&blended, x, 0, BLEND_COLOR[0], BLEND_COLOR[1], BLEND_COLOR[2],
+                    BLEND_ALPHA[x]);
+        }
+        Png png(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+        png.animationControl(2, 0);
+        png.frame(background, 0, 0, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, true);
+        png.frame(blended, 1, 2, APNG_DISPOSE_OP_NONE, gBlendOp, false);
+        png.end();
+
+        FrameSequence* frameSequence = decode(png);
+        if (CHECK(frameSequence != NULL)) {
+            CHECK(frameSequence->getFrameCount() == 2);
+            CHECK(frameSequence->getKeyFrame(1) == 0);
+            FrameSequenceState* state = frameSequence->createState(1);
+            Canvas canvas;
+            initCanvas(&canvas, CANVAS_SIZE, CANVAS_SIZE);
+
+            // in order, then from scratch
+            draw(state, 0, &canvas, -1);
+            CHECK(draw(state, 1, &canvas, 0) == 100);
+            CHECK_CANVAS(canvas, expectedBlendPixel);
+            const FrameRect& dirtyRect = state->getDirtyRect();
+            CHECK(dirtyRect.left == 1 && dirtyRect.top == 2
+                    && dirtyRect.right == 4 && dirtyRect.bottom == 3);
+            draw(state, 1, &canvas, -1);
+            CHECK_CANVAS(canvas, expectedBlendPixel);
+
+            freeCanvas(&canvas);
+            delete state;
+            delete frameSequence;
+        }
+        freeImage(&blended);
+        freeImage(&background);
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Dispose operations
+////////////////////////////////////////////////////////////////////////////////
+
+static int gDisposeOp;
+
+// An opaque blue background, then a red 2x2 frame at the origin, disposed with gDisposeOp, then
+// a green pixel at 3,3
+static void writeDisposeFixture(Png* png) {
+    Image background;
+    initColorImage(&background, CANVAS_SIZE, CANVAS_SIZE, BLUE);
+    Image red;
+    initColorImage(&red, 2, 2, RED);
+    Image green;
+    initColorImage(&green, 1, 1, GREEN);
+    png->animationControl(3, 0);
+    png->frame(background, 0, 0, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, true);
+    png->frame(red, 0, 0, gDisposeOp, APNG_BLEND_OP_OVER, false);
+    png->frame(green, 3, 3, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_OVER, false);
+    png->end();
+    freeImage(&green);
+    freeImage(&red);
+    freeImage(&background);
+}
+
+static Color8888 expectedDisposeFrame0(int x, int y) {
+    return BLUE;
+}
+
+static Color8888 expectedDisposeFrame1(int x, int y) {
+    return x < 2 && y < 2 ? RED : BLUE;
+}
+
+static Color8888 expectedDisposeFrame2(int x, int y) {
+    if (x == 3 && y == 3) return GREEN;
+    if (x < 2 && y < 2) {
+        switch (gDisposeOp) {
+        case APNG_DISPOSE_OP_NONE: return RED;
+        case APNG_DISPOSE_OP_BACKGROUND: return TRANSPARENT;
+        }
+    }
+    return BLUE;
+}
+
+static void testDisposeOps() {
+    for (gDisposeOp = APNG_DISPOSE_OP_NONE; gDisposeOp <= APNG_DISPOSE_OP_PREVIOUS;
+            gDisposeOp++) {
+        setCase("dispose op %d", gDisposeOp);
+        Png png(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+        writeDisposeFixture(&png);
+        FrameSequenceInfo info;
+        CHECK(probe(png.data(), png.size(), &info));
+        CHECK(info.opaque == false);
+
+        FrameSequence* frameSequence = decode(png);
+        if (!CHECK(frameSequence != NULL)) continue;
+        CHECK(frameSequence->getFrameCount() == 3);
+        FrameSequenceState* state = frameSequence->createState(1);
+        Canvas canvas;
+        initCanvas(&canvas, CANVAS_SIZE, CANVAS_SIZE);
+
+        // in order, only the disposed and drawn rectangles change
+        draw(state, 0, &canvas, -1);
+        CHECK_CANVAS(canvas, expectedDisposeFrame0);
+        draw(state, 1, &canvas, 0);
+        CHECK_CANVAS(canvas, expectedDisposeFrame1);
+        draw(state, 2, &canvas, 1);
+        CHECK_CANVAS(canvas, expectedDisposeFrame2);
+        const FrameRect& dirtyRect = state->getDirtyRect();
+        if (gDisposeOp == APNG_DISPOSE_OP_NONE) {
+            CHECK(dirtyRect.left == 3 && dirtyRect.top == 3
+                    && dirtyRect.right == 4 && dirtyRect.bottom == 4);
+        } else {
+            CHECK(dirtyRect.left == 0 && dirtyRect.top == 0
+                    && dirtyRect.right == 4 && dirtyRect.bottom == 4);
+        }
+
+        // back to the start, from scratch, and skipping the disposed frame
+        draw(state, 0, &canvas, 2);
+        CHECK_CANVAS(canvas, expectedDisposeFrame0);
+        draw(state, 2, &canvas, -1);
+        CHECK_CANVAS(canvas, expectedDisposeFrame2);
+        draw(state, 0, &canvas, -1);
+        draw(state, 2, &canvas, 0);
+        CHECK_CANVAS(canvas, expectedDisposeFrame2);
+
+        // from scratch, then continuing from the disposed frame
+        draw(state, 1, &canvas, -1);
+        CHECK_CANVAS(canvas, expectedDisposeFrame1);
+        draw(state, 2, &canvas, 1);
+        CHECK_CANVAS(canvas, expectedDisposeFrame2);
+
+        freeCanvas(&canvas);
+        delete state;
+        delete frameSequence;
+    }
+
+    // There's no canvas before the first frame, so disposing it to the previous canvas clears it
+    setCase("first frame disposed to previous");
+    Image red;
+    initColorImage(&red, CANVAS_SIZE, CANVAS_SIZE, RED);
+    Image green;
+    initColorImage(&green, 1, 1, GREEN);
+    Png png(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+    png.animationControl(2, 0);
+    png.frame(red, 0, 0, APNG_DISPOSE_OP_PREVIOUS, APNG_BLEND_OP_SOURCE, true);
+    png.frame(green, 0, 0, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_OVER, false);
+    png.end();
+    freeImage(&green);
+    freeImage(&red);
+
+    FrameSequence* frameSequence = decode(png);
+    if (CHECK(frameSequence != NULL)) {
+        CHECK(frameSequence->getKeyFrame(1) == 1);
+        FrameSequenceState* state = frameSequence->createState(1);
+        Canvas canvas;
+        initCanvas(&canvas, CANVAS_SIZE, CANVAS_SIZE);
+        draw(state, 0, &canvas, -1);
+        draw(state, 1, &canvas, 0);
+        CHECK(guardIntact(canvas));
+        for (int y = 0; y < CANVAS_SIZE; y++) {
+            for (int x = 0; x < CANVAS_SIZE; x++) {
+                checkColor(x == 0 && y == 0 ? GREEN : TRANSPARENT, pixelAt(canvas, x, y),
+                        x, y, __LINE__);
+            }
+        }
+        freeCanvas(&canvas);
+        delete state;
+        delete frameSequence;
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Corrupt data
+////////////////////////////////////////////////////////////////////////////////
+
+// A blue background, then a frame covering rows 1 and 2 with the given image data. The frame
+// claims to be 4x2, whatever the data holds.
+static void writeCorruptFixture(Png* png, const uint8_t* frameData, size_t frameDataSize) {
+    Image background;
+    initColorImage(&background, CANVAS_SIZE, CANVAS_SIZE, BLUE);
+    png->animationControl(2, 0);
+    png->frame(background, 0, 0, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, true);
+    png->frameControl(0, 1, CANVAS_SIZE, 2, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE);
+    png->frameData(frameData, frameDataSize);
+    png->end();
+    freeImage(&background);
+}
+
+static Color8888 expectedOnlyRow1Drawn(int x, int y) {
+    return y == 1 ? RED : BLUE;
+}
+
+// Draws the second frame of the fixture from scratch, with a canvas of the first frame
+// underneath, returning whether the frame was drawn within the canvas
+static bool drawCorruptFixture(const uint8_t* frameData, size_t frameDataSize,
+        Canvas* canvas) {
+    Png png(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+    writeCorruptFixture(&png, frameData, frameDataSize);
+    FrameSequence* frameSequence = decode(png);
+    if (!frameSequence) return false;
+    FrameSequenceState* state = frameSequence->createState(1);
+    draw(state, 1, canvas, -1);
+    delete state;
+    delete frameSequence;
+    return guardIntact(*canvas);
+}
+
+static void testCorruptImageData() {
+    Image red;
+    initColorImage(&red, CANVAS_SIZE, 2, RED);
+    size_t size;
+    uint8_t* compressed = compressImage(red, NO_BAD_ROW, &size);
+    Canvas canvas;
+    initCanvas(&canvas, CANVAS_SIZE, CANVAS_SIZE);
+
+    // a damaged zlib header fails the frame before any row is drawn
+    setCase("damaged zlib header");
+    uint8_t* damaged = (uint8_t*) malloc(size);
+    memcpy(damaged, compressed, size);
+    damaged[0] = 0xff;
+    CHECK(drawCorruptFixture(damaged, size, &canvas));
+    CHECK_CANVAS(canvas, expectedDisposeFrame0);
+
+    // the rows before an invalid filter type are drawn
+    setCase("invalid filter type");
+    size_t badFilterSize;
+    uint8_t* badFilter = compressImage(red, 1, &badFilterSize);
+    CHECK(drawCorruptFixture(badFilter, badFilterSize, &canvas));
+    CHECK_CANVAS(canvas, expectedOnlyRow1Drawn);
+    free(badFilter);
+
+    // the rows the data holds are drawn
+    setCase("missing rows");
+    Image shortRed;
+    initColorImage(&shortRed, CANVAS_SIZE, 1, RED);
+    size_t shortSize;
+    uint8_t* shortData = compressImage(shortRed, NO_BAD_ROW, &shortSize);
+    CHECK(drawCorruptFixture(shortData, shortSize, &canvas));
+    CHECK_CANVAS(canvas, expectedOnlyRow1Drawn);
+    free(shortData);
+    freeImage(&shortRed);
+
+    // truncated and damaged data is drawn as far as it goes, within the canvas
+    for (size_t truncatedSize = 1; truncatedSize < size; truncatedSize++) {
+        setCase("image data truncated to %zu of %zu bytes", truncatedSize, size);
+        CHECK(drawCorruptFixture(compressed, truncatedSize, &canvas));
+    }
+    for (size_t i = 0; i < size; i++) {
+        setCase("image data byte %zu of %zu damaged", i, size);
+        memcpy(damaged, compressed, size);
+        damaged[i] ^= 0x5a;
+        CHECK(drawCorruptFixture(damaged, size, &canvas));
+    }
+
+    // a still png's damaged IDAT chunk leaves the canvas cleared
+    setCase("damaged IDAT");
+    memcpy(damaged, compressed, size);
+    damaged[0] = 0xff;
+    Png still(CANVAS_SIZE, 2, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+    still.imageData(damaged, size);
+    still.end();
+    FrameSequence* frameSequence = decode(still);
+    if (CHECK(frameSequence != NULL)) {
+        FrameSequenceState* state = frameSequence->createState(1);
+        Canvas stillCanvas;
+        initCanvas(&stillCanvas, CANVAS_SIZE, 2);
+        draw(state, 0, &stillCanvas, -1);
+        CHECK(guardIntact(stillCanvas));
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < CANVAS_SIZE; x++) {
+                checkColor(TRANSPARENT, pixelAt(stillCanvas, x, y), x, y, __LINE__);
+            }
+        }
+        freeCanvas(&stillCanvas);
+        delete state;
+        delete frameSequence;
+    }
+
+    free(damaged);
+    freeCanvas(&canvas);
+    free(compressed);
+    freeImage(&red);
+}
+
+static void testCorruptStructure() {
+    // every truncation of an animation before the CRC of its IEND chunk, which isn't read, is
+    // rejected, whether the decoder copies the data or keeps reading from it
+    Png png(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+    gDisposeOp = APNG_DISPOSE_OP_PREVIOUS;
+    writeDisposeFixture(&png);
+    for (size_t size = 0; size < png.size() - 4; size++) {
+        setCase("file truncated to %zu of %zu bytes", size, png.size());
+        FrameSequenceInfo info;
+        CHECK(!probe(png.data(), size, &info));
+        // a copy, so that reading past the truncation is caught by tools checking memory
+        uint8_t* truncated = (uint8_t*) malloc(size ? size : 1);
+        memcpy(truncated, png.data(), size);
+        for (int rawBuffer = 0; rawBuffer <= 1; rawBuffer++) {
+            FrameSequence* frameSequence = decode(truncated, size, rawBuffer);
+            CHECK(frameSequence == NULL);
+            delete frameSequence;
+        }
+        free(truncated);
+    }
+
+    Image red;
+    initColorImage(&red, CANVAS_SIZE, CANVAS_SIZE, RED);
+    size_t size;
+    uint8_t* compressed = compressImage(red, NO_BAD_ROW, &size);
+
+    // an fdAT chunk without data
+    setCase("empty fdAT");
+    Png emptyFrameData(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+    emptyFrameData.animationControl(1, 0);
+    emptyFrameData.frameControl(0, 0, CANVAS_SIZE, CANVAS_SIZE,
+            APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE);
+    emptyFrameData.frameData(NULL, 0);
+    emptyFrameData.end();
+    CHECK(decode(emptyFrameData) == NULL);
+
+    // an fdAT chunk before any fcTL chunk
+    setCase("fdAT without fcTL");
+    Png noFrameControl(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+    noFrameControl.animationControl(1, 0);
+    noFrameControl.imageData(compressed, size);
+    noFrameControl.frameData(compressed, size);
+    noFrameControl.end();
+    CHECK(decode(noFrameControl) == NULL);
+
+    // a palette image without a palette
+    setCase("no PLTE");
+    Image indexed;
+    initImage(&indexed, CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_PALETTE);
+    size_t indexedSize;
+    uint8_t* indexedCompressed = compressImage(indexed, NO_BAD_ROW, &indexedSize);
+    Png noPalette(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_PALETTE);
+    noPalette.imageData(indexedCompressed, indexedSize);
+    noPalette.end();
+    CHECK(decode(noPalette) == NULL);
+    free(indexedCompressed);
+    freeImage(&indexed);
+
+    free(compressed);
+    freeImage(&red);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame bounds
+////////////////////////////////////////////////////////////////////////////////
+
+static const struct {
+    uint32_t left;
+    uint32_t top;
+    uint32_t width;
+    uint32_t height;
+    int disposeOp;
+    int blendOp;
+    bool valid;
+} FRAME_CONTROLS[] = {
+    { 2, 2, 2, 2, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, true },
+    { 0, 0, 4, 4, APNG_DISPOSE_OP_PREVIOUS, APNG_BLEND_OP_OVER, true },
+    { 0, 0, 5, 4, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 0, 0, 4, 5, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 1, 0, 4, 4, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 0, 1, 4, 4, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 3, 3, 2, 2, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 4, 0, 1, 1, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 0xffffffff, 0, 1, 1, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 0, 0xffffffff, 1, 1, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 1, 0, 0x7fffffff, 1, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 0, 0, 0x80000000, 1, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 0, 0, 0, 1, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 0, 0, 1, 0, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, false },
+    { 0, 0, 1, 1, APNG_DISPOSE_OP_PREVIOUS + 1, APNG_BLEND_OP_SOURCE, false },
+    { 0, 0, 1, 1, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_OVER + 1, false },
+};
+
+static void testFrameBounds() {
+    Image pixel;
+    initColorImage(&pixel, 1, 1, GREEN);
+    size_t size;
+    uint8_t* compressed = compressImage(pixel, NO_BAD_ROW, &size);
+    Image background;
+    initColorImage(&background, CANVAS_SIZE, CANVAS_SIZE, BLUE);
+
+    for (size_t i = 0; i < sizeof(FRAME_CONTROLS) / sizeof(FRAME_CONTROLS[0]); i++) {
+        setCase("fcTL %ux%u at %u,%u, dispose %d, blend %d",
+                FRAME_CONTROLS[i].width, FRAME_CONTROLS[i].height,
+                FRAME_CONTROLS[i].left, FRAME_CONTROLS[i].top,
+                FRAME_CONTROLS[i].disposeOp, FRAME_CONTROLS[i].blendOp);
+        Png png(CANVAS_SIZE, CANVAS_SIZE, 8, PNG_COLOR_TYPE_RGB_ALPHA);
+        png.animationControl(2, 0);
+        png.frame(background, 0, 0, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE, true);
+        png.frameControl(FRAME_CONTROLS[i].left, FRAME_CONTROLS[i].top,
+                FRAME_CONTROLS[i].width, FRAME_CONTROLS[i].height,
+                FRAME_CONTROLS[i].disposeOp, FRAME_CONTROLS[i].blendOp);
+        png.frameData(compressed, size);
+        png.end();
+
+        FrameSequenceInfo info;
+        CHECK(probe(png.data(), png.size(), &info) == FRAME_CONTROLS[i].valid);
+        FrameSequence* frameSequence = decode(png);
+        CHECK((frameSequence != NULL) == FRAME_CONTROLS[i].valid);
+        if (frameSequence) {
+            // the frame's data holds fewer rows than some frames claim
+            FrameSequenceState* state = frameSequence->createState(1);
+            Canvas canvas;
+            initCanvas(&canvas, CANVAS_SIZE, CANVAS_SIZE);
+            draw(state, 1, &canvas, -1);
+            CHECK(guardIntact(canvas));
+            freeCanvas(&canvas);
+            delete state;
+            delete frameSequence;
+        }
+    }
+
+    freeImage(&background);
+    free(compressed);
+    freeImage(&pixel);
+}
+
+int main(int argc, char** argv) {
+    testFormats();
+    testBlendOps();
+    testDisposeOps();
+    testCorruptImageData();
+    testCorruptStructure();
+    testFrameBounds();
+
+    printf("%d checks, %d failed\n", gCheckCount, gFailureCount);
+    return gFailureCount ? 1 : 0;
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host benchmark of the frame sequence decoders. Every file is decoded from each of the sources
+// behind the Java entry points, and its frames are then drawn in order:
+//
+//   byte-array   FrameSequence.decodeByteArray - a MemoryStream the decoder copies out of
+//   byte-buffer  FrameSequence.decodeByteBuffer and decodeFile - a MemoryStream the decoder may
+//                keep reading from
+//   stream       FrameSequence.decodeStream - a Stream read incrementally
+//
+// Frames are drawn into a plain pixel buffer, as State.getFrame does into a locked Bitmap.
+// Reported for every file and source:
+//
+//   ttff         time to first frame: creating the sequence and a state, and drawing frame 0
+//   fps          frames drawn per second, each continuing from the previous one
+//   peak         highest native heap usage during the run, above what was in use before it
+//   allocs       native heap allocations per frame drawn
+
+#include <errno.h>
+#include <malloc.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "FrameSequence.h"
+
+////////////////////////////////////////////////////////////////////////////////
+// Heap accounting
+////////////////////////////////////////////////////////////////////////////////
+
+// The allocation functions are replaced with ones that count every allocation in the process,
+// including those of giflib, libwebp and operator new, before handing it to glibc.
+extern "C" {
+void* __libc_malloc(size_t size);
+void* __libc_calloc(size_t count, size_t size);
+void* __libc_realloc(void* ptr, size_t size);
+void* __libc_memalign(size_t alignment, size_t size);
+void __libc_free(void* ptr);
+}
+
+static long long gLiveBytes;
+static long long gPeakBytes;
+static long long gAllocationCount;
+
+static void onAllocated(void* ptr) {
+    if (!ptr) return;
+    gAllocationCount++;
+    gLiveBytes += malloc_usable_size(ptr);
+    if (gLiveBytes > gPeakBytes) {
+        gPeakBytes = gLiveBytes;
+    }
+}
+
+extern "C" void* malloc(size_t size) {
+    void* ptr = __libc_malloc(size);
+    onAllocated(ptr);
+    return ptr;
+}
+
+extern "C" void* calloc(size_t count, size_t size) {
+    void* ptr = __libc_calloc(count, size);
+    onAllocated(ptr);
+    return ptr;
+}
+
+extern "C" void* realloc(void* ptr, size_t size) {
+    const size_t oldSize = ptr ? malloc_usable_size(ptr) : 0;
+    void* result = __libc_realloc(ptr, size);
+    if (result || size == 0) {
+        // the old allocation is gone, otherwise it's left as it was
+        gLiveBytes -= oldSize;
+        onAllocated(result);
+    }
+    return result;
+}
+
+extern "C" void* memalign(size_t alignment, size_t size) {
+    void* ptr = __libc_memalign(alignment, size);
+    onAllocated(ptr);
+    return ptr;
+}
+
+extern "C" int posix_memalign(void** ptr, size_t alignment, size_t size) {
+    *ptr = memalign(alignment, size);
+    return *ptr || !size ? 0 : ENOMEM;
+}
+
+extern "C" void free(void* ptr) {
+    if (ptr) {
+        gLiveBytes -= malloc_usable_size(ptr);
+    }
+    __libc_free(ptr);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Benchmark
+////////////////////////////////////////////////////////////////////////////////
+
+enum Source {
+    SOURCE_BYTE_ARRAY,
+    SOURCE_BYTE_BUFFER,
+    SOURCE_STREAM,
+    SOURCE_COUNT
+};
+
+static const char* SOURCE_NAMES[SOURCE_COUNT] = { "byte-array", "byte-buffer", "stream" };
+
+// Stands in for the global reference JNI passes along with a direct ByteBuffer's address. The
+// decoders only compare it with NULL, to decide whether they may keep reading from the buffer.
+static int gRawBufferToken;
+
+struct Options {
+    int sampleSize;
+    bool rgb565;
+    double minDurationMs;
+};
+
+struct Result {
+    int frameCount;
+    double timeToFirstFrameMs;
+    double framesPerSecond;
+    long long peakBytes;
+    double allocationsPerFrame;
+};
+
+static double nowMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static uint8_t* readFile(const char* path, size_t* outSize) {
+    FILE* file = fopen(path, "rb");
+    if (!file) return NULL;
+    fseek(file, 0, SEEK_END);
+    const long size = ftell(file);
+    fseek(file, 0, SEEK_SET);
+    uint8_t* data = size > 0 ? (uint8_t*) malloc(size) : NULL;
+    if (data && fread(data, 1, size, file) != (size_t) size) {
+        free(data);
+        data = NULL;
+    }
+    fclose(file);
+    *outSize = size;
+    return data;
+}
+
+static FrameSequence* createFrameSequence(Source source, const char* path,
+        uint8_t* data, size_t size) {
+    switch (source) {
+    case SOURCE_BYTE_ARRAY: {
+        MemoryStream stream(data, size, NULL);
+        return FrameSequence::create(&stream);
+    }
+    case SOURCE_BYTE_BUFFER: {
+        MemoryStream stream(data, size, reinterpret_cast<jobject>(&gRawBufferToken));
+        return FrameSequence::create(&stream);
+    }
+    case SOURCE_STREAM: {
+        FILE* file = fopen(path, "rb");
+        if (!file) return NULL;
+        FileStream stream(file);
+        FrameSequence* frameSequence = FrameSequence::create(&stream);
+        fclose(file);
+        return frameSequence;
+    }
+    default:
+        return NULL;
+    }
+}
+
+template <typename Pixel>
+static bool run(Source source, const char* path, uint8_t* data, size_t size,
+        const Options& options, Result* result) {
+    FrameSequenceInfo info;
+    MemoryStream probeStream(data, size, NULL);
+    if (!FrameSequence::probe(&probeStream, &info)) return false;
+
+    // The output buffer stands in for a Bitmap, which isn't allocated on the native heap
+    const int width = sampledCoordinate(info.width, options.sampleSize);
+    const int height = sampledCoordinate(info.height, options.sampleSize);
+    Pixel* output = new Pixel[width * height];
+    const long long baselineBytes = gLiveBytes;
+    gPeakBytes = gLiveBytes;
+
+    double start = nowMs();
+    FrameSequence* frameSequence = createFrameSequence(source, path, data, size);
+    if (!frameSequence) {
+        delete[] output;
+        return false;
+    }
+    FrameSequenceState* state = frameSequence->createState(options.sampleSize);
+    state->drawFrame(0, output, width, -1);
+    result->timeToFirstFrameMs = nowMs() - start;
+
+    // Loop over the frames for at least the minimum duration, and at least once. Like
+    // FrameSequenceDrawable, continue from the previous frame unless starting over.
+    const int frameCount = frameSequence->getFrameCount();
+    const long long allocationsBefore = gAllocationCount;
+    int frameNr = 0;
+    int drawnCount = 0;
+    double elapsedMs;
+    start = nowMs();
+    do {
+        const int previousFrameNr = frameNr;
+        frameNr = (frameNr + 1) % frameCount;
+        state->drawFrame(frameNr, output, width, previousFrameNr < frameNr ? previousFrameNr : -1);
+        drawnCount++;
+        elapsedMs = nowMs() - start;
+    } while (drawnCount < frameCount || elapsedMs < options.minDurationMs);
+
+    result->frameCount = frameCount;
+    result->framesPerSecond = drawnCount * 1000.0 / elapsedMs;
+    result->allocationsPerFrame = (double) (gAllocationCount - allocationsBefore) / drawnCount;
+    result->peakBytes = gPeakBytes - baselineBytes;
+
+    delete state;
+    delete frameSequence;
+    delete[] output;
+    return true;
+}
+
+static void usage(const char* name) {
+    fprintf(stderr,
+            "usage: %s [-s sampleSize] [-565] [-t minMillis] file...\n"
+            "  -s n    decode with the given sample size (default 1)\n"
+            "  -565    draw RGB_565 instead of ARGB_8888 frames, for opaque files only\n"
+            "  -t ms   draw frames of each file and source for at least this long (default 1000)\n",
+            name);
+}
+
+int main(int argc, char** argv) {
+    Options options;
+    options.sampleSize = 1;
+    options.rgb565 = false;
+    options.minDurationMs = 1000;
+
+    int i = 1;
+    for (; i < argc && argv[i][0] == '-'; i++) {
+        if (!strcmp(argv[i], "-s") && i + 1 < argc) {
+            options.sampleSize = atoi(argv[++i]);
+        } else if (!strcmp(argv[i], "-565")) {
+            options.rgb565 = true;
+        } else if (!strcmp(argv[i], "-t") && i + 1 < argc) {
+            options.minDurationMs = atof(argv[++i]);
+        } else {
+            usage(argv[0]);
+            return 1;
+        }
+    }
+    if (i == argc || options.sampleSize < 1) {
+        usage(argv[0]);
+        return 1;
+    }
+
+    printf("%-40s %-11s %6s %9s %9s %10s %9s\n",
+            "file", "source", "frames", "ttff(ms)", "fps", "peak(KiB)", "allocs");
+    int failures = 0;
+    for (; i < argc; i++) {
+        const char* path = argv[i];
+        const char* name = strrchr(path, '/') ? strrchr(path, '/') + 1 : path;
+        size_t size;
+        uint8_t* data = readFile(path, &size);
+        if (!data) {
+            fprintf(stderr, "couldn't read %s\n", path);
+            failures++;
+            continue;
+        }
+        for (int source = 0; source < SOURCE_COUNT; source++) {
+            Result result;
+            bool success = options.rgb565
+                    ? run<Color565>((Source) source, path, data, size, options, &result)
+                    : run<Color8888>((Source) source, path, data, size, options, &result);
+            if (!success) {
+                printf("%-40s %-11s failed to decode\n", name, SOURCE_NAMES[source]);
+                failures++;
+                continue;
+            }
+            printf("%-40s %-11s %6d %9.2f %9.1f %10lld %9.2f\n",
+                    name, SOURCE_NAMES[source], result.frameCount,
+                    result.timeToFirstFrameMs, result.framesPerSecond,
+                    result.peakBytes / 1024, result.allocationsPerFrame);
+        }
+        free(data);
+    }
+    return failures ? 1 : 0;
+}
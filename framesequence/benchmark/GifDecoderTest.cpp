@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host test of the gif decoder's disposal, and of the dirty rectangles it reports. Every fixture
+// is built here from solid color frames, so that each output pixel can be checked:
+//
+//   dispose      a frame disposed to the previous canvas restores one from before a frame
+//                disposed to the background, drawn in order, from scratch and sampled
+//
+// Whenever a frame is drawn continuing from the one before, every pixel that changed has to lie
+// within the reported dirty rectangle, which views rely on to only redraw that part.
+
+#include <stdarg.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "FrameSequence.h"
+#include "FrameSequence_gif.h"
+
+////////////////////////////////////////////////////////////////////////////////
+// Checks
+////////////////////////////////////////////////////////////////////////////////
+
+static int gCheckCount;
+static int gFailureCount;
+static char gCase[256];
+
+// Describes the fixture being checked, for the failure messages
+static void setCase(const char* format, ...) {
+    va_list ap;
+    va_start(ap, format);
+    vsnprintf(gCase, sizeof(gCase), format, ap);
+    va_end(ap);
+}
+
+static bool check(bool condition, const char* expression, int line) {
+    gCheckCount++;
+    if (!condition) {
+        gFailureCount++;
+        fprintf(stderr, "FAILED line %d [%s]: %s\n", line, gCase, expression);
+    }
+    return condition;
+}
+
+static bool checkColor(Color8888 expected, Color8888 actual, int x, int y, int line) {
+    gCheckCount++;
+    if (expected != actual) {
+        gFailureCount++;
+        fprintf(stderr, "FAILED line %d [%s]: pixel %d,%d is %08x, expected %08x\n",
+                line, gCase, x, y, actual, expected);
+    }
+    return expected == actual;
+}
+
+#define CHECK(condition) check((condition), #condition, __LINE__)
+
+////////////////////////////////////////////////////////////////////////////////
+// Fixtures
+////////////////////////////////////////////////////////////////////////////////
+
+// Global color table, the first entry being the background color
+static const uint8_t PALETTE[] = {
+    0x00, 0x00, 0x00,
+    0xe0, 0x10, 0x10,
+    0x10, 0xd0, 0x30,
+    0x20, 0x40, 0xc0,
+};
+#define PALETTE_BITS 2
+
+#define BLACK_INDEX 0
+#define RED_INDEX 1
+#define GREEN_INDEX 2
+#define BLUE_INDEX 3
+
+static Color8888 paletteColor(int index) {
+    return ARGB_TO_COLOR8888(0xff, PALETTE[3 * index], PALETTE[3 * index + 1],
+            PALETTE[3 * index + 2]);
+}
+
+// A gif built record by record. Frames are shown for 100ms.
+class Gif {
+public:
+    Gif(int width, int height) : mData(NULL), mSize(0), mCapacity(0) {
+        append("GIF89a", 6);
+        uint8_t screenDesc[7];
+        putLE16(screenDesc, width);
+        putLE16(screenDesc + 2, height);
+        screenDesc[4] = 0x80 | (PALETTE_BITS - 1);
+        screenDesc[5] = BLACK_INDEX;
+        screenDesc[6] = 0;
+        append(screenDesc, sizeof(screenDesc));
+        append(PALETTE, sizeof(PALETTE));
+    }
+
+    ~Gif() {
+        free(mData);
+    }
+
+    const uint8_t* data() const { return mData; }
+    size_t size() const { return mSize; }
+
+    // Adds a graphics control extension and an image record filled with a single color
+    void frame(int left, int top, int width, int height, int colorIndex, int disposalMode) {
+        uint8_t control[8] = { 0x21, 0xf9, 4, (uint8_t) (disposalMode << 2), 10, 0, 0, 0 };
+        append(control, sizeof(control));
+
+        uint8_t imageDesc[10];
+        imageDesc[0] = 0x2c;
+        putLE16(imageDesc + 1, left);
+        putLE16(imageDesc + 3, top);
+        putLE16(imageDesc + 5, width);
+        putLE16(imageDesc + 7, height);
+        imageDesc[9] = 0;
+        append(imageDesc, sizeof(imageDesc));
+        imageData(width * height, colorIndex);
+    }
+
+    void end() {
+        append("\x3b", 1);
+    }
+
+private:
+    static void putLE16(uint8_t* out, int value) {
+        out[0] = value;
+        out[1] = value >> 8;
+    }
+
+    // LZW data that clears the code table before every pixel, so that all codes stay as wide
+    // as the minimum code size plus one bit, and no compression is needed
+    void imageData(int pixelCount, int colorIndex) {
+        const int codeBits = PALETTE_BITS + 1;
+        const int clearCode = 1 << PALETTE_BITS;
+        const int endCode = clearCode + 1;
+        const size_t codedSize = ((2 * pixelCount + 1) * codeBits + 7) / 8;
+        uint8_t* coded = (uint8_t*) calloc(codedSize, 1);
+        size_t bit = 0;
+        for (int i = 0; i <= 2 * pixelCount; i++) {
+            const int code = i == 2 * pixelCount ? endCode : (i % 2 ? colorIndex : clearCode);
+            for (int b = 0; b < codeBits; b++, bit++) {
+                if (code & (1 << b)) {
+                    coded[bit / 8] |= 1 << (bit % 8);
+                }
+            }
+        }
+
+        const uint8_t minCodeSize = PALETTE_BITS;
+        append(&minCodeSize, 1);
+        for (size_t offset = 0; offset < codedSize; offset += 255) {
+            const uint8_t blockSize = codedSize - offset < 255 ? codedSize - offset : 255;
+            append(&blockSize, 1);
+            append(coded + offset, blockSize);
+        }
+        append("\0", 1);
+        free(coded);
+    }
+
+    void append(const void* data, size_t size) {
+        if (mSize + size > mCapacity) {
+            mCapacity = 2 * (mSize + size);
+            mData = (uint8_t*) realloc(mData, mCapacity);
+        }
+        memcpy(mData + mSize, data, size);
+        mSize += size;
+    }
+
+    uint8_t* mData;
+    size_t mSize;
+    size_t mCapacity;
+};
+
+static FrameSequence* decode(const Gif& gif) {
+    MemoryStream stream((void*) gif.data(), gif.size(), NULL);
+    return FrameSequence::create(&stream);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Canvas
+////////////////////////////////////////////////////////////////////////////////
+
+static const Color8888 GUARD = 0xdeadbeef;
+
+// Output buffer for a sampled canvas, with a guard column past its right edge
+struct Canvas {
+    int width;
+    int height;
+    int stride;
+    Color8888* pixels;
+};
+
+static void initCanvas(Canvas* canvas, int width, int height) {
+    canvas->width = width;
+    canvas->height = height;
+    canvas->stride = width + 1;
+    canvas->pixels = new Color8888[canvas->stride * height];
+    for (int i = 0; i < canvas->stride * height; i++) {
+        canvas->pixels[i] = GUARD;
+    }
+}
+
+static void freeCanvas(Canvas* canvas) {
+    delete[] canvas->pixels;
+}
+
+static void copyCanvas(const Canvas& src, Canvas* dst) {
+    memcpy(dst->pixels, src.pixels, src.stride * src.height * sizeof(Color8888));
+}
+
+static Color8888 pixelAt(const Canvas& canvas, int x, int y) {
+    return canvas.pixels[y * canvas.stride + x];
+}
+
+static bool guardIntact(const Canvas& canvas) {
+    for (int y = 0; y < canvas.height; y++) {
+        if (pixelAt(canvas, canvas.width, y) != GUARD) return false;
+    }
+    return true;
+}
+
+static long draw(FrameSequenceState* state, int frameNr, Canvas* canvas, int previousFrameNr) {
+    return state->drawFrame(frameNr, canvas->pixels, canvas->stride, previousFrameNr);
+}
+
+static bool contains(const FrameRect& rect, int x, int y) {
+    return x >= rect.left && x < rect.right && y >= rect.top && y < rect.bottom;
+}
+
+// Checks that the pixels differing between the canvases lie within the dirty rectangle,
+// stopping at the first one that doesn't
+static void checkChangesWithinDirtyRect(const Canvas& before, const Canvas& after,
+        const FrameRect& dirtyRect, int line) {
+    for (int y = 0; y < after.height; y++) {
+        for (int x = 0; x < after.width; x++) {
+            if (pixelAt(before, x, y) == pixelAt(after, x, y)) continue;
+            gCheckCount++;
+            if (!contains(dirtyRect, x, y)) {
+                gFailureCount++;
+                fprintf(stderr, "FAILED line %d [%s]: pixel %d,%d changed outside of the dirty"
+                        " rect %d,%d - %d,%d\n", line, gCase, x, y,
+                        dirtyRect.left, dirtyRect.top, dirtyRect.right, dirtyRect.bottom);
+                return;
+            }
+        }
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Dispose operations
+////////////////////////////////////////////////////////////////////////////////
+
+#define DISPOSE_CANVAS_SIZE 6
+#define DISPOSE_FRAME_COUNT 4
+
+// A red background kept as is, then a green 2x2 frame at the origin disposed to the background,
+// then a blue 2x2 frame at 3,3 disposed to the previous canvas, which restores the background
+// and so also undoes the green frame's clearing, then a green pixel at 5,0
+static void writeDisposeFixture(Gif* gif) {
+    gif->frame(0, 0, DISPOSE_CANVAS_SIZE, DISPOSE_CANVAS_SIZE, RED_INDEX, DISPOSE_DO_NOT);
+    gif->frame(0, 0, 2, 2, GREEN_INDEX, DISPOSE_BACKGROUND);
+    gif->frame(3, 3, 2, 2, BLUE_INDEX, DISPOSE_PREVIOUS);
+    gif->frame(5, 0, 1, 1, GREEN_INDEX, DISPOSE_DO_NOT);
+    gif->end();
+}
+
+static Color8888 expectedDisposePixel(int frameNr, int x, int y) {
+    switch (frameNr) {
+    case 1:
+        if (x < 2 && y < 2) return paletteColor(GREEN_INDEX);
+        break;
+    case 2:
+        if (x < 2 && y < 2) return TRANSPARENT;
+        if (x >= 3 && x < 5 && y >= 3 && y < 5) return paletteColor(BLUE_INDEX);
+        break;
+    case 3:
+        if (x == 5 && y == 0) return paletteColor(GREEN_INDEX);
+        break;
+    }
+    return paletteColor(RED_INDEX);
+}
+
+// Checks every pixel of the sampled canvas, stopping at the first one that differs
+static void checkDisposeFrame(const Canvas& canvas, int frameNr, int sampleSize, int line) {
+    CHECK(guardIntact(canvas));
+    for (int y = 0; y < canvas.height; y++) {
+        for (int x = 0; x < canvas.width; x++) {
+            if (!checkColor(expectedDisposePixel(frameNr, x * sampleSize, y * sampleSize),
+                    pixelAt(canvas, x, y), x, y, line)) {
+                return;
+            }
+        }
+    }
+}
+
+static void testDisposeToPrevious() {
+    Gif gif(DISPOSE_CANVAS_SIZE, DISPOSE_CANVAS_SIZE);
+    writeDisposeFixture(&gif);
+    FrameSequence* frameSequence = decode(gif);
+    setCase("dispose to previous");
+    if (!CHECK(frameSequence != NULL)) return;
+    CHECK(frameSequence->getFrameCount() == DISPOSE_FRAME_COUNT);
+
+    for (int sampleSize = 1; sampleSize <= 2; sampleSize++) {
+        setCase("dispose to previous, sample size %d", sampleSize);
+        const int size = (DISPOSE_CANVAS_SIZE + sampleSize - 1) / sampleSize;
+        FrameSequenceState* state = frameSequence->createState(sampleSize);
+        Canvas canvas;
+        initCanvas(&canvas, size, size);
+        Canvas previous;
+        initCanvas(&previous, size, size);
+
+        // in order, every change within the dirty rect
+        draw(state, 0, &canvas, -1);
+        checkDisposeFrame(canvas, 0, sampleSize, __LINE__);
+        for (int frameNr = 1; frameNr < DISPOSE_FRAME_COUNT; frameNr++) {
+            copyCanvas(canvas, &previous);
+            draw(state, frameNr, &canvas, frameNr - 1);
+            checkDisposeFrame(canvas, frameNr, sampleSize, __LINE__);
+            checkChangesWithinDirtyRect(previous, canvas, state->getDirtyRect(), __LINE__);
+        }
+        if (sampleSize == 1) {
+            // the cleared, the restored and the new frame's rectangles
+            const FrameRect& dirtyRect = state->getDirtyRect();
+            CHECK(dirtyRect.left == 0 && dirtyRect.top == 0
+                    && dirtyRect.right == 6 && dirtyRect.bottom == 5);
+        }
+
+        // from scratch, and skipping frames
+        draw(state, 3, &canvas, -1);
+        checkDisposeFrame(canvas, 3, sampleSize, __LINE__);
+        draw(state, 1, &canvas, -1);
+        copyCanvas(canvas, &previous);
+        draw(state, 3, &canvas, 1);
+        checkDisposeFrame(canvas, 3, sampleSize, __LINE__);
+        checkChangesWithinDirtyRect(previous, canvas, state->getDirtyRect(), __LINE__);
+
+        freeCanvas(&previous);
+        freeCanvas(&canvas);
+        delete state;
+    }
+    delete frameSequence;
+}
+
+int main(int argc, char** argv) {
+    testDisposeToPrevious();
+
+    printf("%d checks, %d failed\n", gCheckCount, gFailureCount);
+    return gFailureCount ? 1 : 0;
+}
@@ -21,7 +21,7 @@ include $(CLEAR_VARS)
 
 LOCAL_STATIC_LIBRARIES = libgif
 
-LOCAL_LDFLAGS := -llog -ljnigraphics
+LOCAL_LDFLAGS := -llog -ljnigraphics -lz
 
 LOCAL_C_INCLUDES := \
 	external/giflib
@@ -31,6 +31,7 @@ LOCAL_SRC_FILES := \
 	BitmapDecoderJNI.cpp \
 	FrameSequence.cpp \
 	FrameSequenceJNI.cpp \
+	FrameSequence_apng.cpp \
 	FrameSequence_gif.cpp \
 	JNIHelpers.cpp \
 	Registry.cpp \
@@ -28,4 +28,20 @@ static const Color8888 TRANSPARENT = 0x0;
 #define ARGB_TO_COLOR8888(a, r, g, b) \
     ((a) << 24 | (b) << 16 | (g) << 8 | (r))
 
+// 16 bit color without alpha, used for opaque sequences
+typedef uint16_t Color565;
+
+// Stores a color into an output pixel, dropping alpha and the low color bits for Color565.
+// Writers are templated on the pixel type and call this for every pixel they produce.
+static inline void storeColor(Color8888* dst, Color8888 color) {
+    *dst = color;
+}
+
+static inline void storeColor(Color565* dst, Color8888 color) {
+    const Color8888 r = color & 0xff;
+    const Color8888 g = (color >> 8) & 0xff;
+    const Color8888 b = (color >> 16) & 0xff;
+    *dst = (Color565) ((r >> 3) << 11 | (g >> 2) << 5 | (b >> 3));
+}
+
 #endif // RASTERMILL_COLOR_H
@@ -24,6 +24,11 @@ FrameSequence* FrameSequence::create(Stream* stream) {
     if (!entry) return NULL;
 
     FrameSequence* frameSequence = entry->createFrameSequence(stream);
+    if (stream->hasFailed()) {
+        // the stream threw, leave the exception pending for the caller
+        delete frameSequence;
+        return NULL;
+    }
     if (!frameSequence->getFrameCount() ||
             !frameSequence->getWidth() || !frameSequence->getHeight()) {
         // invalid contents, abort
@@ -33,3 +38,14 @@ FrameSequence* FrameSequence::create(Stream* stream) {
 
     return frameSequence;
 }
+
+bool FrameSequence::probe(Stream* stream, FrameSequenceInfo* outInfo) {
+    const RegistryEntry* entry = Registry::Find(stream);
+
+    if (!entry || !entry->probe) return false;
+
+    if (!entry->probe(stream, outInfo) || stream->hasFailed()) return false;
+
+    // same validity rules as create()
+    return outInfo->frameCount && outInfo->width && outInfo->height;
+}
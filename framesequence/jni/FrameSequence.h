@@ -20,18 +20,100 @@
 #include "Stream.h"
 #include "Color.h"
 
+/**
+ * Properties of a frame sequence that can be read from its container structure alone, see
+ * FrameSequence::probe
+ */
+struct FrameSequenceInfo {
+    int width;
+    int height;
+    bool opaque;
+    int frameCount;
+    int defaultLoopCount;
+};
+
+/**
+ * Part of a canvas, as [left, right) x [top, bottom)
+ */
+struct FrameRect {
+    int left;
+    int top;
+    int right;
+    int bottom;
+
+    bool isEmpty() const {
+        return right <= left || bottom <= top;
+    }
+
+    void set(int l, int t, int r, int b) {
+        left = l;
+        top = t;
+        right = r;
+        bottom = b;
+    }
+
+    void setEmpty() {
+        set(0, 0, 0, 0);
+    }
+
+    // Grows the rect to the bounds of itself and [l, r) x [t, b)
+    void join(int l, int t, int r, int b) {
+        if (r <= l || b <= t) return;
+        if (isEmpty()) {
+            set(l, t, r, b);
+        } else {
+            if (l < left) left = l;
+            if (t < top) top = t;
+            if (r > right) right = r;
+            if (b > bottom) bottom = b;
+        }
+    }
+};
+
+/**
+ * Maps a source canvas coordinate to the first output coordinate at or after it, for a state
+ * created with the given sample size: output pixel (x, y) shows source pixel
+ * (x * sampleSize, y * sampleSize). The sampled canvas is sampledCoordinate(width) by
+ * sampledCoordinate(height) pixels.
+ */
+static inline int sampledCoordinate(int coordinate, int sampleSize) {
+    return (coordinate + sampleSize - 1) / sampleSize;
+}
+
 class FrameSequenceState {
 public:
+    FrameSequenceState() {
+        mDirtyRect.setEmpty();
+    }
+
     /**
      * Produces a frame of animation in the output buffer, drawing (at minimum) the delta since
      * previousFrameNr (the current contents of the buffer), or from scratch if previousFrameNr is
-     * negative
+     * negative. The output buffer holds the sampled canvas, see sampledCoordinate.
      *
      * Returns frame's delay time in milliseconds.
      */
     virtual long drawFrame(int frameNr,
             Color8888* outputPtr, int outputPixelStride, int previousFrameNr) = 0;
+
+    /**
+     * Produces a frame into a 16 bit output buffer, as above. Only meaningful for opaque
+     * sequences: transparent pixels are drawn black.
+     */
+    virtual long drawFrame(int frameNr,
+            Color565* outputPtr, int outputPixelStride, int previousFrameNr) = 0;
     virtual ~FrameSequenceState() {}
+
+    /**
+     * Returns the part of the output buffer changed by the last drawFrame call: the whole canvas
+     * if it drew from scratch, otherwise (at least) the pixels that differ from previousFrameNr.
+     */
+    const FrameRect& getDirtyRect() const {
+        return mDirtyRect;
+    }
+
+protected:
+    FrameRect mDirtyRect;
 };
 
 class FrameSequence {
@@ -43,6 +125,14 @@ public:
      */
     static FrameSequence* create(Stream* stream);
 
+    /**
+     * Fills outInfo with the properties of the sequence in the data stream, walking only its
+     * container structure - no pixel data is decoded, and no FrameSequence is created
+     *
+     * Returns false if the type is unknown or the contents are invalid
+     */
+    static bool probe(Stream* stream, FrameSequenceInfo* outInfo);
+
     virtual ~FrameSequence() {}
     virtual int getWidth() const = 0;
     virtual int getHeight() const = 0;
@@ -51,7 +141,23 @@ public:
     virtual int getDefaultLoopCount() const = 0;
     virtual jobject getRawByteBuffer() const = 0;
 
-    virtual FrameSequenceState* createState() const = 0;
+    /**
+     * Creates a state that draws every sampleSize-th pixel of every sampleSize-th row, so its
+     * output and internal buffers are about sampleSize^2 times smaller than the canvas
+     */
+    virtual FrameSequenceState* createState(int sampleSize) const = 0;
+
+    /**
+     * Returns the latest key frame at or before frameNr, i.e. the latest frame that a state can
+     * draw without drawing any frame before it. The frames from one key frame up to the next can
+     * thus be drawn independently of all other frames.
+     *
+     * Formats that don't track key frames report frame 0, so that their frames are always drawn
+     * in order
+     */
+    virtual int getKeyFrame(int frameNr) const {
+        return 0;
+    }
 };
 
 #endif //RASTERMILL_FRAME_SEQUENCE_H
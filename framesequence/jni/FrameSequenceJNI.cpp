@@ -28,6 +28,18 @@ static struct {
     jmethodID ctor;
 } gFrameSequenceClassInfo;
 
+static struct {
+    jclass clazz;
+    jmethodID ctor;
+} gInfoClassInfo;
+
+static struct {
+    jfieldID left;
+    jfieldID top;
+    jfieldID right;
+    jfieldID bottom;
+} gRectClassInfo;
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence
 ////////////////////////////////////////////////////////////////////////////////
@@ -70,6 +82,10 @@ static jobject nativeDecodeByteBuffer(JNIEnv* env, jobject clazz,
         limit,
         globalBuf);
     FrameSequence* frameSequence = FrameSequence::create(&stream);
+    if (!frameSequence || frameSequence->getRawByteBuffer() == NULL) {
+        // decoding failed, or the decoder copied what it needed out of the buffer
+        env->DeleteGlobalRef(globalBuf);
+    }
     jobject finalSequence = createJavaFrameSequence(env, frameSequence);
     return finalSequence;
 }
@@ -81,6 +97,57 @@ static jobject nativeDecodeStream(JNIEnv* env, jobject clazz,
     return createJavaFrameSequence(env, frameSequence);
 }
 
+////////////////////////////////////////////////////////////////////////////////
+// Probe
+////////////////////////////////////////////////////////////////////////////////
+
+static jobject createJavaInfo(JNIEnv* env, bool success, const FrameSequenceInfo& info) {
+    if (!success) {
+        return NULL;
+    }
+    return env->NewObject(gInfoClassInfo.clazz, gInfoClassInfo.ctor,
+            info.width,
+            info.height,
+            info.opaque,
+            info.frameCount,
+            info.defaultLoopCount);
+}
+
+static jobject nativeProbeByteArray(JNIEnv* env, jobject clazz,
+        jbyteArray byteArray, jint offset, jint length) {
+    jbyte* bytes = reinterpret_cast<jbyte*>(env->GetPrimitiveArrayCritical(byteArray, NULL));
+    if (bytes == NULL) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION,
+                "couldn't read array bytes");
+        return NULL;
+    }
+    MemoryStream stream(bytes + offset, length, NULL);
+    FrameSequenceInfo info;
+    bool success = FrameSequence::probe(&stream, &info);
+    env->ReleasePrimitiveArrayCritical(byteArray, bytes, 0);
+    return createJavaInfo(env, success, info);
+}
+
+static jobject nativeProbeByteBuffer(JNIEnv* env, jobject clazz,
+        jobject buf, jint offset, jint limit) {
+    // The buffer is only read during this call, so it isn't handed to the stream as a raw buffer
+    MemoryStream stream(
+        (reinterpret_cast<uint8_t*>(env->GetDirectBufferAddress(buf))) + offset,
+        limit,
+        NULL);
+    FrameSequenceInfo info;
+    bool success = FrameSequence::probe(&stream, &info);
+    return createJavaInfo(env, success, info);
+}
+
+static jobject nativeProbeStream(JNIEnv* env, jobject clazz,
+        jobject istream, jbyteArray byteArray) {
+    JavaInputStream stream(env, istream, byteArray);
+    FrameSequenceInfo info;
+    bool success = FrameSequence::probe(&stream, &info);
+    return createJavaInfo(env, success, info);
+}
+
 static void nativeDestroyFrameSequence(JNIEnv* env, jobject clazz,
         jlong frameSequenceLong) {
     FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
@@ -91,12 +158,19 @@ static void nativeDestroyFrameSequence(JNIEnv* env, jobject clazz,
     delete frameSequence;
 }
 
-static jlong nativeCreateState(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
+static jlong nativeCreateState(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jint sampleSize) {
     FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
-    FrameSequenceState* state = frameSequence->createState();
+    FrameSequenceState* state = frameSequence->createState(sampleSize);
     return reinterpret_cast<jlong>(state);
 }
 
+static jint nativeGetKeyFrame(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jint frameNr) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    return frameSequence->getKeyFrame(frameNr);
+}
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence state
 ////////////////////////////////////////////////////////////////////////////////
@@ -116,7 +190,7 @@ void throwIae(JNIEnv* env, const char* message, int errorCode) {
 
 static jlong JNICALL nativeGetFrame(
         JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jint frameNr,
-        jobject bitmap, jint previousFrameNr) {
+        jobject bitmap, jint previousFrameNr, jobject outDirtyRect) {
     FrameSequenceState* frameSequenceState =
             reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
     int ret;
@@ -133,11 +207,26 @@ static jlong JNICALL nativeGetFrame(
         return 0;
     }
 
-    int pixelStride = info.stride >> 2;
-    jlong delayMs = frameSequenceState->drawFrame(frameNr,
-            (Color8888*) pixels, pixelStride, previousFrameNr);
+    jlong delayMs;
+    if (info.format == ANDROID_BITMAP_FORMAT_RGB_565) {
+        int pixelStride = info.stride >> 1;
+        delayMs = frameSequenceState->drawFrame(frameNr,
+                (Color565*) pixels, pixelStride, previousFrameNr);
+    } else {
+        int pixelStride = info.stride >> 2;
+        delayMs = frameSequenceState->drawFrame(frameNr,
+                (Color8888*) pixels, pixelStride, previousFrameNr);
+    }
 
     AndroidBitmap_unlockPixels(env, bitmap);
+
+    if (outDirtyRect) {
+        const FrameRect& dirtyRect = frameSequenceState->getDirtyRect();
+        env->SetIntField(outDirtyRect, gRectClassInfo.left, dirtyRect.left);
+        env->SetIntField(outDirtyRect, gRectClassInfo.top, dirtyRect.top);
+        env->SetIntField(outDirtyRect, gRectClassInfo.right, dirtyRect.right);
+        env->SetIntField(outDirtyRect, gRectClassInfo.bottom, dirtyRect.bottom);
+    }
     return delayMs;
 }
 
@@ -154,16 +243,32 @@ static JNINativeMethod gMethods[] = {
         "(Ljava/io/InputStream;[B)L" JNI_PACKAGE "/FrameSequence;",
         (void*) nativeDecodeStream
     },
+    {   "nativeProbeByteArray",
+        "([BII)L" JNI_PACKAGE "/FrameSequence$Info;",
+        (void*) nativeProbeByteArray
+    },
+    {   "nativeProbeByteBuffer",
+        "(Ljava/nio/ByteBuffer;II)L" JNI_PACKAGE "/FrameSequence$Info;",
+        (void*) nativeProbeByteBuffer
+    },
+    {   "nativeProbeStream",
+        "(Ljava/io/InputStream;[B)L" JNI_PACKAGE "/FrameSequence$Info;",
+        (void*) nativeProbeStream
+    },
     {   "nativeDestroyFrameSequence",
         "(J)V",
         (void*) nativeDestroyFrameSequence
     },
     {   "nativeCreateState",
-        "(J)J",
+        "(JI)J",
         (void*) nativeCreateState
     },
+    {   "nativeGetKeyFrame",
+        "(JI)I",
+        (void*) nativeGetKeyFrame
+    },
     {   "nativeGetFrame",
-        "(JILandroid/graphics/Bitmap;I)J",
+        "(JILandroid/graphics/Bitmap;ILandroid/graphics/Rect;)J",
         (void*) nativeGetFrame
     },
     {   "nativeDestroyState",
@@ -188,5 +293,34 @@ jint FrameSequence_OnLoad(JNIEnv* env) {
         return -1;
     }
 
+    gInfoClassInfo.clazz = env->FindClass(JNI_PACKAGE "/FrameSequence$Info");
+    if (!gInfoClassInfo.clazz) {
+        ALOGW("Failed to find " JNI_PACKAGE "/FrameSequence$Info");
+        return -1;
+    }
+    gInfoClassInfo.clazz = (jclass)env->NewGlobalRef(gInfoClassInfo.clazz);
+
+    gInfoClassInfo.ctor = env->GetMethodID(gInfoClassInfo.clazz, "<init>", "(IIZII)V");
+    if (!gInfoClassInfo.ctor) {
+        ALOGW("Failed to find constructor for FrameSequence$Info - was it stripped?");
+        return -1;
+    }
+
+    jclass rectClazz = env->FindClass("android/graphics/Rect");
+    if (!rectClazz) {
+        ALOGW("Failed to find android/graphics/Rect");
+        return -1;
+    }
+    gRectClassInfo.left = env->GetFieldID(rectClazz, "left", "I");
+    gRectClassInfo.top = env->GetFieldID(rectClazz, "top", "I");
+    gRectClassInfo.right = env->GetFieldID(rectClazz, "right", "I");
+    gRectClassInfo.bottom = env->GetFieldID(rectClazz, "bottom", "I");
+    env->DeleteLocalRef(rectClazz);
+    if (!gRectClassInfo.left || !gRectClassInfo.top
+            || !gRectClassInfo.right || !gRectClassInfo.bottom) {
+        ALOGW("Failed to find fields of android/graphics/Rect");
+        return -1;
+    }
+
     return env->RegisterNatives(gFrameSequenceClassInfo.clazz, gMethods, METHOD_COUNT(gMethods));
 }
@@ -0,0 +1,932 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <zlib.h>
+#include "JNIHelpers.h"
+#include "utils/log.h"
+#include "utils/math.h"
+
+#include "FrameSequence_apng.h"
+
+#define APNG_DEBUG 0
+
+// Chunk structure, see the PNG specification and its APNG extension
+#define PNG_SIGNATURE "\x89PNG\r\n\x1a\n"
+#define PNG_SIGNATURE_LEN 8
+#define PNG_CHUNK_HEADER_LEN 8
+#define PNG_CHUNK_CRC_LEN 4
+#define PNG_IHDR_LEN 13
+#define APNG_ACTL_LEN 8
+#define APNG_FCTL_LEN 26
+#define APNG_SEQUENCE_NUMBER_LEN 4
+
+#define PNG_COLOR_TYPE_GRAY 0
+#define PNG_COLOR_TYPE_RGB 2
+#define PNG_COLOR_TYPE_PALETTE 3
+#define PNG_COLOR_TYPE_GRAY_ALPHA 4
+#define PNG_COLOR_TYPE_RGB_ALPHA 6
+
+#define PNG_FILTER_NONE 0
+#define PNG_FILTER_SUB 1
+#define PNG_FILTER_UP 2
+#define PNG_FILTER_AVERAGE 3
+#define PNG_FILTER_PAETH 4
+
+// Initial size of the buffer that pngs without a raw buffer are read into
+#define APNG_READ_BUFFER_SIZE (64 * 1024)
+
+static uint32_t getBE32(const uint8_t* data) {
+    return (uint32_t) data[0] << 24 | data[1] << 16 | data[2] << 8 | data[3];
+}
+
+static int getBE16(const uint8_t* data) {
+    return data[0] << 8 | data[1];
+}
+
+static bool isChunk(const uint8_t* header, const char* type) {
+    return !memcmp(header + 4, type, 4);
+}
+
+static bool willBeCleared(const ApngFrame& frame) {
+    return frame.disposeOp == APNG_DISPOSE_OP_BACKGROUND
+            || frame.disposeOp == APNG_DISPOSE_OP_PREVIOUS;
+}
+
+static bool coversCanvas(const ApngFrame& frame, int width, int height) {
+    return frame.left == 0 && frame.top == 0 && frame.width >= width && frame.height >= height;
+}
+
+static Color8888 premultiply(int a, int r, int g, int b) {
+    if (a == 0) return TRANSPARENT;
+    if (a != 0xff) {
+        r = (r * a + 127) / 255;
+        g = (g * a + 127) / 255;
+        b = (b * a + 127) / 255;
+    }
+    return ARGB_TO_COLOR8888(a, r, g, b);
+}
+
+// Composites a premultiplied color over a pixel of the canvas
+static inline void blendColor(Color8888* dst, Color8888 src) {
+    const Color8888 alpha = src >> 24;
+    if (alpha == 0xff) {
+        *dst = src;
+    } else if (alpha) {
+        // each channel of the result is src + dst * (1 - src alpha), two channels at a time
+        const Color8888 scale = 0xff - alpha;
+        const Color8888 rb = ((*dst & 0x00ff00ff) * scale + 0x00800080) >> 8 & 0x00ff00ff;
+        const Color8888 ag = ((*dst >> 8 & 0x00ff00ff) * scale + 0x00800080) & 0xff00ff00;
+        *dst = src + (rb | ag);
+    }
+}
+
+// 16 bit sequences are opaque, so only the pixels that are fully transparent show the canvas
+static inline void blendColor(Color565* dst, Color8888 src) {
+    if (src & COLOR_8888_ALPHA_MASK) {
+        storeColor(dst, src);
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Chunk structure
+////////////////////////////////////////////////////////////////////////////////
+
+// Tracks the number of bytes consumed from a stream, to record the offsets of image data
+class ChunkReader {
+public:
+    ChunkReader(Stream* stream) : mStream(stream), mPosition(0) {}
+
+    bool read(void* buffer, size_t size) {
+        size_t bytesRead = mStream->read(buffer, size);
+        mPosition += bytesRead;
+        return bytesRead == size;
+    }
+
+    bool skip(size_t size) {
+        size_t bytesSkipped = mStream->skip(size);
+        mPosition += bytesSkipped;
+        return bytesSkipped == size;
+    }
+
+    size_t getPosition() const { return mPosition; }
+
+private:
+    Stream* mStream;
+    size_t mPosition;
+};
+
+struct ApngStructure {
+    int width;
+    int height;
+    int bitDepth;
+    int colorType;
+    bool animated;
+    int loopCount;
+    // offsets and sizes of the PLTE and tRNS chunk data, if present
+    size_t paletteOffset;
+    size_t paletteSize;
+    size_t transparencyOffset;
+    size_t transparencySize;
+    int frameCount;
+    ApngFrame firstFrame;
+    bool disposesToBackground;
+
+    // only filled in if requested, grown as frames and image data are found
+    ApngFrame* frames;
+    int framesCapacity;
+    ApngSegment* segments;
+    int segmentCount;
+    int segmentsCapacity;
+};
+
+static bool isValidFormat(int bitDepth, int colorType) {
+    switch (colorType) {
+    case PNG_COLOR_TYPE_GRAY:
+        return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+    case PNG_COLOR_TYPE_PALETTE:
+        return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+    case PNG_COLOR_TYPE_RGB:
+    case PNG_COLOR_TYPE_GRAY_ALPHA:
+    case PNG_COLOR_TYPE_RGB_ALPHA:
+        return bitDepth == 8 || bitDepth == 16;
+    default:
+        return false;
+    }
+}
+
+static int getChannelCount(int colorType) {
+    switch (colorType) {
+    case PNG_COLOR_TYPE_RGB: return 3;
+    case PNG_COLOR_TYPE_GRAY_ALPHA: return 2;
+    case PNG_COLOR_TYPE_RGB_ALPHA: return 4;
+    default: return 1;
+    }
+}
+
+static bool mayHaveAlpha(const ApngStructure& structure) {
+    return structure.colorType == PNG_COLOR_TYPE_GRAY_ALPHA
+            || structure.colorType == PNG_COLOR_TYPE_RGB_ALPHA
+            || structure.transparencySize > 0;
+}
+
+static bool hasOpaqueCanvas(const ApngStructure& structure) {
+    return !mayHaveAlpha(structure)
+            && !structure.disposesToBackground
+            && coversCanvas(structure.firstFrame, structure.width, structure.height);
+}
+
+static void appendFrame(ApngStructure* structure, const ApngFrame& frame) {
+    if (structure->frameCount == structure->framesCapacity) {
+        const int capacity = max(16, 2 * structure->framesCapacity);
+        ApngFrame* frames = new ApngFrame[capacity];
+        if (structure->frames) {
+            memcpy(frames, structure->frames, structure->frameCount * sizeof(ApngFrame));
+            delete[] structure->frames;
+        }
+        structure->frames = frames;
+        structure->framesCapacity = capacity;
+    }
+    structure->frames[structure->frameCount] = frame;
+}
+
+static void appendSegment(ApngStructure* structure, size_t offset, size_t size) {
+    if (structure->segmentCount == structure->segmentsCapacity) {
+        const int capacity = max(16, 2 * structure->segmentsCapacity);
+        ApngSegment* segments = new ApngSegment[capacity];
+        if (structure->segments) {
+            memcpy(segments, structure->segments,
+                    structure->segmentCount * sizeof(ApngSegment));
+            delete[] structure->segments;
+        }
+        structure->segments = segments;
+        structure->segmentsCapacity = capacity;
+    }
+    structure->segments[structure->segmentCount].offset = offset;
+    structure->segments[structure->segmentCount].size = size;
+}
+
+// Completes the frame whose image data was being collected
+static bool finishFrame(ApngStructure* out, ApngFrame* frame, bool recordFrames) {
+    if (!frame->segmentCount) return false;
+
+    if (out->frameCount == 0) {
+        // there's no canvas before the first frame to go back to
+        if (frame->disposeOp == APNG_DISPOSE_OP_PREVIOUS) {
+            frame->disposeOp = APNG_DISPOSE_OP_BACKGROUND;
+        }
+        out->firstFrame = *frame;
+    }
+    if (frame->disposeOp == APNG_DISPOSE_OP_BACKGROUND) {
+        out->disposesToBackground = true;
+    }
+    if (recordFrames) {
+        appendFrame(out, *frame);
+    }
+    out->frameCount++;
+    return true;
+}
+
+// Walks the chunks of the png without decompressing any image data, recording the properties
+// of every frame and the location of its image data if recordFrames is set. A png without an
+// acTL chunk is a single frame. Chunk CRCs aren't verified, corrupt image data is only detected
+// when the frame is drawn.
+//
+// On return, out->frames and out->segments are owned by the caller even if the walk failed.
+static bool walkApng(Stream* stream, ApngStructure* out, bool recordFrames) {
+    ChunkReader reader(stream);
+    uint8_t block[APNG_FCTL_LEN];
+
+    memset(out, 0, sizeof(ApngStructure));
+    out->loopCount = 1;
+
+    if (!reader.read(block, PNG_SIGNATURE_LEN)
+            || memcmp(block, PNG_SIGNATURE, PNG_SIGNATURE_LEN)) {
+        return false;
+    }
+
+    // The frame whose image data follows. IDAT data is only part of the animation if an fcTL
+    // chunk precedes it, otherwise it's a default image that animated decoders skip.
+    ApngFrame frame;
+    bool hasFrame = false;
+    bool seenHeader = false;
+    bool seenImageData = false;
+    while (true) {
+        uint8_t header[PNG_CHUNK_HEADER_LEN];
+        if (!reader.read(header, PNG_CHUNK_HEADER_LEN)) return false;
+        const uint32_t length = getBE32(header);
+        if (length > 0x7fffffff) return false;
+        if (!seenHeader && !isChunk(header, "IHDR")) return false;
+
+        size_t remaining = length;
+        if (isChunk(header, "IHDR")) {
+            if (seenHeader || length != PNG_IHDR_LEN) return false;
+            if (!reader.read(block, PNG_IHDR_LEN)) return false;
+            remaining = 0;
+            seenHeader = true;
+            const uint32_t width = getBE32(block);
+            const uint32_t height = getBE32(block + 4);
+            out->bitDepth = block[8];
+            out->colorType = block[9];
+            if (width == 0 || height == 0 || width > 0xffff || height > 0xffff
+                    || !isValidFormat(out->bitDepth, out->colorType)
+                    || block[10] != 0 || block[11] != 0) {
+                return false;
+            }
+            if (block[12] != 0) {
+                ALOGW("Interlaced png not supported");
+                return false;
+            }
+            out->width = width;
+            out->height = height;
+        } else if (isChunk(header, "PLTE")) {
+            if (length % 3 || length > 3 * 256) return false;
+            out->paletteOffset = reader.getPosition();
+            out->paletteSize = length;
+        } else if (isChunk(header, "tRNS")) {
+            out->transparencyOffset = reader.getPosition();
+            out->transparencySize = length;
+        } else if (isChunk(header, "acTL") && !seenImageData) {
+            if (length != APNG_ACTL_LEN || !reader.read(block, APNG_ACTL_LEN)) return false;
+            remaining = 0;
+            out->animated = true;
+            out->loopCount = getBE32(block + 4);
+        } else if (isChunk(header, "fcTL") && out->animated) {
+            if (length != APNG_FCTL_LEN || !reader.read(block, APNG_FCTL_LEN)) return false;
+            remaining = 0;
+            if (hasFrame && !finishFrame(out, &frame, recordFrames)) return false;
+
+            frame.width = getBE32(block + 4);
+            frame.height = getBE32(block + 8);
+            frame.left = getBE32(block + 12);
+            frame.top = getBE32(block + 16);
+            const int delayNum = getBE16(block + 20);
+            const int delayDen = getBE16(block + 22);
+            frame.delayMs = delayNum * 1000L / (delayDen ? delayDen : 100);
+            frame.disposeOp = block[24];
+            frame.blendOp = block[25];
+            frame.firstSegment = out->segmentCount;
+            frame.segmentCount = 0;
+            if (frame.width <= 0 || frame.height <= 0 || frame.left < 0 || frame.top < 0
+                    || frame.width > out->width - frame.left
+                    || frame.height > out->height - frame.top
+                    || frame.disposeOp > APNG_DISPOSE_OP_PREVIOUS
+                    || frame.blendOp > APNG_BLEND_OP_OVER) {
+                return false;
+            }
+            hasFrame = true;
+        } else if (isChunk(header, "IDAT")) {
+            if (!seenImageData && !out->animated) {
+                // a still png is a single frame showing the whole canvas
+                frame.left = 0;
+                frame.top = 0;
+                frame.width = out->width;
+                frame.height = out->height;
+                frame.delayMs = 0;
+                frame.disposeOp = APNG_DISPOSE_OP_NONE;
+                frame.blendOp = APNG_BLEND_OP_SOURCE;
+                frame.firstSegment = out->segmentCount;
+                frame.segmentCount = 0;
+                hasFrame = true;
+            }
+            seenImageData = true;
+            if (hasFrame && out->frameCount == 0) {
+                if (recordFrames) {
+                    appendSegment(out, reader.getPosition(), length);
+                }
+                out->segmentCount++;
+                frame.segmentCount++;
+            }
+        } else if (isChunk(header, "fdAT") && out->animated) {
+            if (!hasFrame || length <= APNG_SEQUENCE_NUMBER_LEN) return false;
+            if (!reader.skip(APNG_SEQUENCE_NUMBER_LEN)) return false;
+            remaining -= APNG_SEQUENCE_NUMBER_LEN;
+            if (recordFrames) {
+                appendSegment(out, reader.getPosition(), remaining);
+            }
+            out->segmentCount++;
+            frame.segmentCount++;
+        } else if (isChunk(header, "IEND")) {
+            if (out->colorType == PNG_COLOR_TYPE_PALETTE && !out->paletteSize) return false;
+            return hasFrame && finishFrame(out, &frame, recordFrames);
+        }
+
+        if (!reader.skip(remaining + PNG_CHUNK_CRC_LEN)) return false;
+    }
+}
+
+// Reads the rest of the stream into a malloc'd buffer
+static uint8_t* readFully(Stream* stream, size_t* outSize) {
+    size_t capacity = APNG_READ_BUFFER_SIZE;
+    size_t size = 0;
+    uint8_t* data = (uint8_t*) malloc(capacity);
+    while (data) {
+        size += stream->read(data + size, capacity - size);
+        if (size < capacity) {
+            // trim the unused tail, keeping the larger buffer if that fails
+            uint8_t* trimmed = (uint8_t*) realloc(data, max(size, (size_t) 1));
+            if (trimmed) data = trimmed;
+            break;
+        }
+        capacity *= 2;
+        uint8_t* grown = (uint8_t*) realloc(data, capacity);
+        if (!grown) free(data);
+        data = grown;
+    }
+    *outSize = data ? size : 0;
+    return data;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame sequence
+////////////////////////////////////////////////////////////////////////////////
+
+FrameSequence_apng::FrameSequence_apng(Stream* stream) :
+        mData(NULL), mDataSize(0), mRawByteBuffer(NULL),
+        mWidth(0), mHeight(0), mBitDepth(8), mColorType(PNG_COLOR_TYPE_RGB_ALPHA),
+        mBitsPerPixel(32), mOpaque(false), mFrameCount(0), mLoopCount(1),
+        mFrames(NULL), mSegments(NULL), mHasTransparentColor(false), mKeyFrames(NULL) {
+    if (stream->getRawBuffer() != NULL) {
+        // decode frames straight out of the buffer, which stays referenced by this sequence
+        mData = stream->getRawBufferAddr();
+        mDataSize = stream->getRawBufferSize();
+        mRawByteBuffer = stream->getRawBuffer();
+    } else {
+        // only the compressed data is retained, frames are decompressed as they're drawn
+        mData = readFully(stream, &mDataSize);
+    }
+    if (!mData) {
+        ALOGW("Png load failed");
+        return;
+    }
+
+    ApngStructure structure;
+    MemoryStream dataStream((void*) mData, mDataSize, NULL);
+    bool valid = walkApng(&dataStream, &structure, true);
+    mFrames = structure.frames;
+    mSegments = structure.segments;
+    if (!valid) {
+        ALOGW("Png chunk parsing failed");
+        return;
+    }
+
+    mWidth = structure.width;
+    mHeight = structure.height;
+    mBitDepth = structure.bitDepth;
+    mColorType = structure.colorType;
+    mBitsPerPixel = mBitDepth * getChannelCount(mColorType);
+    mOpaque = hasOpaqueCanvas(structure);
+    mFrameCount = structure.frameCount;
+    mLoopCount = structure.loopCount;
+
+    const uint8_t* transparency = mData + structure.transparencyOffset;
+    const size_t transparencySize = structure.transparencySize;
+    if (mColorType == PNG_COLOR_TYPE_PALETTE) {
+        // indices past the end of the palette are invalid, they are drawn black
+        const uint8_t* palette = mData + structure.paletteOffset;
+        const size_t paletteCount = structure.paletteSize / 3;
+        for (size_t i = 0; i < 256; i++) {
+            if (i < paletteCount) {
+                const int alpha = i < transparencySize ? transparency[i] : 0xff;
+                mPalette[i] = premultiply(alpha,
+                        palette[3 * i], palette[3 * i + 1], palette[3 * i + 2]);
+            } else {
+                mPalette[i] = ARGB_TO_COLOR8888(0xff, 0, 0, 0);
+            }
+        }
+    } else if (mColorType == PNG_COLOR_TYPE_GRAY && transparencySize >= 2) {
+        mHasTransparentColor = true;
+        mTransparentColor[0] = getBE16(transparency);
+    } else if (mColorType == PNG_COLOR_TYPE_RGB && transparencySize >= 6) {
+        mHasTransparentColor = true;
+        for (int i = 0; i < 3; i++) {
+            mTransparentColor[i] = getBE16(transparency + 2 * i);
+        }
+    }
+
+    constructKeyFrameIndex(mayHaveAlpha(structure));
+
+#if APNG_DEBUG
+    ALOGD("FrameSequence_apng created with size %d %d, frames %d, depth %d, color type %d,"
+            " %zu bytes", mWidth, mHeight, mFrameCount, mBitDepth, mColorType, mDataSize);
+    for (int i = 0; i < mFrameCount; i++) {
+        ALOGD("    Frame %d - %dx%d at %d,%d, delay %ld, dispose %d, blend %d, key frame %d",
+                i, mFrames[i].width, mFrames[i].height, mFrames[i].left, mFrames[i].top,
+                mFrames[i].delayMs, mFrames[i].disposeOp, mFrames[i].blendOp, mKeyFrames[i]);
+    }
+#endif
+}
+
+FrameSequence_apng::~FrameSequence_apng() {
+    if (!mRawByteBuffer) {
+        free((void*) mData);
+    }
+    delete[] mFrames;
+    delete[] mSegments;
+    delete[] mKeyFrames;
+}
+
+void FrameSequence_apng::constructKeyFrameIndex(bool imageHasAlpha) {
+    // All key frames are drawn onto a transparent canvas
+    mKeyFrames = new int[mFrameCount];
+    if (mFrameCount == 0) {
+        // rejected by FrameSequence::create
+        return;
+    }
+    mKeyFrames[0] = 0;
+    for (int i = 1; i < mFrameCount; i++) {
+        const ApngFrame& frame = mFrames[i];
+        const ApngFrame& prevFrame = mFrames[i - 1];
+        const bool prevIsKeyFrame = mKeyFrames[i - 1] == i - 1;
+
+        // Either the frame replaces every pixel, and won't be disposed to the canvas before it,
+        // or the previous frame was disposed to background after being drawn onto a transparent
+        // canvas, leaving the canvas cleared
+        bool isKeyFrame = (coversCanvas(frame, mWidth, mHeight)
+                        && (frame.blendOp == APNG_BLEND_OP_SOURCE || !imageHasAlpha)
+                        && frame.disposeOp != APNG_DISPOSE_OP_PREVIOUS)
+                || (prevFrame.disposeOp == APNG_DISPOSE_OP_BACKGROUND
+                        && (coversCanvas(prevFrame, mWidth, mHeight) || prevIsKeyFrame));
+        mKeyFrames[i] = isKeyFrame ? i : mKeyFrames[i - 1];
+    }
+}
+
+FrameSequenceState* FrameSequence_apng::createState(int sampleSize) const {
+    return new FrameSequenceState_apng(*this, sampleSize);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// image data
+////////////////////////////////////////////////////////////////////////////////
+
+// Inflates the image data of a frame, row by row, across the segments holding it
+class FrameInflater {
+public:
+    FrameInflater(const FrameSequence_apng& frameSequence, const ApngFrame& frame) :
+            mFrameSequence(frameSequence), mNextSegment(frame.firstSegment),
+            mEndSegment(frame.firstSegment + frame.segmentCount) {
+        memset(&mStream, 0, sizeof(mStream));
+        mInitialized = inflateInit(&mStream) == Z_OK;
+    }
+
+    ~FrameInflater() {
+        if (mInitialized) {
+            inflateEnd(&mStream);
+        }
+    }
+
+    bool read(uint8_t* buffer, size_t size) {
+        if (!mInitialized) return false;
+        mStream.next_out = buffer;
+        mStream.avail_out = size;
+        while (mStream.avail_out) {
+            if (!mStream.avail_in) {
+                if (mNextSegment == mEndSegment) return false;
+                const ApngSegment& segment = mFrameSequence.getSegment(mNextSegment++);
+                mStream.next_in = (Bytef*) mFrameSequence.getData() + segment.offset;
+                mStream.avail_in = segment.size;
+            }
+            const int result = inflate(&mStream, Z_NO_FLUSH);
+            if (result == Z_STREAM_END) {
+                return !mStream.avail_out;
+            }
+            if (result != Z_OK && result != Z_BUF_ERROR) return false;
+        }
+        return true;
+    }
+
+private:
+    const FrameSequence_apng& mFrameSequence;
+    int mNextSegment;
+    const int mEndSegment;
+    z_stream mStream;
+    bool mInitialized;
+};
+
+static int paeth(int a, int b, int c) {
+    const int p = a + b - c;
+    const int pa = abs(p - a);
+    const int pb = abs(p - b);
+    const int pc = abs(p - c);
+    if (pa <= pb && pa <= pc) return a;
+    return pb <= pc ? b : c;
+}
+
+// Reverses the filter of a row in place, given the unfiltered row above it
+static bool unfilterRow(int filter, uint8_t* row, const uint8_t* prevRow,
+        size_t size, int stride) {
+    switch (filter) {
+    case PNG_FILTER_NONE:
+        break;
+    case PNG_FILTER_SUB:
+        for (size_t i = stride; i < size; i++) {
+            row[i] += row[i - stride];
+        }
+        break;
+    case PNG_FILTER_UP:
+        for (size_t i = 0; i < size; i++) {
+            row[i] += prevRow[i];
+        }
+        break;
+    case PNG_FILTER_AVERAGE:
+        for (size_t i = 0; i < size; i++) {
+            const int left = i >= (size_t) stride ? row[i - stride] : 0;
+            row[i] += (left + prevRow[i]) >> 1;
+        }
+        break;
+    case PNG_FILTER_PAETH:
+        for (size_t i = 0; i < size; i++) {
+            const bool hasLeft = i >= (size_t) stride;
+            row[i] += paeth(hasLeft ? row[i - stride] : 0, prevRow[i],
+                    hasLeft ? prevRow[i - stride] : 0);
+        }
+        break;
+    default:
+        return false;
+    }
+    return true;
+}
+
+// Reads the index-th sample of a row at its native depth
+static int readSample(const uint8_t* row, int index, int bitDepth) {
+    switch (bitDepth) {
+    case 16:
+        return getBE16(row + 2 * index);
+    case 8:
+        return row[index];
+    default: {
+        const int bit = index * bitDepth;
+        return (row[bit / 8] >> (8 - bitDepth - bit % 8)) & ((1 << bitDepth) - 1);
+    }
+    }
+}
+
+// Scales a sample at its native depth to 8 bits
+static int scaleSample(int sample, int bitDepth) {
+    switch (bitDepth) {
+    case 16:
+        return sample >> 8;
+    case 8:
+        return sample;
+    default:
+        return sample * 0xff / ((1 << bitDepth) - 1);
+    }
+}
+
+void FrameSequenceState_apng::convertRow(const uint8_t* row, int startX, int count) {
+    const int bitDepth = mFrameSequence.getBitDepth();
+    const Color8888* palette = mFrameSequence.getPalette();
+    const bool hasTransparentColor = mFrameSequence.hasTransparentColor();
+    const int* transparentColor = mFrameSequence.getTransparentColor();
+    int x = startX;
+    for (int i = 0; i < count; i++, x += mSampleSize) {
+        Color8888 color;
+        switch (mFrameSequence.getColorType()) {
+        case PNG_COLOR_TYPE_GRAY: {
+            const int gray = readSample(row, x, bitDepth);
+            if (hasTransparentColor && gray == transparentColor[0]) {
+                color = TRANSPARENT;
+            } else {
+                const int value = scaleSample(gray, bitDepth);
+                color = ARGB_TO_COLOR8888(0xff, value, value, value);
+            }
+        } break;
+        case PNG_COLOR_TYPE_RGB: {
+            const int r = readSample(row, 3 * x, bitDepth);
+            const int g = readSample(row, 3 * x + 1, bitDepth);
+            const int b = readSample(row, 3 * x + 2, bitDepth);
+            if (hasTransparentColor && r == transparentColor[0]
+                    && g == transparentColor[1] && b == transparentColor[2]) {
+                color = TRANSPARENT;
+            } else {
+                color = ARGB_TO_COLOR8888(0xff, scaleSample(r, bitDepth),
+                        scaleSample(g, bitDepth), scaleSample(b, bitDepth));
+            }
+        } break;
+        case PNG_COLOR_TYPE_PALETTE:
+            color = palette[readSample(row, x, bitDepth)];
+            break;
+        case PNG_COLOR_TYPE_GRAY_ALPHA: {
+            const int value = scaleSample(readSample(row, 2 * x, bitDepth), bitDepth);
+            color = premultiply(scaleSample(readSample(row, 2 * x + 1, bitDepth), bitDepth),
+                    value, value, value);
+        } break;
+        default:
+            color = premultiply(scaleSample(readSample(row, 4 * x + 3, bitDepth), bitDepth),
+                    scaleSample(readSample(row, 4 * x, bitDepth), bitDepth),
+                    scaleSample(readSample(row, 4 * x + 1, bitDepth), bitDepth),
+                    scaleSample(readSample(row, 4 * x + 2, bitDepth), bitDepth));
+            break;
+        }
+        mLineBuffer[i] = color;
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// draw helpers
+////////////////////////////////////////////////////////////////////////////////
+
+template <typename Pixel>
+static void setLineColor(Pixel* dst, Color8888 color, int width) {
+    Pixel pixel;
+    storeColor(&pixel, color);
+    for (; width > 0; width--, dst++) {
+        *dst = pixel;
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame sequence state
+////////////////////////////////////////////////////////////////////////////////
+
+FrameSequenceState_apng::FrameSequenceState_apng(const FrameSequence_apng& frameSequence,
+        int sampleSize) :
+    mFrameSequence(frameSequence), mSampleSize(sampleSize),
+    mWidth(sampledCoordinate(frameSequence.getWidth(), sampleSize)),
+    mHeight(sampledCoordinate(frameSequence.getHeight(), sampleSize)),
+    mRestoreBuffer(NULL), mRestoreFrame(-1), mRestoreBufferPixelSize(0),
+    mLineBuffer(new Color8888[max(mWidth, 1)]) {
+    const size_t rowBufferSize = frameSequence.getRowBytes(frameSequence.getWidth()) + 1;
+    mRows[0] = new uint8_t[rowBufferSize];
+    mRows[1] = new uint8_t[rowBufferSize];
+}
+
+FrameSequenceState_apng::~FrameSequenceState_apng() {
+    delete[] mRestoreBuffer;
+    delete[] mRows[0];
+    delete[] mRows[1];
+    delete[] mLineBuffer;
+}
+
+void FrameSequenceState_apng::getSampledBounds(const ApngFrame& frame,
+        int& left, int& top, int& right, int& bottom) {
+    left = sampledCoordinate(frame.left, mSampleSize);
+    top = sampledCoordinate(frame.top, mSampleSize);
+    right = min(sampledCoordinate(frame.left + frame.width, mSampleSize), mWidth);
+    bottom = min(sampledCoordinate(frame.top + frame.height, mSampleSize), mHeight);
+}
+
+template <typename Pixel>
+void FrameSequenceState_apng::saveRestoreBuffer(Pixel* outputPtr, int outputPixelStride,
+        int frameNr) {
+    mRestoreFrame = frameNr;
+    if (!mRestoreBuffer) {
+        mRestoreBuffer = new Color8888[mWidth * mHeight];
+    }
+    int left, top, right, bottom;
+    getSampledBounds(mFrameSequence.getFrame(frameNr), left, top, right, bottom);
+    Pixel* restoreBuffer = (Pixel*) mRestoreBuffer;
+    for (int y = top; y < bottom; y++) {
+        memcpy(restoreBuffer + (right - left) * (y - top),
+                outputPtr + left + outputPixelStride * y,
+                (right - left) * sizeof(Pixel));
+    }
+}
+
+template <typename Pixel>
+void FrameSequenceState_apng::restoreRestoreBuffer(Pixel* outputPtr, int outputPixelStride) {
+    int left, top, right, bottom;
+    getSampledBounds(mFrameSequence.getFrame(mRestoreFrame), left, top, right, bottom);
+    const Pixel* restoreBuffer = (const Pixel*) mRestoreBuffer;
+    for (int y = top; y < bottom; y++) {
+        memcpy(outputPtr + left + outputPixelStride * y,
+                restoreBuffer + (right - left) * (y - top),
+                (right - left) * sizeof(Pixel));
+    }
+}
+
+template <typename Pixel>
+bool FrameSequenceState_apng::decodeFrame(const ApngFrame& frame,
+        Pixel* outputPtr, int outputPixelStride) {
+    FrameInflater inflater(mFrameSequence, frame);
+    const size_t rowBytes = mFrameSequence.getRowBytes(frame.width);
+    const int filterStride = mFrameSequence.getFilterStride();
+    const bool blend = frame.blendOp == APNG_BLEND_OP_OVER;
+
+    // every row has to be unfiltered, but only those on a sampled row are converted
+    int left, top, right, bottom;
+    getSampledBounds(frame, left, top, right, bottom);
+    const int srcOffset = left * mSampleSize - frame.left;
+    uint8_t* row = mRows[0];
+    uint8_t* prevRow = mRows[1];
+    memset(prevRow, 0, rowBytes + 1);
+    for (int y = 0; y < frame.height; y++) {
+        const int canvasY = frame.top + y;
+        const int outputY = canvasY / mSampleSize;
+        if (outputY >= bottom) break;
+
+        if (!inflater.read(row, rowBytes + 1)
+                || !unfilterRow(row[0], row + 1, prevRow + 1, rowBytes, filterStride)) {
+            return false;
+        }
+        if (canvasY % mSampleSize == 0) {
+            convertRow(row + 1, srcOffset, right - left);
+            Pixel* dst = outputPtr + left + outputY * outputPixelStride;
+            for (int x = 0; x < right - left; x++) {
+                if (blend) {
+                    blendColor(dst + x, mLineBuffer[x]);
+                } else {
+                    storeColor(dst + x, mLineBuffer[x]);
+                }
+            }
+        }
+        uint8_t* swap = row;
+        row = prevRow;
+        prevRow = swap;
+    }
+    return true;
+}
+
+long FrameSequenceState_apng::drawFrame(int frameNr,
+        Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr);
+}
+
+long FrameSequenceState_apng::drawFrame(int frameNr,
+        Color565* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr);
+}
+
+template <typename Pixel>
+long FrameSequenceState_apng::drawFrameImpl(int frameNr,
+        Pixel* outputPtr, int outputPixelStride, int previousFrameNr) {
+
+#if APNG_DEBUG
+    ALOGD("      drawFrame on %p nr %d on addr %p, previous frame nr %d",
+            this, frameNr, outputPtr, previousFrameNr);
+#endif
+
+    // a saved canvas of the other pixel type can't be restored
+    if (mRestoreBufferPixelSize != sizeof(Pixel)) {
+        mRestoreBufferPixelSize = sizeof(Pixel);
+        mRestoreFrame = -1;
+    }
+
+    const int height = mHeight;
+    const int width = mWidth;
+
+    // Continue from the previous frame if the buffer holds one, unless a key frame is closer.
+    // Disposing the previous frame to the canvas before it needs that canvas to have been
+    // saved, otherwise drawing starts over from the key frame.
+    int start = mFrameSequence.getKeyFrame(frameNr);
+    bool continuing = false;
+    if (previousFrameNr >= start && previousFrameNr < frameNr
+            && (mFrameSequence.getFrame(previousFrameNr).disposeOp != APNG_DISPOSE_OP_PREVIOUS
+                    || mRestoreFrame == previousFrameNr)) {
+        start = previousFrameNr + 1;
+        continuing = true;
+    }
+
+    // Only the rectangles of the frames drawn and disposed change, unless starting over
+    mDirtyRect.setEmpty();
+    bool disposePrevFrame = continuing;
+    for (int i = start; i <= frameNr; i++) {
+        const ApngFrame& frame = mFrameSequence.getFrame(i);
+
+#if APNG_DEBUG
+        ALOGD("producing frame %d, drawing frame %d (dispose %d, blend %d, delay %ld)",
+                frameNr, i, frame.disposeOp, frame.blendOp, frame.delayMs);
+#endif
+        if (i == start && !continuing) {
+            for (int y = 0; y < height; y++) {
+                setLineColor(outputPtr + y * outputPixelStride, TRANSPARENT, width);
+            }
+            mDirtyRect.set(0, 0, width, height);
+        } else if (disposePrevFrame) {
+            // Disposing only changes the previous frame's rectangle
+            const ApngFrame& prevFrame = mFrameSequence.getFrame(i - 1);
+            int left, top, right, bottom;
+            getSampledBounds(prevFrame, left, top, right, bottom);
+            switch (prevFrame.disposeOp) {
+            case APNG_DISPOSE_OP_BACKGROUND: {
+                Pixel* dst = outputPtr + left + top * outputPixelStride;
+                for (int y = top; y < bottom; y++) {
+                    setLineColor(dst, TRANSPARENT, right - left);
+                    dst += outputPixelStride;
+                }
+                mDirtyRect.join(left, top, right, bottom);
+            } break;
+            case APNG_DISPOSE_OP_PREVIOUS: {
+                restoreRestoreBuffer(outputPtr, outputPixelStride);
+                mDirtyRect.join(left, top, right, bottom);
+            } break;
+            }
+        }
+
+        // Frames disposed before the requested one is drawn needn't be drawn at all. Those
+        // disposed to background still clear their rectangle, those disposed to the previous
+        // canvas leave it as it was.
+        const bool drawn = i == frameNr || !willBeCleared(frame);
+        if (drawn) {
+            if (frame.disposeOp == APNG_DISPOSE_OP_PREVIOUS) {
+                saveRestoreBuffer(outputPtr, outputPixelStride, i);
+            }
+            if (!decodeFrame(frame, outputPtr, outputPixelStride)) {
+                ALOGW("Png frame %d decode failed", i);
+            }
+            int left, top, right, bottom;
+            getSampledBounds(frame, left, top, right, bottom);
+            mDirtyRect.join(left, top, right, bottom);
+        }
+        disposePrevFrame = drawn || frame.disposeOp == APNG_DISPOSE_OP_BACKGROUND;
+    }
+
+    // return last frame's delay
+    const int maxFrame = mFrameSequence.getFrameCount();
+    const int lastFrame = (frameNr + maxFrame - 1) % maxFrame;
+    return mFrameSequence.getFrame(lastFrame).delayMs;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Registry
+////////////////////////////////////////////////////////////////////////////////
+
+#include "Registry.h"
+
+static bool isPng(void* header, int header_size) {
+    return !memcmp(PNG_SIGNATURE, header, PNG_SIGNATURE_LEN);
+}
+
+static bool acceptsBuffers() {
+    return true;
+}
+
+static FrameSequence* createFramesequence(Stream* stream) {
+    return new FrameSequence_apng(stream);
+}
+
+static bool probeApng(Stream* stream, FrameSequenceInfo* outInfo) {
+    ApngStructure structure;
+    if (!walkApng(stream, &structure, false)) return false;
+
+    outInfo->width = structure.width;
+    outInfo->height = structure.height;
+    outInfo->opaque = hasOpaqueCanvas(structure);
+    outInfo->frameCount = structure.frameCount;
+    outInfo->defaultLoopCount = structure.loopCount;
+    return true;
+}
+
+static RegistryEntry gEntry = {
+        PNG_SIGNATURE_LEN,
+        isPng,
+        createFramesequence,
+        NULL,
+        acceptsBuffers,
+        probeApng,
+};
+static Registry gRegister(gEntry);
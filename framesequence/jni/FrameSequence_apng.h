@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RASTERMILL_FRAMESQUENCE_APNG_H
+#define RASTERMILL_FRAMESQUENCE_APNG_H
+
+#include "config.h"
+
+#include "Stream.h"
+#include "Color.h"
+#include "FrameSequence.h"
+
+// Dispose and blend operations of an fcTL chunk, see the APNG specification
+#define APNG_DISPOSE_OP_NONE 0
+#define APNG_DISPOSE_OP_BACKGROUND 1
+#define APNG_DISPOSE_OP_PREVIOUS 2
+#define APNG_BLEND_OP_SOURCE 0
+#define APNG_BLEND_OP_OVER 1
+
+// Location of a run of compressed image data (the payload of an IDAT chunk, or of an fdAT chunk
+// after its sequence number) within the png
+struct ApngSegment {
+    size_t offset;
+    size_t size;
+};
+
+// Properties of a frame, from its fcTL chunk, and the segments holding its image data. Image
+// data is only decompressed when the frame is drawn.
+struct ApngFrame {
+    int left;
+    int top;
+    int width;
+    int height;
+    long delayMs;
+    uint8_t disposeOp;
+    uint8_t blendOp;
+    int firstSegment;
+    int segmentCount;
+};
+
+class FrameSequence_apng : public FrameSequence {
+public:
+    FrameSequence_apng(Stream* stream);
+    virtual ~FrameSequence_apng();
+
+    virtual int getWidth() const {
+        return mWidth;
+    }
+
+    virtual int getHeight() const {
+        return mHeight;
+    }
+
+    virtual bool isOpaque() const {
+        return mOpaque;
+    }
+
+    virtual int getFrameCount() const {
+        return mFrameCount;
+    }
+
+    virtual int getDefaultLoopCount() const {
+        return mLoopCount;
+    }
+
+    virtual jobject getRawByteBuffer() const {
+        return mRawByteBuffer;
+    }
+
+    virtual FrameSequenceState* createState(int sampleSize) const;
+
+    const uint8_t* getData() const { return mData; }
+    int getBitDepth() const { return mBitDepth; }
+    int getColorType() const { return mColorType; }
+    // bytes of a row of the given width, excluding its filter type byte
+    size_t getRowBytes(int width) const { return (width * mBitsPerPixel + 7) / 8; }
+    // distance between the bytes a filter combines, at least 1
+    int getFilterStride() const { return mBitsPerPixel >= 8 ? mBitsPerPixel / 8 : 1; }
+    // premultiplied colors of the palette, with the alpha of the tRNS chunk
+    const Color8888* getPalette() const { return mPalette; }
+    // for gray and truecolor images with a tRNS chunk, the samples of the transparent color
+    bool hasTransparentColor() const { return mHasTransparentColor; }
+    const int* getTransparentColor() const { return mTransparentColor; }
+    const ApngFrame& getFrame(int frameIndex) const { return mFrames[frameIndex]; }
+    const ApngSegment& getSegment(int segmentIndex) const { return mSegments[segmentIndex]; }
+    virtual int getKeyFrame(int frameIndex) const { return mKeyFrames[frameIndex]; }
+
+private:
+    void constructKeyFrameIndex(bool imageHasAlpha);
+
+    // Compressed png, either owned, or borrowed from mRawByteBuffer
+    const uint8_t* mData;
+    size_t mDataSize;
+    jobject mRawByteBuffer;
+
+    int mWidth;
+    int mHeight;
+    int mBitDepth;
+    int mColorType;
+    int mBitsPerPixel;
+    bool mOpaque;
+    int mFrameCount;
+    int mLoopCount;
+    ApngFrame* mFrames;
+    ApngSegment* mSegments;
+    Color8888 mPalette[256];
+    bool mHasTransparentColor;
+    int mTransparentColor[3];
+
+    // array of ints per frame - the latest key frame at or before that frame, i.e. the latest
+    // frame that can be drawn onto a cleared canvas without drawing any prior frames
+    int* mKeyFrames;
+};
+
+class FrameSequenceState_apng : public FrameSequenceState {
+public:
+    FrameSequenceState_apng(const FrameSequence_apng& frameSequence, int sampleSize);
+    virtual ~FrameSequenceState_apng();
+
+    // returns frame's delay time in ms
+    virtual long drawFrame(int frameNr,
+            Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
+    virtual long drawFrame(int frameNr,
+            Color565* outputPtr, int outputPixelStride, int previousFrameNr);
+
+private:
+    template <typename Pixel>
+    long drawFrameImpl(int frameNr, Pixel* outputPtr, int outputPixelStride, int previousFrameNr);
+    template <typename Pixel>
+    void saveRestoreBuffer(Pixel* outputPtr, int outputPixelStride, int frameNr);
+    template <typename Pixel>
+    void restoreRestoreBuffer(Pixel* outputPtr, int outputPixelStride);
+    template <typename Pixel>
+    bool decodeFrame(const ApngFrame& frame, Pixel* outputPtr, int outputPixelStride);
+    void convertRow(const uint8_t* row, int startX, int count);
+    void getSampledBounds(const ApngFrame& frame, int& left, int& top, int& right, int& bottom);
+
+    const FrameSequence_apng& mFrameSequence;
+    const int mSampleSize;
+    // dimensions of the sampled canvas, which the output buffer holds
+    const int mWidth;
+    const int mHeight;
+    // the sampled rectangle of mRestoreFrame as it was before that frame was drawn, in pixels
+    // of the type last drawn, for frames disposing to the previous canvas
+    Color8888* mRestoreBuffer;
+    int mRestoreFrame;
+    size_t mRestoreBufferPixelSize;
+    // the current and previous row of unfiltered image data, each preceded by its filter type
+    uint8_t* mRows[2];
+    // the sampled pixels of the current row, premultiplied
+    Color8888* mLineBuffer;
+};
+
+#endif //RASTERMILL_FRAMESQUENCE_APNG_H
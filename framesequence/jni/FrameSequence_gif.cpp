@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+#include <stdlib.h>
 #include <string.h>
 #include "JNIHelpers.h"
 #include "utils/log.h"
@@ -23,6 +24,17 @@
 
 #define GIF_DEBUG 0
 
+// Block structure, see the GIF89a specification
+#define GIF_EXTENSION_INTRODUCER 0x21
+#define GIF_DESCRIPTOR_INTRODUCER 0x2C
+#define GIF_TRAILER 0x3B
+#define GIF_SCREEN_DESC_LEN 7
+#define GIF_IMAGE_DESC_LEN 9
+#define GIF_COLOR_TABLE_FLAG 0x80
+
+// Initial size of the buffer that gifs without a raw buffer are read into
+#define GIF_READ_BUFFER_SIZE (64 * 1024)
+
 static int streamReader(GifFileType* fileType, GifByteType* out, int size) {
     Stream* stream = (Stream*) fileType->UserData;
     return (int) stream->read(out, size);
@@ -32,7 +44,7 @@ static Color8888 gifColorToColor8888(const GifColorType& color) {
     return ARGB_TO_COLOR8888(0xff, color.Red, color.Green, color.Blue);
 }
 
-static long getDelayMs(GraphicsControlBlock& gcb) {
+static long getDelayMs(const GraphicsControlBlock& gcb) {
     return gcb.DelayTime * 10;
 }
 
@@ -40,51 +52,259 @@ static bool willBeCleared(const GraphicsControlBlock& gcb) {
     return gcb.DisposalMode == DISPOSE_BACKGROUND || gcb.DisposalMode == DISPOSE_PREVIOUS;
 }
 
+////////////////////////////////////////////////////////////////////////////////
+// Record structure
+////////////////////////////////////////////////////////////////////////////////
+
+// Tracks the number of bytes consumed from a stream, to record the offsets of image records
+class CountingReader {
+public:
+    CountingReader(Stream* stream) : mStream(stream), mPosition(0) {}
+
+    bool read(void* buffer, size_t size) {
+        size_t bytesRead = mStream->read(buffer, size);
+        mPosition += bytesRead;
+        return bytesRead == size;
+    }
+
+    bool skip(size_t size) {
+        size_t bytesSkipped = mStream->skip(size);
+        mPosition += bytesSkipped;
+        return bytesSkipped == size;
+    }
+
+    size_t getPosition() const { return mPosition; }
+
+private:
+    Stream* mStream;
+    size_t mPosition;
+};
+
+struct GifStructure {
+    int width;
+    int height;
+    bool hasColorMap;
+    int backgroundIndex;
+    size_t headerSize;
+    int loopCount;
+    int frameCount;
+    int maxFrameWidth;
+    bool firstFrameTransparent;
+
+    // only filled in if requested, grown as image records are found
+    GifFrame* frames;
+    int framesCapacity;
+};
+
+static int getLE16(const uint8_t* data) {
+    return data[0] | (data[1] << 8);
+}
+
+static size_t colorTableBytes(uint8_t packedFields) {
+    if (!(packedFields & GIF_COLOR_TABLE_FLAG)) return 0;
+    return 3 * (1 << ((packedFields & 0x07) + 1));
+}
+
+// Same defaults as DGifSavedExtensionToGCB, for images without a graphics control extension
+static void initGcb(GraphicsControlBlock* gcb) {
+    gcb->DisposalMode = DISPOSAL_UNSPECIFIED;
+    gcb->UserInputFlag = false;
+    gcb->DelayTime = 0;
+    gcb->TransparentColor = NO_TRANSPARENT_COLOR;
+}
+
+// Skips a chain of data sub-blocks starting with one of the given size, up to and including the
+// block terminator. Each sub-block is read along with the size of the next, so this costs a
+// single read per sub-block.
+static bool skipSubBlocks(CountingReader* reader, uint8_t size) {
+    uint8_t block[256];
+    while (size) {
+        if (!reader->read(block, size + 1)) return false;
+        size = block[size];
+    }
+    return true;
+}
+
+static void appendFrame(GifStructure* structure, const GifFrame& frame) {
+    if (structure->frameCount == structure->framesCapacity) {
+        const int capacity = max(16, 2 * structure->framesCapacity);
+        GifFrame* frames = new GifFrame[capacity];
+        if (structure->frames) {
+            memcpy(frames, structure->frames, structure->frameCount * sizeof(GifFrame));
+            delete[] structure->frames;
+        }
+        structure->frames = frames;
+        structure->framesCapacity = capacity;
+    }
+    structure->frames[structure->frameCount] = frame;
+}
+
+// Walks the records of the gif without decompressing any image data, recording the location and
+// properties of every image if recordFrames is set. Applies the same rules as DGifSlurp did, and
+// fails wherever it would fail on the record structure - corrupt LZW data is only detected when
+// the frame is drawn.
+//
+// On return, out->frames is owned by the caller even if the walk failed.
+static bool walkGif(Stream* stream, GifStructure* out, bool recordFrames) {
+    CountingReader reader(stream);
+    uint8_t block[256];
+
+    out->frames = NULL;
+    out->framesCapacity = 0;
+    out->frameCount = 0;
+    out->maxFrameWidth = 0;
+    out->loopCount = 1;
+    out->firstFrameTransparent = false;
+
+    if (!reader.read(block, GIF_STAMP_LEN + GIF_SCREEN_DESC_LEN)) return false;
+    const uint8_t* screenDesc = block + GIF_STAMP_LEN;
+    out->width = getLE16(screenDesc);
+    out->height = getLE16(screenDesc + 2);
+    out->hasColorMap = screenDesc[4] & GIF_COLOR_TABLE_FLAG;
+    out->backgroundIndex = screenDesc[5];
+    if (!reader.skip(colorTableBytes(screenDesc[4]))) return false;
+    out->headerSize = reader.getPosition();
+
+    // as in DGifSavedExtensionToGCB, the last graphics control block before an image applies
+    GraphicsControlBlock gcb;
+    initGcb(&gcb);
+    while (true) {
+        const size_t recordOffset = reader.getPosition();
+        uint8_t introducer;
+        if (!reader.read(&introducer, 1)) return false;
+
+        if (introducer == GIF_TRAILER) {
+            return true;
+        } else if (introducer == GIF_DESCRIPTOR_INTRODUCER) {
+            if (!reader.read(block, GIF_IMAGE_DESC_LEN)) return false;
+            GifFrame frame;
+            frame.offset = recordOffset;
+            frame.left = getLE16(block);
+            frame.top = getLE16(block + 2);
+            frame.width = getLE16(block + 4);
+            frame.height = getLE16(block + 6);
+            frame.gcb = gcb;
+            if (!reader.skip(colorTableBytes(block[GIF_IMAGE_DESC_LEN - 1]))) return false;
+
+            // LZW minimum code size, followed by the first data sub-block size
+            if (!reader.read(block, 2)) return false;
+            if (!skipSubBlocks(&reader, block[1])) return false;
+
+            if (out->frameCount == 0) {
+                out->firstFrameTransparent = gcb.TransparentColor != NO_TRANSPARENT_COLOR;
+            }
+            out->maxFrameWidth = max(out->maxFrameWidth, (int) frame.width);
+            if (recordFrames) {
+                appendFrame(out, frame);
+            }
+            out->frameCount++;
+            initGcb(&gcb);
+        } else if (introducer == GIF_EXTENSION_INTRODUCER) {
+            // function code, followed by the first data sub-block size
+            if (!reader.read(block, 2)) return false;
+            const uint8_t function = block[0];
+            const uint8_t size = block[1];
+            if (!size) continue;
+            if (!reader.read(block, size + 1)) return false;
+
+            if (function == GRAPHICS_EXT_FUNC_CODE && size == 4) {
+                DGifExtensionToGCB(size, block, &gcb);
+            } else if (function == APPLICATION_EXT_FUNC_CODE
+                    // look for "NETSCAPE2.0" app extension
+                    && size == 11 && !memcmp(block, "NETSCAPE2.0", 11)
+                    // verify extension contents and get loop count
+                    && block[size] == 3) {
+                if (!reader.read(block, 4)) return false;
+                if (block[0] == 1) {
+                    out->loopCount = getLE16(block + 1);
+                }
+                if (!skipSubBlocks(&reader, block[3])) return false;
+                continue;
+            }
+            if (!skipSubBlocks(&reader, block[size])) return false;
+        } else {
+            return false;
+        }
+    }
+}
+
+static bool hasOpaqueBackground(const GifStructure& structure) {
+    const size_t colorCount = (structure.headerSize - GIF_STAMP_LEN - GIF_SCREEN_DESC_LEN) / 3;
+    return structure.hasColorMap
+            && !structure.firstFrameTransparent
+            && (size_t) structure.backgroundIndex < colorCount;
+}
+
+// Reads the rest of the stream into a malloc'd buffer
+static uint8_t* readFully(Stream* stream, size_t* outSize) {
+    size_t capacity = GIF_READ_BUFFER_SIZE;
+    size_t size = 0;
+    uint8_t* data = (uint8_t*) malloc(capacity);
+    while (data) {
+        size += stream->read(data + size, capacity - size);
+        if (size < capacity) {
+            // trim the unused tail, keeping the larger buffer if that fails
+            uint8_t* trimmed = (uint8_t*) realloc(data, max(size, (size_t) 1));
+            if (trimmed) data = trimmed;
+            break;
+        }
+        capacity *= 2;
+        uint8_t* grown = (uint8_t*) realloc(data, capacity);
+        if (!grown) free(data);
+        data = grown;
+    }
+    *outSize = data ? size : 0;
+    return data;
+}
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence
 ////////////////////////////////////////////////////////////////////////////////
 
 FrameSequence_gif::FrameSequence_gif(Stream* stream) :
-        mLoopCount(1), mBgColor(TRANSPARENT), mPreservedFrames(NULL), mRestoringFrames(NULL) {
-    mGif = DGifOpen(stream, streamReader, NULL);
-    if (!mGif) {
+        mData(NULL), mDataSize(0), mRawByteBuffer(NULL),
+        mWidth(0), mHeight(0), mHeaderSize(0), mFrameCount(0), mMaxFrameWidth(0),
+        mFrames(NULL), mLoopCount(1), mBgColor(TRANSPARENT),
+        mPreservedFrames(NULL), mRestoringFrames(NULL), mKeyFrames(NULL) {
+    if (stream->getRawBuffer() != NULL) {
+        // decode frames straight out of the buffer, which stays referenced by this sequence
+        mData = stream->getRawBufferAddr();
+        mDataSize = stream->getRawBufferSize();
+        mRawByteBuffer = stream->getRawBuffer();
+    } else {
+        // only the compressed data is retained, frames are decompressed as they're drawn. The
+        // stream is still read to its end, and every record indexed, before any frame is drawn,
+        // as the frame count is needed up front.
+        mData = readFully(stream, &mDataSize);
+    }
+    if (!mData) {
         ALOGW("Gif load failed");
         return;
     }
 
-    if (DGifSlurp(mGif) != GIF_OK) {
-        ALOGW("Gif slurp failed");
-        DGifCloseFile(mGif, NULL);
-        mGif = NULL;
+    GifStructure structure;
+    MemoryStream dataStream((void*) mData, mDataSize, NULL);
+    bool valid = walkGif(&dataStream, &structure, true);
+    mFrames = structure.frames;
+    if (!valid) {
+        ALOGW("Gif record parsing failed");
         return;
     }
 
+    mWidth = structure.width;
+    mHeight = structure.height;
+    mHeaderSize = structure.headerSize;
+    mFrameCount = structure.frameCount;
+    mMaxFrameWidth = structure.maxFrameWidth;
+    mLoopCount = structure.loopCount;
+
     long durationMs = 0;
     int lastUnclearedFrame = -1;
-    mPreservedFrames = new bool[mGif->ImageCount];
-    mRestoringFrames = new int[mGif->ImageCount];
+    mPreservedFrames = new bool[mFrameCount];
+    mRestoringFrames = new int[mFrameCount];
 
-    GraphicsControlBlock gcb;
-    for (int i = 0; i < mGif->ImageCount; i++) {
-        const SavedImage& image = mGif->SavedImages[i];
-
-        // find the loop extension pair
-        for (int j = 0; (j + 1) < image.ExtensionBlockCount; j++) {
-            ExtensionBlock* eb1 = image.ExtensionBlocks + j;
-            ExtensionBlock* eb2 = image.ExtensionBlocks + j + 1;
-            if (eb1->Function == APPLICATION_EXT_FUNC_CODE
-                    // look for "NETSCAPE2.0" app extension
-                    && eb1->ByteCount == 11
-                    && !memcmp((const char*)(eb1->Bytes), "NETSCAPE2.0", 11)
-                    // verify extension contents and get loop count
-                    && eb2->Function == CONTINUE_EXT_FUNC_CODE
-                    && eb2->ByteCount == 3
-                    && eb2->Bytes[0] == 1) {
-                mLoopCount = (int)(eb2->Bytes[2] << 8) + (int)(eb2->Bytes[1]);
-            }
-        }
-
-        DGifSavedExtensionToGCB(mGif, i, &gcb);
+    for (int i = 0; i < mFrameCount; i++) {
+        const GraphicsControlBlock& gcb = mFrames[i].gcb;
 
         // timing
         durationMs += getDelayMs(gcb);
@@ -101,74 +321,102 @@ FrameSequence_gif::FrameSequence_gif(Stream* stream) :
         }
     }
 
+    constructKeyFrameIndex();
+
 #if GIF_DEBUG
-    ALOGD("FrameSequence_gif created with size %d %d, frames %d dur %ld",
-            mGif->SWidth, mGif->SHeight, mGif->ImageCount, durationMs);
-    for (int i = 0; i < mGif->ImageCount; i++) {
-        DGifSavedExtensionToGCB(mGif, i, &gcb);
-        ALOGD("    Frame %d - must preserve %d, restore point %d, trans color %d",
-                i, mPreservedFrames[i], mRestoringFrames[i], gcb.TransparentColor);
+    ALOGD("FrameSequence_gif created with size %d %d, frames %d dur %ld, %zu bytes",
+            mWidth, mHeight, mFrameCount, durationMs, mDataSize);
+    for (int i = 0; i < mFrameCount; i++) {
+        ALOGD("    Frame %d - must preserve %d, restore point %d, trans color %d, offset %zu,"
+                " key frame %d", i, mPreservedFrames[i], mRestoringFrames[i],
+                mFrames[i].gcb.TransparentColor, mFrames[i].offset, mKeyFrames[i]);
     }
 #endif
 
-    if (mGif->SColorMap) {
-        // calculate bg color
-        GraphicsControlBlock gcb;
-        DGifSavedExtensionToGCB(mGif, 0, &gcb);
-        if (gcb.TransparentColor == NO_TRANSPARENT_COLOR) {
-            mBgColor = gifColorToColor8888(mGif->SColorMap->Colors[mGif->SBackGroundColor]);
-        }
+    if (hasOpaqueBackground(structure)) {
+        // calculate bg color from the global color map, which follows the screen descriptor
+        const uint8_t* color = mData + GIF_STAMP_LEN + GIF_SCREEN_DESC_LEN
+                + 3 * structure.backgroundIndex;
+        mBgColor = ARGB_TO_COLOR8888(0xff, color[0], color[1], color[2]);
     }
 }
 
 FrameSequence_gif::~FrameSequence_gif() {
-    if (mGif) {
-        DGifCloseFile(mGif, NULL);
+    if (!mRawByteBuffer) {
+        free((void*) mData);
     }
+    delete[] mFrames;
     delete[] mPreservedFrames;
     delete[] mRestoringFrames;
+    delete[] mKeyFrames;
 }
 
-FrameSequenceState* FrameSequence_gif::createState() const {
-    return new FrameSequenceState_gif(*this);
+static bool coversCanvas(const GifFrame& frame, int width, int height) {
+    return frame.left == 0 && frame.top == 0 && frame.width >= width && frame.height >= height;
+}
+
+void FrameSequence_gif::constructKeyFrameIndex() {
+    // Frame 0 is drawn onto the background color, all other key frames onto a transparent canvas
+    mKeyFrames = new int[mFrameCount];
+    if (mFrameCount == 0) {
+        // rejected by FrameSequence::create
+        return;
+    }
+    mKeyFrames[0] = 0;
+    for (int i = 1; i < mFrameCount; i++) {
+        const GifFrame& frame = mFrames[i];
+        const GifFrame& prevFrame = mFrames[i - 1];
+        const bool prevIsKeyFrame = mKeyFrames[i - 1] == i - 1;
+
+        // Either the frame replaces every pixel, or the previous frame was disposed to
+        // background after being drawn onto a transparent canvas, leaving the canvas cleared
+        bool isKeyFrame = (frame.gcb.TransparentColor == NO_TRANSPARENT_COLOR
+                        && coversCanvas(frame, mWidth, mHeight))
+                || (prevFrame.gcb.DisposalMode == DISPOSE_BACKGROUND
+                        && (coversCanvas(prevFrame, mWidth, mHeight)
+                                || (prevIsKeyFrame && i - 1 > 0)));
+        mKeyFrames[i] = isKeyFrame ? i : mKeyFrames[i - 1];
+    }
+}
+
+FrameSequenceState* FrameSequence_gif::createState(int sampleSize) const {
+    return new FrameSequenceState_gif(*this, sampleSize);
 }
 
 ////////////////////////////////////////////////////////////////////////////////
 // draw helpers
 ////////////////////////////////////////////////////////////////////////////////
 
+// Interlaced images store every 8th row starting with row 0, then every 8th row starting with
+// row 4, every 4th starting with row 2, and finally every 2nd starting with row 1
+static const int INTERLACED_OFFSETS[] = { 0, 4, 2, 1 };
+static const int INTERLACED_JUMPS[] = { 8, 8, 4, 2 };
+
 // return true if area of 'target' is completely covers area of 'covered'
-static bool checkIfCover(const GifImageDesc& target, const GifImageDesc& covered) {
-    return target.Left <= covered.Left
-            && covered.Left + covered.Width <= target.Left + target.Width
-            && target.Top <= covered.Top
-            && covered.Top + covered.Height <= target.Top + target.Height;
+static bool checkIfCover(const GifFrame& target, const GifFrame& covered) {
+    return target.left <= covered.left
+            && covered.left + covered.width <= target.left + target.width
+            && target.top <= covered.top
+            && covered.top + covered.height <= target.top + target.height;
 }
 
-static void copyLine(Color8888* dst, const unsigned char* src, const ColorMapObject* cmap,
-                     int transparent, int width) {
-    for (; width > 0; width--, src++, dst++) {
+// copies every srcStep-th pixel of the line
+template <typename Pixel>
+static void copyLine(Pixel* dst, const unsigned char* src, const ColorMapObject* cmap,
+                     int transparent, int width, int srcStep) {
+    for (; width > 0; width--, src += srcStep, dst++) {
         if (*src != transparent && *src < cmap->ColorCount) {
-            *dst = gifColorToColor8888(cmap->Colors[*src]);
+            storeColor(dst, gifColorToColor8888(cmap->Colors[*src]));
         }
     }
 }
 
-static void setLineColor(Color8888* dst, Color8888 color, int width) {
+template <typename Pixel>
+static void setLineColor(Pixel* dst, Color8888 color, int width) {
+    Pixel pixel;
+    storeColor(&pixel, color);
     for (; width > 0; width--, dst++) {
-        *dst = color;
-    }
-}
-
-static void getCopySize(const GifImageDesc& imageDesc, int maxWidth, int maxHeight,
-        GifWord& copyWidth, GifWord& copyHeight) {
-    copyWidth = imageDesc.Width;
-    if (imageDesc.Left + copyWidth > maxWidth) {
-        copyWidth = maxWidth - imageDesc.Left;
-    }
-    copyHeight = imageDesc.Height;
-    if (imageDesc.Top + copyHeight > maxHeight) {
-        copyHeight = maxHeight - imageDesc.Top;
+        *dst = pixel;
     }
 }
 
@@ -176,117 +424,225 @@ static void getCopySize(const GifImageDesc& imageDesc, int maxWidth, int maxHeig
 // Frame sequence state
 ////////////////////////////////////////////////////////////////////////////////
 
-FrameSequenceState_gif::FrameSequenceState_gif(const FrameSequence_gif& frameSequence) :
-    mFrameSequence(frameSequence), mPreserveBuffer(NULL), mPreserveBufferFrame(-1) {
+FrameSequenceState_gif::FrameSequenceState_gif(const FrameSequence_gif& frameSequence,
+        int sampleSize) :
+    mFrameSequence(frameSequence), mSampleSize(sampleSize),
+    mWidth(sampledCoordinate(frameSequence.getWidth(), sampleSize)),
+    mHeight(sampledCoordinate(frameSequence.getHeight(), sampleSize)),
+    mPreserveBuffer(NULL), mPreserveBufferFrame(-1), mPreserveBufferPixelSize(0),
+    mLineBuffer(new GifPixelType[max(frameSequence.getMaxFrameWidth(), 1)]) {
 }
 
 FrameSequenceState_gif::~FrameSequenceState_gif() {
        delete[] mPreserveBuffer;
+       delete[] mLineBuffer;
 }
 
-void FrameSequenceState_gif::savePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr) {
+template <typename Pixel>
+void FrameSequenceState_gif::savePreserveBuffer(Pixel* outputPtr, int outputPixelStride, int frameNr) {
     if (frameNr == mPreserveBufferFrame) return;
 
     mPreserveBufferFrame = frameNr;
-    const int width = mFrameSequence.getWidth();
-    const int height = mFrameSequence.getHeight();
+    const int width = mWidth;
+    const int height = mHeight;
     if (!mPreserveBuffer) {
         mPreserveBuffer = new Color8888[width * height];
     }
+    Pixel* preserveBuffer = (Pixel*) mPreserveBuffer;
     for (int y = 0; y < height; y++) {
-        memcpy(mPreserveBuffer + width * y,
+        memcpy(preserveBuffer + width * y,
                 outputPtr + outputPixelStride * y,
-                width * 4);
+                width * sizeof(Pixel));
     }
 }
 
-void FrameSequenceState_gif::restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride) {
-    const int width = mFrameSequence.getWidth();
-    const int height = mFrameSequence.getHeight();
+template <typename Pixel>
+void FrameSequenceState_gif::restorePreserveBuffer(Pixel* outputPtr, int outputPixelStride) {
+    const int width = mWidth;
+    const int height = mHeight;
     if (!mPreserveBuffer) {
         ALOGD("preserve buffer not allocated! ah!");
         return;
     }
+    const Pixel* preserveBuffer = (const Pixel*) mPreserveBuffer;
     for (int y = 0; y < height; y++) {
         memcpy(outputPtr + outputPixelStride * y,
-                mPreserveBuffer + width * y,
-                width * 4);
+                preserveBuffer + width * y,
+                width * sizeof(Pixel));
     }
 }
 
-long FrameSequenceState_gif::drawFrame(int frameNr,
-        Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+// Computes the part of the sampled canvas covered by the frame, as [left, right) x [top, bottom),
+// which is empty if right <= left or bottom <= top
+void FrameSequenceState_gif::getSampledBounds(const GifFrame& frame,
+        int& left, int& top, int& right, int& bottom) {
+    left = sampledCoordinate(frame.left, mSampleSize);
+    top = sampledCoordinate(frame.top, mSampleSize);
+    right = min(sampledCoordinate(frame.left + frame.width, mSampleSize), mWidth);
+    bottom = min(sampledCoordinate(frame.top + frame.height, mSampleSize), mHeight);
+}
 
-    GifFileType* gif = mFrameSequence.getGif();
+// Decompresses a single image record onto the output. giflib needs to read the header and global
+// color map first, so the gif is opened and then skipped forward to the record.
+template <typename Pixel>
+bool FrameSequenceState_gif::decodeFrame(const GifFrame& frame,
+        Pixel* outputPtr, int outputPixelStride) {
+    MemoryStream stream((void*) mFrameSequence.getData(), mFrameSequence.getDataSize(), NULL);
+    GifFileType* gif = DGifOpen(&stream, streamReader, NULL);
     if (!gif) {
-        ALOGD("Cannot drawFrame, mGif is NULL");
-        return -1;
+        ALOGW("Gif open failed");
+        return false;
     }
 
+    bool success = false;
+    GifRecordType recordType;
+    const size_t recordSkip = frame.offset - mFrameSequence.getHeaderSize();
+    if (stream.skip(recordSkip) == recordSkip
+            && DGifGetRecordType(gif, &recordType) == GIF_OK
+            && recordType == IMAGE_DESC_RECORD_TYPE
+            && DGifGetImageDesc(gif) == GIF_OK) {
+        const ColorMapObject* cmap = gif->SColorMap;
+        if (gif->Image.ColorMap) {
+            cmap = gif->Image.ColorMap;
+        }
+
+        if (cmap == NULL || cmap->ColorCount != (1 << cmap->BitsPerPixel)) {
+            ALOGW("Warning: potentially corrupt color map");
+        }
+
+        // every line has to be decompressed, but only those on a sampled row are copied
+        int left, top, right, bottom;
+        getSampledBounds(frame, left, top, right, bottom);
+        const int srcOffset = left * mSampleSize - frame.left;
+        const bool interlaced = gif->Image.Interlace;
+        const int passes = interlaced ? 4 : 1;
+        success = true;
+        for (int pass = 0; success && pass < passes; pass++) {
+            const int jump = interlaced ? INTERLACED_JUMPS[pass] : 1;
+            for (int y = interlaced ? INTERLACED_OFFSETS[pass] : 0; y < frame.height; y += jump) {
+                if (DGifGetLine(gif, mLineBuffer, frame.width) != GIF_OK) {
+                    success = false;
+                    break;
+                }
+                const int canvasY = frame.top + y;
+                const int outputY = canvasY / mSampleSize;
+                if (cmap && canvasY % mSampleSize == 0 && outputY < bottom) {
+                    copyLine(outputPtr + left + outputY * outputPixelStride,
+                            mLineBuffer + srcOffset, cmap, frame.gcb.TransparentColor,
+                            right - left, mSampleSize);
+                }
+            }
+        }
+    }
+    DGifCloseFile(gif, NULL);
+    return success;
+}
+
+long FrameSequenceState_gif::drawFrame(int frameNr,
+        Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr);
+}
+
+long FrameSequenceState_gif::drawFrame(int frameNr,
+        Color565* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr);
+}
+
+template <typename Pixel>
+long FrameSequenceState_gif::drawFrameImpl(int frameNr,
+        Pixel* outputPtr, int outputPixelStride, int previousFrameNr) {
+
 #if GIF_DEBUG
     ALOGD("      drawFrame on %p nr %d on addr %p, previous frame nr %d",
             this, frameNr, outputPtr, previousFrameNr);
 #endif
 
-    const int height = mFrameSequence.getHeight();
-    const int width = mFrameSequence.getWidth();
+    // a preserved frame of the other pixel type can't be restored
+    if (mPreserveBufferPixelSize != sizeof(Pixel)) {
+        mPreserveBufferPixelSize = sizeof(Pixel);
+        mPreserveBufferFrame = -1;
+    }
 
-    GraphicsControlBlock gcb;
+    const int height = mHeight;
+    const int width = mWidth;
 
-    int start = max(previousFrameNr + 1, 0);
+    // Continue from the previous frame if the buffer holds one, unless a key frame is closer
+    int start = mFrameSequence.getKeyFrame(frameNr);
+    bool continuing = false;
+    if (previousFrameNr >= start && previousFrameNr < frameNr) {
+        start = previousFrameNr + 1;
+        continuing = true;
+    }
 
-    for (int i = max(start - 1, 0); i < frameNr; i++) {
+    // Frames restoring a preserved frame from before the start need it to be in the preserve
+    // buffer, otherwise drawing starts over from the key frame of the preserved frame
+    for (int i = continuing ? start - 1 : start; i < frameNr; i++) {
         int neededPreservedFrame = mFrameSequence.getRestoringFrame(i);
-        if (neededPreservedFrame >= 0 && (mPreserveBufferFrame != neededPreservedFrame)) {
+        if (neededPreservedFrame >= 0 && neededPreservedFrame < start
+                && mPreserveBufferFrame != neededPreservedFrame) {
 #if GIF_DEBUG
-            ALOGD("frame %d needs frame %d preserved, but %d is currently, so drawing from scratch",
-                    i, neededPreservedFrame, mPreserveBufferFrame);
+            ALOGD("frame %d needs frame %d preserved, but %d is currently, so drawing from %d",
+                    i, neededPreservedFrame, mPreserveBufferFrame,
+                    mFrameSequence.getKeyFrame(neededPreservedFrame));
 #endif
-            start = 0;
+            start = mFrameSequence.getKeyFrame(neededPreservedFrame);
+            continuing = false;
+            i = start - 1; // check the newly included frames too
         }
     }
 
+    // Only the rectangles of the frames drawn and disposed change, unless starting over
+    mDirtyRect.setEmpty();
     for (int i = start; i <= frameNr; i++) {
-        DGifSavedExtensionToGCB(gif, i, &gcb);
-        const SavedImage& frame = gif->SavedImages[i];
+        const GifFrame& frame = mFrameSequence.getFrame(i);
+        const GraphicsControlBlock& gcb = frame.gcb;
 
 #if GIF_DEBUG
         bool frameOpaque = gcb.TransparentColor == NO_TRANSPARENT_COLOR;
         ALOGD("producing frame %d, drawing frame %d (opaque %d, disp %d, del %d)",
                 frameNr, i, frameOpaque, gcb.DisposalMode, gcb.DelayTime);
 #endif
-        if (i == 0) {
+        if (i == start && !continuing) {
             //clear bitmap
-            Color8888 bgColor = mFrameSequence.getBackgroundColor();
+            Color8888 bgColor = i == 0 ? mFrameSequence.getBackgroundColor() : TRANSPARENT;
             for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    outputPtr[y * outputPixelStride + x] = bgColor;
-                }
+                setLineColor(outputPtr + y * outputPixelStride, bgColor, width);
             }
+            mDirtyRect.set(0, 0, width, height);
         } else {
-            GraphicsControlBlock prevGcb;
-            DGifSavedExtensionToGCB(gif, i - 1, &prevGcb);
-            const SavedImage& prevFrame = gif->SavedImages[i - 1];
+            const GifFrame& prevFrame = mFrameSequence.getFrame(i - 1);
+            const GraphicsControlBlock& prevGcb = prevFrame.gcb;
             bool prevFrameDisposed = willBeCleared(prevGcb);
 
             bool newFrameOpaque = gcb.TransparentColor == NO_TRANSPARENT_COLOR;
             bool prevFrameCompletelyCovered = newFrameOpaque
-                    && checkIfCover(frame.ImageDesc, prevFrame.ImageDesc);
+                    && checkIfCover(frame, prevFrame);
 
             if (prevFrameDisposed && !prevFrameCompletelyCovered) {
+                int left, top, right, bottom;
+                getSampledBounds(prevFrame, left, top, right, bottom);
+                mDirtyRect.join(left, top, right, bottom);
                 switch (prevGcb.DisposalMode) {
                 case DISPOSE_BACKGROUND: {
-                    Color8888* dst = outputPtr + prevFrame.ImageDesc.Left +
-                            prevFrame.ImageDesc.Top * outputPixelStride;
-
-                    GifWord copyWidth, copyHeight;
-                    getCopySize(prevFrame.ImageDesc, width, height, copyWidth, copyHeight);
-                    for (; copyHeight > 0; copyHeight--) {
-                        setLineColor(dst, TRANSPARENT, copyWidth);
+                    Pixel* dst = outputPtr + left + top * outputPixelStride;
+                    for (int y = top; y < bottom; y++) {
+                        setLineColor(dst, TRANSPARENT, right - left);
                         dst += outputPixelStride;
                     }
                 } break;
                 case DISPOSE_PREVIOUS: {
+                    // Restoring the canvas of the preserved frame undoes every frame drawn or
+                    // cleared since, not just the previous one
+                    const int restoredFrame = mFrameSequence.getRestoringFrame(i - 1);
+                    if (restoredFrame < 0) {
+                        mDirtyRect.set(0, 0, width, height);
+                    } else {
+                        for (int j = restoredFrame + 1; j < i - 1; j++) {
+                            getSampledBounds(mFrameSequence.getFrame(j),
+                                    left, top, right, bottom);
+                            mDirtyRect.join(left, top, right, bottom);
+                        }
+                    }
                     restorePreserveBuffer(outputPtr, outputPixelStride);
                 } break;
                 }
@@ -302,33 +658,19 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
         bool willBeCleared = gcb.DisposalMode == DISPOSE_BACKGROUND
                 || gcb.DisposalMode == DISPOSE_PREVIOUS;
         if (i == frameNr || !willBeCleared) {
-            const ColorMapObject* cmap = gif->SColorMap;
-            if (frame.ImageDesc.ColorMap) {
-                cmap = frame.ImageDesc.ColorMap;
-            }
-
-            if (cmap == NULL || cmap->ColorCount != (1 << cmap->BitsPerPixel)) {
-                ALOGW("Warning: potentially corrupt color map");
-            }
-
-            const unsigned char* src = (unsigned char*)frame.RasterBits;
-            Color8888* dst = outputPtr + frame.ImageDesc.Left +
-                    frame.ImageDesc.Top * outputPixelStride;
-            GifWord copyWidth, copyHeight;
-            getCopySize(frame.ImageDesc, width, height, copyWidth, copyHeight);
-            for (; copyHeight > 0; copyHeight--) {
-                copyLine(dst, src, cmap, gcb.TransparentColor, copyWidth);
-                src += frame.ImageDesc.Width;
-                dst += outputPixelStride;
+            if (!decodeFrame(frame, outputPtr, outputPixelStride)) {
+                ALOGW("Gif frame %d decode failed", i);
             }
+            int left, top, right, bottom;
+            getSampledBounds(frame, left, top, right, bottom);
+            mDirtyRect.join(left, top, right, bottom);
         }
     }
 
     // return last frame's delay
-    const int maxFrame = gif->ImageCount;
+    const int maxFrame = mFrameSequence.getFrameCount();
     const int lastFrame = (frameNr + maxFrame - 1) % maxFrame;
-    DGifSavedExtensionToGCB(gif, lastFrame, &gcb);
-    return getDelayMs(gcb);
+    return getDelayMs(mFrameSequence.getFrame(lastFrame).gcb);
 }
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -344,19 +686,32 @@ static bool isGif(void* header, int header_size) {
 }
 
 static bool acceptsBuffers() {
-    return false;
+    return true;
 }
 
 static FrameSequence* createFramesequence(Stream* stream) {
     return new FrameSequence_gif(stream);
 }
 
+static bool probeGif(Stream* stream, FrameSequenceInfo* outInfo) {
+    GifStructure structure;
+    if (!walkGif(stream, &structure, false)) return false;
+
+    outInfo->width = structure.width;
+    outInfo->height = structure.height;
+    outInfo->opaque = hasOpaqueBackground(structure);
+    outInfo->frameCount = structure.frameCount;
+    outInfo->defaultLoopCount = structure.loopCount;
+    return true;
+}
+
 static RegistryEntry gEntry = {
         GIF_STAMP_LEN,
         isGif,
         createFramesequence,
         NULL,
         acceptsBuffers,
+        probeGif,
 };
 static Registry gRegister(gEntry);
 
@@ -24,17 +24,28 @@
 #include "Color.h"
 #include "FrameSequence.h"
 
+// Location of an image record within the gif, along with the properties needed to compose it.
+// Image data is only decompressed when the frame is drawn.
+struct GifFrame {
+    size_t offset; // of the image descriptor, from the start of the gif
+    GifWord left;
+    GifWord top;
+    GifWord width;
+    GifWord height;
+    GraphicsControlBlock gcb;
+};
+
 class FrameSequence_gif : public FrameSequence {
 public:
     FrameSequence_gif(Stream* stream);
     virtual ~FrameSequence_gif();
 
     virtual int getWidth() const {
-        return mGif ? mGif->SWidth : 0;
+        return mWidth;
     }
 
     virtual int getHeight() const {
-        return mGif ? mGif->SHeight : 0;
+        return mHeight;
     }
 
     virtual bool isOpaque() const {
@@ -42,7 +53,7 @@ public:
     }
 
     virtual int getFrameCount() const {
-        return mGif ? mGif->ImageCount : 0;
+        return mFrameCount;
     }
 
     virtual int getDefaultLoopCount() const {
@@ -50,18 +61,36 @@ public:
     }
 
     virtual jobject getRawByteBuffer() const {
-        return NULL;
+        return mRawByteBuffer;
     }
 
-    virtual FrameSequenceState* createState() const;
+    virtual FrameSequenceState* createState(int sampleSize) const;
 
-    GifFileType* getGif() const { return mGif; }
+    const uint8_t* getData() const { return mData; }
+    size_t getDataSize() const { return mDataSize; }
+    // size of the header, logical screen descriptor and global color map
+    size_t getHeaderSize() const { return mHeaderSize; }
+    int getMaxFrameWidth() const { return mMaxFrameWidth; }
+    const GifFrame& getFrame(int frameIndex) const { return mFrames[frameIndex]; }
     Color8888 getBackgroundColor() const { return mBgColor; }
     bool getPreservedFrame(int frameIndex) const { return mPreservedFrames[frameIndex]; }
     int getRestoringFrame(int frameIndex) const { return mRestoringFrames[frameIndex]; }
+    virtual int getKeyFrame(int frameIndex) const { return mKeyFrames[frameIndex]; }
 
 private:
-    GifFileType* mGif;
+    void constructKeyFrameIndex();
+
+    // Compressed gif, either owned, or borrowed from mRawByteBuffer
+    const uint8_t* mData;
+    size_t mDataSize;
+    jobject mRawByteBuffer;
+
+    int mWidth;
+    int mHeight;
+    size_t mHeaderSize;
+    int mFrameCount;
+    int mMaxFrameWidth;
+    GifFrame* mFrames;
     int mLoopCount;
     Color8888 mBgColor;
 
@@ -70,24 +99,44 @@ private:
 
     // array of ints per frame - if >= 0, points to the index of the preserve that frame needs
     int* mRestoringFrames;
+
+    // array of ints per frame - the latest key frame at or before that frame, i.e. the latest
+    // frame that can be drawn onto a cleared canvas without drawing any prior frames
+    int* mKeyFrames;
 };
 
 class FrameSequenceState_gif : public FrameSequenceState {
 public:
-    FrameSequenceState_gif(const FrameSequence_gif& frameSequence);
+    FrameSequenceState_gif(const FrameSequence_gif& frameSequence, int sampleSize);
     virtual ~FrameSequenceState_gif();
 
     // returns frame's delay time in ms
     virtual long drawFrame(int frameNr,
             Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
+    virtual long drawFrame(int frameNr,
+            Color565* outputPtr, int outputPixelStride, int previousFrameNr);
 
 private:
-    void savePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr);
-    void restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride);
+    template <typename Pixel>
+    long drawFrameImpl(int frameNr, Pixel* outputPtr, int outputPixelStride, int previousFrameNr);
+    template <typename Pixel>
+    void savePreserveBuffer(Pixel* outputPtr, int outputPixelStride, int frameNr);
+    template <typename Pixel>
+    void restorePreserveBuffer(Pixel* outputPtr, int outputPixelStride);
+    template <typename Pixel>
+    bool decodeFrame(const GifFrame& frame, Pixel* outputPtr, int outputPixelStride);
+    void getSampledBounds(const GifFrame& frame, int& left, int& top, int& right, int& bottom);
 
     const FrameSequence_gif& mFrameSequence;
+    const int mSampleSize;
+    // dimensions of the sampled canvas, which the output and preserve buffers hold
+    const int mWidth;
+    const int mHeight;
+    // holds mWidth * mHeight pixels of the type last drawn, so that it fits either type
     Color8888* mPreserveBuffer;
     int mPreserveBufferFrame;
+    size_t mPreserveBufferPixelSize;
+    GifPixelType* mLineBuffer;
 };
 
 #endif //RASTERMILL_FRAMESQUENCE_GIF_H
@@ -37,19 +37,15 @@ static bool isFullFrame(const WebPIterator& frame, int canvasWidth, int canvasHe
     return (frame.width == canvasWidth && frame.height == canvasHeight);
 }
 
-// Returns true if the rectangle defined by 'frame' contains pixel (x, y).
-static bool FrameContainsPixel(const WebPIterator& frame, int x, int y) {
-    const int left = frame.x_offset;
-    const int right = left + frame.width;
-    const int top = frame.y_offset;
-    const int bottom = top + frame.height;
-    return x >= left && x < right && y >= top && y < bottom;
-}
-
-// Construct mIsKeyFrame array.
+// Construct mIsKeyFrame and mKeyFrames arrays.
 void FrameSequence_webp::constructDependencyChain() {
     const size_t frameCount = getFrameCount();
     mIsKeyFrame = new bool[frameCount];
+    mKeyFrames = new int[frameCount];
+    if (frameCount == 0) {
+        // rejected by FrameSequence::create
+        return;
+    }
     const int canvasWidth = getWidth();
     const int canvasHeight = getHeight();
 
@@ -60,6 +56,7 @@ void FrameSequence_webp::constructDependencyChain() {
     int ok = WebPDemuxGetFrame(mDemux, 1, &curr);
     ALOG_ASSERT(ok, "Could not retrieve frame# 0");
     mIsKeyFrame[0] = true;  // 0th frame is always a key frame.
+    mKeyFrames[0] = 0;
     for (size_t i = 1; i < frameCount; i++) {
         prev = curr;
         ok = WebPDemuxGetFrame(mDemux, i + 1, &curr);  // Get ith frame.
@@ -72,6 +69,7 @@ void FrameSequence_webp::constructDependencyChain() {
             mIsKeyFrame[i] = (prev.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND) &&
                     (isFullFrame(prev, canvasWidth, canvasHeight) || mIsKeyFrame[i - 1]);
         }
+        mKeyFrames[i] = mIsKeyFrame[i] ? i : mKeyFrames[i - 1];
     }
     WebPDemuxReleaseIterator(&prev);
     WebPDemuxReleaseIterator(&curr);
@@ -87,6 +85,7 @@ void FrameSequence_webp::constructDependencyChain() {
 FrameSequence_webp::FrameSequence_webp(Stream* stream)
         : mDemux(NULL)
         , mIsKeyFrame(NULL)
+        , mKeyFrames(NULL)
         , mRawByteBuffer(NULL) {
     if (stream->getRawBuffer() != NULL) {
         mData.size = stream->getRawBufferSize();
@@ -139,13 +138,14 @@ FrameSequence_webp::FrameSequence_webp(Stream* stream)
 FrameSequence_webp::~FrameSequence_webp() {
     WebPDemuxDelete(mDemux);
     delete[] mIsKeyFrame;
+    delete[] mKeyFrames;
     if (mRawByteBuffer == NULL) {
         delete[] mData.bytes;
     }
 }
 
-FrameSequenceState* FrameSequence_webp::createState() const {
-    return new FrameSequenceState_webp(*this);
+FrameSequenceState* FrameSequence_webp::createState(int sampleSize) const {
+    return new FrameSequenceState_webp(*this, sampleSize);
 }
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -169,119 +169,105 @@ static bool checkIfCover(const WebPIterator& target, const WebPIterator& covered
 }
 
 // Clear all pixels in a line to transparent.
-static void clearLine(Color8888* dst, int width) {
+template <typename Pixel>
+static void clearLine(Pixel* dst, int width) {
     memset(dst, 0, width * sizeof(*dst));  // Note: Assumes TRANSPARENT == 0x0.
 }
 
-// Copy all pixels from 'src' to 'dst'.
-static void copyFrame(const Color8888* src, int srcStride, Color8888* dst, int dstStride,
-        int width, int height) {
-    for (int y = 0; y < height; y++) {
-        memcpy(dst, src, width * sizeof(*dst));
-        src += srcStride;
-        dst += dstStride;
-    }
-}
-
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence state
 ////////////////////////////////////////////////////////////////////////////////
 
-FrameSequenceState_webp::FrameSequenceState_webp(const FrameSequence_webp& frameSequence) :
-        mFrameSequence(frameSequence) {
+FrameSequenceState_webp::FrameSequenceState_webp(const FrameSequence_webp& frameSequence,
+        int sampleSize) :
+        mFrameSequence(frameSequence),
+        mSampleSize(sampleSize),
+        mWidth(sampledCoordinate(frameSequence.getWidth(), sampleSize)),
+        mHeight(sampledCoordinate(frameSequence.getHeight(), sampleSize)),
+        mDecodeBuffer(NULL) {
     WebPInitDecoderConfig(&mDecoderConfig);
     mDecoderConfig.output.is_external_memory = 1;
     mDecoderConfig.output.colorspace = MODE_rgbA;  // Pre-multiplied alpha mode.
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
-    mPreservedBuffer = new Color8888[canvasWidth * canvasHeight];
+    // When sampling, libwebp scales each frame down to its sampled bounds while emitting rows.
+    mDecoderConfig.options.use_scaling = sampleSize > 1;
 }
 
 FrameSequenceState_webp::~FrameSequenceState_webp() {
-    delete[] mPreservedBuffer;
+    delete[] mDecodeBuffer;
 }
 
-void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Color8888* currBuffer,
-        int currStride, const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride) {
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
-    const bool currFrameIsKeyFrame = mFrameSequence.isKeyFrame(currIter.frame_num - 1);
-
-    if (currFrameIsKeyFrame) {  // Clear canvas.
-        for (int y = 0; y < canvasHeight; y++) {
-            Color8888* dst = currBuffer + y * currStride;
-            clearLine(dst, canvasWidth);
-        }
-    } else {
-        // Preserve previous frame as starting state of current frame.
-        copyFrame(prevBuffer, prevStride, currBuffer, currStride, canvasWidth, canvasHeight);
+// Computes the part of the sampled canvas covered by the frame, as [left, right) x [top, bottom).
+void FrameSequenceState_webp::getSampledBounds(const WebPIterator& iter,
+        int& left, int& top, int& right, int& bottom) {
+    left = sampledCoordinate(iter.x_offset, mSampleSize);
+    top = sampledCoordinate(iter.y_offset, mSampleSize);
+    right = min(sampledCoordinate(iter.x_offset + iter.width, mSampleSize), mWidth);
+    bottom = min(sampledCoordinate(iter.y_offset + iter.height, mSampleSize), mHeight);
+}
 
-        // Dispose previous frame rectangle to Background if needed.
-        bool prevFrameCompletelyCovered =
-                (!currIter.has_alpha || currIter.blend_method == WEBP_MUX_NO_BLEND) &&
-                checkIfCover(currIter, prevIter);
-        if ((prevIter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND) &&
-                !prevFrameCompletelyCovered) {
-            Color8888* dst = currBuffer + prevIter.x_offset + prevIter.y_offset * currStride;
-            for (int j = 0; j < prevIter.height; j++) {
-                clearLine(dst, prevIter.width);
-                dst += currStride;
-            }
-        }
+template <typename Pixel>
+void FrameSequenceState_webp::disposeFrame(const WebPIterator& iter, Pixel* canvas, int stride) {
+    int left, top, right, bottom;
+    getSampledBounds(iter, left, top, right, bottom);
+    Pixel* dst = canvas + left + top * stride;
+    for (int y = top; y < bottom; y++) {
+        clearLine(dst, right - left);
+        dst += stride;
     }
+    mDirtyRect.join(left, top, right, bottom);
 }
 
-bool FrameSequenceState_webp::decodeFrame(const WebPIterator& currIter, Color8888* currBuffer,
-        int currStride, const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride) {
-    Color8888* dst = currBuffer + currIter.x_offset + currIter.y_offset * currStride;
-    mDecoderConfig.output.u.RGBA.rgba = (uint8_t*)dst;
-    mDecoderConfig.output.u.RGBA.stride = currStride * 4;
-    mDecoderConfig.output.u.RGBA.size = mDecoderConfig.output.u.RGBA.stride * currIter.height;
+template <typename Pixel>
+bool FrameSequenceState_webp::decodeFrame(const WebPIterator& iter, Pixel* canvas, int stride) {
+    int left, top, right, bottom;
+    getSampledBounds(iter, left, top, right, bottom);
+    if (right <= left || bottom <= top) {
+        return true;  // Frame falls between sampled pixels.
+    }
+    mDirtyRect.join(left, top, right, bottom);
+
+    // Transparent pixels of a blended frame show the canvas as the previous frame and its
+    // disposal left it. Below a key frame, that's transparent anyway.
+    const bool blend = iter.blend_method == WEBP_MUX_BLEND && iter.has_alpha
+            && !mFrameSequence.isKeyFrame(iter.frame_num - 1);
+
+    // libwebp produces pre-multiplied 8888 pixels: straight onto the canvas if it holds those
+    // and they replace what's there, otherwise into the decode buffer, to be merged below.
+    const bool decodeInPlace = sizeof(Pixel) == sizeof(Color8888) && !blend;
+    Color8888* decodeBuffer;
+    int decodeStride;
+    if (decodeInPlace) {
+        decodeBuffer = (Color8888*) (canvas + left + top * stride);
+        decodeStride = stride;
+    } else {
+        if (!mDecodeBuffer) {
+            mDecodeBuffer = new Color8888[mWidth * mHeight];
+        }
+        decodeBuffer = mDecodeBuffer;
+        decodeStride = right - left;
+    }
+    mDecoderConfig.output.u.RGBA.rgba = (uint8_t*)decodeBuffer;
+    mDecoderConfig.output.u.RGBA.stride = decodeStride * 4;
+    mDecoderConfig.output.u.RGBA.size = mDecoderConfig.output.u.RGBA.stride * (bottom - top);
+    mDecoderConfig.options.scaled_width = right - left;
+    mDecoderConfig.options.scaled_height = bottom - top;
 
-    const WebPData& currFrame = currIter.fragment;
+    const WebPData& currFrame = iter.fragment;
     if (WebPDecode(currFrame.bytes, currFrame.size, &mDecoderConfig) != VP8_STATUS_OK) {
         return false;
     }
+    if (decodeInPlace) {
+        return true;
+    }
 
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
-    const bool currFrameIsKeyFrame = mFrameSequence.isKeyFrame(currIter.frame_num - 1);
-    // During the decoding of current frame, we may have set some pixels to be transparent
-    // (i.e. alpha < 255). However, the value of each of these pixels should have been determined
-    // by blending it against the value of that pixel in the previous frame if WEBP_MUX_BLEND was
-    // specified. So, we correct these pixels based on disposal method of the previous frame and
-    // the previous frame buffer.
-    if (currIter.blend_method == WEBP_MUX_BLEND && !currFrameIsKeyFrame) {
-        if (prevIter.dispose_method == WEBP_MUX_DISPOSE_NONE) {
-            for (int y = 0; y < currIter.height; y++) {
-                const int canvasY = currIter.y_offset + y;
-                for (int x = 0; x < currIter.width; x++) {
-                    const int canvasX = currIter.x_offset + x;
-                    Color8888& currPixel = currBuffer[canvasY * currStride + canvasX];
-                    // FIXME: Use alpha-blending when alpha is between 0 and 255.
-                    if (!(currPixel & COLOR_8888_ALPHA_MASK)) {
-                        const Color8888 prevPixel = prevBuffer[canvasY * prevStride + canvasX];
-                        currPixel = prevPixel;
-                    }
-                }
-            }
-        } else {  // prevIter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND
-            // Need to restore transparent pixels to as they were just after frame initialization.
-            // That is:
-            //   * Transparent if it belongs to previous frame rectangle <-- This is a no-op.
-            //   * Pixel in the previous canvas otherwise <-- Need to restore.
-            for (int y = 0; y < currIter.height; y++) {
-                const int canvasY = currIter.y_offset + y;
-                for (int x = 0; x < currIter.width; x++) {
-                    const int canvasX = currIter.x_offset + x;
-                    Color8888& currPixel = currBuffer[canvasY * currStride + canvasX];
-                    // FIXME: Use alpha-blending when alpha is between 0 and 255.
-                    if (!(currPixel & COLOR_8888_ALPHA_MASK)
-                            && !FrameContainsPixel(prevIter, canvasX, canvasY)) {
-                        const Color8888 prevPixel = prevBuffer[canvasY * prevStride + canvasX];
-                        currPixel = prevPixel;
-                    }
-                }
+    for (int y = top; y < bottom; y++) {
+        const Color8888* src = decodeBuffer + (y - top) * decodeStride;
+        Pixel* dst = canvas + y * stride;
+        for (int x = left; x < right; x++) {
+            const Color8888 decodedPixel = src[x - left];
+            // FIXME: Use alpha-blending when alpha is between 0 and 255.
+            if (!blend || (decodedPixel & COLOR_8888_ALPHA_MASK)) {
+                storeColor(&dst[x], decodedPixel);
             }
         }
     }
@@ -290,6 +276,20 @@ bool FrameSequenceState_webp::decodeFrame(const WebPIterator& currIter, Color888
 
 long FrameSequenceState_webp::drawFrame(int frameNr,
         Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr);
+}
+
+long FrameSequenceState_webp::drawFrame(int frameNr,
+        Color565* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr);
+}
+
+// The output buffer serves as the canvas: frames are composited onto it in place, each only
+// touching its own rectangle and that of the disposed frame before it. Continuing from the
+// frame the buffer already holds thus costs the frames' areas rather than whole canvases.
+template <typename Pixel>
+long FrameSequenceState_webp::drawFrameImpl(int frameNr,
+        Pixel* outputPtr, int outputPixelStride, int previousFrameNr) {
     WebPDemuxer* demux = mFrameSequence.getDemuxer();
     ALOG_ASSERT(demux, "Cannot drawFrame, mDemux is NULL");
 
@@ -297,30 +297,28 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
     ALOGD("  drawFrame called for frame# %d, previous frame# %d", frameNr, previousFrameNr);
 #endif
 
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
-
-    // Find the first frame to be decoded.
-    int start = max(previousFrameNr + 1, 0);
-    int earliestRequired = frameNr;
-    while (earliestRequired > start) {
-        if (mFrameSequence.isKeyFrame(earliestRequired)) {
-            start = earliestRequired;
-            break;
-        }
-        earliestRequired--;
+    // Continue from the previous frame if the buffer holds one, unless a key frame is closer.
+    int start = mFrameSequence.getKeyFrame(frameNr);
+    bool continuing = false;
+    if (previousFrameNr >= start && previousFrameNr < frameNr) {
+        start = previousFrameNr + 1;
+        continuing = true;
     }
 
     WebPIterator currIter;
     WebPIterator prevIter;
-    int ok = WebPDemuxGetFrame(demux, start, &currIter);  // Get frame number 'start - 1'.
-    ALOG_ASSERT(ok, "Could not retrieve frame# %d", start - 1);
-
-    // Use preserve buffer only if needed.
-    Color8888* prevBuffer = (frameNr == 0) ? outputPtr : mPreservedBuffer;
-    int prevStride = (frameNr == 0) ? outputPixelStride : canvasWidth;
-    Color8888* currBuffer = outputPtr;
-    int currStride = outputPixelStride;
+    int ok;
+    if (continuing) {
+        ok = WebPDemuxGetFrame(demux, start, &currIter);  // Get frame number 'start - 1'.
+        ALOG_ASSERT(ok, "Could not retrieve frame# %d", start - 1);
+        mDirtyRect.setEmpty();
+    } else {
+        memset(&currIter, 0, sizeof(currIter));  // No previous frame to dispose.
+        for (int y = 0; y < mHeight; y++) {
+            clearLine(outputPtr + y * outputPixelStride, mWidth);
+        }
+        mDirtyRect.set(0, 0, mWidth, mHeight);
+    }
 
     for (int i = start; i <= frameNr; i++) {
         prevIter = currIter;
@@ -332,34 +330,23 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
               (currIter.dispose_method == WEBP_MUX_DISPOSE_NONE) ? "none" : "background",
               (currIter.blend_method == WEBP_MUX_BLEND) ? "yes" : "no", currIter.duration);
 #endif
-        // We swap the prev/curr buffers as we go.
-        Color8888* tmpBuffer = prevBuffer;
-        prevBuffer = currBuffer;
-        currBuffer = tmpBuffer;
-
-        int tmpStride = prevStride;
-        prevStride = currStride;
-        currStride = tmpStride;
-
-#if WEBP_DEBUG
-        ALOGD("            prev = %p, curr = %p, out = %p, tmp = %p",
-              prevBuffer, currBuffer, outputPtr, mPreservedBuffer);
-#endif
-        // Process this frame.
-        initializeFrame(currIter, currBuffer, currStride, prevIter, prevBuffer, prevStride);
+        // Dispose the previous frame, unless drawing started over from a cleared canvas, or the
+        // current frame replaces all of it.
+        const bool prevFrameCompletelyCovered =
+                (!currIter.has_alpha || currIter.blend_method == WEBP_MUX_NO_BLEND) &&
+                checkIfCover(currIter, prevIter);
+        if ((i > start || continuing) && willBeCleared(prevIter) && !prevFrameCompletelyCovered) {
+            disposeFrame(prevIter, outputPtr, outputPixelStride);
+        }
 
         if (i == frameNr || !willBeCleared(currIter)) {
-            if (!decodeFrame(currIter, currBuffer, currStride, prevIter, prevBuffer, prevStride)) {
+            if (!decodeFrame(currIter, outputPtr, outputPixelStride)) {
                 ALOGE("Error decoding frame# %d", i);
                 return -1;
             }
         }
     }
 
-    if (outputPtr != currBuffer) {
-        copyFrame(currBuffer, currStride, outputPtr, outputPixelStride, canvasWidth, canvasHeight);
-    }
-
     // Return last frame's delay.
     const int frameCount = mFrameSequence.getFrameCount();
     const int lastFrame = (frameNr + frameCount - 1) % frameCount;
@@ -394,12 +381,100 @@ static FrameSequence* createFramesequence(Stream* stream) {
     return new FrameSequence_webp(stream);
 }
 
+// Bytes of a simple format image chunk needed for WebPGetFeatures to parse the bitstream header
+#define BITSTREAM_HEADER_BYTES 32
+
+static int GetLE16(const uint8_t* const data) {
+    return data[0] | (data[1] << 8);
+}
+
+static int GetLE24(const uint8_t* const data) {
+    return GetLE16(data) | (data[2] << 16);
+}
+
+// Walks the RIFF chunks of the file, skipping over all image data. Only the bitstream header of a
+// simple (non VP8X) file is parsed, as that's where its dimensions are stored.
+static bool probeWebP(Stream* stream, FrameSequenceInfo* outInfo) {
+    uint8_t header[RIFF_HEADER_SIZE + CHUNK_HEADER_SIZE + BITSTREAM_HEADER_BYTES];
+    if (stream->read(header, RIFF_HEADER_SIZE) != RIFF_HEADER_SIZE) return false;
+    const uint32_t riffSize = GetLE32(header + TAG_SIZE);
+    if (riffSize > MAX_CHUNK_PAYLOAD || riffSize < TAG_SIZE) return false;
+
+    outInfo->width = 0;
+    outInfo->height = 0;
+    outInfo->opaque = true;
+    outInfo->defaultLoopCount = 0; // as reported by the demuxer for non animated files
+
+    bool extended = false;
+    uint32_t formatFlags = 0;
+    int animationFrames = 0;
+    int imageChunks = 0;
+    size_t remaining = riffSize - TAG_SIZE;
+    uint8_t* const chunkHeader = header + RIFF_HEADER_SIZE;
+    while (remaining >= CHUNK_HEADER_SIZE) {
+        if (stream->read(chunkHeader, CHUNK_HEADER_SIZE) != CHUNK_HEADER_SIZE) return false;
+        remaining -= CHUNK_HEADER_SIZE;
+        const uint32_t fourcc = GetLE32(chunkHeader);
+        const uint32_t payloadSize = GetLE32(chunkHeader + TAG_SIZE);
+        if (payloadSize > remaining) return false;
+        const size_t paddedSize = min(payloadSize + (payloadSize & 1), remaining);
+        remaining -= paddedSize;
+
+        uint8_t* const payload = chunkHeader + CHUNK_HEADER_SIZE;
+        size_t consumed = 0;
+        if (fourcc == MKFOURCC('V', 'P', '8', 'X') && payloadSize >= VP8X_CHUNK_SIZE) {
+            consumed = VP8X_CHUNK_SIZE;
+            if (stream->read(payload, consumed) != consumed) return false;
+            extended = true;
+            formatFlags = payload[0];
+            outInfo->width = 1 + GetLE24(payload + 4);
+            outInfo->height = 1 + GetLE24(payload + 7);
+        } else if (fourcc == MKFOURCC('A', 'N', 'I', 'M') && payloadSize >= 6) {
+            // background color, followed by the loop count
+            consumed = 6;
+            if (stream->read(payload, consumed) != consumed) return false;
+            outInfo->defaultLoopCount = GetLE16(payload + 4);
+        } else if (fourcc == MKFOURCC('A', 'N', 'M', 'F')) {
+            animationFrames++;
+        } else if (fourcc == MKFOURCC('V', 'P', '8', ' ')
+                || fourcc == MKFOURCC('V', 'P', '8', 'L')) {
+            imageChunks++;
+            if (!extended) {
+                consumed = min(payloadSize, (uint32_t) BITSTREAM_HEADER_BYTES);
+                if (stream->read(payload, consumed) != consumed) return false;
+                WebPBitstreamFeatures features;
+                if (WebPGetFeatures(header, RIFF_HEADER_SIZE + CHUNK_HEADER_SIZE + consumed,
+                        &features) != VP8_STATUS_OK) {
+                    return false;
+                }
+                outInfo->width = features.width;
+                outInfo->height = features.height;
+                outInfo->opaque = !features.has_alpha;
+            }
+        }
+        if (stream->skip(paddedSize - consumed) != paddedSize - consumed) return false;
+
+        // a simple format file holds a single image and nothing else of interest
+        if (!extended && imageChunks) break;
+    }
+
+    outInfo->frameCount = imageChunks ? 1 : 0;
+    if (extended) {
+        outInfo->opaque = !(formatFlags & ALPHA_FLAG);
+        if (formatFlags & ANIMATION_FLAG) {
+            outInfo->frameCount = animationFrames;
+        }
+    }
+    return true;
+}
+
 static RegistryEntry gEntry = {
         RIFF_HEADER_SIZE,
         isWebP,
         createFramesequence,
         NULL,
         acceptsWebPBuffer,
+        probeWebP,
 };
 static Registry gRegister(gEntry);
 
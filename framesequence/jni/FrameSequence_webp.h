@@ -64,12 +64,15 @@ public:
         return mRawByteBuffer;
     }
 
-    virtual FrameSequenceState* createState() const;
+    virtual FrameSequenceState* createState(int sampleSize) const;
 
     WebPDemuxer* getDemuxer() const { return mDemux; }
 
     bool isKeyFrame(size_t frameNr) const { return mIsKeyFrame[frameNr]; }
 
+    // Returns the latest key frame at or before frameNr.
+    virtual int getKeyFrame(int frameNr) const { return mKeyFrames[frameNr]; }
+
 private:
     void constructDependencyChain();
 
@@ -79,28 +82,42 @@ private:
     uint32_t mFormatFlags;
     // mIsKeyFrame[i] is true if ith canvas can be constructed without decoding any prior frames.
     bool* mIsKeyFrame;
+    // mKeyFrames[i] is the latest key frame at or before frame i, so that drawing frame i from
+    // scratch requires decoding frames mKeyFrames[i] through i.
+    int* mKeyFrames;
     jobject mRawByteBuffer = nullptr;
 };
 
 // Produces frames of a possibly-animated WebP file for display.
 class FrameSequenceState_webp : public FrameSequenceState {
 public:
-    FrameSequenceState_webp(const FrameSequence_webp& frameSequence);
+    FrameSequenceState_webp(const FrameSequence_webp& frameSequence, int sampleSize);
     virtual ~FrameSequenceState_webp();
 
     // Returns frame's delay time in milliseconds.
     virtual long drawFrame(int frameNr,
             Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
+    virtual long drawFrame(int frameNr,
+            Color565* outputPtr, int outputPixelStride, int previousFrameNr);
 
 private:
-    void initializeFrame(const WebPIterator& currIter, Color8888* currBuffer, int currStride,
-            const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride);
-    bool decodeFrame(const WebPIterator& iter, Color8888* currBuffer, int currStride,
-            const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride);
+    template <typename Pixel>
+    long drawFrameImpl(int frameNr, Pixel* outputPtr, int outputPixelStride, int previousFrameNr);
+    template <typename Pixel>
+    void disposeFrame(const WebPIterator& iter, Pixel* canvas, int stride);
+    template <typename Pixel>
+    bool decodeFrame(const WebPIterator& iter, Pixel* canvas, int stride);
+    void getSampledBounds(const WebPIterator& iter, int& left, int& top, int& right, int& bottom);
 
     const FrameSequence_webp& mFrameSequence;
+    const int mSampleSize;
+    // Dimensions of the sampled canvas, which the output and preserved buffers hold.
+    const int mWidth;
+    const int mHeight;
     WebPDecoderConfig mDecoderConfig;
-    Color8888* mPreservedBuffer;
+    // Frames are decoded here before being blended onto the canvas or converted to Color565
+    // pixels, allocated on first use.
+    Color8888* mDecodeBuffer;
 };
 
 #endif //RASTERMILL_FRAMESQUENCE_WEBP_H
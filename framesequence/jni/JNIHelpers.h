@@ -22,6 +22,7 @@
 #define METHOD_COUNT(methodArray) (sizeof(methodArray) / sizeof((methodArray)[0]))
 
 #define ILLEGAL_STATE_EXEPTION "java/lang/IllegalStateException"
+#define ILLEGAL_ARGUMENT_EXCEPTION "java/lang/IllegalArgumentException"
 
 void jniThrowException(JNIEnv* env, const char* className, const char* msg);
 
@@ -16,44 +16,73 @@
 
 #include "Registry.h"
 
+#include <pthread.h>
+#include <string.h>
+
 #include "Stream.h"
 
+// Entries are only ever prepended, and never removed, so a snapshot of the head can be walked
+// without holding the lock
+static pthread_mutex_t gLock = PTHREAD_MUTEX_INITIALIZER;
 static Registry* gHead = 0;
 static int gHeaderBytesRequired = 0;
 
 Registry::Registry(const RegistryEntry& entry) {
     mImpl = entry;
 
+    pthread_mutex_lock(&gLock);
     mNext = gHead;
     gHead = this;
 
     if (gHeaderBytesRequired < entry.requiredHeaderBytes) {
         gHeaderBytesRequired = entry.requiredHeaderBytes;
     }
+    pthread_mutex_unlock(&gLock);
+}
+
+void Registry::Register(const RegistryEntry& entry) {
+    new Registry(entry);
+}
+
+int framesequence_register_format(const RegistryEntry* entry, size_t entrySize) {
+    if (!entry || entrySize < offsetof(RegistryEntry, createFrameSequence) + sizeof(void*)) {
+        return -1;
+    }
+    // Fields added after the caller was built stay zero
+    RegistryEntry copy;
+    memset(&copy, 0, sizeof(copy));
+    memcpy(&copy, entry, entrySize < sizeof(copy) ? entrySize : sizeof(copy));
+    if (!copy.checkHeader || !copy.createFrameSequence || copy.requiredHeaderBytes <= 0) {
+        return -1;
+    }
+    Registry::Register(copy);
+    return 0;
 }
 
 const RegistryEntry* Registry::Find(Stream* stream) {
+    pthread_mutex_lock(&gLock);
     Registry* registry = gHead;
+    int headerSize = gHeaderBytesRequired;
+    pthread_mutex_unlock(&gLock);
 
+    char headerStorage[headerSize];
+    void* header = headerStorage;
     if (stream->getRawBuffer() != NULL) {
-        while (registry) {
-            if (registry->mImpl.acceptsBuffer()) {
-                return &(registry->mImpl);
-            }
-            registry = registry->mNext;
+        // Don't peek, as that would consume the start of the buffer. Decoders that don't accept
+        // buffers just read through the stream, and don't keep a reference to the buffer.
+        header = stream->getRawBufferAddr();
+        if (stream->getRawBufferSize() < headerSize) {
+            headerSize = stream->getRawBufferSize();
         }
     } else {
-        int headerSize = gHeaderBytesRequired;
-        char header[headerSize];
-        headerSize = stream->peek(header, headerSize);
-        while (registry) {
-            if (headerSize >= registry->mImpl.requiredHeaderBytes
-                    && registry->mImpl.checkHeader(header, headerSize)) {
-                return &(registry->mImpl);
-            }
-            registry = registry->mNext;
+        headerSize = stream->peek(headerStorage, headerSize);
+    }
+    while (registry) {
+        if (headerSize >= registry->mImpl.requiredHeaderBytes
+                && registry->mImpl.checkHeader(header, headerSize)) {
+            return &(registry->mImpl);
         }
+        registry = registry->mNext;
     }
     return 0;
 }
-
@@ -18,18 +18,33 @@
 #define RASTERMILL_REGISTRY_H
 
 #include "jni.h"
+#include <stddef.h>
 #include <stdint.h>
 
 class FrameSequence;
+struct FrameSequenceInfo;
 class Decoder;
 class Stream;
 
+/**
+ * Describes a format: how to recognize it from the first requiredHeaderBytes of a stream, and how
+ * to create a FrameSequence (and optionally a Decoder, or probe the stream without creating
+ * anything) for it.
+ *
+ * Formats built into the library register themselves with a static Registry. Formats built into
+ * other native libraries, against this header, are registered at runtime with
+ * framesequence_register_format, see below.
+ *
+ * Fields are only ever appended to this struct, never reordered or removed, so that entries built
+ * against an older version of this header remain valid. Optional fields may be NULL.
+ */
 struct RegistryEntry {
     int requiredHeaderBytes;
     bool (*checkHeader)(void* header, int header_size);
     FrameSequence* (*createFrameSequence)(Stream* stream);
     Decoder* (*createDecoder)(Stream* stream);
     bool (*acceptsBuffer)();
+    bool (*probe)(Stream* stream, FrameSequenceInfo* outInfo);
 };
 
 /**
@@ -38,11 +53,18 @@ struct RegistryEntry {
  *
  * The super class / root constructable type only needs to define a single static construction
  * meathod that creates an instance by iterating through all factory methods.
+ *
+ * Entries registered later take precedence over earlier ones recognizing the same header.
  */
 class Registry {
 public:
     Registry(const RegistryEntry& entry);
 
+    /**
+     * Registers a format at runtime. Safe to call concurrently with Find.
+     */
+    static void Register(const RegistryEntry& entry);
+
     static const RegistryEntry* Find(Stream* stream);
 
 private:
@@ -50,4 +72,22 @@ private:
     Registry* mNext;
 };
 
+/**
+ * Registers a format implemented in another native library, typically from its JNI_OnLoad. The
+ * library links against libframesequence, which must be loaded first, and passes the size of the
+ * RegistryEntry it was built with, as RASTERMILL_REGISTER_FORMAT does. Fields that postdate the
+ * library's version of this header are treated as NULL.
+ *
+ * The entry is copied, but the library must stay loaded for the life of the process. Formats
+ * registered later take precedence over earlier and built-in ones.
+ *
+ * Returns 0 on success, or -1 if the entry lacks checkHeader, createFrameSequence or a positive
+ * requiredHeaderBytes.
+ */
+extern "C" __attribute__((visibility("default")))
+int framesequence_register_format(const RegistryEntry* entry, size_t entrySize);
+
+#define RASTERMILL_REGISTER_FORMAT(entry) \
+        framesequence_register_format(&(entry), sizeof(RegistryEntry))
+
 #endif // RASTERMILL_REGISTRY_H
@@ -79,6 +79,37 @@ size_t Stream::read(void* buffer, size_t size) {
     return bytes_read;
 }
 
+size_t Stream::skip(size_t size) {
+    size_t bytes_skipped = 0;
+    size_t peek_remaining = mPeekSize - mPeekOffset;
+    if (peek_remaining) {
+        // consume the peeked bytes through read(), which releases the peek buffer
+        char scratch[256];
+        while (size && mPeekSize - mPeekOffset) {
+            size_t skipped = read(scratch, min(size, sizeof(scratch)));
+            bytes_skipped += skipped;
+            size -= skipped;
+        }
+    }
+    if (size) {
+        bytes_skipped += doSkip(size);
+    }
+    return bytes_skipped;
+}
+
+size_t Stream::doSkip(size_t size) {
+    char scratch[1024];
+    size_t bytes_skipped = 0;
+    while (size) {
+        size_t requested = min(size, sizeof(scratch));
+        size_t skipped = doRead(scratch, requested);
+        bytes_skipped += skipped;
+        size -= skipped;
+        if (skipped < requested) break;
+    }
+    return bytes_skipped;
+}
+
 uint8_t* Stream::getRawBufferAddr() {
     return NULL;
 }
@@ -91,6 +122,10 @@ int Stream::getRawBufferSize() {
     return 0;
 }
 
+bool Stream::hasFailed() {
+    return false;
+}
+
 uint8_t* MemoryStream::getRawBufferAddr() {
     return mBuffer;
 }
@@ -115,11 +150,25 @@ size_t MemoryStream::doRead(void* buffer, size_t size) {
     return size;
 }
 
+size_t MemoryStream::doSkip(size_t size) {
+    size = min(size, mRemaining);
+    mBuffer += size;
+    mRemaining -= size;
+    return size;
+}
+
 size_t FileStream::doRead(void* buffer, size_t size) {
     return fread(buffer, 1, size, mFd);
 }
 
+bool JavaInputStream::hasFailed() {
+    return mFailed;
+}
+
 size_t JavaInputStream::doRead(void* dstBuffer, size_t size) {
+    if (mFailed) {
+        return 0;
+    }
     size_t totalBytesRead = 0;
 
     do {
@@ -127,9 +176,15 @@ size_t JavaInputStream::doRead(void* dstBuffer, size_t size) {
 
         jint bytesRead = mEnv->CallIntMethod(mInputStream,
                 gInputStreamClassInfo.read, mByteArray, 0, requested);
-        if (mEnv->ExceptionCheck() || bytesRead < 0) {
+        if (mEnv->ExceptionCheck()) {
+            mFailed = true;
             return 0;
         }
+        if (bytesRead < 0) {
+            // report what was read before the end of the stream, callers reading in chunks
+            // (rather than exact record sizes) rely on the final partial chunk
+            return totalBytesRead;
+        }
 
         mEnv->GetByteArrayRegion(mByteArray, 0, bytesRead, (jbyte*)dstBuffer);
         dstBuffer = (char*)dstBuffer + bytesRead;
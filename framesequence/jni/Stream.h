@@ -28,12 +28,18 @@ public:
 
     size_t peek(void* buffer, size_t size);
     size_t read(void* buffer, size_t size);
+    size_t skip(size_t size);
     virtual uint8_t* getRawBufferAddr();
     virtual jobject getRawBuffer();
     virtual int getRawBufferSize();
+    // Whether reading failed for other reasons than reaching the end, in which case the contents
+    // read can't be trusted to be complete
+    virtual bool hasFailed();
 
 protected:
     virtual size_t doRead(void* buffer, size_t size) = 0;
+    // Default implementation reads into scratch storage
+    virtual size_t doSkip(size_t size);
 
 private:
     char* mPeekBuffer;
@@ -53,6 +59,7 @@ public:
 
 protected:
     virtual size_t doRead(void* buffer, size_t size);
+    virtual size_t doSkip(size_t size);
 
 private:
     uint8_t* mBuffer;
@@ -71,13 +78,18 @@ private:
     FILE* mFd;
 };
 
+// Reads a java.io.InputStream through a caller supplied byte array. The array is pooled on the
+// Java side and returned to the pool as soon as the decode call returns, so neither the array
+// nor the stream may be used after that.
 class JavaInputStream : public Stream {
 public:
     JavaInputStream(JNIEnv* env, jobject inputStream, jbyteArray byteArray) :
             mEnv(env),
             mInputStream(inputStream),
             mByteArray(byteArray),
-            mByteArrayLength(env->GetArrayLength(byteArray)) {}
+            mByteArrayLength(env->GetArrayLength(byteArray)),
+            mFailed(false) {}
+    virtual bool hasFailed();
 
 protected:
     virtual size_t doRead(void* buffer, size_t size);
@@ -87,6 +99,8 @@ private:
     const jobject mInputStream;
     const jbyteArray mByteArray;
     const size_t mByteArrayLength;
+    // set once the stream threw, no JNI calls may be made with the exception pending
+    bool mFailed;
 };
 
 jint JavaStream_OnLoad(JNIEnv* env);
@@ -103,6 +103,8 @@ public class FrameSequenceTest extends Activity {
 
         FrameSequence fs = FrameSequence.decodeStream(is);
         mDrawable = new FrameSequenceDrawable(fs, mProvider);
+        // the drawable holds on to the native decoder until it is destroyed
+        fs.close();
         mDrawable.setOnFinishedListener(new FrameSequenceDrawable.OnFinishedListener() {
             @Override
             public void onFinished(FrameSequenceDrawable drawable) {
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Coordinates the decoding of FrameSequenceDrawables across the process, see
+ * {@link FrameSequenceDrawable#setAnimationCoordinator(AnimationCoordinator)}.
+ *
+ * <ul>
+ * <li>Drawables that are invisible, or that haven't been drawn for a while after asking to be
+ * (e.g. because their view was scrolled off-screen or their window hidden), stop decoding until
+ * they are drawn again. They then continue with the frame after the one they were showing.</li>
+ * <li>At most a fixed number of decodes start per display frame. Further decodes are deferred
+ * to later frames, higher priority drawables first, so that many animations becoming due at
+ * once don't all compete with the UI thread in the same frame.</li>
+ * <li>Drawables decoding at {@link DecodeExecutor#PRIORITY_LOW} are limited to a lower frame
+ * rate.</li>
+ * </ul>
+ */
+public class AnimationCoordinator {
+    private static final long FRAME_INTERVAL_MS = 16;
+    private static final int DEFAULT_DECODES_PER_FRAME = 4;
+    private static final long DEFAULT_OFFSCREEN_TIMEOUT_MS = 500;
+    private static final long DEFAULT_LOW_PRIORITY_FRAME_INTERVAL_MS = 100;
+
+    private static final Object sLock = new Object();
+    private static AnimationCoordinator sDefaultCoordinator;
+
+    public static AnimationCoordinator getDefault() {
+        synchronized (sLock) {
+            if (sDefaultCoordinator == null) {
+                sDefaultCoordinator = new AnimationCoordinator(DEFAULT_DECODES_PER_FRAME);
+            }
+            return sDefaultCoordinator;
+        }
+    }
+
+    private final int mDecodesPerFrame;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile long mOffscreenTimeoutMs = DEFAULT_OFFSCREEN_TIMEOUT_MS;
+    private volatile long mLowPriorityFrameIntervalMs = DEFAULT_LOW_PRIORITY_FRAME_INTERVAL_MS;
+
+    // Protects the fields below
+    private final Object mLock = new Object();
+
+    // Display frame the decodes are being counted for, as uptime / FRAME_INTERVAL_MS
+    private long mFrame;
+    private int mFrameDecodeCount;
+    private final PriorityQueue<Request> mDeferred = new PriorityQueue<Request>();
+    private boolean mDispatchPosted;
+    private long mSequence;
+
+    private long mGrantedCount;
+    private long mDeferredCount;
+    private long mPausedCount;
+
+    public AnimationCoordinator(int decodesPerFrame) {
+        if (decodesPerFrame < 1) {
+            throw new IllegalArgumentException("decodesPerFrame must be positive");
+        }
+        mDecodesPerFrame = decodesPerFrame;
+    }
+
+    public int getDecodesPerFrame() {
+        return mDecodesPerFrame;
+    }
+
+    /**
+     * Set how long a drawable may go undrawn after invalidating itself for a new frame before it
+     * is considered off-screen and stops decoding. Defaults to 500ms.
+     */
+    public void setOffscreenTimeoutMs(long offscreenTimeoutMs) {
+        if (offscreenTimeoutMs < 0) throw new IllegalArgumentException();
+        mOffscreenTimeoutMs = offscreenTimeoutMs;
+    }
+
+    public long getOffscreenTimeoutMs() {
+        return mOffscreenTimeoutMs;
+    }
+
+    /**
+     * Set the shortest time a {@link DecodeExecutor#PRIORITY_LOW} drawable shows each frame for.
+     * Defaults to 100ms, i.e. at most 10 frames per second.
+     */
+    public void setLowPriorityFrameIntervalMs(long frameIntervalMs) {
+        if (frameIntervalMs < 0) throw new IllegalArgumentException();
+        mLowPriorityFrameIntervalMs = frameIntervalMs;
+    }
+
+    public long getLowPriorityFrameIntervalMs() {
+        return mLowPriorityFrameIntervalMs;
+    }
+
+    /**
+     * Shortest time a drawable decoding at the given priority shows each frame for.
+     */
+    long getMinFrameIntervalMs(int priority) {
+        return priority == DecodeExecutor.PRIORITY_LOW ? mLowPriorityFrameIntervalMs : 0;
+    }
+
+    /**
+     * Called by a drawable that wants to start decoding its next frame.
+     *
+     * @return true if the decode may start now. Otherwise, a drawable that is on screen is
+     *         granted the decode through {@link FrameSequenceDrawable#onDecodeGranted()} in a
+     *         later frame, provided it's still on screen then, and one that isn't has to ask
+     *         again once it is drawn.
+     */
+    boolean requestDecode(FrameSequenceDrawable drawable, int priority, boolean onScreen) {
+        synchronized (mLock) {
+            if (!onScreen) {
+                mPausedCount++;
+                return false;
+            }
+            startFrameLocked(SystemClock.uptimeMillis());
+            if (mDeferred.isEmpty() && mFrameDecodeCount < mDecodesPerFrame) {
+                mFrameDecodeCount++;
+                mGrantedCount++;
+                return true;
+            }
+            mDeferred.add(new Request(drawable, priority, mSequence++));
+            mDeferredCount++;
+            if (!mDispatchPosted) {
+                mDispatchPosted = true;
+                mHandler.postAtTime(mDispatchRunnable, (mFrame + 1) * FRAME_INTERVAL_MS);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Drops the drawable's deferred decode, if any, e.g. when it's stopped or destroyed.
+     */
+    void cancelDecode(FrameSequenceDrawable drawable) {
+        synchronized (mLock) {
+            Iterator<Request> it = mDeferred.iterator();
+            while (it.hasNext()) {
+                if (it.next().mDrawable == drawable) it.remove();
+            }
+        }
+    }
+
+    private void startFrameLocked(long now) {
+        final long frame = now / FRAME_INTERVAL_MS;
+        if (frame != mFrame) {
+            mFrame = frame;
+            mFrameDecodeCount = 0;
+        }
+    }
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<FrameSequenceDrawable> granted = new ArrayList<FrameSequenceDrawable>();
+            ArrayList<FrameSequenceDrawable> paused = new ArrayList<FrameSequenceDrawable>();
+            synchronized (mLock) {
+                final long now = SystemClock.uptimeMillis();
+                startFrameLocked(now);
+                while (!mDeferred.isEmpty() && mFrameDecodeCount < mDecodesPerFrame) {
+                    // drawables that went off-screen while deferred don't use up the budget
+                    final FrameSequenceDrawable drawable = mDeferred.poll().mDrawable;
+                    if (!drawable.isDecodeOnScreen(now, mOffscreenTimeoutMs)) {
+                        paused.add(drawable);
+                        mPausedCount++;
+                        continue;
+                    }
+                    granted.add(drawable);
+                    mFrameDecodeCount++;
+                    mGrantedCount++;
+                }
+                if (mDeferred.isEmpty()) {
+                    mDispatchPosted = false;
+                } else {
+                    mHandler.postAtTime(this, (mFrame + 1) * FRAME_INTERVAL_MS);
+                }
+            }
+            for (FrameSequenceDrawable drawable : paused) {
+                drawable.onDecodePaused();
+            }
+            for (FrameSequenceDrawable drawable : granted) {
+                drawable.onDecodeGranted();
+            }
+        }
+    };
+
+    /**
+     * Number of decodes that were allowed to start, immediately or in a later frame.
+     */
+    public long getGrantedDecodeCount() {
+        synchronized (mLock) {
+            return mGrantedCount;
+        }
+    }
+
+    /**
+     * Number of decodes that exceeded the budget of their frame and were deferred.
+     */
+    public long getDeferredDecodeCount() {
+        synchronized (mLock) {
+            return mDeferredCount;
+        }
+    }
+
+    /**
+     * Number of decodes that weren't started because their drawable was off-screen.
+     */
+    public long getPausedDecodeCount() {
+        synchronized (mLock) {
+            return mPausedCount;
+        }
+    }
+
+    public void resetStatistics() {
+        synchronized (mLock) {
+            mGrantedCount = 0;
+            mDeferredCount = 0;
+            mPausedCount = 0;
+        }
+    }
+
+    private static class Request implements Comparable<Request> {
+        final FrameSequenceDrawable mDrawable;
+        final int mPriority;
+        final long mSequence;
+
+        Request(FrameSequenceDrawable drawable, int priority, long sequence) {
+            mDrawable = drawable;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Thread safe BitmapProvider that keeps released Bitmaps for reuse by later acquireBitmap
+ * calls, e.g. by the drawables of list items being recycled, instead of allocating new ones.
+ *
+ * Released Bitmaps are kept in buckets by the size of their allocation. From API 19 on, a pooled
+ * Bitmap whose allocation is large enough is reconfigured to the requested dimensions, otherwise
+ * only Bitmaps at least as large as requested in both dimensions are reused. A Bitmap is never
+ * reused for a request needing less than half its bytes, so that small frames don't tie up large
+ * Bitmaps. Once the pooled Bitmaps exceed the byte limit given at construction, the ones released
+ * longest ago are dropped and left to the garbage collector.
+ *
+ * Acquired Bitmaps have undefined contents, FrameSequenceDrawable draws every frame it acquires a
+ * Bitmap for from scratch.
+ */
+public class BitmapPool implements FrameSequenceDrawable.BitmapProvider {
+    private static final String TAG = "FrameSequence";
+
+    // Largest ratio of a pooled Bitmap's bytes to the bytes requested for it to be reused
+    private static final int MAX_SIZE_RATIO = 2;
+
+    // Bitmap.reconfigure and getAllocationByteCount are only available from API 19 on
+    private static final Method sReconfigure;
+    private static final Method sGetAllocationByteCount;
+    static {
+        Method reconfigure = null;
+        Method getAllocationByteCount = null;
+        try {
+            reconfigure = Bitmap.class.getMethod("reconfigure",
+                    int.class, int.class, Bitmap.Config.class);
+            getAllocationByteCount = Bitmap.class.getMethod("getAllocationByteCount");
+        } catch (NoSuchMethodException e) {
+            // before API 19, Bitmaps are only reused at their own dimensions
+            reconfigure = null;
+        }
+        sReconfigure = reconfigure;
+        sGetAllocationByteCount = getAllocationByteCount;
+    }
+
+    private final long mMaxBytes;
+    private final Bitmap.Config mConfig;
+    private final int mBytesPerPixel;
+
+    // Protects the fields below
+    private final Object mLock = new Object();
+
+    // pooled Bitmaps by allocation size, each list in the order its Bitmaps were released
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets =
+            new TreeMap<Integer, ArrayList<Bitmap>>();
+    // all pooled Bitmaps, released longest ago first
+    private final LinkedList<Bitmap> mReleaseOrder = new LinkedList<Bitmap>();
+    private long mBytes;
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Create a pool of ARGB_8888 Bitmaps, retaining at most maxBytes of released Bitmaps.
+     */
+    public BitmapPool(long maxBytes) {
+        this(maxBytes, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Create a pool of Bitmaps of the given config, which must be ARGB_8888, or RGB_565 for
+     * drawables of opaque FrameSequences only.
+     */
+    public BitmapPool(long maxBytes, Bitmap.Config config) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        if (config == Bitmap.Config.ARGB_8888) {
+            mBytesPerPixel = 4;
+        } else if (config == Bitmap.Config.RGB_565) {
+            mBytesPerPixel = 2;
+        } else {
+            throw new IllegalArgumentException("Unsupported config " + config);
+        }
+        mMaxBytes = maxBytes;
+        mConfig = config;
+    }
+
+    @Override
+    public Bitmap acquireBitmap(int minWidth, int minHeight) {
+        final long bytes = (long) mBytesPerPixel * minWidth * minHeight;
+        Bitmap bitmap = null;
+        synchronized (mLock) {
+            if (bytes <= Integer.MAX_VALUE) {
+                bitmap = takeLocked(minWidth, minHeight, (int) bytes);
+            }
+            if (bitmap != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(minWidth, minHeight, mConfig);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds the Bitmap to the pool. Bitmaps that are recycled, immutable, of another config, or
+     * larger than the pool are dropped instead. The Bitmap must not be used after this, nor
+     * released again.
+     */
+    @Override
+    public void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null) throw new IllegalArgumentException("bitmap must not be null");
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != mConfig) return;
+
+        final int bytes = getAllocationBytes(bitmap);
+        if (bytes > mMaxBytes) return;
+        synchronized (mLock) {
+            ArrayList<Bitmap> bucket = mBuckets.get(bytes);
+            if (bucket == null) {
+                bucket = new ArrayList<Bitmap>();
+                mBuckets.put(bytes, bucket);
+            }
+            bucket.add(bitmap);
+            mReleaseOrder.add(bitmap);
+            mBytes += bytes;
+            trimLocked(mMaxBytes);
+        }
+    }
+
+    /**
+     * Drops all pooled Bitmaps.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            trimLocked(0);
+        }
+    }
+
+    /**
+     * Total allocation size of the pooled Bitmaps.
+     */
+    public long getSizeBytes() {
+        synchronized (mLock) {
+            return mBytes;
+        }
+    }
+
+    public long getMaxSizeBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Number of acquireBitmap calls served with a pooled Bitmap.
+     */
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    /**
+     * Number of acquireBitmap calls that allocated a new Bitmap.
+     */
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    public void resetStatistics() {
+        synchronized (mLock) {
+            mHitCount = 0;
+            mMissCount = 0;
+        }
+    }
+
+    /**
+     * Removes and returns the smallest pooled Bitmap, most recently released first, that can hold
+     * a minWidth x minHeight frame, reconfigured to those dimensions if possible.
+     */
+    private Bitmap takeLocked(int minWidth, int minHeight, int bytes) {
+        final long maxBytes = (long) bytes * MAX_SIZE_RATIO;
+        for (Integer bucketBytes : mBuckets.tailMap(bytes).keySet()) {
+            if (bucketBytes > maxBytes) break;
+            ArrayList<Bitmap> bucket = mBuckets.get(bucketBytes);
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = bucket.get(i);
+                if (!reconfigure(bitmap, minWidth, minHeight)
+                        && (bitmap.getWidth() < minWidth || bitmap.getHeight() < minHeight)) {
+                    continue;
+                }
+                bucket.remove(i);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(bucketBytes);
+                }
+                mReleaseOrder.remove(bitmap);
+                mBytes -= bucketBytes;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private void trimLocked(long maxBytes) {
+        Iterator<Bitmap> it = mReleaseOrder.iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            final int bytes = getAllocationBytes(bitmap);
+            ArrayList<Bitmap> bucket = mBuckets.get(bytes);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(bytes);
+            }
+            mBytes -= bytes;
+        }
+    }
+
+    private boolean reconfigure(Bitmap bitmap, int width, int height) {
+        if (sReconfigure == null) return false;
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height) return true;
+        try {
+            sReconfigure.invoke(bitmap, width, height, mConfig);
+            return true;
+        } catch (InvocationTargetException e) {
+            // the allocation is too small after all
+            return false;
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "Bitmap.reconfigure inaccessible", e);
+            return false;
+        }
+    }
+
+    private static int getAllocationBytes(Bitmap bitmap) {
+        if (sGetAllocationByteCount != null) {
+            try {
+                return (Integer) sGetAllocationByteCount.invoke(bitmap);
+            } catch (InvocationTargetException e) {
+                // fall through
+            } catch (IllegalAccessException e) {
+                // fall through
+            }
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
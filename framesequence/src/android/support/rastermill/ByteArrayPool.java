@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+/**
+ * Thread safe pool of equally sized byte arrays, retaining at most a fixed number of arrays
+ * between uses. Used for the temporary storage that streams are read through while decoding.
+ */
+public final class ByteArrayPool {
+    private final int mArraySize;
+    private final byte[][] mFreeArrays;
+
+    // Protects the fields below
+    private final Object mLock = new Object();
+
+    private int mFreeCount;
+    private int mOutstanding;
+    private int mPeakOutstanding;
+    private long mAcquireCount;
+    private long mHitCount;
+
+    public ByteArrayPool(int arraySize, int maxRetained) {
+        if (arraySize <= 0 || maxRetained < 0) throw new IllegalArgumentException();
+        mArraySize = arraySize;
+        mFreeArrays = new byte[maxRetained][];
+    }
+
+    public int getArraySize() {
+        return mArraySize;
+    }
+
+    /**
+     * Returns an array of {@link #getArraySize()} bytes, which should be handed back with
+     * {@link #release(byte[])} once the caller is done with it.
+     */
+    public byte[] acquire() {
+        synchronized (mLock) {
+            mAcquireCount++;
+            mOutstanding++;
+            if (mOutstanding > mPeakOutstanding) {
+                mPeakOutstanding = mOutstanding;
+            }
+            if (mFreeCount > 0) {
+                mHitCount++;
+                byte[] array = mFreeArrays[--mFreeCount];
+                mFreeArrays[mFreeCount] = null;
+                return array;
+            }
+        }
+        return new byte[mArraySize];
+    }
+
+    public void release(byte[] array) {
+        if (array == null || array.length != mArraySize) {
+            throw new IllegalArgumentException("array not acquired from this pool");
+        }
+        synchronized (mLock) {
+            mOutstanding--;
+            if (mFreeCount < mFreeArrays.length) {
+                mFreeArrays[mFreeCount++] = array;
+            }
+        }
+    }
+
+    /**
+     * Fraction of acquire() calls served from the pool without allocating.
+     */
+    public float getHitRate() {
+        synchronized (mLock) {
+            return mAcquireCount == 0 ? 0 : (float) mHitCount / mAcquireCount;
+        }
+    }
+
+    /**
+     * Largest number of arrays that were acquired and not yet released at the same time. When
+     * this exceeds the number of retained arrays, the pool is too small for the workload.
+     */
+    public int getPeakOutstanding() {
+        synchronized (mLock) {
+            return mPeakOutstanding;
+        }
+    }
+
+    public void resetStatistics() {
+        synchronized (mLock) {
+            mAcquireCount = 0;
+            mHitCount = 0;
+            mPeakOutstanding = mOutstanding;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of background threads that FrameSequenceDrawables decode their frames on.
+ *
+ * Tasks posted with the same key (one key per drawable) are run in the order they were posted,
+ * and never concurrently, since they share a single FrameSequence.State. Tasks with different
+ * keys run in parallel on up to {@link #getThreadCount()} threads, higher priority first.
+ */
+public class DecodeExecutor {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    private static final int MAX_DEFAULT_THREADS = 4;
+
+    private static final Object sLock = new Object();
+    private static DecodeExecutor sDefaultExecutor;
+
+    /**
+     * Returns the executor shared by all drawables that weren't constructed with their own,
+     * sized to leave at least one core for the UI thread.
+     */
+    public static DecodeExecutor getDefault() {
+        synchronized (sLock) {
+            if (sDefaultExecutor == null) {
+                int cores = Runtime.getRuntime().availableProcessors();
+                sDefaultExecutor = new DecodeExecutor(
+                        Math.max(1, Math.min(cores - 1, MAX_DEFAULT_THREADS)));
+            }
+            return sDefaultExecutor;
+        }
+    }
+
+    private final int mThreadCount;
+    private final ThreadPoolExecutor mPool;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mMissedDeadlines = new AtomicLong();
+
+    // Per key queues of tasks waiting on an earlier task with the same key. A key is present
+    // in the map only while one of its tasks is queued in, or running on, the pool.
+    private final HashMap<Object, LinkedList<Task>> mSerialQueues =
+            new HashMap<Object, LinkedList<Task>>();
+
+    public DecodeExecutor(int threadCount) {
+        if (threadCount < 1) throw new IllegalArgumentException("threadCount must be positive");
+        mThreadCount = threadCount;
+        mPool = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new DecodeThreadFactory(this));
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Queues a task to run after any task previously posted with the same key has completed.
+     *
+     * @param key Identifies the owner of the task, tasks of a single owner are serialized.
+     * @param task The task to run.
+     * @param priority One of PRIORITY_LOW, PRIORITY_NORMAL or PRIORITY_HIGH.
+     */
+    public void execute(Object key, Runnable task, int priority) {
+        if (key == null || task == null) throw new IllegalArgumentException();
+        Task wrapped = new Task(key, task, priority, mSequence.getAndIncrement());
+        synchronized (mSerialQueues) {
+            LinkedList<Task> pending = mSerialQueues.get(key);
+            if (pending != null) {
+                pending.add(wrapped);
+                return;
+            }
+            mSerialQueues.put(key, new LinkedList<Task>());
+        }
+        try {
+            mPool.execute(wrapped);
+        } catch (RejectedExecutionException e) {
+            // shut down, so that any task of the key queued behind this one meanwhile can't run
+            // either
+            synchronized (mSerialQueues) {
+                mSerialQueues.remove(key);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Whether the calling thread is one of this executor's, which must not block on tasks of it.
+     */
+    public boolean isExecutorThread() {
+        Thread thread = Thread.currentThread();
+        return thread instanceof DecodeThread && ((DecodeThread) thread).mExecutor == this;
+    }
+
+    /**
+     * Total number of frames, across all drawables using this executor, whose decode finished
+     * after the frame was due to be shown. A steadily increasing count means the pool is too
+     * small for the animations on screen.
+     */
+    public long getMissedDeadlineCount() {
+        return mMissedDeadlines.get();
+    }
+
+    public void resetStatistics() {
+        mMissedDeadlines.set(0);
+    }
+
+    void onDeadlineMissed() {
+        mMissedDeadlines.incrementAndGet();
+    }
+
+    /**
+     * Stops accepting tasks, execute then throws a RejectedExecutionException. Tasks already
+     * queued are still run.
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    private void onTaskFinished(Object key) {
+        Task next;
+        synchronized (mSerialQueues) {
+            LinkedList<Task> pending = mSerialQueues.get(key);
+            next = pending.poll();
+            if (next == null) {
+                mSerialQueues.remove(key);
+                return;
+            }
+        }
+        try {
+            mPool.execute(next);
+        } catch (RejectedExecutionException e) {
+            // shut down after the task was queued, run it on this thread instead
+            next.run();
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final Object mKey;
+        private final Runnable mRunnable;
+        private final int mPriority;
+        private final long mSequence;
+
+        Task(Object key, Runnable runnable, int priority, long sequence) {
+            mKey = key;
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mRunnable.run();
+            } finally {
+                onTaskFinished(mKey);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private static class DecodeThread extends Thread {
+        final DecodeExecutor mExecutor;
+        private final Runnable mRunnable;
+
+        DecodeThread(DecodeExecutor executor, Runnable runnable, String name) {
+            super(name);
+            mExecutor = executor;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            mRunnable.run();
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+        private final DecodeExecutor mExecutor;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        DecodeThreadFactory(DecodeExecutor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new DecodeThread(mExecutor, r,
+                    "FrameSequence decoding thread #" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of fully decoded frames, shared by FrameSequenceDrawables displaying the same
+ * FrameSequence, so each frame is decoded only once and then copied into every drawable.
+ * Frames decoded with different sample sizes are cached separately.
+ *
+ * Frames are evicted least recently used first once their total size exceeds the byte limit
+ * given at construction. Evicted Bitmaps are left to the garbage collector, since another
+ * thread may still be copying out of them.
+ */
+public class FrameCache {
+    private static final Paint sCopyPaint = new Paint();
+    static {
+        sCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    private final long mMaxBytes;
+
+    // Protects the fields below
+    private final Object mLock = new Object();
+
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long mBytes;
+    private long mHitCount;
+    private long mMissCount;
+
+    public FrameCache(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Copies a cached frame into the output Bitmap.
+     *
+     * @return the frame's delay in milliseconds, as returned by FrameSequence.State#getFrame,
+     *         or -1 if the frame isn't cached.
+     */
+    long getFrame(FrameSequence frameSequence, int sampleSize, int frameNr, Bitmap output) {
+        Entry entry;
+        synchronized (mLock) {
+            entry = mEntries.get(new Key(frameSequence, sampleSize, frameNr));
+            if (entry == null) {
+                mMissCount++;
+                return -1;
+            }
+            mHitCount++;
+        }
+        Canvas canvas = new Canvas(output);
+        canvas.drawBitmap(entry.mBitmap, 0, 0, sCopyPaint);
+        return entry.mDelayMs;
+    }
+
+    /**
+     * Stores a copy of a freshly decoded frame, if it fits in the cache.
+     */
+    void putFrame(FrameSequence frameSequence, int sampleSize, int frameNr, Bitmap frame,
+            long delayMs) {
+        final int width = frameSequence.getSampledWidth(sampleSize);
+        final int height = frameSequence.getSampledHeight(sampleSize);
+        final int bytesPerPixel = frame.getConfig() == Bitmap.Config.RGB_565 ? 2 : 4;
+        final long frameBytes = (long) bytesPerPixel * width * height;
+        if (frameBytes > mMaxBytes) return;
+
+        Key key = new Key(frameSequence, sampleSize, frameNr);
+        synchronized (mLock) {
+            if (mEntries.containsKey(key)) return;
+        }
+
+        // copy outside the lock, a concurrent put of the same frame is harmless
+        Bitmap copy = Bitmap.createBitmap(width, height, frame.getConfig());
+        new Canvas(copy).drawBitmap(frame, 0, 0, sCopyPaint);
+
+        synchronized (mLock) {
+            if (mEntries.put(key, new Entry(copy, delayMs, frameBytes)) == null) {
+                mBytes += frameBytes;
+            }
+            trimLocked(mMaxBytes);
+        }
+    }
+
+    /**
+     * Drops all frames of the given FrameSequence.
+     */
+    public void remove(FrameSequence frameSequence) {
+        synchronized (mLock) {
+            Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> mapEntry = it.next();
+                if (mapEntry.getKey().mFrameSequence == frameSequence) {
+                    mBytes -= mapEntry.getValue().mBytes;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (mLock) {
+            trimLocked(0);
+        }
+    }
+
+    public long getSizeBytes() {
+        synchronized (mLock) {
+            return mBytes;
+        }
+    }
+
+    public long getMaxSizeBytes() {
+        return mMaxBytes;
+    }
+
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    private void trimLocked(long maxBytes) {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            mBytes -= it.next().mBytes;
+            it.remove();
+        }
+    }
+
+    private static class Key {
+        final FrameSequence mFrameSequence;
+        final int mSampleSize;
+        final int mFrameNr;
+
+        Key(FrameSequence frameSequence, int sampleSize, int frameNr) {
+            mFrameSequence = frameSequence;
+            mSampleSize = sampleSize;
+            mFrameNr = frameNr;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mFrameSequence == other.mFrameSequence && mSampleSize == other.mSampleSize
+                    && mFrameNr == other.mFrameNr;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(mFrameSequence) + mSampleSize) + mFrameNr;
+        }
+    }
+
+    private static class Entry {
+        final Bitmap mBitmap;
+        final long mDelayMs;
+        final long mBytes;
+
+        Entry(Bitmap bitmap, long delayMs, long bytes) {
+            mBitmap = bitmap;
+            mDelayMs = delayMs;
+            mBytes = bytes;
+        }
+    }
+}
@@ -17,16 +17,58 @@
 package android.support.rastermill;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class FrameSequence {
+/**
+ * An encoded, possibly animated image, decoded into frames by a {@link State}.
+ *
+ * The native decoder is reference counted: it's held by the FrameSequence until
+ * {@link #close()}, and by each State until {@link State#destroy()}, and freed as soon as all
+ * of them have let go. A FrameSequence or State that is garbage collected without being closed
+ * lets go at that point, see {@link #setLeakTrackingEnabled(boolean)}.
+ */
+public class FrameSequence implements Closeable {
     static {
         System.loadLibrary("framesequence");
     }
 
+    private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+    private static final int TEMP_STORAGE_RETAINED = 4;
+    // runs extractFrames aims to split frames into per thread, so that threads given short runs
+    // can pick up more
+    private static final int EXTRACT_RUNS_PER_THREAD = 2;
+    private static final ByteArrayPool sTempStoragePool =
+            new ByteArrayPool(TEMP_STORAGE_SIZE, TEMP_STORAGE_RETAINED);
+
+    /**
+     * Pool of the temporary buffers that {@link #decodeStream(InputStream)} reads through,
+     * exposed for its hit rate and peak usage statistics.
+     */
+    public static ByteArrayPool getTempStoragePool() {
+        return sTempStoragePool;
+    }
+
     private final long mNativeFrameSequence;
+    private final NativeRef mNativeRef;
+    private final NativeCleaner.Cleanable mCleanable;
     private final int mWidth;
     private final int mHeight;
     private final boolean mOpaque;
@@ -42,11 +84,15 @@ public class FrameSequence {
     private static native FrameSequence nativeDecodeByteArray(byte[] data, int offset, int length);
     private static native FrameSequence nativeDecodeStream(InputStream is, byte[] tempStorage);
     private static native FrameSequence nativeDecodeByteBuffer(ByteBuffer buffer, int offset, int capacity);
+    private static native Info nativeProbeByteArray(byte[] data, int offset, int length);
+    private static native Info nativeProbeStream(InputStream is, byte[] tempStorage);
+    private static native Info nativeProbeByteBuffer(ByteBuffer buffer, int offset, int capacity);
     private static native void nativeDestroyFrameSequence(long nativeFrameSequence);
-    private static native long nativeCreateState(long nativeFrameSequence);
+    private static native long nativeCreateState(long nativeFrameSequence, int sampleSize);
+    private static native int nativeGetKeyFrame(long nativeFrameSequence, int frameNr);
     private static native void nativeDestroyState(long nativeState);
     private static native long nativeGetFrame(long nativeState, int frameNr,
-            Bitmap output, int previousFrameNr);
+            Bitmap output, int previousFrameNr, Rect outDirtyRect);
 
     @SuppressWarnings("unused") // called by native
     private FrameSequence(long nativeFrameSequence, int width, int height,
@@ -57,6 +103,30 @@ public class FrameSequence {
         mOpaque = opaque;
         mFrameCount = frameCount;
         mDefaultLoopCount = defaultLoopCount;
+        if (nativeFrameSequence != 0) {
+            mNativeRef = new NativeRef(nativeFrameSequence);
+            mCleanable = NativeCleaner.register(this, mNativeRef, "FrameSequence");
+        } else {
+            mNativeRef = null;
+            mCleanable = null;
+        }
+    }
+
+    /**
+     * Records where each FrameSequence and State is created, and logs it if one is garbage
+     * collected without being closed. Capturing the stack traces is expensive, so this is meant
+     * for debug builds only.
+     */
+    public static void setLeakTrackingEnabled(boolean enabled) {
+        NativeCleaner.setLeakTrackingEnabled(enabled);
+    }
+
+    /**
+     * Number of FrameSequences and States that were garbage collected without being closed,
+     * whether or not leak tracking was enabled.
+     */
+    public static long getLeakCount() {
+        return NativeCleaner.getLeakCount();
     }
 
     public static FrameSequence decodeByteArray(byte[] data) {
@@ -84,30 +154,452 @@ public class FrameSequence {
         return nativeDecodeByteBuffer(buffer, buffer.position(), buffer.remaining());
     }
 
+    /**
+     * Decodes a file by memory mapping it, so its contents are never copied into the Java heap.
+     *
+     * GIF and WebP sequences decode directly from the mapping, which stays alive for as long as
+     * the returned FrameSequence. Other formats read the mapping once while decoding.
+     */
+    public static FrameSequence decodeFile(File file) throws IOException {
+        if (file == null) throw new IllegalArgumentException();
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            return decodeMappedChannel(stream.getChannel());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Decodes the contents of an open file by memory mapping it, see {@link #decodeFile(File)}.
+     *
+     * The file descriptor remains owned by the caller, and may be closed once this returns.
+     */
+    public static FrameSequence decodeFileDescriptor(FileDescriptor fd) throws IOException {
+        if (fd == null) throw new IllegalArgumentException();
+        // Not closed, since that would close the caller's descriptor
+        return decodeMappedChannel(new FileInputStream(fd).getChannel());
+    }
+
+    private static FrameSequence decodeMappedChannel(FileChannel channel) throws IOException {
+        final long size = channel.size();
+        if (size <= 0 || size > Integer.MAX_VALUE) {
+            throw new IOException("cannot map file of size " + size);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return nativeDecodeByteBuffer(buffer, 0, (int) size);
+    }
+
+    /**
+     * Decodes the stream, reading it up to the end before returning. Frames are only drawn once
+     * the whole stream has been read, for GIF sequences too, which retain just the compressed
+     * data and decompress each frame as it's drawn.
+     */
     public static FrameSequence decodeStream(InputStream stream) {
         if (stream == null) throw new IllegalArgumentException();
-        byte[] tempStorage = new byte[16 * 1024]; // TODO: use buffer pool
-        return nativeDecodeStream(stream, tempStorage);
+        byte[] tempStorage = sTempStoragePool.acquire();
+        try {
+            return nativeDecodeStream(stream, tempStorage);
+        } finally {
+            sTempStoragePool.release(tempStorage);
+        }
+    }
+
+    /**
+     * Reads the properties of an encoded frame sequence by walking its container structure,
+     * without decoding any frames or allocating native decoder state.
+     *
+     * Image data isn't validated, so decoding may still fail for a sequence that probes
+     * successfully.
+     *
+     * @return the sequence's properties, or null if the format isn't recognized or the container
+     *         structure is invalid
+     */
+    public static Info probe(byte[] data) {
+        if (data == null) throw new IllegalArgumentException();
+        return probe(data, 0, data.length);
+    }
+
+    public static Info probe(byte[] data, int offset, int length) {
+        if (data == null) throw new IllegalArgumentException();
+        if (offset < 0 || length < 0 || (offset + length > data.length)) {
+            throw new IllegalArgumentException("invalid offset/length parameters");
+        }
+        return nativeProbeByteArray(data, offset, length);
+    }
+
+    public static Info probe(ByteBuffer buffer) {
+        if (buffer == null) throw new IllegalArgumentException();
+        if (!buffer.isDirect()) {
+            if (buffer.hasArray()) {
+                return probe(buffer.array(), buffer.position(), buffer.remaining());
+            } else {
+                throw new IllegalArgumentException("Cannot have non-direct ByteBuffer with no byte array");
+            }
+        }
+        return nativeProbeByteBuffer(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Probes the stream, see {@link #probe(byte[])}. The stream is read up to the end of the
+     * sequence's container structure, which for most formats is the end of the sequence.
+     */
+    public static Info probe(InputStream stream) {
+        if (stream == null) throw new IllegalArgumentException();
+        byte[] tempStorage = sTempStoragePool.acquire();
+        try {
+            return nativeProbeStream(stream, tempStorage);
+        } finally {
+            sTempStoragePool.release(tempStorage);
+        }
+    }
+
+    /**
+     * Probes a file through a memory mapping, see {@link #probe(byte[])}.
+     */
+    public static Info probe(File file) throws IOException {
+        if (file == null) throw new IllegalArgumentException();
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            final long size = channel.size();
+            if (size <= 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("cannot map file of size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return nativeProbeByteBuffer(buffer, 0, (int) size);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Width of the frames produced when decoding with the given sample size, see
+     * {@link #computeSampleSize(int, int)}.
+     */
+    public int getSampledWidth(int sampleSize) {
+        if (sampleSize < 1) throw new IllegalArgumentException("sampleSize must be positive");
+        return (mWidth + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * Height of the frames produced when decoding with the given sample size, see
+     * {@link #computeSampleSize(int, int)}.
+     */
+    public int getSampledHeight(int sampleSize) {
+        if (sampleSize < 1) throw new IllegalArgumentException("sampleSize must be positive");
+        return (mHeight + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * Returns the largest sample size whose frames are still at least targetWidth by
+     * targetHeight pixels, or 1 if the sequence is smaller than the target.
+     *
+     * Decoding with a sample size of N draws every Nth pixel of every Nth row, so frames take
+     * about N^2 times less memory and time to produce. Use it when the sequence is displayed
+     * much smaller than its size.
+     */
+    public int computeSampleSize(int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            throw new IllegalArgumentException("target size must be positive");
+        }
+        return Math.max(1, Math.min(mWidth / targetWidth, mHeight / targetHeight));
     }
 
     State createState() {
+        return createState(1);
+    }
+
+    State createState(int sampleSize) {
         if (mNativeFrameSequence == 0) {
             throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
         }
+        if (sampleSize < 1) throw new IllegalArgumentException("sampleSize must be positive");
 
-        long nativeState = nativeCreateState(mNativeFrameSequence);
+        mNativeRef.acquire();
+        long nativeState = nativeCreateState(mNativeFrameSequence, sampleSize);
         if (nativeState == 0) {
+            mNativeRef.release();
             return null;
         }
-        return new State(nativeState);
+        return new State(nativeState, mNativeRef, getSampledWidth(sampleSize),
+                getSampledHeight(sampleSize), mOpaque);
     }
 
-    @Override
-    protected void finalize() throws Throwable {
+    /**
+     * Returns the latest frame at or before frameNr that can be drawn without drawing any frame
+     * before it. The frames from one key frame up to the next thus don't depend on any others,
+     * see {@link #extractFrames}.
+     */
+    public int getKeyFrame(int frameNr) {
+        if (frameNr < 0 || frameNr >= mFrameCount) {
+            throw new IllegalArgumentException("invalid frameNr " + frameNr);
+        }
+        if (mNativeFrameSequence == 0) {
+            throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
+        }
+        mNativeRef.acquire();
         try {
-            if (mNativeFrameSequence != 0) nativeDestroyFrameSequence(mNativeFrameSequence);
+            return nativeGetKeyFrame(mNativeFrameSequence, frameNr);
         } finally {
-            super.finalize();
+            mNativeRef.release();
+        }
+    }
+
+    /**
+     * Draws frames firstFrame to firstFrame + outputs.length - 1 into outputs, downsampled by
+     * sampleSize, and stores their delays in outDelays if non-null. Blocks until all frames are
+     * drawn.
+     *
+     * The frames are split at key frames into runs that don't depend on each other, which are
+     * drawn in parallel on the executor's threads, each by a State of its own. Within a run,
+     * each frame is drawn onto a copy of the frame before it, so only the changes are decoded.
+     * Sequences without key frames after the first, e.g. most GIFs whose frames only cover part
+     * of the canvas, are therefore drawn by a single thread.
+     *
+     * The outputs must be distinct, mutable Bitmaps of at least
+     * {@link #getSampledWidth(int)} by {@link #getSampledHeight(int)} pixels, and be
+     * ARGB_8888, or RGB_565 for opaque sequences. Runs are posted at
+     * {@link DecodeExecutor#PRIORITY_LOW}, so that they don't hold up drawables sharing the
+     * executor. Since this blocks until they're done, it can't be called from one of the
+     * executor's own threads.
+     *
+     * @throws InterruptedException if interrupted while waiting, after which the runs stop once
+     *         their current frame is drawn, leaving the remaining outputs undefined
+     * @throws IllegalStateException if called from one of the executor's threads
+     */
+    public void extractFrames(int sampleSize, int firstFrame, Bitmap[] outputs, long[] outDelays,
+            DecodeExecutor executor) throws InterruptedException {
+        if (outputs == null || executor == null) throw new IllegalArgumentException();
+        if (firstFrame < 0 || outputs.length == 0 || firstFrame + outputs.length > mFrameCount) {
+            throw new IllegalArgumentException("invalid firstFrame/outputs parameters");
+        }
+        if (outDelays != null && outDelays.length < outputs.length) {
+            throw new IllegalArgumentException("outDelays must hold a delay per output");
+        }
+        final int width = getSampledWidth(sampleSize);
+        final int height = getSampledHeight(sampleSize);
+        // each frame is drawn onto a copy of the previous output, which must not be the same
+        IdentityHashMap<Bitmap, Boolean> seen = new IdentityHashMap<Bitmap, Boolean>();
+        for (Bitmap output : outputs) {
+            if (output == null || !output.isMutable()
+                    || output.getWidth() < width || output.getHeight() < height) {
+                throw new IllegalArgumentException("outputs must be non-null, mutable, and at "
+                        + "least " + width + "x" + height);
+            }
+            if (!acceptsConfig(output.getConfig(), mOpaque)) {
+                throw new IllegalArgumentException("outputs must be ARGB_8888, or RGB_565 for "
+                        + "opaque sequences");
+            }
+            if (seen.put(output, Boolean.TRUE) != null) {
+                throw new IllegalArgumentException("outputs must be distinct");
+            }
+        }
+        if (mNativeFrameSequence == 0) {
+            throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
+        }
+        if (executor.isExecutorThread()) {
+            // the runs could be queued behind this call, which would wait on them forever
+            throw new IllegalStateException("extractFrames called from a thread of its executor");
+        }
+
+        // Held until all runs are done, so that closing doesn't stop runs from creating States
+        mNativeRef.acquire();
+        try {
+            // Start a new run at the first key frame after a run has its share of the frames
+            final int runLength = Math.max(1, outputs.length
+                    / (executor.getThreadCount() * EXTRACT_RUNS_PER_THREAD));
+            final int endFrame = firstFrame + outputs.length;
+            int[] runStarts = new int[outputs.length + 1];
+            int runCount = 0;
+            runStarts[runCount++] = firstFrame;
+            for (int frameNr = firstFrame + 1; frameNr < endFrame; frameNr++) {
+                if (frameNr - runStarts[runCount - 1] >= runLength
+                        && nativeGetKeyFrame(mNativeFrameSequence, frameNr) == frameNr) {
+                    runStarts[runCount++] = frameNr;
+                }
+            }
+            runStarts[runCount] = endFrame;
+
+            ExtractionJob job = new ExtractionJob(this, sampleSize, firstFrame, outputs,
+                    outDelays, runCount);
+            for (int i = 0; i < runCount; i++) {
+                ExtractionRun run = new ExtractionRun(job, runStarts[i], runStarts[i + 1]);
+                executor.execute(run, run, DecodeExecutor.PRIORITY_LOW);
+            }
+            job.await();
+        } finally {
+            mNativeRef.release();
+        }
+    }
+
+    /**
+     * Progress of an extractFrames call, shared by its runs.
+     */
+    private static final class ExtractionJob {
+        final FrameSequence mFrameSequence;
+        final int mSampleSize;
+        final int mFirstFrame;
+        final Bitmap[] mOutputs;
+        final long[] mOutDelays;
+        final CountDownLatch mRunsLeft;
+        final AtomicBoolean mCancelled = new AtomicBoolean();
+        final AtomicReference<RuntimeException> mError = new AtomicReference<RuntimeException>();
+
+        ExtractionJob(FrameSequence frameSequence, int sampleSize, int firstFrame,
+                Bitmap[] outputs, long[] outDelays, int runCount) {
+            mFrameSequence = frameSequence;
+            mSampleSize = sampleSize;
+            mFirstFrame = firstFrame;
+            mOutputs = outputs;
+            mOutDelays = outDelays;
+            mRunsLeft = new CountDownLatch(runCount);
+        }
+
+        void await() throws InterruptedException {
+            try {
+                mRunsLeft.await();
+            } catch (InterruptedException e) {
+                mCancelled.set(true);
+                throw e;
+            }
+            RuntimeException error = mError.get();
+            if (error != null) throw error;
+        }
+    }
+
+    /**
+     * Draws a run of frames of an ExtractionJob, starting from scratch.
+     */
+    private static final class ExtractionRun implements Runnable {
+        private final ExtractionJob mJob;
+        private final int mStartFrame;
+        private final int mEndFrame;
+
+        ExtractionRun(ExtractionJob job, int startFrame, int endFrame) {
+            mJob = job;
+            mStartFrame = startFrame;
+            mEndFrame = endFrame;
+        }
+
+        @Override
+        public void run() {
+            State state = null;
+            try {
+                if (mJob.mCancelled.get()) return;
+                state = mJob.mFrameSequence.createState(mJob.mSampleSize);
+                if (state == null) {
+                    throw new IllegalStateException("couldn't create FrameSequence.State");
+                }
+                Canvas canvas = new Canvas();
+                Paint copyPaint = new Paint();
+                copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+                for (int frameNr = mStartFrame; frameNr < mEndFrame; frameNr++) {
+                    if (mJob.mCancelled.get()) return;
+                    final int index = frameNr - mJob.mFirstFrame;
+                    Bitmap output = mJob.mOutputs[index];
+                    int previousFrameNr = -1;
+                    if (frameNr > mStartFrame) {
+                        // the state only draws the changes from the frame the output holds
+                        canvas.setBitmap(output);
+                        canvas.drawBitmap(mJob.mOutputs[index - 1], 0, 0, copyPaint);
+                        previousFrameNr = frameNr - 1;
+                    }
+                    long delay = state.getFrame(frameNr, output, previousFrameNr);
+                    if (mJob.mOutDelays != null) mJob.mOutDelays[index] = delay;
+                }
+            } catch (RuntimeException e) {
+                mJob.mError.compareAndSet(null, e);
+                mJob.mCancelled.set(true);
+            } finally {
+                if (state != null) state.destroy();
+                mJob.mRunsLeft.countDown();
+            }
+        }
+    }
+
+    static boolean acceptsConfig(Bitmap.Config config, boolean opaque) {
+        return config == Bitmap.Config.ARGB_8888
+                || (opaque && config == Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * Releases this FrameSequence's hold on its native decoder. The decoder is freed once the
+     * States created from it, e.g. by FrameSequenceDrawables, have been destroyed as well.
+     *
+     * No further States can be created once closed. Closing more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (mCleanable != null) mCleanable.clean();
+    }
+
+    /**
+     * Reference count of a native frame sequence, which is destroyed when the count drops to
+     * zero. Kept apart from the FrameSequence, so that cleaning up after a collected
+     * FrameSequence doesn't need it to be reachable.
+     */
+    private static final class NativeRef implements Runnable {
+        private final long mNativeFrameSequence;
+        private int mRefCount = 1;
+
+        NativeRef(long nativeFrameSequence) {
+            mNativeFrameSequence = nativeFrameSequence;
+        }
+
+        synchronized void acquire() {
+            if (mRefCount == 0) {
+                throw new IllegalStateException("attempted to use closed FrameSequence");
+            }
+            mRefCount++;
+        }
+
+        synchronized void release() {
+            if (--mRefCount == 0) {
+                nativeDestroyFrameSequence(mNativeFrameSequence);
+            }
+        }
+
+        /**
+         * Releases the reference held by the FrameSequence itself.
+         */
+        @Override
+        public void run() {
+            release();
+        }
+    }
+
+    /**
+     * Properties of an encoded frame sequence, as returned by {@link FrameSequence#probe}. They
+     * match those of the FrameSequence that decoding the same data produces.
+     */
+    public static final class Info {
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mOpaque;
+        private final int mFrameCount;
+        private final int mDefaultLoopCount;
+
+        public int getWidth() { return mWidth; }
+        public int getHeight() { return mHeight; }
+        public boolean isOpaque() { return mOpaque; }
+        public int getFrameCount() { return mFrameCount; }
+        public int getDefaultLoopCount() { return mDefaultLoopCount; }
+
+        @SuppressWarnings("unused") // called by native
+        private Info(int width, int height, boolean opaque, int frameCount,
+                int defaultLoopCount) {
+            mWidth = width;
+            mHeight = height;
+            mOpaque = opaque;
+            mFrameCount = frameCount;
+            mDefaultLoopCount = defaultLoopCount;
+        }
+
+        @Override
+        public String toString() {
+            return "FrameSequence.Info{" + mWidth + "x" + mHeight + ", frames=" + mFrameCount
+                    + ", loops=" + mDefaultLoopCount + ", opaque=" + mOpaque + "}";
         }
     }
 
@@ -118,34 +610,88 @@ public class FrameSequence {
      * information (in the case of gif, a recall buffer) that will be used to construct
      * frames based upon data recorded before previousFrameNr.
      *
-     * Note: {@link #destroy()} *must* be called before the object is GC'd to free native resources
+     * Note: {@link #destroy()} should be called once the State is no longer needed, otherwise its
+     * native resources are only freed after it is GC'd
+     *
+     * Note: State holds a reference to its FrameSequence's native decoder, which remains usable
+     * until the State is destroyed even if the FrameSequence is closed
      *
-     * Note: State holds a native ref to its FrameSequence instance, so its FrameSequence should
-     * remain ref'd while it is in use
+     * Note: a State created with a sample size greater than 1 produces downsampled frames of
+     * {@link #getWidth()} by {@link #getHeight()} pixels
+     *
+     * Note: frames of opaque sequences may also be drawn into RGB_565 Bitmaps, which take half
+     * the memory of ARGB_8888 ones
      */
     static class State {
         private long mNativeState;
+        private final NativeCleaner.Cleanable mCleanable;
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mOpaque;
 
-        public State(long nativeState) {
+        State(long nativeState, NativeRef frameSequenceRef, int width, int height,
+                boolean opaque) {
             mNativeState = nativeState;
+            mCleanable = NativeCleaner.register(this,
+                    new StateReleaser(nativeState, frameSequenceRef), "FrameSequence.State");
+            mWidth = width;
+            mHeight = height;
+            mOpaque = opaque;
         }
 
+        public int getWidth() { return mWidth; }
+        public int getHeight() { return mHeight; }
+
         public void destroy() {
             if (mNativeState != 0) {
-                nativeDestroyState(mNativeState);
+                mCleanable.clean();
                 mNativeState = 0;
             }
         }
 
+        public boolean acceptsConfig(Bitmap.Config config) {
+            return FrameSequence.acceptsConfig(config, mOpaque);
+        }
+
         // TODO: consider adding alternate API for drawing into a SurfaceTexture
         public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
-            if (output == null || output.getConfig() != Bitmap.Config.ARGB_8888) {
-                throw new IllegalArgumentException("Bitmap passed must be non-null and ARGB_8888");
+            return getFrame(frameNr, output, previousFrameNr, null);
+        }
+
+        /**
+         * Draws the frame as {@link #getFrame(int, Bitmap, int)} does, and sets outDirtyRect (if
+         * non-null) to the part of the output that was changed: the whole frame if it was drawn
+         * from scratch, otherwise (at least) the pixels that differ from previousFrameNr.
+         */
+        public long getFrame(int frameNr, Bitmap output, int previousFrameNr, Rect outDirtyRect) {
+            if (output == null || !acceptsConfig(output.getConfig())) {
+                throw new IllegalArgumentException("Bitmap passed must be non-null and ARGB_8888,"
+                        + " or RGB_565 for opaque sequences");
+            }
+            if (output.getWidth() < mWidth || output.getHeight() < mHeight) {
+                throw new IllegalArgumentException("Bitmap passed must be at least "
+                        + mWidth + "x" + mHeight);
             }
             if (mNativeState == 0) {
                 throw new IllegalStateException("attempted to draw destroyed FrameSequenceState");
             }
-            return nativeGetFrame(mNativeState, frameNr, output, previousFrameNr);
+            return nativeGetFrame(mNativeState, frameNr, output, previousFrameNr, outDirtyRect);
+        }
+    }
+
+    private static final class StateReleaser implements Runnable {
+        private final long mNativeState;
+        private final NativeRef mFrameSequenceRef;
+
+        StateReleaser(long nativeState, NativeRef frameSequenceRef) {
+            mNativeState = nativeState;
+            mFrameSequenceRef = frameSequenceRef;
+        }
+
+        @Override
+        public void run() {
+            nativeDestroyState(mNativeState);
+            mFrameSequenceRef.release();
         }
     }
 }
@@ -22,17 +22,18 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Shader;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class FrameSequenceDrawable extends Drawable implements Animatable, Runnable {
     private static final String TAG = "FrameSequence";
     /**
@@ -44,19 +45,15 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     private static final long MIN_DELAY_MS = 20;
     private static final long DEFAULT_DELAY_MS = 100;
 
-    private static final Object sLock = new Object();
-    private static HandlerThread sDecodingThread;
-    private static Handler sDecodingThreadHandler;
-    private static void initializeDecodingThread() {
-        synchronized (sLock) {
-            if (sDecodingThread != null) return;
+    // How long a frame announced by invalidating only the part it changes may go undrawn (e.g.
+    // because that part is scrolled out of view) before all of the drawable is invalidated, so
+    // that it is swapped in
+    private static final long PARTIAL_INVALIDATE_TIMEOUT_MS = 100;
 
-            sDecodingThread = new HandlerThread("FrameSequence decoding thread",
-                    Process.THREAD_PRIORITY_BACKGROUND);
-            sDecodingThread.start();
-            sDecodingThreadHandler = new Handler(sDecodingThread.getLooper());
-        }
-    }
+    // Playback that has fallen behind the timeline skips frames to catch up, unless it's this
+    // far behind (e.g. after the decoding thread was starved), in which case the timeline is
+    // moved to the present instead
+    private static final long MAX_CATCH_UP_MS = 1000;
 
     public static interface OnFinishedListener {
         /**
@@ -71,6 +68,7 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     public static interface BitmapProvider {
         /**
          * Called by FrameSequenceDrawable to aquire an 8888 Bitmap with minimum dimensions.
+         * For opaque FrameSequences, a 565 Bitmap may be returned instead.
          */
         public abstract Bitmap acquireBitmap(int minWidth, int minHeight);
 
@@ -93,6 +91,21 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         public void releaseBitmap(Bitmap bitmap) {}
     };
 
+    /**
+     * Allocates RGB_565 Bitmaps, which take half the memory of ARGB_8888 ones and are faster
+     * to upload and draw. Only usable with opaque FrameSequences, see
+     * {@link FrameSequence#isOpaque()}.
+     */
+    public static final BitmapProvider RGB_565_BITMAP_PROVIDER = new BitmapProvider() {
+        @Override
+        public Bitmap acquireBitmap(int minWidth, int minHeight) {
+            return Bitmap.createBitmap(minWidth, minHeight, Bitmap.Config.RGB_565);
+        }
+
+        @Override
+        public void releaseBitmap(Bitmap bitmap) {}
+    };
+
     /**
      * Register a callback to be invoked when a FrameSequenceDrawable finishes looping.
      *
@@ -141,12 +154,206 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         mLoopCount = loopCount;
     }
 
+    /**
+     * Set the priority with which this drawable's frames are decoded, relative to other
+     * drawables sharing its DecodeExecutor. Drawables that are not visible always decode at
+     * {@link DecodeExecutor#PRIORITY_LOW}.
+     */
+    public void setDecodePriority(int decodePriority) {
+        mDecodePriority = decodePriority;
+    }
+
+    /**
+     * Number of frames whose decode finished after the frame was due to be shown.
+     */
+    public int getMissedDeadlineCount() {
+        synchronized (mLock) {
+            return mMissedDeadlineCount;
+        }
+    }
+
+    /**
+     * Number of frames that were skipped rather than displayed, because playback had fallen
+     * behind the timeline far enough that the frames after them were already due.
+     */
+    public int getDroppedFrameCount() {
+        synchronized (mLock) {
+            return mDroppedFrameCount;
+        }
+    }
+
+    /**
+     * Longest time a frame was displayed after the time it was due, in milliseconds.
+     */
+    public long getMaxLatenessMs() {
+        synchronized (mLock) {
+            return mMaxLatenessMs;
+        }
+    }
+
+    /**
+     * Average time frames were displayed after the time they were due, in milliseconds. This
+     * includes the wait for the next draw after a frame becomes due.
+     */
+    public float getAverageLatenessMs() {
+        synchronized (mLock) {
+            return mTimedFrameCount == 0 ? 0 : (float) mTotalLatenessMs / mTimedFrameCount;
+        }
+    }
+
+    /**
+     * Resets the missed deadline, dropped frame and lateness statistics.
+     */
+    public void resetStatistics() {
+        synchronized (mLock) {
+            mMissedDeadlineCount = 0;
+            mDroppedFrameCount = 0;
+            mMaxLatenessMs = 0;
+            mTotalLatenessMs = 0;
+            mTimedFrameCount = 0;
+        }
+    }
+
+    /**
+     * Share decoded frames with other drawables of the same FrameSequence through the given
+     * cache, or pass null to decode every frame independently (the default).
+     *
+     * Worthwhile for short animations displayed many times at once, e.g. in list items.
+     */
+    public void setFrameCache(FrameCache frameCache) {
+        mFrameCache = frameCache;
+    }
+
+    /**
+     * Let the given coordinator pause decoding while the drawable is off-screen, and pace its
+     * decodes along with those of other drawables, or pass null to decode as soon as each
+     * frame is displayed (the default).
+     *
+     * @see AnimationCoordinator#getDefault()
+     */
+    public void setAnimationCoordinator(AnimationCoordinator animationCoordinator) {
+        mAnimationCoordinator = animationCoordinator;
+    }
+
+    /**
+     * Decode up to {@code frames} frames ahead of the one being displayed, so that frames which
+     * take longer than their delay to decode (e.g. large disposal-restore GIF frames) are
+     * absorbed by the frames decoded before them. Each frame ahead costs one additional Bitmap
+     * from the BitmapProvider, and the number of frames is reduced so that the total size of
+     * the drawable's Bitmaps stays within {@code maxBytes}.
+     *
+     * Defaults to one frame (double buffering). Must be called while the drawable is stopped.
+     */
+    public void setLookahead(int frames, long maxBytes) {
+        if (frames < 1) throw new IllegalArgumentException("frames must be positive");
+
+        final int width = mFrameSequenceState.getWidth();
+        final int height = mFrameSequenceState.getHeight();
+        final long frameBytes = (long) mBytesPerPixel * width * height;
+        final int ringSize = (int) Math.max(MIN_RING_SIZE,
+                Math.min(frames + 1, maxBytes / frameBytes));
+
+        Bitmap[] bitmapsToRelease = null;
+        synchronized (mLock) {
+            checkDestroyed();
+            if (isRunning() || mDecodingIndex >= 0) {
+                throw new IllegalStateException("Cannot change lookahead while running");
+            }
+            if (ringSize == mBitmaps.length) return;
+
+            // Keep the displayed frame at the start of the new ring
+            Bitmap[] bitmaps = new Bitmap[ringSize];
+            BitmapShader[] shaders = new BitmapShader[ringSize];
+            int[] frameNrs = new int[ringSize];
+            long[] delays = new long[ringSize];
+            Rect[] dirtyRects = new Rect[ringSize];
+            final int keep = Math.min(ringSize, mBitmaps.length);
+            for (int i = 0; i < keep; i++) {
+                int index = (mFrontIndex + i) % mBitmaps.length;
+                bitmaps[i] = mBitmaps[index];
+                shaders[i] = mShaders[index];
+                frameNrs[i] = mFrameNrs[index];
+                dirtyRects[i] = mDirtyRects[index];
+            }
+            for (int i = keep; i < ringSize; i++) {
+                bitmaps[i] = acquireAndValidateBitmap(mBitmapProvider, mFrameSequenceState,
+                        width, height);
+                shaders[i] = new BitmapShader(bitmaps[i],
+                        Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                frameNrs[i] = -1;
+                dirtyRects[i] = new Rect(0, 0, width, height);
+            }
+            if (keep < mBitmaps.length) {
+                bitmapsToRelease = new Bitmap[mBitmaps.length - keep];
+                for (int i = keep; i < mBitmaps.length; i++) {
+                    bitmapsToRelease[i - keep] = mBitmaps[(mFrontIndex + i) % mBitmaps.length];
+                }
+            }
+
+            mBitmaps = bitmaps;
+            mShaders = shaders;
+            mFrameNrs = frameNrs;
+            mFrameDelays = delays;
+            mDirtyRects = dirtyRects;
+            mFrontIndex = 0;
+            mDecodedCount = 0;
+        }
+        if (bitmapsToRelease != null) {
+            for (Bitmap bitmap : bitmapsToRelease) {
+                mBitmapProvider.releaseBitmap(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Jump to the given frame. If the drawable is running, playback continues from that frame.
+     * Otherwise the frame is shown without starting playback, and a later {@link #start()}
+     * resumes after it.
+     *
+     * Frames decoded ahead of the displayed one are dropped, and the new frame is decoded in the
+     * background, starting from the closest preceding key frame (a frame that doesn't depend on
+     * earlier ones) rather than from the first frame.
+     */
+    public void seekTo(int frameNr) {
+        if (frameNr < 0 || frameNr >= mFrameSequence.getFrameCount()) {
+            throw new IllegalArgumentException("frameNr out of range: " + frameNr);
+        }
+        synchronized (mLock) {
+            checkDestroyed();
+            final boolean running = isRunning();
+            if (!running) {
+                // decode just this frame, and stop once it has been displayed
+                mStopAfterSeek = true;
+                mDecodeFinished = true;
+            } else {
+                mDecodeLoop = mCurrentLoop;
+                mDecodeFinished = false;
+            }
+            mNextFrameToDecode = frameNr;
+            mDecodedCount = 0;
+            mSwapState.set(0);
+            // due immediately, rather than after the delay of the frame before it
+            mFrontDueTime = -1;
+
+            // A decode in progress is discarded once it completes, since the decode state is no
+            // longer STATE_DECODING, and one already scheduled picks up the new frame.
+            if (mDecodeState != STATE_SCHEDULED) {
+                scheduleDecodeLocked();
+            }
+        }
+    }
+
     private final FrameSequence mFrameSequence;
     private final FrameSequence.State mFrameSequenceState;
+    private final int mSampleSize;
+    private final int mBytesPerPixel;
+    private final DecodeExecutor mDecodeExecutor;
+    private int mDecodePriority = DecodeExecutor.PRIORITY_NORMAL;
+    private volatile FrameCache mFrameCache;
+    private volatile AnimationCoordinator mAnimationCoordinator;
 
     private final Paint mPaint;
-    private BitmapShader mFrontBitmapShader;
-    private BitmapShader mBackBitmapShader;
+    private final Paint mCopyPaint;
     private final Rect mSrcRect;
     private boolean mCircleMaskEnabled;
 
@@ -154,89 +361,294 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     private final Object mLock = new Object();
 
     private final BitmapProvider mBitmapProvider;
-    private boolean mDestroyed = false;
-    private Bitmap mFrontBitmap;
-    private Bitmap mBackBitmap;
+    private volatile boolean mDestroyed = false;
+
+    private static final int MIN_RING_SIZE = 2;
+
+    /**
+     * Ring of frame buffers. mBitmaps[mFrontIndex] is displayed, the mDecodedCount slots after
+     * it hold decoded frames waiting to be swapped in, and the remaining slots are free for the
+     * decoding thread to fill.
+     */
+    private Bitmap[] mBitmaps;
+    private BitmapShader[] mShaders;
+    // frame number whose pixels each slot holds, or -1 if unknown
+    private int[] mFrameNrs;
+    // time each decoded slot should be swapped in after the frame preceding it
+    private long[] mFrameDelays;
+    // part of each slot's frame that differs from the frame before it, in frame coordinates
+    private Rect[] mDirtyRects;
+    private int mFrontIndex;
+    private int mDecodedCount;
+    // slot the decoding thread is drawing into, or -1
+    private int mDecodingIndex = -1;
+    // slot the decoding thread is copying the frame before the one it decodes from, or -1
+    private int mCopySourceIndex = -1;
 
     private static final int STATE_SCHEDULED = 1;
     private static final int STATE_DECODING = 2;
     private static final int STATE_WAITING_TO_SWAP = 3;
     private static final int STATE_READY_TO_SWAP = 4;
 
-    private int mState;
+    // 0, STATE_SCHEDULED or STATE_DECODING
+    private int mDecodeState;
+    // 0, STATE_WAITING_TO_SWAP or STATE_READY_TO_SWAP. Only changed while holding mLock, except
+    // from STATE_WAITING_TO_SWAP to STATE_READY_TO_SWAP, which the UI thread does with a
+    // compareAndSet. So draw() only takes the lock to swap a frame in, and never while waiting
+    // for one.
+    private final AtomicInteger mSwapState = new AtomicInteger();
     private int mCurrentLoop;
+    private int mDecodeLoop;
+    private boolean mDecodeFinished;
     private int mLoopBehavior = LOOP_DEFAULT;
     private int mLoopCount = 1;
 
-    private long mLastSwap;
-    private long mNextSwap;
+    // Time the displayed frame was due on the animation's timeline, or -1 if the timeline isn't
+    // anchored and the next frame is due immediately. Each frame is due its delay after the
+    // frame before it was due, rather than after that frame was actually swapped in, so late
+    // swaps don't add up.
+    private long mFrontDueTime = -1;
+    private volatile long mNextSwap;
     private int mNextFrameToDecode;
+    // frame start() begins playback from
+    private int mStartFrame;
+    // set while a frame sought to when stopped is being decoded and displayed
+    private boolean mStopAfterSeek;
+    private int mMissedDeadlineCount;
+    private int mDroppedFrameCount;
+    private long mMaxLatenessMs;
+    private long mTotalLatenessMs;
+    private int mTimedFrameCount;
+    private long mDecodeScheduledTime;
+    // set while the AnimationCoordinator holds off decoding until the drawable is drawn again
+    private volatile boolean mDecodePaused;
+    // time of the earliest invalidate for a new frame that hasn't been drawn yet, or -1
+    private volatile long mPendingInvalidateTime = -1;
     private OnFinishedListener mOnFinishedListener;
 
     private RectF mTempRectF = new RectF();
 
+    // Only used by the decoding thread
+    private final Rect mCopyRect = new Rect();
+    private final Rect mDecodeDirtyRect = new Rect();
+
+    // Only used on the UI thread: the part of the bounds the frame about to be swapped in
+    // changes, reported by getDirtyBounds() while mInvalidatingFrame is set
+    private final Rect mDirtyBounds = new Rect();
+    private boolean mInvalidatingFrame;
+
     /**
-     * Runs on decoding thread, only modifies mBackBitmap's pixels
+     * Runs on decoding thread, only modifies the pixels of free slots in the ring
      */
     private Runnable mDecodeRunnable = new Runnable() {
         @Override
         public void run() {
             int nextFrame;
+            int lastFrame;
+            int index;
             Bitmap bitmap;
+            int copySourceIndex;
+            Bitmap copySource = null;
             synchronized (mLock) {
                 if (mDestroyed) return;
 
                 nextFrame = mNextFrameToDecode;
-                if (nextFrame < 0) {
+                if (nextFrame < 0 || mDecodeState != STATE_SCHEDULED
+                        || mDecodedCount >= mBitmaps.length - 1) {
+                    // stopped, or a stale post from before a restart
                     return;
                 }
-                bitmap = mBackBitmap;
-                mState = STATE_DECODING;
+                index = (mFrontIndex + 1 + mDecodedCount) % mBitmaps.length;
+                bitmap = mBitmaps[index];
+                lastFrame = mFrameNrs[index] < nextFrame ? mFrameNrs[index] : -1;
+                copySourceIndex = findCopySourceLocked(index, nextFrame, mCopyRect);
+                if (copySourceIndex >= 0) {
+                    copySource = mBitmaps[copySourceIndex];
+                    mCopySourceIndex = copySourceIndex;
+                }
+                mDecodingIndex = index;
+                mDecodeState = STATE_DECODING;
             }
-            int lastFrame = nextFrame - 2;
             boolean exceptionDuringDecode = false;
-            long invalidateTimeMs = 0;
-            try {
-                invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap, lastFrame);
-            } catch(Exception e) {
-                // Exception during decode: continue, but delay next frame indefinitely.
-                Log.e(TAG, "exception during decode: " + e);
-                exceptionDuringDecode = true;
-            }
+            long invalidateTimeMs;
+            // delays of the frames decoded into the slot but skipped, see skipDecodedFrameLocked
+            long skippedDelayMs = 0;
+            final FrameCache frameCache = mFrameCache;
+            while (true) {
+                invalidateTimeMs = -1;
+                mDecodeDirtyRect.set(mSrcRect);
+                try {
+                    if (frameCache != null) {
+                        invalidateTimeMs = frameCache.getFrame(
+                                mFrameSequence, mSampleSize, nextFrame, bitmap);
+                    }
+                    if (invalidateTimeMs < 0) {
+                        if (copySource != null) {
+                            // Bring the slot up to the frame before nextFrame by copying the
+                            // parts that changed since its own frame, rather than drawing all the
+                            // frames in between
+                            new Canvas(bitmap).drawBitmap(copySource, mCopyRect, mCopyRect,
+                                    mCopyPaint);
+                            lastFrame = nextFrame - 1;
+                        }
+                        invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap,
+                                lastFrame, mDecodeDirtyRect);
+                        if (frameCache != null) {
+                            frameCache.putFrame(mFrameSequence, mSampleSize, nextFrame, bitmap,
+                                    invalidateTimeMs);
+                        }
+                    }
+                } catch(Exception e) {
+                    // Exception during decode: continue, but delay next frame indefinitely.
+                    Log.e(TAG, "exception during decode: " + e);
+                    exceptionDuringDecode = true;
+                }
+
+                if (invalidateTimeMs < MIN_DELAY_MS) {
+                    invalidateTimeMs = DEFAULT_DELAY_MS;
+                }
+                final AnimationCoordinator coordinator = mAnimationCoordinator;
+                if (coordinator != null) {
+                    invalidateTimeMs = Math.max(invalidateTimeMs,
+                            coordinator.getMinFrameIntervalMs(getEffectiveDecodePriority()));
+                }
 
-            if (invalidateTimeMs < MIN_DELAY_MS) {
-                invalidateTimeMs = DEFAULT_DELAY_MS;
+                if (exceptionDuringDecode) break;
+                synchronized (mLock) {
+                    if (!skipDecodedFrameLocked(nextFrame, skippedDelayMs + invalidateTimeMs,
+                            invalidateTimeMs)) {
+                        break;
+                    }
+                    // draw the frame after it over it, in the same slot
+                    mNextFrameToDecode = nextFrame + 1;
+                    mDroppedFrameCount++;
+                }
+                skippedDelayMs += invalidateTimeMs;
+                lastFrame = nextFrame;
+                nextFrame++;
+                copySource = null;
             }
+            invalidateTimeMs += skippedDelayMs;
 
             boolean schedule = false;
+            boolean missedDeadline = false;
             Bitmap bitmapToRelease = null;
+            Bitmap copySourceToRelease = null;
             synchronized (mLock) {
+                mFrameNrs[index] = exceptionDuringDecode ? -1 : nextFrame;
+                mDirtyRects[index].set(mDecodeDirtyRect);
+                mDecodingIndex = -1;
+                mCopySourceIndex = -1;
                 if (mDestroyed) {
-                    bitmapToRelease = mBackBitmap;
-                    mBackBitmap = null;
-                } else if (mNextFrameToDecode >= 0 && mState == STATE_DECODING) {
-                    schedule = true;
-                    mNextSwap = exceptionDuringDecode ? Long.MAX_VALUE : invalidateTimeMs + mLastSwap;
-                    mState = STATE_WAITING_TO_SWAP;
+                    bitmapToRelease = bitmap;
+                    mBitmaps[index] = null;
+                    if (copySourceIndex >= 0) {
+                        copySourceToRelease = mBitmaps[copySourceIndex];
+                        mBitmaps[copySourceIndex] = null;
+                    }
+                } else if (mNextFrameToDecode >= 0 && mDecodeState == STATE_DECODING) {
+                    mDecodeState = 0;
+                    mFrameDelays[index] =
+                            exceptionDuringDecode ? Long.MAX_VALUE : invalidateTimeMs;
+                    mDecodedCount++;
+                    if (mDecodedCount == 1) {
+                        // nothing else waiting to be displayed, so this frame is up next
+                        schedule = true;
+                        if (exceptionDuringDecode) {
+                            mNextSwap = Long.MAX_VALUE;
+                        } else {
+                            mNextSwap = mFrontDueTime < 0 ? 0 : mFrontDueTime + invalidateTimeMs;
+                        }
+                        mSwapState.set(STATE_WAITING_TO_SWAP);
+                        // Only count frames that could have been on time, i.e. not the first
+                        // frame after start() which is due immediately.
+                        if (mNextSwap > mDecodeScheduledTime
+                                && mNextSwap < SystemClock.uptimeMillis()) {
+                            mMissedDeadlineCount++;
+                            missedDeadline = true;
+                        }
+                    }
+
+                    if (nextFrame == mFrameSequence.getFrameCount() - 1) {
+                        mDecodeLoop++;
+                        mDecodeFinished = isFinalLoopLocked(mDecodeLoop);
+                    }
+                    mNextFrameToDecode = (nextFrame + 1) % mFrameSequence.getFrameCount();
+                    if (!exceptionDuringDecode && !mDecodeFinished
+                            && mDecodedCount < mBitmaps.length - 1) {
+                        scheduleDecodeLocked();
+                    }
                 }
             }
+            if (missedDeadline) {
+                mDecodeExecutor.onDeadlineMissed();
+            }
             if (schedule) {
                 scheduleSelf(FrameSequenceDrawable.this, mNextSwap);
             }
             if (bitmapToRelease != null) {
-                // destroy the bitmap here, since there's no safe way to get back to
+                // destroy the bitmap and state here, since there's no safe way to get back to
                 // drawable thread - drawable is likely detached, so schedule is noop.
+                mFrameSequenceState.destroy();
                 mBitmapProvider.releaseBitmap(bitmapToRelease);
+                if (copySourceToRelease != null) {
+                    mBitmapProvider.releaseBitmap(copySourceToRelease);
+                }
             }
         }
     };
 
+    /**
+     * Returns true if the frame just decoded should be skipped, because playback has fallen so
+     * far behind the timeline that by the time it could be displayed, the frame after it is
+     * likely due as well. Frames ending a loop are never skipped, nor are frames decoded while
+     * the timeline isn't anchored.
+     *
+     * @param delayMs time the frame is due after the last frame decoded into the ring
+     * @param frameDelayMs time the frame is due after the frame before it
+     */
+    private boolean skipDecodedFrameLocked(int frameNr, long delayMs, long frameDelayMs) {
+        if (mDestroyed || mNextFrameToDecode != frameNr || mDecodeState != STATE_DECODING
+                || mStopAfterSeek || mFrontDueTime < 0
+                || frameNr == mFrameSequence.getFrameCount() - 1) {
+            return false;
+        }
+        long dueTime = mFrontDueTime + delayMs;
+        for (int i = 1; i <= mDecodedCount; i++) {
+            final long delay = mFrameDelays[(mFrontIndex + i) % mBitmaps.length];
+            if (delay == Long.MAX_VALUE) return false;
+            dueTime += delay;
+        }
+        final long lateness = SystemClock.uptimeMillis() - dueTime;
+        return lateness >= frameDelayMs && lateness <= MAX_CATCH_UP_MS;
+    }
+
+    /**
+     * Returns the slot holding the frame before nextFrame, if the slots after the one at index
+     * hold the frames following its own up to that one, in order, and sets outRect to the part of
+     * the frame at index that differs from it. Returns -1 otherwise.
+     */
+    private int findCopySourceLocked(int index, int nextFrame, Rect outRect) {
+        int frameNr = mFrameNrs[index];
+        if (nextFrame == 0 || frameNr < 0 || frameNr == nextFrame - 1) return -1;
+
+        final int frameCount = mFrameSequence.getFrameCount();
+        outRect.setEmpty();
+        for (int i = 1; i < mBitmaps.length; i++) {
+            final int sourceIndex = (index + i) % mBitmaps.length;
+            frameNr = (frameNr + 1) % frameCount;
+            if (mFrameNrs[sourceIndex] != frameNr) return -1;
+            outRect.union(mDirtyRects[sourceIndex]);
+            if (frameNr == nextFrame - 1) return sourceIndex;
+        }
+        return -1;
+    }
+
     private Runnable mFinishedCallbackRunnable = new Runnable() {
         @Override
         public void run() {
             synchronized (mLock) {
-                mNextFrameToDecode = -1;
-                mState = 0;
+                resetLocked();
             }
             if (mOnFinishedListener != null) {
                 mOnFinishedListener.onFinished(FrameSequenceDrawable.this);
@@ -245,12 +657,12 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     };
 
     private static Bitmap acquireAndValidateBitmap(BitmapProvider bitmapProvider,
-            int minWidth, int minHeight) {
+            FrameSequence.State state, int minWidth, int minHeight) {
         Bitmap bitmap = bitmapProvider.acquireBitmap(minWidth, minHeight);
 
         if (bitmap.getWidth() < minWidth
                 || bitmap.getHeight() < minHeight
-                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                || !state.acceptsConfig(bitmap.getConfig())) {
             throw new IllegalArgumentException("Invalid bitmap provided");
         }
 
@@ -262,30 +674,63 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     }
 
     public FrameSequenceDrawable(FrameSequence frameSequence, BitmapProvider bitmapProvider) {
-        if (frameSequence == null || bitmapProvider == null) throw new IllegalArgumentException();
+        this(frameSequence, bitmapProvider, DecodeExecutor.getDefault());
+    }
+
+    /**
+     * Create a drawable that decodes its frames on the given executor, instead of the default
+     * one shared by the process.
+     */
+    public FrameSequenceDrawable(FrameSequence frameSequence, BitmapProvider bitmapProvider,
+            DecodeExecutor decodeExecutor) {
+        this(frameSequence, bitmapProvider, decodeExecutor, 1);
+    }
+
+    /**
+     * Create a drawable that decodes downsampled frames, reducing the size of its Bitmaps and
+     * the time spent decoding by about sampleSize^2. The intrinsic size is unaffected, so the
+     * frames are scaled back up when drawn.
+     *
+     * @see FrameSequence#computeSampleSize(int, int)
+     */
+    public FrameSequenceDrawable(FrameSequence frameSequence, BitmapProvider bitmapProvider,
+            DecodeExecutor decodeExecutor, int sampleSize) {
+        if (frameSequence == null || bitmapProvider == null || decodeExecutor == null
+                || sampleSize < 1) {
+            throw new IllegalArgumentException();
+        }
 
         mFrameSequence = frameSequence;
-        mFrameSequenceState = frameSequence.createState();
-        final int width = frameSequence.getWidth();
-        final int height = frameSequence.getHeight();
+        mDecodeExecutor = decodeExecutor;
+        mSampleSize = sampleSize;
+        mFrameSequenceState = frameSequence.createState(sampleSize);
+        final int width = mFrameSequenceState.getWidth();
+        final int height = mFrameSequenceState.getHeight();
 
         mBitmapProvider = bitmapProvider;
-        mFrontBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
-        mBackBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
+        mBitmaps = new Bitmap[MIN_RING_SIZE];
+        mShaders = new BitmapShader[MIN_RING_SIZE];
+        mFrameNrs = new int[MIN_RING_SIZE];
+        mFrameDelays = new long[MIN_RING_SIZE];
+        mDirtyRects = new Rect[MIN_RING_SIZE];
+        for (int i = 0; i < MIN_RING_SIZE; i++) {
+            mBitmaps[i] = acquireAndValidateBitmap(bitmapProvider, mFrameSequenceState,
+                    width, height);
+            mShaders[i] = new BitmapShader(mBitmaps[i],
+                    Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            mFrameNrs[i] = -1;
+            mDirtyRects[i] = new Rect(0, 0, width, height);
+        }
+        mBytesPerPixel = mBitmaps[0].getConfig() == Bitmap.Config.RGB_565 ? 2 : 4;
         mSrcRect = new Rect(0, 0, width, height);
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
-
-        mFrontBitmapShader
-            = new BitmapShader(mFrontBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-        mBackBitmapShader
-            = new BitmapShader(mBackBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-
-        mLastSwap = 0;
+        mCopyPaint = new Paint();
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
 
         mNextFrameToDecode = -1;
-        mFrameSequenceState.getFrame(0, mFrontBitmap, -1);
-        initializeDecodingThread();
+        mFrameSequenceState.getFrame(0, mBitmaps[0], -1);
+        mFrameNrs[0] = 0;
     }
 
     /**
@@ -307,7 +752,7 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         return mCircleMaskEnabled;
     }
 
-    private void checkDestroyedLocked() {
+    private void checkDestroyed() {
         if (mDestroyed) {
             throw new IllegalStateException("Cannot perform operation on recycled drawable");
         }
@@ -323,6 +768,10 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
      * Marks the drawable as permanently recycled (and thus unusable), and releases any owned
      * Bitmaps drawable to its BitmapProvider, if attached.
      *
+     * Also frees the drawable's decoding state, along with the FrameSequence's native decoder if
+     * the FrameSequence has been closed and no other drawable is using it. A drawable that is
+     * never destroyed frees them only once it has been garbage collected.
+     *
      * If no BitmapProvider is attached to the drawable, recycle() is called on the Bitmaps.
      */
     public void destroy() {
@@ -330,84 +779,150 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
             throw new IllegalStateException("BitmapProvider must be non-null");
         }
 
-        Bitmap bitmapToReleaseA;
-        Bitmap bitmapToReleaseB = null;
+        Bitmap[] bitmapsToRelease;
+        boolean destroyState;
         synchronized (mLock) {
-            checkDestroyedLocked();
-
-            bitmapToReleaseA = mFrontBitmap;
-            mFrontBitmap = null;
-
-            if (mState != STATE_DECODING) {
-                bitmapToReleaseB = mBackBitmap;
-                mBackBitmap = null;
+            checkDestroyed();
+
+            bitmapsToRelease = mBitmaps.clone();
+            if (mDecodingIndex >= 0) {
+                // the decoding thread releases the slots it's drawing into and copying from, and
+                // the state it's drawing with, once done
+                bitmapsToRelease[mDecodingIndex] = null;
+                if (mCopySourceIndex >= 0) {
+                    bitmapsToRelease[mCopySourceIndex] = null;
+                }
+            }
+            destroyState = mDecodingIndex < 0;
+            for (int i = 0; i < mBitmaps.length; i++) {
+                if (bitmapsToRelease[i] != null) mBitmaps[i] = null;
             }
 
             mDestroyed = true;
+            final AnimationCoordinator coordinator = mAnimationCoordinator;
+            if (coordinator != null && mDecodeState == STATE_SCHEDULED) {
+                // not to be held on to until its decode would have been granted
+                coordinator.cancelDecode(this);
+            }
         }
 
-        // For simplicity and safety, we don't destroy the state object here
-        mBitmapProvider.releaseBitmap(bitmapToReleaseA);
-        if (bitmapToReleaseB != null) {
-            mBitmapProvider.releaseBitmap(bitmapToReleaseB);
-        }
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-        try {
+        if (destroyState) {
             mFrameSequenceState.destroy();
-        } finally {
-            super.finalize();
+        }
+        for (Bitmap bitmap : bitmapsToRelease) {
+            if (bitmap != null) {
+                mBitmapProvider.releaseBitmap(bitmap);
+            }
         }
     }
 
     @Override
     public void draw(Canvas canvas) {
-        synchronized (mLock) {
-            checkDestroyedLocked();
-            if (mState == STATE_WAITING_TO_SWAP) {
-                // may have failed to schedule mark ready runnable,
-                // so go ahead and swap if swapping is due
-                if (mNextSwap - SystemClock.uptimeMillis() <= 0) {
-                    mState = STATE_READY_TO_SWAP;
+        boolean invalidate = false;
+        checkDestroyed();
+        mPendingInvalidateTime = -1;
+        if (mDecodePaused) {
+            synchronized (mLock) {
+                if (mDecodePaused) {
+                    // back on screen, so carry on decoding after the displayed frame, which is
+                    // due as soon as it's decoded rather than at its place on the old timeline
+                    mDecodePaused = false;
+                    mFrontDueTime = -1;
+                    if (mNextFrameToDecode >= 0 && mDecodeState == 0 && !mDecodeFinished
+                            && mDecodedCount < mBitmaps.length - 1) {
+                        scheduleDecodeLocked();
+                    }
                 }
             }
+        }
+        if (mSwapState.get() == STATE_WAITING_TO_SWAP
+                && mNextSwap - SystemClock.uptimeMillis() <= 0) {
+            // may have failed to schedule mark ready runnable,
+            // so go ahead and swap if swapping is due
+            if (mSwapState.compareAndSet(STATE_WAITING_TO_SWAP, STATE_READY_TO_SWAP)) {
+                // only the part invalidated for other reasons may be redrawn with the frame
+                // swapped in unannounced, so redraw the rest too
+                invalidate = true;
+            }
+        }
 
-            if (isRunning() && mState == STATE_READY_TO_SWAP) {
-                // Because draw has occurred, the view system is guaranteed to no longer hold a
-                // reference to the old mFrontBitmap, so we now use it to produce the next frame
-                Bitmap tmp = mBackBitmap;
-                mBackBitmap = mFrontBitmap;
-                mFrontBitmap = tmp;
-
-                BitmapShader tmpShader = mBackBitmapShader;
-                mBackBitmapShader = mFrontBitmapShader;
-                mFrontBitmapShader = tmpShader;
-
-                mLastSwap = SystemClock.uptimeMillis();
-
-                boolean continueLooping = true;
-                if (mNextFrameToDecode == mFrameSequence.getFrameCount() - 1) {
-                    mCurrentLoop++;
-                    if ((mLoopBehavior == LOOP_FINITE && mCurrentLoop == mLoopCount) ||
-                            (mLoopBehavior == LOOP_DEFAULT && mCurrentLoop == mFrameSequence.getDefaultLoopCount())) {
-                        continueLooping = false;
+        // Only take the lock to swap a frame in. Otherwise the front frame is drawn as is, its
+        // slot is only changed here and while stopped, never by the decoding thread.
+        if (mSwapState.get() == STATE_READY_TO_SWAP) {
+            synchronized (mLock) {
+                if (mNextFrameToDecode >= 0 && mSwapState.get() == STATE_READY_TO_SWAP) {
+                    final long now = SystemClock.uptimeMillis();
+                    long dueTime = mFrontDueTime < 0 ? now : mNextSwap;
+                    mSwapState.set(0);
+
+                    boolean continueLooping = true;
+                    while (true) {
+                        // Because draw has occurred, the view system is guaranteed to no longer
+                        // hold a reference to the old front Bitmap, so we now use it to produce a
+                        // later frame
+                        mFrontIndex = (mFrontIndex + 1) % mBitmaps.length;
+                        mDecodedCount--;
+
+                        if (mStopAfterSeek) {
+                            // sought to while stopped, so remain stopped on this frame
+                            mStartFrame = mNextFrameToDecode;
+                            resetLocked();
+                            continueLooping = false;
+                            break;
+                        } else if (mFrameNrs[mFrontIndex] == mFrameSequence.getFrameCount() - 1) {
+                            mCurrentLoop++;
+                            if (isFinalLoopLocked(mCurrentLoop)) {
+                                continueLooping = false;
+                                break;
+                            }
+                        }
+
+                        // Skip decoded frames for which the frame after is due already, so that
+                        // playback catches up with the timeline
+                        if (mDecodedCount == 0) break;
+                        final long nextDelay = mFrameDelays[(mFrontIndex + 1) % mBitmaps.length];
+                        if (nextDelay == Long.MAX_VALUE || dueTime + nextDelay > now
+                                || now - dueTime > MAX_CATCH_UP_MS) {
+                            break;
+                        }
+                        dueTime += nextDelay;
+                        mDroppedFrameCount++;
+                        // the part of the bounds invalidated was that of the skipped frame
+                        invalidate = true;
                     }
-                }
 
-                if (continueLooping) {
-                    scheduleDecodeLocked();
-                } else {
-                    scheduleSelf(mFinishedCallbackRunnable, 0);
+                    final long lateness = now - dueTime;
+                    if (mFrontDueTime >= 0) {
+                        mMaxLatenessMs = Math.max(mMaxLatenessMs, lateness);
+                        mTotalLatenessMs += lateness;
+                        mTimedFrameCount++;
+                    }
+                    // Anchor the timeline on the first frame, and move it to the present if
+                    // playback is too far behind to catch up
+                    mFrontDueTime = lateness > MAX_CATCH_UP_MS ? now : dueTime;
+
+                    if (continueLooping) {
+                        if (mDecodedCount > 0) {
+                            int nextIndex = (mFrontIndex + 1) % mBitmaps.length;
+                            mNextSwap = mFrameDelays[nextIndex] == Long.MAX_VALUE
+                                    ? Long.MAX_VALUE : mFrontDueTime + mFrameDelays[nextIndex];
+                            mSwapState.set(STATE_WAITING_TO_SWAP);
+                            scheduleSelf(this, mNextSwap);
+                        }
+                        if (mDecodeState == 0 && !mDecodeFinished) {
+                            scheduleDecodeLocked();
+                        }
+                    } else if (mNextFrameToDecode >= 0) {
+                        scheduleSelf(mFinishedCallbackRunnable, 0);
+                    }
                 }
             }
         }
 
         if (mCircleMaskEnabled) {
             final Rect bounds = getBounds();
-            final int bitmapWidth = getIntrinsicWidth();
-            final int bitmapHeight = getIntrinsicHeight();
+            final int bitmapWidth = mSrcRect.width();
+            final int bitmapHeight = mSrcRect.height();
             final float scaleX = 1.0f * bounds.width() / bitmapWidth;
             final float scaleY = 1.0f * bounds.height() / bitmapHeight;
 
@@ -427,43 +942,196 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
                     (bitmapHeight - scaledDiameterY) / 2.0f,
                     (bitmapWidth + scaledDiameterX) / 2.0f,
                     (bitmapHeight + scaledDiameterY) / 2.0f);
-            mPaint.setShader(mFrontBitmapShader);
+            mPaint.setShader(mShaders[mFrontIndex]);
             canvas.drawOval(mTempRectF, mPaint);
             canvas.restore();
         } else {
             mPaint.setShader(null);
-            canvas.drawBitmap(mFrontBitmap, mSrcRect, getBounds(), mPaint);
+            canvas.drawBitmap(mBitmaps[mFrontIndex], mSrcRect, getBounds(), mPaint);
+        }
+
+        if (invalidate) {
+            invalidateSelf();
         }
     }
 
+    private boolean isFinalLoopLocked(int loop) {
+        return (mLoopBehavior == LOOP_FINITE && loop == mLoopCount)
+                || (mLoopBehavior == LOOP_DEFAULT
+                        && loop == mFrameSequence.getDefaultLoopCount());
+    }
+
+    /**
+     * Stops playback, dropping any frames decoded ahead of the displayed one.
+     */
+    private void resetLocked() {
+        final AnimationCoordinator coordinator = mAnimationCoordinator;
+        if (coordinator != null && mDecodeState == STATE_SCHEDULED) {
+            coordinator.cancelDecode(this);
+        }
+        mNextFrameToDecode = -1;
+        mStopAfterSeek = false;
+        mDecodePaused = false;
+        mDecodeState = 0;
+        mSwapState.set(0);
+        mDecodedCount = 0;
+    }
+
+    private int getEffectiveDecodePriority() {
+        return isVisible() ? mDecodePriority : DecodeExecutor.PRIORITY_LOW;
+    }
+
     private void scheduleDecodeLocked() {
-        mState = STATE_SCHEDULED;
-        mNextFrameToDecode = (mNextFrameToDecode + 1) % mFrameSequence.getFrameCount();
-        sDecodingThreadHandler.post(mDecodeRunnable);
+        mDecodeState = STATE_SCHEDULED;
+        mDecodeScheduledTime = SystemClock.uptimeMillis();
+        final AnimationCoordinator coordinator = mAnimationCoordinator;
+        if (coordinator != null) {
+            final boolean onScreen = isDecodeOnScreen(mDecodeScheduledTime,
+                    coordinator.getOffscreenTimeoutMs());
+            if (!coordinator.requestDecode(this, getEffectiveDecodePriority(), onScreen)) {
+                if (!onScreen) {
+                    // resumed by the next draw()
+                    mDecodeState = 0;
+                    mDecodePaused = true;
+                }
+                // otherwise deferred, see onDecodeGranted()
+                return;
+            }
+        }
+        mDecodeExecutor.execute(this, mDecodeRunnable, getEffectiveDecodePriority());
+    }
+
+    /**
+     * Whether the drawable counts as on screen at the given time: visible, and drawn since it
+     * last invalidated itself for a new frame, or not long before. Doesn't take the lock, as the
+     * AnimationCoordinator checks it again when granting deferred decodes.
+     */
+    boolean isDecodeOnScreen(long now, long offscreenTimeoutMs) {
+        final long pendingInvalidateTime = mPendingInvalidateTime;
+        return isVisible() && (pendingInvalidateTime < 0
+                || now - pendingInvalidateTime < offscreenTimeoutMs);
+    }
+
+    /**
+     * Called by the AnimationCoordinator once a deferred decode may start.
+     */
+    void onDecodeGranted() {
+        synchronized (mLock) {
+            // stale if the drawable was stopped or restarted meanwhile
+            if (mDestroyed || mNextFrameToDecode < 0 || mDecodeState != STATE_SCHEDULED) return;
+            mDecodeExecutor.execute(this, mDecodeRunnable, getEffectiveDecodePriority());
+        }
+    }
+
+    /**
+     * Called by the AnimationCoordinator instead of onDecodeGranted() if the drawable went
+     * off-screen while its decode was deferred.
+     */
+    void onDecodePaused() {
+        synchronized (mLock) {
+            if (mDestroyed || mNextFrameToDecode < 0 || mDecodeState != STATE_SCHEDULED) return;
+            // resumed by the next draw()
+            mDecodeState = 0;
+            mDecodePaused = true;
+        }
     }
 
     @Override
     public void run() {
         // set ready to swap as necessary
         boolean invalidate = false;
-        synchronized (mLock) {
-            if (mNextFrameToDecode >= 0 && mState == STATE_WAITING_TO_SWAP) {
-                mState = STATE_READY_TO_SWAP;
-                invalidate = true;
+        boolean partial = false;
+        if (mSwapState.compareAndSet(STATE_WAITING_TO_SWAP, STATE_READY_TO_SWAP)) {
+            invalidate = true;
+            if (mPendingInvalidateTime < 0) {
+                mPendingInvalidateTime = SystemClock.uptimeMillis();
             }
+            partial = computeSwapDirtyBounds(mDirtyBounds);
         }
         if (invalidate) {
+            // only redraw the part of the bounds the next frame changes
+            mInvalidatingFrame = partial;
             invalidateSelf();
+            mInvalidatingFrame = false;
+            if (partial) {
+                scheduleSelf(mFullInvalidateRunnable,
+                        SystemClock.uptimeMillis() + PARTIAL_INVALIDATE_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * Maps the part of the frame that changes with the next swap to outBounds, returning false if
+     * it isn't known to be smaller than the whole frame. Needs no lock while a frame is ready to
+     * swap, as neither the front slot nor the one after it is decoded into until it's swapped in.
+     */
+    private boolean computeSwapDirtyBounds(Rect outBounds) {
+        final int nextIndex = (mFrontIndex + 1) % mBitmaps.length;
+        final int frontFrame = mFrameNrs[mFrontIndex];
+        final Rect frameRect = mDirtyRects[nextIndex];
+        if (frontFrame < 0
+                || mFrameNrs[nextIndex] != (frontFrame + 1) % mFrameSequence.getFrameCount()
+                || frameRect.isEmpty() || frameRect.contains(mSrcRect)) {
+            return false;
+        }
+
+        // Widen by a frame pixel on each side, as filtering blends neighbouring pixels in
+        final Rect bounds = getBounds();
+        final float scaleX = 1.0f * bounds.width() / mSrcRect.width();
+        final float scaleY = 1.0f * bounds.height() / mSrcRect.height();
+        outBounds.set(
+                bounds.left + (int) Math.floor((frameRect.left - 1) * scaleX),
+                bounds.top + (int) Math.floor((frameRect.top - 1) * scaleY),
+                bounds.left + (int) Math.ceil((frameRect.right + 1) * scaleX),
+                bounds.top + (int) Math.ceil((frameRect.bottom + 1) * scaleY));
+        return outBounds.intersect(bounds);
+    }
+
+    /**
+     * Invalidates all of the drawable if a frame announced by a partial invalidate hasn't been
+     * drawn yet.
+     */
+    private final Runnable mFullInvalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mSwapState.get() == STATE_READY_TO_SWAP) {
+                invalidateSelf();
+            }
         }
+    };
+
+    /**
+     * Views call this from API 11 on to find the part of their area to redraw when the drawable
+     * invalidates itself. For a new frame, that's only the part of the bounds it changes.
+     */
+    @Override
+    public Rect getDirtyBounds() {
+        return mInvalidatingFrame ? mDirtyBounds : getBounds();
     }
 
     @Override
     public void start() {
         if (!isRunning()) {
             synchronized (mLock) {
-                checkDestroyedLocked();
-                if (mState == STATE_SCHEDULED) return; // already scheduled
+                checkDestroyed();
                 mCurrentLoop = 0;
+                mDecodeLoop = 0;
+                mDecodeFinished = false;
+                if (mStopAfterSeek) {
+                    // keep the frame sought to while stopped, and carry on decoding after it,
+                    // with the timeline starting now
+                    mStopAfterSeek = false;
+                    mFrontDueTime = SystemClock.uptimeMillis();
+                    if (mDecodeState == 0 && mDecodedCount < mBitmaps.length - 1) {
+                        scheduleDecodeLocked();
+                    }
+                    return;
+                }
+                if (mDecodeState == STATE_SCHEDULED) return; // already scheduled
+                // the first frame is due immediately, and anchors the timeline
+                mFrontDueTime = -1;
+                mNextFrameToDecode = mStartFrame;
+                mStartFrame = 0;
                 scheduleDecodeLocked();
             }
         }
@@ -479,15 +1147,14 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     @Override
     public boolean isRunning() {
         synchronized (mLock) {
-            return mNextFrameToDecode > -1 && !mDestroyed;
+            return mNextFrameToDecode > -1 && !mStopAfterSeek && !mDestroyed;
         }
     }
 
     @Override
     public void unscheduleSelf(Runnable what) {
         synchronized (mLock) {
-            mNextFrameToDecode = -1;
-            mState = 0;
+            resetLocked();
         }
         super.unscheduleSelf(what);
     }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.util.Log;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs cleanup actions for objects owning native memory, either explicitly when the object is
+ * closed, or from a background thread once the object has been garbage collected without
+ * being closed.
+ *
+ * Unlike finalize(), a collected object's action runs as soon as the collector enqueues its
+ * phantom reference, without waiting for the finalizer queue to drain or for a second
+ * collection. Actions must not reference the object they clean up after, otherwise it never
+ * becomes unreachable.
+ */
+final class NativeCleaner {
+    private static final String TAG = "FrameSequence";
+
+    interface Cleanable {
+        /**
+         * Runs the cleanup action, unless it has already run. Safe to call more than once.
+         */
+        void clean();
+    }
+
+    private static final ReferenceQueue<Object> sQueue = new ReferenceQueue<Object>();
+    // Keeps the references reachable until their action has run
+    private static final Set<CleanerRef> sRefs =
+            Collections.synchronizedSet(new HashSet<CleanerRef>());
+    private static final AtomicLong sLeakCount = new AtomicLong();
+    private static volatile boolean sLeakTrackingEnabled;
+
+    static {
+        Thread thread = new Thread("FrameSequence cleaner") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ((CleanerRef) sQueue.remove()).onCollected();
+                    } catch (InterruptedException e) {
+                        // keep waiting
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private NativeCleaner() {}
+
+    static Cleanable register(Object referent, Runnable action, String description) {
+        CleanerRef ref = new CleanerRef(referent, action, description,
+                sLeakTrackingEnabled ? new Throwable(description + " created here") : null);
+        sRefs.add(ref);
+        return ref;
+    }
+
+    static void setLeakTrackingEnabled(boolean enabled) {
+        sLeakTrackingEnabled = enabled;
+    }
+
+    static long getLeakCount() {
+        return sLeakCount.get();
+    }
+
+    private static class CleanerRef extends PhantomReference<Object> implements Cleanable {
+        private final String mDescription;
+        private final Throwable mCreationSite;
+        private Runnable mAction;
+
+        CleanerRef(Object referent, Runnable action, String description, Throwable creationSite) {
+            super(referent, sQueue);
+            mAction = action;
+            mDescription = description;
+            mCreationSite = creationSite;
+        }
+
+        private Runnable takeAction() {
+            Runnable action;
+            synchronized (this) {
+                action = mAction;
+                mAction = null;
+            }
+            sRefs.remove(this);
+            return action;
+        }
+
+        @Override
+        public void clean() {
+            Runnable action = takeAction();
+            if (action != null) {
+                action.run();
+            }
+        }
+
+        void onCollected() {
+            Runnable action = takeAction();
+            if (action == null) return;
+
+            sLeakCount.incrementAndGet();
+            if (mCreationSite != null) {
+                Log.w(TAG, mDescription + " was garbage collected without being closed",
+                        mCreationSite);
+            }
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "exception cleaning up " + mDescription, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AnimationCoordinatorTest {
+    private static final int SIZE = 64;
+    private static final int[] FRAME_COLORS = {
+            0xffff0000, 0xff00ff00, 0xff0000ff, 0xffffff00, 0xff00ffff, 0xffff00ff };
+    private static final int FRAME_DELAY_MS = 50;
+    // display frame the coordinator counts decodes per
+    private static final long FRAME_INTERVAL_MS = 16;
+    private static final long TIMEOUT_MS = 5000;
+
+    private FrameSequence mFrameSequence;
+
+    /**
+     * Records the decodes the coordinator grants it later, in the order granted.
+     */
+    private static class RecordingDrawable extends FrameSequenceDrawable {
+        private final List<RecordingDrawable> mGrantOrder;
+
+        RecordingDrawable(FrameSequence frameSequence, List<RecordingDrawable> grantOrder) {
+            super(frameSequence);
+            mGrantOrder = grantOrder;
+        }
+
+        @Override
+        void onDecodeGranted() {
+            synchronized (mGrantOrder) {
+                mGrantOrder.add(this);
+                mGrantOrder.notifyAll();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mFrameSequence = TestAnimations.createFrameSequence(SIZE, SIZE, FRAME_COLORS,
+                FRAME_DELAY_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mFrameSequence.close();
+    }
+
+    private static long currentFrame() {
+        return SystemClock.uptimeMillis() / FRAME_INTERVAL_MS;
+    }
+
+    private static void awaitGrants(List<RecordingDrawable> grantOrder, int count)
+            throws InterruptedException {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        synchronized (grantOrder) {
+            while (grantOrder.size() < count) {
+                final long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) fail("deferred decodes never granted");
+                grantOrder.wait(remaining);
+            }
+        }
+    }
+
+    private static void awaitPausedDecode(AnimationCoordinator coordinator)
+            throws InterruptedException {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (coordinator.getPausedDecodeCount() == 0) {
+            if (SystemClock.uptimeMillis() > deadline) fail("decoding never paused off-screen");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Ensure that no more decodes than the budget start in a display frame, and that the ones
+     * exceeding it are granted in a later frame.
+     */
+    @Test
+    public void defersDecodesOverBudget() throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            final List<RecordingDrawable> grantOrder = new ArrayList<RecordingDrawable>();
+            final AnimationCoordinator coordinator = new AnimationCoordinator(2);
+            final RecordingDrawable[] drawables = new RecordingDrawable[3];
+            for (int i = 0; i < drawables.length; i++) {
+                drawables[i] = new RecordingDrawable(mFrameSequence, grantOrder);
+            }
+
+            final long frame = currentFrame();
+            final boolean[] granted = new boolean[drawables.length];
+            for (int i = 0; i < drawables.length; i++) {
+                granted[i] = coordinator.requestDecode(drawables[i],
+                        DecodeExecutor.PRIORITY_NORMAL, true);
+            }
+            if (currentFrame() != frame) {
+                // the requests straddled two display frames, each with a budget of its own
+                assertTrue("requests never fit in a display frame", attempt < 10);
+                continue;
+            }
+
+            assertTrue(Arrays.equals(new boolean[] { true, true, false }, granted));
+            assertEquals(2, coordinator.getGrantedDecodeCount());
+            assertEquals(1, coordinator.getDeferredDecodeCount());
+
+            awaitGrants(grantOrder, 1);
+            assertEquals(Arrays.asList(drawables[2]), grantOrder);
+            assertEquals(3, coordinator.getGrantedDecodeCount());
+            return;
+        }
+    }
+
+    /**
+     * Ensure that deferred decodes are granted higher priority drawables first, and that no
+     * decode jumps the queue of deferred ones even if the budget allows.
+     */
+    @Test
+    public void grantsDeferredDecodesByPriority() throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            final List<RecordingDrawable> grantOrder = new ArrayList<RecordingDrawable>();
+            final AnimationCoordinator coordinator = new AnimationCoordinator(1);
+            final RecordingDrawable first = new RecordingDrawable(mFrameSequence, grantOrder);
+            final RecordingDrawable low = new RecordingDrawable(mFrameSequence, grantOrder);
+            final RecordingDrawable high = new RecordingDrawable(mFrameSequence, grantOrder);
+
+            final long frame = currentFrame();
+            assertTrue(coordinator.requestDecode(first, DecodeExecutor.PRIORITY_NORMAL, true));
+            final boolean lowGranted =
+                    coordinator.requestDecode(low, DecodeExecutor.PRIORITY_LOW, true);
+            final boolean highGranted =
+                    coordinator.requestDecode(high, DecodeExecutor.PRIORITY_HIGH, true);
+            if (currentFrame() != frame) {
+                assertTrue("requests never fit in a display frame", attempt < 10);
+                continue;
+            }
+
+            assertFalse(lowGranted);
+            assertFalse(highGranted);
+            awaitGrants(grantOrder, 2);
+            assertEquals(Arrays.asList(high, low), grantOrder);
+            return;
+        }
+    }
+
+    /**
+     * Ensure that decodes of off-screen drawables are paused rather than deferred, and never
+     * granted later.
+     */
+    @Test
+    public void pausesOffscreenDecodes() throws InterruptedException {
+        final List<RecordingDrawable> grantOrder = new ArrayList<RecordingDrawable>();
+        final AnimationCoordinator coordinator = new AnimationCoordinator(1);
+        final RecordingDrawable drawable = new RecordingDrawable(mFrameSequence, grantOrder);
+
+        assertFalse(coordinator.requestDecode(drawable, DecodeExecutor.PRIORITY_HIGH, false));
+        assertEquals(1, coordinator.getPausedDecodeCount());
+        assertEquals(0, coordinator.getDeferredDecodeCount());
+        assertEquals(0, coordinator.getGrantedDecodeCount());
+
+        Thread.sleep(10 * FRAME_INTERVAL_MS);
+        assertTrue(grantOrder.isEmpty());
+
+        // an off-screen drawable doesn't use up the budget
+        assertTrue(coordinator.requestDecode(drawable, DecodeExecutor.PRIORITY_NORMAL, true));
+
+        coordinator.resetStatistics();
+        assertEquals(0, coordinator.getPausedDecodeCount());
+        assertEquals(0, coordinator.getGrantedDecodeCount());
+    }
+
+    /**
+     * Ensure that a deferred decode is dropped once cancelled, e.g. because its drawable was
+     * destroyed, and that one whose drawable went off-screen meanwhile is paused instead of
+     * granted, without using up the budget.
+     */
+    @Test
+    public void dropsCancelledAndOffscreenDeferredDecodes() throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            final List<RecordingDrawable> grantOrder = new ArrayList<RecordingDrawable>();
+            final AnimationCoordinator coordinator = new AnimationCoordinator(1);
+            final RecordingDrawable first = new RecordingDrawable(mFrameSequence, grantOrder);
+            final RecordingDrawable cancelled = new RecordingDrawable(mFrameSequence, grantOrder);
+            final RecordingDrawable hidden = new RecordingDrawable(mFrameSequence, grantOrder);
+            final RecordingDrawable last = new RecordingDrawable(mFrameSequence, grantOrder);
+
+            final long frame = currentFrame();
+            assertTrue(coordinator.requestDecode(first, DecodeExecutor.PRIORITY_NORMAL, true));
+            final boolean cancelledGranted = coordinator.requestDecode(cancelled,
+                    DecodeExecutor.PRIORITY_HIGH, true);
+            final boolean hiddenGranted = coordinator.requestDecode(hidden,
+                    DecodeExecutor.PRIORITY_HIGH, true);
+            final boolean lastGranted = coordinator.requestDecode(last,
+                    DecodeExecutor.PRIORITY_LOW, true);
+            coordinator.cancelDecode(cancelled);
+            hidden.setVisible(false, false);
+            if (currentFrame() != frame) {
+                assertTrue("requests never fit in a display frame", attempt < 10);
+                continue;
+            }
+
+            assertFalse(cancelledGranted);
+            assertFalse(hiddenGranted);
+            assertFalse(lastGranted);
+            // granted in the first frame with a budget, which the hidden drawable didn't use up
+            awaitGrants(grantOrder, 1);
+            Thread.sleep(3 * FRAME_INTERVAL_MS);
+            assertEquals(Arrays.asList(last), grantOrder);
+            assertEquals(1, coordinator.getPausedDecodeCount());
+            assertEquals(2, coordinator.getGrantedDecodeCount());
+            return;
+        }
+    }
+
+    /**
+     * Ensure that only low priority drawables are limited to a lower frame rate.
+     */
+    @Test
+    public void limitsFrameRateOfLowPriority() {
+        AnimationCoordinator coordinator = new AnimationCoordinator(1);
+        assertEquals(100, coordinator.getMinFrameIntervalMs(DecodeExecutor.PRIORITY_LOW));
+        assertEquals(0, coordinator.getMinFrameIntervalMs(DecodeExecutor.PRIORITY_NORMAL));
+        assertEquals(0, coordinator.getMinFrameIntervalMs(DecodeExecutor.PRIORITY_HIGH));
+
+        coordinator.setLowPriorityFrameIntervalMs(40);
+        assertEquals(40, coordinator.getMinFrameIntervalMs(DecodeExecutor.PRIORITY_LOW));
+        assertEquals(0, coordinator.getMinFrameIntervalMs(DecodeExecutor.PRIORITY_NORMAL));
+    }
+
+    /**
+     * Ensure that coordinators without a budget or with negative intervals can't be set up.
+     */
+    @Test
+    public void rejectsInvalidParameters() {
+        try {
+            new AnimationCoordinator(0);
+            fail("created a coordinator without a budget");
+        } catch (IllegalArgumentException expected) {
+        }
+        AnimationCoordinator coordinator = new AnimationCoordinator(1);
+        try {
+            coordinator.setOffscreenTimeoutMs(-1);
+            fail("set a negative offscreen timeout");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            coordinator.setLowPriorityFrameIntervalMs(-1);
+            fail("set a negative frame interval");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Ensure that a drawable stops decoding once it goes undrawn off-screen, and once drawn
+     * again, plays on from the frame after the one it was showing.
+     */
+    @Test
+    public void resumesAfterDisplayedFrame() throws InterruptedException {
+        final AnimationCoordinator coordinator = new AnimationCoordinator(1);
+        coordinator.setOffscreenTimeoutMs(0);
+        final TestDrawableHost host = new TestDrawableHost(SIZE, FRAME_COLORS);
+        final FrameSequenceDrawable drawable = new FrameSequenceDrawable(mFrameSequence);
+        try {
+            drawable.setAnimationCoordinator(coordinator);
+            // At one decode per display frame, a long lookahead is still filling while the
+            // first frames play, so decodes are requested after the host stops drawing
+            drawable.setLookahead(20, Long.MAX_VALUE);
+            host.attach(drawable);
+            drawable.start();
+            assertTrue("never animated", host.awaitShownFrames(3, TIMEOUT_MS));
+
+            host.setOnScreen(false);
+            awaitPausedDecode(coordinator);
+            final List<Integer> shownFrames = host.getShownFrames();
+            final int lastShown = shownFrames.get(shownFrames.size() - 1);
+            final long grantedCount = coordinator.getGrantedDecodeCount();
+            Thread.sleep(10 * FRAME_DELAY_MS);
+            assertEquals("decoded off-screen", grantedCount, coordinator.getGrantedDecodeCount());
+            assertTrue(host.getIgnoredInvalidateCount() > 0);
+            assertEquals(shownFrames, host.getShownFrames());
+
+            host.setOnScreen(true);
+            host.draw(drawable);
+            assertTrue("never resumed",
+                    host.awaitShownFrames(shownFrames.size() + 3, TIMEOUT_MS));
+            final List<Integer> resumedFrames =
+                    host.getShownFrames().subList(shownFrames.size(), shownFrames.size() + 3);
+            assertEquals(Arrays.asList(
+                    (lastShown + 1) % FRAME_COLORS.length,
+                    (lastShown + 2) % FRAME_COLORS.length,
+                    (lastShown + 3) % FRAME_COLORS.length), resumedFrames);
+            assertTrue(host.getFailures().isEmpty());
+        } finally {
+            drawable.stop();
+            host.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    drawable.destroy();
+                }
+            });
+            host.quit();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class BitmapPoolTest {
+    // bytes of an ARGB_8888 Bitmap of 10x10 pixels
+    private static final int BITMAP_BYTES = 4 * 10 * 10;
+
+    private static final boolean CAN_RECONFIGURE =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    /**
+     * Ensure that a released Bitmap is handed out again, and that hits and misses are counted.
+     */
+    @Test
+    public void reusesReleasedBitmap() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap bitmap = pool.acquireBitmap(10, 10);
+        assertEquals(10, bitmap.getWidth());
+        assertEquals(10, bitmap.getHeight());
+        assertEquals(Bitmap.Config.ARGB_8888, bitmap.getConfig());
+
+        pool.releaseBitmap(bitmap);
+        assertEquals(BITMAP_BYTES, pool.getSizeBytes());
+        assertSame(bitmap, pool.acquireBitmap(10, 10));
+        assertEquals(0, pool.getSizeBytes());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    /**
+     * Ensure that a Bitmap is reused for requests needing at least half of its bytes, but not for
+     * those needing less.
+     */
+    @Test
+    public void reusesAtMostTwiceTheSize() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap bitmap = Bitmap.createBitmap(20, 20, Bitmap.Config.ARGB_8888);
+        pool.releaseBitmap(bitmap);
+
+        assertNotSame(bitmap, pool.acquireBitmap(10, 10));
+        assertEquals(1, pool.getMissCount());
+
+        assertSame(bitmap, pool.acquireBitmap(15, 15));
+        assertEquals(1, pool.getHitCount());
+        if (CAN_RECONFIGURE) {
+            assertEquals(15, bitmap.getWidth());
+            assertEquals(15, bitmap.getHeight());
+        }
+    }
+
+    /**
+     * Ensure that a Bitmap large enough but of other dimensions is reconfigured where possible,
+     * and otherwise isn't reused.
+     */
+    @Test
+    public void reconfiguresToRequestedDimensions() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap bitmap = Bitmap.createBitmap(10, 20, Bitmap.Config.ARGB_8888);
+        pool.releaseBitmap(bitmap);
+
+        Bitmap acquired = pool.acquireBitmap(20, 10);
+        assertEquals(20, acquired.getWidth());
+        assertEquals(10, acquired.getHeight());
+        if (CAN_RECONFIGURE) {
+            assertSame(bitmap, acquired);
+            assertEquals(1, pool.getHitCount());
+        } else {
+            assertNotSame(bitmap, acquired);
+            assertEquals(1, pool.getMissCount());
+        }
+    }
+
+    /**
+     * Ensure that releasing Bitmaps beyond the pool's capacity drops those released longest ago,
+     * and that the ones released most recently are handed out first.
+     */
+    @Test
+    public void evictsReleasedLongestAgo() {
+        BitmapPool pool = new BitmapPool(3 * BITMAP_BYTES);
+        Bitmap[] bitmaps = new Bitmap[4];
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+            pool.releaseBitmap(bitmaps[i]);
+        }
+        assertEquals(3 * BITMAP_BYTES, pool.getSizeBytes());
+
+        assertSame(bitmaps[3], pool.acquireBitmap(10, 10));
+        assertSame(bitmaps[2], pool.acquireBitmap(10, 10));
+        assertSame(bitmaps[1], pool.acquireBitmap(10, 10));
+        assertNotSame(bitmaps[0], pool.acquireBitmap(10, 10));
+        assertEquals(3, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    /**
+     * Ensure that Bitmaps which can't be handed out again, or don't fit in the pool, are
+     * dropped on release.
+     */
+    @Test
+    public void dropsUnusableBitmaps() {
+        BitmapPool pool = new BitmapPool(BITMAP_BYTES);
+
+        Bitmap recycled = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        recycled.recycle();
+        pool.releaseBitmap(recycled);
+        Bitmap immutable = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888)
+                .copy(Bitmap.Config.ARGB_8888, false);
+        pool.releaseBitmap(immutable);
+        pool.releaseBitmap(Bitmap.createBitmap(10, 10, Bitmap.Config.RGB_565));
+        pool.releaseBitmap(Bitmap.createBitmap(10, 11, Bitmap.Config.ARGB_8888));
+
+        assertEquals(0, pool.getSizeBytes());
+    }
+
+    /**
+     * Ensure that clearing drops all pooled Bitmaps, and that resetting statistics doesn't.
+     */
+    @Test
+    public void clearAndResetStatistics() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        pool.releaseBitmap(pool.acquireBitmap(10, 10));
+        pool.releaseBitmap(pool.acquireBitmap(5, 5));
+
+        pool.resetStatistics();
+        assertEquals(0, pool.getHitCount());
+        assertEquals(0, pool.getMissCount());
+        assertEquals(BITMAP_BYTES + BITMAP_BYTES / 4, pool.getSizeBytes());
+
+        pool.clear();
+        assertEquals(0, pool.getSizeBytes());
+        assertEquals(10 * BITMAP_BYTES, pool.getMaxSizeBytes());
+        pool.acquireBitmap(10, 10);
+        assertEquals(1, pool.getMissCount());
+    }
+
+    /**
+     * Ensure that a pool of RGB_565 Bitmaps hands out and pools only those.
+     */
+    @Test
+    public void poolsConfigGiven() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES, Bitmap.Config.RGB_565);
+        Bitmap bitmap = pool.acquireBitmap(10, 10);
+        assertEquals(Bitmap.Config.RGB_565, bitmap.getConfig());
+
+        pool.releaseBitmap(bitmap);
+        pool.releaseBitmap(Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+        assertEquals(BITMAP_BYTES / 2, pool.getSizeBytes());
+    }
+
+    /**
+     * Ensure that pools without capacity or of unsupported configs can't be created, and that
+     * null can't be released.
+     */
+    @Test
+    public void rejectsInvalidParameters() {
+        try {
+            new BitmapPool(0);
+            fail("created a pool of 0 bytes");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new BitmapPool(BITMAP_BYTES, Bitmap.Config.ALPHA_8);
+            fail("created a pool of ALPHA_8 Bitmaps");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new BitmapPool(BITMAP_BYTES).releaseBitmap(null);
+            fail("released null");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
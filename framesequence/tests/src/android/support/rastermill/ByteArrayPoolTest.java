@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ByteArrayPoolTest {
+    private static final int ARRAY_SIZE = 16;
+
+    /**
+     * Ensure that released arrays are handed out again, and that the hit rate counts them.
+     */
+    @Test
+    public void reusesReleasedArrays() {
+        ByteArrayPool pool = new ByteArrayPool(ARRAY_SIZE, 2);
+        assertEquals(0, pool.getHitRate(), 0);
+
+        byte[] first = pool.acquire();
+        assertEquals(ARRAY_SIZE, first.length);
+        pool.release(first);
+        assertSame(first, pool.acquire());
+        assertEquals(0.5f, pool.getHitRate(), 0);
+
+        byte[] second = pool.acquire();
+        assertNotSame(first, second);
+        assertEquals(1 / 3f, pool.getHitRate(), 0.001);
+    }
+
+    /**
+     * Ensure that no more arrays than the pool's capacity are retained, and that the most
+     * recently released ones are handed out first.
+     */
+    @Test
+    public void retainsAtMostCapacity() {
+        ByteArrayPool pool = new ByteArrayPool(ARRAY_SIZE, 2);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        byte[] third = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+        // dropped, the pool is full
+        pool.release(third);
+
+        assertSame(second, pool.acquire());
+        assertSame(first, pool.acquire());
+        byte[] fourth = pool.acquire();
+        assertNotSame(third, fourth);
+        assertEquals(ARRAY_SIZE, fourth.length);
+        assertEquals(2 / 6f, pool.getHitRate(), 0.001);
+    }
+
+    /**
+     * Ensure that a pool retaining no arrays allocates every time.
+     */
+    @Test
+    public void retainsNothingWithoutCapacity() {
+        ByteArrayPool pool = new ByteArrayPool(ARRAY_SIZE, 0);
+        byte[] array = pool.acquire();
+        pool.release(array);
+        assertNotSame(array, pool.acquire());
+        assertEquals(0, pool.getHitRate(), 0);
+    }
+
+    /**
+     * Ensure that the peak number of outstanding arrays is tracked, and restarts from the
+     * current number on reset.
+     */
+    @Test
+    public void tracksPeakOutstanding() {
+        ByteArrayPool pool = new ByteArrayPool(ARRAY_SIZE, 1);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        byte[] third = pool.acquire();
+        pool.release(third);
+        pool.release(second);
+        assertEquals(3, pool.getPeakOutstanding());
+
+        pool.resetStatistics();
+        assertEquals(1, pool.getPeakOutstanding());
+        assertEquals(0, pool.getHitRate(), 0);
+
+        pool.release(pool.acquire());
+        assertEquals(2, pool.getPeakOutstanding());
+        assertEquals(1, pool.getHitRate(), 0);
+        pool.release(first);
+    }
+
+    /**
+     * Ensure that arrays which can't have come from the pool are rejected.
+     */
+    @Test
+    public void rejectsForeignArrays() {
+        ByteArrayPool pool = new ByteArrayPool(ARRAY_SIZE, 2);
+        try {
+            pool.release(new byte[ARRAY_SIZE + 1]);
+            fail("released an array of the wrong size");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pool.release(null);
+            fail("released null");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Ensure that pools of empty arrays or negative capacity can't be created.
+     */
+    @Test
+    public void rejectsInvalidParameters() {
+        try {
+            new ByteArrayPool(0, 2);
+            fail("created a pool of empty arrays");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new ByteArrayPool(ARRAY_SIZE, -1);
+            fail("created a pool of negative capacity");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameCacheTest {
+    private static final int SIZE = 4;
+    private static final int[] FRAME_COLORS = { 0xffff0000, 0xff00ff00, 0xff0000ff, 0xffffff00 };
+    private static final int FRAME_DELAY_MS = 30;
+    // an ARGB_8888 frame of the animation
+    private static final long FRAME_BYTES = 4 * SIZE * SIZE;
+
+    private FrameSequence mFrameSequence;
+    private FrameSequence mOtherFrameSequence;
+
+    @Before
+    public void setUp() {
+        mFrameSequence = TestAnimations.createFrameSequence(SIZE, SIZE, FRAME_COLORS,
+                FRAME_DELAY_MS);
+        mOtherFrameSequence = TestAnimations.createFrameSequence(SIZE, SIZE, FRAME_COLORS,
+                FRAME_DELAY_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mFrameSequence.close();
+        mOtherFrameSequence.close();
+    }
+
+    private static Bitmap createFrame(int size, int frameNr) {
+        Bitmap frame = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        frame.eraseColor(FRAME_COLORS[frameNr]);
+        return frame;
+    }
+
+    private static void putFrame(FrameCache cache, FrameSequence frameSequence, int frameNr) {
+        cache.putFrame(frameSequence, 1, frameNr, createFrame(SIZE, frameNr), FRAME_DELAY_MS);
+    }
+
+    private static boolean isCached(FrameCache cache, FrameSequence frameSequence, int frameNr) {
+        Bitmap output = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        return cache.getFrame(frameSequence, 1, frameNr, output) >= 0;
+    }
+
+    /**
+     * Ensure that a cached frame is copied out with its delay, and that lookups are counted.
+     */
+    @Test
+    public void getFrameCopiesCachedFrame() {
+        FrameCache cache = new FrameCache(10 * FRAME_BYTES);
+        Bitmap output = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        assertEquals(-1, cache.getFrame(mFrameSequence, 1, 2, output));
+
+        Bitmap frame = createFrame(SIZE, 2);
+        cache.putFrame(mFrameSequence, 1, 2, frame, FRAME_DELAY_MS);
+        // the cache holds a copy, not the decoding drawable's Bitmap
+        frame.eraseColor(FRAME_COLORS[3]);
+
+        assertEquals(FRAME_DELAY_MS, cache.getFrame(mFrameSequence, 1, 2, output));
+        assertEquals(FRAME_COLORS[2], output.getPixel(SIZE - 1, SIZE - 1));
+        assertEquals(-1, cache.getFrame(mFrameSequence, 1, 1, output));
+        assertEquals(-1, cache.getFrame(mOtherFrameSequence, 1, 2, output));
+        assertEquals(FRAME_BYTES, cache.getSizeBytes());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    /**
+     * Ensure that frames beyond the cache's capacity evict the least recently used ones.
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        FrameCache cache = new FrameCache(3 * FRAME_BYTES);
+        putFrame(cache, mFrameSequence, 0);
+        putFrame(cache, mFrameSequence, 1);
+        putFrame(cache, mFrameSequence, 2);
+        assertEquals(3 * FRAME_BYTES, cache.getSizeBytes());
+
+        // make frame 1 the least recently used
+        isCached(cache, mFrameSequence, 0);
+        putFrame(cache, mFrameSequence, 3);
+
+        assertEquals(3 * FRAME_BYTES, cache.getSizeBytes());
+        assertFalse(isCached(cache, mFrameSequence, 1));
+        assertTrue(isCached(cache, mFrameSequence, 0));
+        assertTrue(isCached(cache, mFrameSequence, 2));
+        assertTrue(isCached(cache, mFrameSequence, 3));
+    }
+
+    /**
+     * Ensure that a frame already cached isn't stored again, or counted twice.
+     */
+    @Test
+    public void putFrameKeepsCachedFrame() {
+        FrameCache cache = new FrameCache(3 * FRAME_BYTES);
+        putFrame(cache, mFrameSequence, 0);
+        cache.putFrame(mFrameSequence, 1, 0, createFrame(SIZE, 1), FRAME_DELAY_MS);
+
+        Bitmap output = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        cache.getFrame(mFrameSequence, 1, 0, output);
+        assertEquals(FRAME_COLORS[0], output.getPixel(0, 0));
+        assertEquals(FRAME_BYTES, cache.getSizeBytes());
+    }
+
+    /**
+     * Ensure that a frame larger than the whole cache isn't cached.
+     */
+    @Test
+    public void skipsFrameLargerThanCache() {
+        FrameCache cache = new FrameCache(FRAME_BYTES - 1);
+        putFrame(cache, mFrameSequence, 0);
+        assertEquals(0, cache.getSizeBytes());
+        assertFalse(isCached(cache, mFrameSequence, 0));
+
+        // a frame sampled down to 2x2 fits
+        cache.putFrame(mFrameSequence, 2, 0, createFrame(SIZE / 2, 0), FRAME_DELAY_MS);
+        assertEquals(FRAME_BYTES / 4, cache.getSizeBytes());
+    }
+
+    /**
+     * Ensure that frames decoded with different sample sizes are cached separately.
+     */
+    @Test
+    public void sampleSizeIsPartOfKey() {
+        FrameCache cache = new FrameCache(10 * FRAME_BYTES);
+        cache.putFrame(mFrameSequence, 2, 0, createFrame(SIZE / 2, 0), FRAME_DELAY_MS);
+
+        assertFalse(isCached(cache, mFrameSequence, 0));
+        Bitmap output = Bitmap.createBitmap(SIZE / 2, SIZE / 2, Bitmap.Config.ARGB_8888);
+        assertEquals(FRAME_DELAY_MS, cache.getFrame(mFrameSequence, 2, 0, output));
+
+        putFrame(cache, mFrameSequence, 0);
+        assertEquals(FRAME_BYTES + FRAME_BYTES / 4, cache.getSizeBytes());
+    }
+
+    /**
+     * Ensure that removing a FrameSequence drops only its frames, and that clearing drops all.
+     */
+    @Test
+    public void removeAndClear() {
+        FrameCache cache = new FrameCache(10 * FRAME_BYTES);
+        putFrame(cache, mFrameSequence, 0);
+        putFrame(cache, mFrameSequence, 1);
+        putFrame(cache, mOtherFrameSequence, 0);
+
+        cache.remove(mFrameSequence);
+        assertEquals(FRAME_BYTES, cache.getSizeBytes());
+        assertFalse(isCached(cache, mFrameSequence, 0));
+        assertFalse(isCached(cache, mFrameSequence, 1));
+        assertTrue(isCached(cache, mOtherFrameSequence, 0));
+
+        cache.clear();
+        assertEquals(0, cache.getSizeBytes());
+        assertFalse(isCached(cache, mOtherFrameSequence, 0));
+        assertEquals(10 * FRAME_BYTES, cache.getMaxSizeBytes());
+    }
+
+    /**
+     * Ensure that a cache without capacity can't be created.
+     */
+    @Test
+    public void rejectsNonPositiveSize() {
+        try {
+            new FrameCache(0);
+            fail("created a cache of 0 bytes");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
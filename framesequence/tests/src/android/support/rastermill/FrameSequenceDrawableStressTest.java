@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameSequenceDrawableStressTest {
+    private static final int SIZE = 64;
+    private static final int[] FRAME_COLORS = {
+            0xffff0000, 0xff00ff00, 0xff0000ff, 0xffffff00, 0xff00ffff, 0xffff00ff };
+    private static final int FRAME_DELAY_MS = 20;
+    private static final int ITERATIONS = 2000;
+    private static final long TIMEOUT_MS = 5000;
+
+    private FrameSequence mFrameSequence;
+    private DecodeExecutor mDecodeExecutor;
+    private TrackingBitmapProvider mBitmapProvider;
+    private TestDrawableHost mHost;
+
+    /**
+     * Hands out Bitmaps, and fails on those released twice or never handed out.
+     */
+    private static class TrackingBitmapProvider implements FrameSequenceDrawable.BitmapProvider {
+        private final Set<Bitmap> mOutstanding =
+                Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+        private final List<String> mFailures = new ArrayList<String>();
+
+        @Override
+        public synchronized Bitmap acquireBitmap(int minWidth, int minHeight) {
+            Bitmap bitmap = Bitmap.createBitmap(minWidth, minHeight, Bitmap.Config.ARGB_8888);
+            mOutstanding.add(bitmap);
+            return bitmap;
+        }
+
+        @Override
+        public synchronized void releaseBitmap(Bitmap bitmap) {
+            if (!mOutstanding.remove(bitmap)) {
+                mFailures.add("released a Bitmap twice, or one it didn't acquire");
+            }
+            notifyAll();
+        }
+
+        synchronized boolean awaitAllReleased(long timeoutMs) throws InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + timeoutMs;
+            while (!mOutstanding.isEmpty()) {
+                final long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) return false;
+                wait(remaining);
+            }
+            return true;
+        }
+
+        synchronized List<String> getFailures() {
+            return new ArrayList<String>(mFailures);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mFrameSequence = TestAnimations.createFrameSequence(SIZE, SIZE, FRAME_COLORS,
+                FRAME_DELAY_MS);
+        mDecodeExecutor = new DecodeExecutor(2);
+        mBitmapProvider = new TrackingBitmapProvider();
+        mHost = new TestDrawableHost(SIZE, FRAME_COLORS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mDecodeExecutor.shutdown();
+        mHost.quit();
+        mFrameSequence.close();
+    }
+
+    private FrameSequenceDrawable createDrawable() {
+        FrameSequenceDrawable drawable =
+                new FrameSequenceDrawable(mFrameSequence, mBitmapProvider, mDecodeExecutor);
+        mHost.attach(drawable);
+        return drawable;
+    }
+
+    /**
+     * Starts and stops the drawable count times, then starts it, racing a destroy that makes
+     * start throw.
+     */
+    private static Thread startToggling(final FrameSequenceDrawable drawable, final int count,
+            final List<Throwable> failures) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        drawable.start();
+                        drawable.stop();
+                    }
+                    drawable.start();
+                } catch (IllegalStateException e) {
+                    if (!drawable.isDestroyed()) {
+                        failures.add(e);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void assertNoFailures(List<Throwable> failures) {
+        failures.addAll(mHost.getFailures());
+        if (!failures.isEmpty()) {
+            AssertionError error = new AssertionError(failures.size() + " failures, the first:");
+            error.initCause(failures.get(0));
+            throw error;
+        }
+        assertEquals(Collections.emptyList(), mBitmapProvider.getFailures());
+    }
+
+    /**
+     * Ensure that destroying drawables while other threads start and stop them, and while their
+     * frames are being decoded, shown and scheduled, neither crashes nor draws a frame that was
+     * released, and that every Bitmap is released exactly once.
+     */
+    @Test
+    public void startStopDestroyRaces() throws InterruptedException {
+        final List<Throwable> failures =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int i = 0; i < ITERATIONS; i++) {
+            final FrameSequenceDrawable drawable = createDrawable();
+            Thread toggling = startToggling(drawable, (i % 5) * 4 + 1, failures);
+
+            // vary when the destroy lands: before, amid and after the first frames decode
+            SystemClock.sleep(i % 4);
+            mHost.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    drawable.destroy();
+                }
+            });
+            toggling.join(TIMEOUT_MS);
+            assertTrue("start/stop blocked", !toggling.isAlive());
+            drawable.stop();
+        }
+
+        assertTrue("Bitmaps never released", mBitmapProvider.awaitAllReleased(TIMEOUT_MS));
+        assertNoFailures(failures);
+    }
+
+    /**
+     * Ensure that a drawable started and stopped by several threads at once still animates
+     * through all of its frames once started.
+     */
+    @Test
+    public void keepsAnimatingAfterStartStopRaces() throws InterruptedException {
+        final List<Throwable> failures =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+        final FrameSequenceDrawable drawable = createDrawable();
+        Thread[] toggling = new Thread[4];
+        for (int i = 0; i < toggling.length; i++) {
+            toggling[i] = startToggling(drawable, ITERATIONS / 4, failures);
+        }
+        for (Thread thread : toggling) {
+            thread.join(TIMEOUT_MS);
+            assertTrue("start/stop blocked", !thread.isAlive());
+        }
+
+        drawable.start();
+        assertTrue("stopped animating", mHost.awaitShownFrames(
+                FRAME_COLORS.length + 1, TIMEOUT_MS));
+        mHost.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                drawable.destroy();
+            }
+        });
+
+        assertTrue("Bitmaps never released", mBitmapProvider.awaitAllReleased(TIMEOUT_MS));
+        assertNoFailures(failures);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Builds animations for the tests: animated pngs looping forever, each of whose frames fills the
+ * canvas with a single opaque color, so that the frame a Bitmap holds can be told from any of
+ * its pixels.
+ */
+final class TestAnimations {
+    private static final byte[] PNG_SIGNATURE =
+            { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int COLOR_TYPE_RGB_ALPHA = 6;
+
+    private TestAnimations() {}
+
+    static FrameSequence createFrameSequence(int width, int height, int[] frameColors,
+            int delayMs) {
+        FrameSequence frameSequence = FrameSequence.decodeByteArray(
+                createApng(width, height, frameColors, delayMs));
+        if (frameSequence == null) {
+            throw new IllegalStateException("test animation not decodable");
+        }
+        return frameSequence;
+    }
+
+    /**
+     * Returns the index of the frame whose color the pixel has, or -1 if none has.
+     */
+    static int findFrame(int[] frameColors, int pixel) {
+        for (int i = 0; i < frameColors.length; i++) {
+            if (frameColors[i] == pixel) return i;
+        }
+        return -1;
+    }
+
+    static byte[] createApng(int width, int height, int[] frameColors, int delayMs) {
+        try {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            png.write(PNG_SIGNATURE);
+
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(chunk);
+            data.writeInt(width);
+            data.writeInt(height);
+            data.writeByte(8);
+            data.writeByte(COLOR_TYPE_RGB_ALPHA);
+            data.writeByte(0);
+            data.writeByte(0);
+            data.writeByte(0);
+            writeChunk(png, "IHDR", chunk);
+
+            data.writeInt(frameColors.length);
+            data.writeInt(0);
+            writeChunk(png, "acTL", chunk);
+
+            int sequenceNumber = 0;
+            for (int i = 0; i < frameColors.length; i++) {
+                data.writeInt(sequenceNumber++);
+                data.writeInt(width);
+                data.writeInt(height);
+                data.writeInt(0);
+                data.writeInt(0);
+                data.writeShort(delayMs);
+                data.writeShort(1000);
+                data.writeByte(0);
+                data.writeByte(0);
+                writeChunk(png, "fcTL", chunk);
+
+                // the first frame is the default image, the others follow their sequence number
+                if (i > 0) {
+                    data.writeInt(sequenceNumber++);
+                }
+                data.write(compressFrame(width, height, frameColors[i]));
+                writeChunk(png, i == 0 ? "IDAT" : "fdAT", chunk);
+            }
+
+            writeChunk(png, "IEND", chunk);
+            return png.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] compressFrame(int width, int height, int color) throws IOException {
+        byte[] row = new byte[1 + 4 * width];
+        for (int x = 0; x < width; x++) {
+            row[1 + 4 * x] = (byte) (color >> 16);
+            row[2 + 4 * x] = (byte) (color >> 8);
+            row[3 + 4 * x] = (byte) color;
+            row[4 + 4 * x] = (byte) (color >> 24);
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+        for (int y = 0; y < height; y++) {
+            deflater.write(row);
+        }
+        deflater.close();
+        return compressed.toByteArray();
+    }
+
+    // Writes the chunk's data from the buffer, which is then reset for the next chunk
+    private static void writeChunk(ByteArrayOutputStream png, String type,
+            ByteArrayOutputStream chunk) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        byte[] data = chunk.toByteArray();
+        chunk.reset();
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        DataOutputStream out = new DataOutputStream(png);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hosts FrameSequenceDrawables of {@link TestAnimations} the way a View would, on a thread of its
+ * own standing in for the UI thread: runnables the drawables schedule run on it, and drawables
+ * are drawn on it once they invalidate themselves, unless the host is off-screen.
+ *
+ * Every draw checks that the drawable shows one of the animation's frames, and records the
+ * frames shown in order.
+ */
+final class TestDrawableHost implements Drawable.Callback {
+    private final int mSize;
+    private final int[] mFrameColors;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Bitmap mScreen;
+    private final Canvas mCanvas;
+    private final List<Throwable> mFailures =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+    private volatile boolean mOnScreen = true;
+
+    // Guarded by this
+    private final ArrayList<Integer> mShownFrames = new ArrayList<Integer>();
+    private int mIgnoredInvalidateCount;
+
+    /**
+     * @param size Width and height of the animations, which are drawn at their intrinsic size.
+     */
+    TestDrawableHost(int size, int[] frameColors) {
+        mSize = size;
+        mFrameColors = frameColors;
+        mScreen = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mScreen);
+        mThread = new HandlerThread("TestDrawableHost");
+        mThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                mFailures.add(ex);
+            }
+        });
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    void quit() throws InterruptedException {
+        mThread.quit();
+        mThread.join();
+    }
+
+    void attach(FrameSequenceDrawable drawable) {
+        drawable.setBounds(0, 0, mSize, mSize);
+        drawable.setCallback(this);
+    }
+
+    /**
+     * While off-screen, drawables invalidating themselves aren't drawn.
+     */
+    void setOnScreen(boolean onScreen) {
+        mOnScreen = onScreen;
+    }
+
+    /**
+     * Runs the runnable on the host's thread and waits for it, rethrowing what it threw.
+     */
+    void runOnUiThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] thrown = new Throwable[1];
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+                done.countDown();
+            }
+        });
+        if (!done.await(5, TimeUnit.SECONDS)) {
+            throw new AssertionError("UI thread blocked");
+        }
+        if (thrown[0] instanceof RuntimeException) throw (RuntimeException) thrown[0];
+        if (thrown[0] instanceof Error) throw (Error) thrown[0];
+    }
+
+    /**
+     * Draws the drawable, whether or not it invalidated itself, as a View scrolled back on
+     * screen does.
+     */
+    void draw(final FrameSequenceDrawable drawable) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drawOnUiThread(drawable);
+            }
+        });
+    }
+
+    /**
+     * Frames drawn, each recorded once when it replaced another one.
+     */
+    synchronized List<Integer> getShownFrames() {
+        return new ArrayList<Integer>(mShownFrames);
+    }
+
+    /**
+     * Waits until at least count frames were shown.
+     */
+    synchronized boolean awaitShownFrames(int count, long timeoutMs)
+            throws InterruptedException {
+        final long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        while (mShownFrames.size() < count) {
+            final long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    synchronized int getIgnoredInvalidateCount() {
+        return mIgnoredInvalidateCount;
+    }
+
+    /**
+     * Failures on the host's thread.
+     */
+    List<Throwable> getFailures() {
+        synchronized (mFailures) {
+            return new ArrayList<Throwable>(mFailures);
+        }
+    }
+
+    private void drawOnUiThread(FrameSequenceDrawable drawable) {
+        if (drawable.isDestroyed()) return;
+        try {
+            drawable.draw(mCanvas);
+        } catch (Throwable t) {
+            mFailures.add(t);
+            return;
+        }
+        final int frame = TestAnimations.findFrame(mFrameColors,
+                mScreen.getPixel(mSize / 2, mSize / 2));
+        if (frame < 0) {
+            mFailures.add(new AssertionError("drew a Bitmap not holding a frame"));
+            return;
+        }
+        synchronized (this) {
+            if (mShownFrames.isEmpty() || mShownFrames.get(mShownFrames.size() - 1) != frame) {
+                mShownFrames.add(frame);
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void invalidateDrawable(final Drawable who) {
+        if (!mOnScreen) {
+            synchronized (this) {
+                mIgnoredInvalidateCount++;
+            }
+            return;
+        }
+        // drawables invalidate themselves while being drawn, so draw after that returns
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOnScreen) {
+                    drawOnUiThread((FrameSequenceDrawable) who);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void scheduleDrawable(Drawable who, Runnable what, long when) {
+        mHandler.postAtTime(what, who, when);
+    }
+
+    @Override
+    public void unscheduleDrawable(Drawable who, Runnable what) {
+        mHandler.removeCallbacks(what, who);
+    }
+}